@@ -36,6 +36,8 @@ public class FileUploadRunnable implements Runnable {
   private final UploadProgressListener listener;
   private final AtomicReference<State> state;
   private final Object lock;
+  private int currentItemIndex;
+  private int completedItemCount;
 
   public FileUploadRunnable( UploadPanel uploadPanel,
                              ProgressCollector progressCollector,
@@ -49,6 +51,7 @@ public class FileUploadRunnable implements Runnable {
     display = uploadPanel.getDisplay();
     state = new AtomicReference<State>( State.WAITING );
     lock = new Object();
+    currentItemIndex = -1;
     listener = new UploadProgressListener();
     setupFileUploadHandler();
     uploadPanel.updateIcons( State.WAITING );
@@ -86,9 +89,24 @@ public class FileUploadRunnable implements Runnable {
     if( state.compareAndSet( State.WAITING, State.UPLOADING ) ) {
       uploadPanel.updateIcons( State.UPLOADING );
     }
-    double fraction = bytesRead / ( double )contentLength;
-    int percent = ( int )Math.floor( fraction * 100 );
-    progressCollector.updateProgress( percent );
+    updateProgress( bytesRead, contentLength );
+  }
+
+  void handleProgress( long bytesRead, long contentLength, int itemIndex, int completedCount ) {
+    if( itemIndex < 0 ) {
+      handleProgress( bytesRead, contentLength );
+    } else {
+      state.compareAndSet( State.WAITING, State.UPLOADING );
+      for( int i = completedItemCount; i < completedCount; i++ ) {
+        uploadPanel.updateIcon( i, State.FINISHED );
+      }
+      completedItemCount = Math.max( completedItemCount, completedCount );
+      if( itemIndex != currentItemIndex && itemIndex >= completedItemCount ) {
+        uploadPanel.updateIcon( itemIndex, State.UPLOADING );
+      }
+      currentItemIndex = itemIndex;
+      updateProgress( bytesRead, contentLength );
+    }
   }
 
   void handleFinished( List<String> targetFileNames ) {
@@ -108,6 +126,12 @@ public class FileUploadRunnable implements Runnable {
     return state.get();
   }
 
+  private void updateProgress( long bytesRead, long contentLength ) {
+    double fraction = bytesRead / ( double )contentLength;
+    int percent = ( int )Math.floor( fraction * 100 );
+    progressCollector.updateProgress( percent );
+  }
+
   private void doWait() {
     synchronized( lock ) {
       try {
@@ -132,10 +156,14 @@ public class FileUploadRunnable implements Runnable {
 
   private final class UploadProgressListener implements FileUploadListener {
 
-    public void uploadProgress( final FileUploadEvent event ) {
+    public void uploadProgress( FileUploadEvent event ) {
+      final long bytesRead = event.getBytesRead();
+      final long contentLength = event.getContentLength();
+      final int itemIndex = event.getCurrentItemIndex();
+      final int completedCount = event.getCompletedItemCount();
       asyncExec( new Runnable() {
         public void run() {
-          handleProgress( event.getBytesRead(), event.getContentLength() );
+          handleProgress( bytesRead, contentLength, itemIndex, completedCount );
         }
       } );
     }
@@ -83,6 +83,15 @@ public class UploadPanel extends Composite {
     }
   }
 
+  void updateIcon( int index, State state ) {
+    if( index >= 0 && index < icons.size() ) {
+      Label icon = icons.get( index );
+      if( !icon.isDisposed() ) {
+        icon.setImage( getImage( state ) );
+      }
+    }
+  }
+
   private Image getImage( State state ) {
     Image image = emptyIcon;
     if( state.equals( State.WAITING ) ) {
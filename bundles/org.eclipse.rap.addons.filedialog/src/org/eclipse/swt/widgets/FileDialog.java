@@ -80,6 +80,8 @@ import org.eclipse.swt.layout.GridLayout;
  */
 public class FileDialog extends Dialog {
 
+  private static final long PROGRESS_INTERVAL = 100;
+
   private final ServerPushSession pushSession;
   private final ThreadPoolExecutor singleThreadExecutor;
   private Display display;
@@ -276,7 +278,7 @@ public class FileDialog extends Dialog {
     UploadPanel uploadPanel = createUploadPanel( getFileNames( files ) );
     updateScrolledComposite();
     Uploader uploader = new UploaderService( files );
-    FileUploadHandler handler = new FileUploadHandler( new DiskFileUploadReceiver() );
+    FileUploadHandler handler = createFileUploadHandler();
     FileUploadRunnable uploadRunnable = new FileUploadRunnable( uploadPanel,
                                                                 progressCollector,
                                                                 uploader,
@@ -346,7 +348,7 @@ public class FileDialog extends Dialog {
     updateScrolledComposite();
     updateButtonsArea( fileUpload );
     Uploader uploader = new UploaderWidget( fileUpload );
-    FileUploadHandler handler = new FileUploadHandler( new DiskFileUploadReceiver() );
+    FileUploadHandler handler = createFileUploadHandler();
     FileUploadRunnable uploadRunnable = new FileUploadRunnable( uploadPanel,
                                                                 progressCollector,
                                                                 uploader,
@@ -354,6 +356,13 @@ public class FileDialog extends Dialog {
     singleThreadExecutor.execute( uploadRunnable );
   }
 
+  private static FileUploadHandler createFileUploadHandler() {
+    FileUploadHandler handler = new FileUploadHandler( new DiskFileUploadReceiver() );
+    // every progress event results in a UI update, limit them to what the user can perceive
+    handler.setMinProgressInterval( PROGRESS_INTERVAL );
+    return handler;
+  }
+
   private void updateScrolledComposite() {
     Composite content = ( Composite )uploadsScroller.getContent();
     for( int i = 0; i < 2; i++ ) { // workaround for bug 414868
@@ -0,0 +1,292 @@
+/*******************************************************************************
+ * Copyright (c) 2014 EclipseSource and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    EclipseSource - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.rap.addons.fileupload;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * A file upload receiver that stores received files in a content-addressed store, so that
+ * identical files are stored only once. Files up to the memory threshold are hashed in memory and
+ * written to disk only if their content is not yet known. Larger files are written to a temporary
+ * file while they are hashed, which is then moved into the store or deleted if the content is
+ * already known. Memory for hashing is reserved from a memory budget, if the budget is exhausted
+ * the file is written to disk as well.
+ * <p>
+ * Since several uploads can resolve to the same file, received files must not be modified or
+ * deleted by the application. Instead, they have to be released using <code>release()</code>.
+ * This happens automatically when the UI session of the file upload handler ends, and when the
+ * handler is disposed of if it is configured to delete its files.
+ * </p>
+ *
+ * @see FileUploadContentStore
+ * @see FileUploadHandler#setDeleteFilesOnDispose(boolean)
+ */
+public class ContentAddressedFileUploadReceiver extends FileUploadReceiver {
+
+  /**
+   * The name of the digest algorithm that is used to identify content.
+   */
+  public static final String DIGEST_ALGORITHM = "SHA-256";
+
+  /**
+   * The default threshold in bytes, up to which files are hashed in memory.
+   */
+  public static final int DEFAULT_MEMORY_THRESHOLD = 1024 * 1024;
+
+  private final FileUploadContentStore contentStore;
+  private final List<File> targetFiles;
+  private final List<FileDetails> fileDetails;
+  private int memoryThreshold;
+  private FileUploadMemoryBudget memoryBudget;
+  private FileUploadBufferPool bufferPool;
+
+  /**
+   * Creates a new receiver that stores files in the given content store.
+   *
+   * @param contentStore the store to use, must not be <code>null</code>
+   */
+  public ContentAddressedFileUploadReceiver( FileUploadContentStore contentStore ) {
+    if( contentStore == null ) {
+      throw new NullPointerException( "contentStore is null" );
+    }
+    this.contentStore = contentStore;
+    targetFiles = new ArrayList<File>();
+    fileDetails = new ArrayList<FileDetails>();
+    memoryThreshold = DEFAULT_MEMORY_THRESHOLD;
+    memoryBudget = FileUploadMemoryBudget.getDefault();
+    bufferPool = FileUploadBufferPool.getDefault();
+  }
+
+  @Override
+  public void receive( InputStream stream, FileDetails details ) throws IOException {
+    MessageDigest digest = createMessageDigest();
+    byte[] chunk = bufferPool.borrowBuffer();
+    File targetFile;
+    try {
+      targetFile = receive( stream, digest, chunk );
+    } finally {
+      bufferPool.returnBuffer( chunk );
+    }
+    synchronized( targetFiles ) {
+      targetFiles.add( targetFile );
+      fileDetails.add( details );
+    }
+  }
+
+  /**
+   * Returns the content store that files are stored in.
+   *
+   * @return the content store
+   */
+  public FileUploadContentStore getContentStore() {
+    return contentStore;
+  }
+
+  /**
+   * Returns an array with the files that the received data has been saved to, one for each
+   * upload. Uploads with identical content share the same file.
+   *
+   * @return the array with target files or empty array if no files have been stored yet
+   */
+  public File[] getTargetFiles() {
+    synchronized( targetFiles ) {
+      return targetFiles.toArray( new File[ 0 ] );
+    }
+  }
+
+  /**
+   * Returns the details of the received files, in the same order as the target files.
+   *
+   * @return the array with file details or empty array if no files have been received yet
+   * @see #getTargetFiles()
+   */
+  public FileDetails[] getFileDetails() {
+    synchronized( targetFiles ) {
+      return fileDetails.toArray( new FileDetails[ 0 ] );
+    }
+  }
+
+  /**
+   * Releases the references to all files that have been received by this receiver. Files that
+   * are not referenced by other uploads anymore are deleted.
+   */
+  @Override
+  public void release() {
+    File[] files;
+    synchronized( targetFiles ) {
+      files = targetFiles.toArray( new File[ 0 ] );
+      targetFiles.clear();
+      fileDetails.clear();
+    }
+    for( int i = 0; i < files.length; i++ ) {
+      contentStore.release( files[ i ] );
+    }
+  }
+
+  /**
+   * Sets the maximum size of files that are hashed in memory before they are written to disk.
+   *
+   * @param memoryThreshold the threshold in bytes, must not be negative
+   */
+  public void setMemoryThreshold( int memoryThreshold ) {
+    if( memoryThreshold < 0 ) {
+      throw new IllegalArgumentException( "memoryThreshold must not be negative" );
+    }
+    this.memoryThreshold = memoryThreshold;
+  }
+
+  /**
+   * Returns the maximum size of files that are hashed in memory before they are written to disk.
+   *
+   * @return the threshold in bytes
+   * @see #setMemoryThreshold(int)
+   */
+  public int getMemoryThreshold() {
+    return memoryThreshold;
+  }
+
+  /**
+   * Sets the budget to reserve memory for hashing files in memory from. By default, the shared
+   * budget returned by <code>FileUploadMemoryBudget.getDefault()</code> is used.
+   *
+   * @param memoryBudget the memory budget to use, must not be <code>null</code>
+   */
+  public void setMemoryBudget( FileUploadMemoryBudget memoryBudget ) {
+    if( memoryBudget == null ) {
+      throw new NullPointerException( "memoryBudget is null" );
+    }
+    this.memoryBudget = memoryBudget;
+  }
+
+  /**
+   * Returns the budget that memory for hashing files in memory is reserved from.
+   *
+   * @return the memory budget, never <code>null</code>
+   */
+  public FileUploadMemoryBudget getMemoryBudget() {
+    return memoryBudget;
+  }
+
+  /**
+   * Sets the pool to borrow I/O buffers from. By default, the shared pool returned by
+   * <code>FileUploadBufferPool.getDefault()</code> is used.
+   *
+   * @param bufferPool the buffer pool to use, must not be <code>null</code>
+   */
+  public void setBufferPool( FileUploadBufferPool bufferPool ) {
+    if( bufferPool == null ) {
+      throw new NullPointerException( "bufferPool is null" );
+    }
+    this.bufferPool = bufferPool;
+  }
+
+  /**
+   * Returns the pool that I/O buffers are borrowed from.
+   *
+   * @return the buffer pool, never <code>null</code>
+   */
+  public FileUploadBufferPool getBufferPool() {
+    return bufferPool;
+  }
+
+  private File receive( InputStream stream, MessageDigest digest, byte[] chunk )
+    throws IOException
+  {
+    File result = null;
+    byte[] data = new byte[ 0 ];
+    int length = 0;
+    long reservedBytes = 0;
+    try {
+      int bytesRead = stream.read( chunk );
+      while( bytesRead != -1 && result == null ) {
+        int required = length + bytesRead;
+        if( required > data.length ) {
+          int capacity = getNewCapacity( data.length, required, chunk.length );
+          if( required <= memoryThreshold && memoryBudget.reserve( capacity - data.length ) ) {
+            reservedBytes += capacity - data.length;
+            data = grow( data, length, capacity );
+          } else {
+            result = receiveToFile( stream, digest, data, length, chunk, bytesRead );
+          }
+        }
+        if( result == null ) {
+          System.arraycopy( chunk, 0, data, length, bytesRead );
+          digest.update( chunk, 0, bytesRead );
+          length = required;
+          bytesRead = stream.read( chunk );
+        }
+      }
+      if( result == null ) {
+        result = contentStore.add( digest.digest(), data, length );
+      }
+    } finally {
+      memoryBudget.release( reservedBytes );
+    }
+    return result;
+  }
+
+  private File receiveToFile( InputStream stream,
+                              MessageDigest digest,
+                              byte[] data,
+                              int length,
+                              byte[] chunk,
+                              int chunkLength )
+    throws IOException
+  {
+    File tempFile = contentStore.createTempFile();
+    try {
+      FileOutputStream outputStream = new FileOutputStream( tempFile );
+      try {
+        outputStream.write( data, 0, length );
+        int bytesRead = chunkLength;
+        while( bytesRead != -1 ) {
+          outputStream.write( chunk, 0, bytesRead );
+          digest.update( chunk, 0, bytesRead );
+          bytesRead = stream.read( chunk );
+        }
+      } finally {
+        outputStream.close();
+      }
+    } catch( IOException exception ) {
+      tempFile.delete();
+      throw exception;
+    }
+    return contentStore.add( digest.digest(), tempFile );
+  }
+
+  private int getNewCapacity( int capacity, int required, int chunkLength ) {
+    long result = capacity == 0 ? chunkLength : capacity * 2L;
+    return ( int )Math.min( memoryThreshold, Math.max( result, required ) );
+  }
+
+  private static byte[] grow( byte[] data, int length, int capacity ) {
+    byte[] result = new byte[ capacity ];
+    System.arraycopy( data, 0, result, 0, length );
+    return result;
+  }
+
+  private static MessageDigest createMessageDigest() {
+    try {
+      return MessageDigest.getInstance( DIGEST_ALGORITHM );
+    } catch( NoSuchAlgorithmException exception ) {
+      throw new IllegalStateException( DIGEST_ALGORITHM + " is not available" );
+    }
+  }
+
+}
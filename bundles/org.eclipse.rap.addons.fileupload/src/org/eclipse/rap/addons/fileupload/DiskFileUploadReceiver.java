@@ -19,41 +19,87 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+import org.eclipse.rap.addons.fileupload.internal.FileMetadataCache;
+import org.eclipse.rap.addons.fileupload.internal.FileMetadataImpl;
 
 
 /**
  * A file upload receiver that stores received files on disk.
+ * <p>
+ * By default, every received file is stored in a new temporary directory, along with a separate
+ * file that contains its content type. If a target directory is set, all files are stored in this
+ * directory instead and the content types are kept in memory, which is considerably faster for
+ * many small files.
+ * </p>
+ *
+ * @see #setTargetDirectory(File)
  */
 public class DiskFileUploadReceiver extends FileUploadReceiver {
 
   private static final String DEFAULT_CONTENT_TYPE_FILE_NAME = "content-type.tmp";
   private static final String DEFAULT_TARGET_FILE_NAME = "upload.tmp";
   private static final String TEMP_DIRECTORY_PREFIX = "fileupload_";
+  static final long MAX_PREALLOCATED_LENGTH = 256 * 1024 * 1024;
 
   private List<File> targetFiles;
   private File contentTypeFile;
+  private boolean useFileChannel;
+  private boolean preallocate;
+  private boolean computeChecksum;
+  private FileUploadBufferPool bufferPool;
+  private File targetDirectory;
+  private boolean persistContentTypes;
+  private long timeToLive;
 
   public DiskFileUploadReceiver() {
     targetFiles = new ArrayList<File>();
+    bufferPool = FileUploadBufferPool.getDefault();
+    timeToLive = FileUploadReaper.DEFAULT_TIME_TO_LIVE;
   }
 
   @Override
   public void receive( InputStream dataStream, FileDetails details ) throws IOException {
     File targetFile = createTargetFile( details );
-    FileOutputStream outputStream = new FileOutputStream( targetFile );
+    long expectedLength = details != null ? details.getContentLength() : -1;
+    byte[] buffer = bufferPool.borrowBuffer();
+    Checksum checksum = computeChecksum ? new CRC32() : null;
+    long length = -1;
     try {
-      copy( dataStream, outputStream );
+      if( preallocate && expectedLength > 0 && expectedLength <= MAX_PREALLOCATED_LENGTH ) {
+        length = transferPreallocated( dataStream, targetFile, expectedLength, buffer, checksum );
+      } else {
+        length = write( dataStream, targetFile, buffer, checksum );
+      }
     } finally {
-      outputStream.close();
+      bufferPool.returnBuffer( buffer );
+      if( length == -1 ) {
+        deleteIncompleteFile( targetFile );
+      }
     }
     targetFiles.add( targetFile );
-    contentTypeFile = createContentTypeFile( targetFile, details );
-    if( contentTypeFile != null ) {
-      PrintWriter pw = new PrintWriter( contentTypeFile );
-      pw.print( details.getContentType() );
-      pw.close();
+    String contentType = details != null ? details.getContentType() : null;
+    FileMetadataCache metadataCache = FileMetadataCache.getInstance();
+    long receiveTime = System.currentTimeMillis();
+    long checksumValue = checksum != null ? checksum.getValue() : -1;
+    metadataCache.put( targetFile,
+                       new FileMetadataImpl( contentType, length, checksumValue, receiveTime ) );
+    if( targetDirectory == null ) {
+      contentTypeFile = createContentTypeFile( targetFile, details );
+      if( contentTypeFile != null ) {
+        PrintWriter pw = new PrintWriter( contentTypeFile );
+        pw.print( details.getContentType() );
+        pw.close();
+      }
+    } else if( persistContentTypes && contentType != null ) {
+      metadataCache.persist( targetFile, contentType );
     }
   }
 
@@ -67,28 +113,212 @@ public class DiskFileUploadReceiver extends FileUploadReceiver {
    *         not be found.
    */
   public static String getContentType( File uploadedFile ) {
-    String contentType = null;
-    BufferedReader br = null;
+    FileMetadata metadata = getFileMetadata( uploadedFile );
+    return metadata != null ? metadata.getContentType() : null;
+  }
+
+  /**
+   * Obtains the metadata of a file that has been uploaded and handled by an instance of
+   * DiskFileUploadReceiver. The metadata of recently received files is kept in memory. For other
+   * files, the content type is read from disk, if available. In this case, the checksum is
+   * unknown, and the length and receive time are taken from the file.
+   *
+   * @param uploadedFile the file that was uploaded and handled by an instance of
+   *          DiskFileUploadReceiver
+   * @return the metadata of the uploaded file or <code>null</code> if the metadata could not be
+   *         found
+   */
+  public static FileMetadata getFileMetadata( File uploadedFile ) {
+    FileMetadata result = null;
     if( uploadedFile.exists() ) {
-      File cTypeFile = new File( uploadedFile.getParentFile(), DEFAULT_CONTENT_TYPE_FILE_NAME );
-      if( cTypeFile.exists() ) {
-        try {
-          br = new BufferedReader( new InputStreamReader( new FileInputStream( cTypeFile ) ) );
-          contentType = br.readLine();
-        } catch( IOException e ) {
-          e.printStackTrace();
-        } finally {
-          try {
-            if( br != null ) {
-              br.close();
-            }
-          } catch( IOException ce ) {
-            ce.printStackTrace();
-          }
+      FileMetadataCache metadataCache = FileMetadataCache.getInstance();
+      result = metadataCache.get( uploadedFile );
+      if( result == null ) {
+        String contentType = readContentTypeFile( uploadedFile );
+        if( contentType == null ) {
+          contentType = metadataCache.readPersisted( uploadedFile );
+        }
+        if( contentType != null ) {
+          result = new FileMetadataImpl( contentType,
+                                         uploadedFile.length(),
+                                         -1,
+                                         uploadedFile.lastModified() );
+          metadataCache.put( uploadedFile, result );
         }
       }
     }
-    return contentType;
+    return result;
+  }
+
+  /**
+   * Controls whether received data is written to the target file using a <code>FileChannel</code>
+   * instead of a plain output stream. In this mode, the data is collected in blocks of the buffer
+   * pool's buffer size and written through the channel, which results in fewer write operations
+   * and avoids native allocations per write. This is recommended for large uploads. The default
+   * is <code>false</code>.
+   *
+   * @param useFileChannel <code>true</code> to write received data using a file channel
+   */
+  public void setUseFileChannel( boolean useFileChannel ) {
+    this.useFileChannel = useFileChannel;
+  }
+
+  /**
+   * Returns whether received data is written to the target file using a <code>FileChannel</code>.
+   *
+   * @return <code>true</code> if a file channel is used, <code>false</code> otherwise
+   * @see #setUseFileChannel(boolean)
+   */
+  public boolean getUseFileChannel() {
+    return useFileChannel;
+  }
+
+  /**
+   * Controls whether the target file is allocated at its full size before the data is written,
+   * if the length of the uploaded file is known in advance. This avoids that the file system
+   * extends the file repeatedly while it is written, which can lead to fragmentation. The data is
+   * then written using a <code>FileChannel</code>. If the actual length differs from the expected
+   * length, the file is truncated accordingly. If the length is unknown or larger than 256 MB, the
+   * data is written as usual, since the length is declared by the client and a file of that size
+   * would occupy disk space before any data has arrived. The default is <code>false</code>.
+   *
+   * @param preallocate <code>true</code> to preallocate target files
+   * @see FileDetails#getContentLength()
+   */
+  public void setPreallocate( boolean preallocate ) {
+    this.preallocate = preallocate;
+  }
+
+  /**
+   * Returns whether target files are allocated at their full size before the data is written.
+   *
+   * @return <code>true</code> if target files are preallocated, <code>false</code> otherwise
+   * @see #setPreallocate(boolean)
+   */
+  public boolean getPreallocate() {
+    return preallocate;
+  }
+
+  /**
+   * Controls whether a CRC-32 checksum of every received file is computed while it is stored. The
+   * checksum is available from the file metadata. Computing it costs CPU time for every received
+   * byte, therefore it is disabled by default and the checksum of the metadata is -1.
+   *
+   * @param computeChecksum <code>true</code> to compute checksums of received files
+   * @see #getFileMetadata(File)
+   */
+  public void setComputeChecksum( boolean computeChecksum ) {
+    this.computeChecksum = computeChecksum;
+  }
+
+  /**
+   * Returns whether a CRC-32 checksum of every received file is computed.
+   *
+   * @return <code>true</code> if checksums are computed, <code>false</code> otherwise
+   * @see #setComputeChecksum(boolean)
+   */
+  public boolean getComputeChecksum() {
+    return computeChecksum;
+  }
+
+  /**
+   * Sets the pool to borrow I/O buffers from. By default, the shared pool returned by
+   * <code>FileUploadBufferPool.getDefault()</code> is used.
+   *
+   * @param bufferPool the buffer pool to use, must not be <code>null</code>
+   */
+  public void setBufferPool( FileUploadBufferPool bufferPool ) {
+    if( bufferPool == null ) {
+      throw new NullPointerException( "bufferPool is null" );
+    }
+    this.bufferPool = bufferPool;
+  }
+
+  /**
+   * Returns the pool that I/O buffers are borrowed from.
+   *
+   * @return the buffer pool, never <code>null</code>
+   */
+  public FileUploadBufferPool getBufferPool() {
+    return bufferPool;
+  }
+
+  /**
+   * Sets a directory to store all received files in. If set, no separate directory is created per
+   * file. Files with the same name are stored under a unique name, and the content types are held
+   * in memory instead of a separate file per upload. A target directory can be shared between
+   * several receivers, e.g. to use one directory per session. If the directory does not exist, it
+   * is created on the first upload. The default is <code>null</code>, which stores every file in a
+   * new temporary directory.
+   *
+   * @param targetDirectory the directory to store received files in, or <code>null</code> to use a
+   *          new temporary directory for every file
+   * @see #setPersistContentTypes(boolean)
+   */
+  public void setTargetDirectory( File targetDirectory ) {
+    this.targetDirectory = targetDirectory;
+  }
+
+  /**
+   * Returns the directory to store all received files in.
+   *
+   * @return the target directory or <code>null</code> if every file is stored in a new temporary
+   *         directory
+   * @see #setTargetDirectory(File)
+   */
+  public File getTargetDirectory() {
+    return targetDirectory;
+  }
+
+  /**
+   * Controls whether the content types of files stored in a target directory are also written to
+   * a single index file in this directory. This allows to obtain the content type with
+   * <code>getContentType()</code> even after the in-memory index has dropped the entry, e.g. after a
+   * restart. Has no effect if no target directory is set. The default is <code>false</code>.
+   *
+   * @param persistContentTypes <code>true</code> to persist content types
+   * @see #setTargetDirectory(File)
+   */
+  public void setPersistContentTypes( boolean persistContentTypes ) {
+    this.persistContentTypes = persistContentTypes;
+  }
+
+  /**
+   * Returns whether the content types of files stored in a target directory are written to an
+   * index file.
+   *
+   * @return <code>true</code> if content types are persisted, <code>false</code> otherwise
+   * @see #setPersistContentTypes(boolean)
+   */
+  public boolean getPersistContentTypes() {
+    return persistContentTypes;
+  }
+
+  /**
+   * Sets the time after which the files created by this receiver are deleted. The files are also
+   * deleted when the UI session of the file upload handler ends, when the handler is disposed of,
+   * if it is configured to delete its files, and when the virtual machine shuts down. The default
+   * is <code>FileUploadReaper.DEFAULT_TIME_TO_LIVE</code>.
+   *
+   * @param timeToLive the time to live in milliseconds, must be positive
+   * @see FileUploadReaper
+   * @see FileUploadHandler#setDeleteFilesOnDispose(boolean)
+   */
+  public void setTimeToLive( long timeToLive ) {
+    if( timeToLive <= 0 ) {
+      throw new IllegalArgumentException( "timeToLive must be positive" );
+    }
+    this.timeToLive = timeToLive;
+  }
+
+  /**
+   * Returns the time after which the files created by this receiver are deleted.
+   *
+   * @return the time to live in milliseconds
+   * @see #setTimeToLive(long)
+   */
+  public long getTimeToLive() {
+    return timeToLive;
   }
 
   /**
@@ -111,8 +341,20 @@ public class DiskFileUploadReceiver extends FileUploadReceiver {
     if( details != null && details.getFileName() != null ) {
       fileName = details.getFileName();
     }
-    File result = new File( createTempDirectory(), fileName );
-    result.createNewFile();
+    FileUploadReaper reaper = FileUploadReaper.getInstance();
+    File result;
+    if( targetDirectory == null ) {
+      File directory = createTempDirectory();
+      reaper.track( directory, this, timeToLive );
+      result = createUniqueFile( directory, fileName );
+    } else {
+      File directory = targetDirectory;
+      if( !directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory() ) {
+        throw new IOException( "Unable to create directory: " + directory.getAbsolutePath() );
+      }
+      result = createUniqueFile( directory, fileName );
+      reaper.track( result, this, timeToLive );
+    }
     return result;
   }
 
@@ -138,27 +380,171 @@ public class DiskFileUploadReceiver extends FileUploadReceiver {
   private static File createTempDirectory() throws IOException {
     File result = File.createTempFile( TEMP_DIRECTORY_PREFIX, "" );
     result.delete();
-    if( result.mkdir() ) {
-      result.deleteOnExit();
-    } else {
+    if( !result.mkdir() ) {
       throw new IOException( "Unable to create temp directory: " + result.getAbsolutePath() );
     }
     return result;
   }
 
-  private static void copy( InputStream inputStream, OutputStream outputStream )
+  private static String readContentTypeFile( File uploadedFile ) {
+    String contentType = null;
+    BufferedReader br = null;
+    File cTypeFile = new File( uploadedFile.getParentFile(), DEFAULT_CONTENT_TYPE_FILE_NAME );
+    if( cTypeFile.exists() ) {
+      try {
+        br = new BufferedReader( new InputStreamReader( new FileInputStream( cTypeFile ) ) );
+        contentType = br.readLine();
+      } catch( IOException e ) {
+        e.printStackTrace();
+      } finally {
+        try {
+          if( br != null ) {
+            br.close();
+          }
+        } catch( IOException ce ) {
+          ce.printStackTrace();
+        }
+      }
+    }
+    return contentType;
+  }
+
+  private static File createUniqueFile( File directory, String fileName ) throws IOException {
+    String name = sanitizeFileName( fileName );
+    int extensionIndex = name.lastIndexOf( '.' );
+    if( extensionIndex <= 0 ) {
+      extensionIndex = name.length();
+    }
+    String baseName = name.substring( 0, extensionIndex );
+    String extension = name.substring( extensionIndex );
+    File result = new File( directory, name );
+    // createNewFile() is atomic, this is safe if several receivers share a directory
+    int counter = 0;
+    while( isReservedFileName( result.getName() ) || !result.createNewFile() ) {
+      counter++;
+      result = new File( directory, baseName + "_" + counter + extension );
+    }
+    return result;
+  }
+
+  private static String sanitizeFileName( String fileName ) {
+    StringBuilder result = new StringBuilder( fileName.length() );
+    for( int i = 0; i < fileName.length(); i++ ) {
+      char ch = fileName.charAt( i );
+      result.append( Character.isISOControl( ch ) ? '_' : ch );
+    }
+    return result.toString();
+  }
+
+  private static boolean isReservedFileName( String fileName ) {
+    return    FileMetadataCache.INDEX_FILE_NAME.equals( fileName )
+           || FileMetadataCache.INDEX_TEMP_FILE_NAME.equals( fileName )
+           || DEFAULT_CONTENT_TYPE_FILE_NAME.equals( fileName );
+  }
+
+  private void deleteIncompleteFile( File file ) {
+    // a preallocated file would otherwise occupy its full length until it is reaped
+    file.delete();
+    File directory = file.getParentFile();
+    if( targetDirectory == null && directory.getName().startsWith( TEMP_DIRECTORY_PREFIX ) ) {
+      directory.delete();
+    }
+  }
+
+  private long write( InputStream inputStream, File file, byte[] buffer, Checksum checksum )
+    throws IOException
+  {
+    long result;
+    FileOutputStream outputStream = new FileOutputStream( file );
+    try {
+      if( useFileChannel ) {
+        result = transfer( inputStream, outputStream.getChannel(), buffer, checksum );
+      } else {
+        result = copy( inputStream, outputStream, buffer, checksum );
+      }
+    } finally {
+      outputStream.close();
+    }
+    return result;
+  }
+
+  private static long transferPreallocated( InputStream inputStream,
+                                            File file,
+                                            long expectedLength,
+                                            byte[] buffer,
+                                            Checksum checksum )
+    throws IOException
+  {
+    long result;
+    RandomAccessFile randomAccessFile = new RandomAccessFile( file, "rw" );
+    try {
+      randomAccessFile.setLength( expectedLength );
+      result = transfer( inputStream, randomAccessFile.getChannel(), buffer, checksum );
+      if( result != expectedLength ) {
+        randomAccessFile.setLength( result );
+      }
+    } finally {
+      randomAccessFile.close();
+    }
+    return result;
+  }
+
+  private static long copy( InputStream inputStream,
+                            OutputStream outputStream,
+                            byte[] buffer,
+                            Checksum checksum )
     throws IOException
   {
-    byte[] buffer = new byte[ 8192 ];
+    long result = 0;
     boolean finished = false;
     while( !finished ) {
       int bytesRead = inputStream.read( buffer );
       if( bytesRead != -1 ) {
         outputStream.write( buffer, 0, bytesRead );
+        if( checksum != null ) {
+          checksum.update( buffer, 0, bytesRead );
+        }
+        result += bytesRead;
       } else {
         finished = true;
       }
     }
+    return result;
+  }
+
+  private static long transfer( InputStream inputStream,
+                                FileChannel channel,
+                                byte[] buffer,
+                                Checksum checksum )
+    throws IOException
+  {
+    // Fill the whole buffer before writing it, part streams usually return only a few KB per read.
+    // Writing a heap buffer to a file channel uses the JDK's cached direct buffer.
+    ByteBuffer byteBuffer = ByteBuffer.wrap( buffer );
+    long result = 0;
+    int filled = 0;
+    boolean finished = false;
+    while( !finished ) {
+      int bytesRead = inputStream.read( buffer, filled, buffer.length - filled );
+      if( bytesRead != -1 ) {
+        filled += bytesRead;
+      } else {
+        finished = true;
+      }
+      if( filled == buffer.length || ( finished && filled > 0 ) ) {
+        byteBuffer.clear();
+        byteBuffer.limit( filled );
+        while( byteBuffer.hasRemaining() ) {
+          channel.write( byteBuffer );
+        }
+        if( checksum != null ) {
+          checksum.update( buffer, 0, filled );
+        }
+        result += filled;
+        filled = 0;
+      }
+    }
+    return result;
   }
 
 }
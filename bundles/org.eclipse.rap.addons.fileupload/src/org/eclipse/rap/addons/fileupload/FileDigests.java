@@ -0,0 +1,50 @@
+/*******************************************************************************
+ * Copyright (c) 2014 EclipseSource and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    EclipseSource - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.rap.addons.fileupload;
+
+
+/**
+ * Provides the digests of an uploaded file that have been computed while the file was received.
+ * The file details passed to receivers and listeners implement this interface if digest
+ * algorithms have been configured on the file upload handler.
+ * <p>
+ * Digests are available as soon as the stream of the uploaded file has been read completely.
+ * Receivers can therefore obtain the digests at the end of their <code>receive()</code> method.
+ * </p>
+ *
+ * @see FileUploadHandler#setDigestAlgorithms(String...)
+ */
+public interface FileDigests {
+
+  /**
+   * The name of the CRC-32 checksum algorithm. The digest is the checksum value as four bytes in
+   * big-endian order.
+   */
+  String CRC32 = "CRC32";
+
+  /**
+   * Returns the names of the algorithms that digests have been computed with.
+   *
+   * @return the algorithm names in the order they have been configured, or an empty array if the
+   *         file has not been received completely
+   */
+  String[] getDigestAlgorithms();
+
+  /**
+   * Returns the digest of the uploaded file that has been computed with the given algorithm.
+   *
+   * @param algorithm the name of the algorithm, e.g. <code>"SHA-256"</code>
+   * @return the digest, or <code>null</code> if no digest has been computed with this algorithm or
+   *         the file has not been received completely
+   */
+  byte[] getDigest( String algorithm );
+
+}
@@ -0,0 +1,50 @@
+/*******************************************************************************
+ * Copyright (c) 2014 EclipseSource and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    EclipseSource - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.rap.addons.fileupload;
+
+
+/**
+ * Provides metadata of a file that has been stored by a <code>DiskFileUploadReceiver</code>.
+ *
+ * @see DiskFileUploadReceiver#getFileMetadata(java.io.File)
+ */
+public interface FileMetadata {
+
+  /**
+   * The content type as transmitted by the uploading client.
+   *
+   * @return the content type or <code>null</code> if unknown
+   */
+  String getContentType();
+
+  /**
+   * The number of bytes that have been stored in the file.
+   *
+   * @return the file length in bytes
+   */
+  long getLength();
+
+  /**
+   * The CRC-32 checksum of the received data, computed while the file was stored.
+   *
+   * @return the checksum or -1 if unknown or not computed
+   * @see DiskFileUploadReceiver#setComputeChecksum(boolean)
+   */
+  long getChecksum();
+
+  /**
+   * The time at which the file has been received completely, in milliseconds since the epoch.
+   *
+   * @return the receive time
+   */
+  long getReceiveTime();
+
+}
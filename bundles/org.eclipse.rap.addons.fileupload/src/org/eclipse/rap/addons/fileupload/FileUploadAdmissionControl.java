@@ -0,0 +1,379 @@
+/*******************************************************************************
+ * Copyright (c) 2014 EclipseSource and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    EclipseSource - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.rap.addons.fileupload;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * Limits the number of uploads that are processed concurrently, so that a spike of uploads cannot
+ * occupy all threads of the servlet container. Uploads that exceed the limits wait in a bounded
+ * queue for a limited time. Uploads that cannot be admitted are rejected with the status 503
+ * (Service Unavailable) and a <code>Retry-After</code> header.
+ * <p>
+ * The upload service handler admits every upload through the default admission control. By
+ * default, there are no limits. Limits can be changed at any time, they apply to uploads that are
+ * admitted afterwards.
+ * </p>
+ * <p>
+ * This class is thread safe.
+ * </p>
+ */
+public final class FileUploadAdmissionControl {
+
+  /**
+   * The default time in milliseconds that an upload waits in the queue.
+   */
+  public static final long DEFAULT_QUEUE_TIMEOUT = 10 * 1000;
+
+  /**
+   * The default number of seconds that clients are asked to wait before they retry.
+   */
+  public static final int DEFAULT_RETRY_AFTER = 5;
+
+  private static final FileUploadAdmissionControl DEFAULT = new FileUploadAdmissionControl();
+
+  private final ReentrantLock lock;
+  private final Condition released;
+  private final Map<String, Integer> activeUploadsPerSession;
+  private int maxActiveUploads = -1;
+  private int maxActiveUploadsPerSession = -1;
+  private int maxQueuedUploads;
+  private long queueTimeout = DEFAULT_QUEUE_TIMEOUT;
+  private int retryAfter = DEFAULT_RETRY_AFTER;
+  private int activeUploads;
+  private int queuedUploads;
+  private long rejectedUploads;
+
+  /**
+   * Creates a new admission control without limits.
+   */
+  public FileUploadAdmissionControl() {
+    lock = new ReentrantLock();
+    released = lock.newCondition();
+    activeUploadsPerSession = new HashMap<String, Integer>();
+  }
+
+  /**
+   * Returns the admission control that is used by the upload service handler.
+   *
+   * @return the default admission control
+   */
+  public static FileUploadAdmissionControl getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * Tries to admit an upload of the given session. If the upload cannot be started right away,
+   * it waits in the queue until another upload is released or the queue timeout has elapsed.
+   * Admitted uploads must be released using <code>release()</code>.
+   *
+   * @param sessionId the id of the session that the upload belongs to, must not be
+   *          <code>null</code>
+   * @return <code>true</code> if the upload has been admitted, <code>false</code> if it has been
+   *         rejected
+   * @throws InterruptedException if the thread is interrupted while waiting in the queue
+   * @see #release(String)
+   */
+  public boolean admit( String sessionId ) throws InterruptedException {
+    if( sessionId == null ) {
+      throw new NullPointerException( "sessionId is null" );
+    }
+    lock.lock();
+    try {
+      boolean result = canStart( sessionId ) || waitInQueue( sessionId );
+      if( result ) {
+        start( sessionId );
+      } else {
+        rejectedUploads++;
+      }
+      return result;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Releases an admitted upload of the given session, so that a waiting upload can be started.
+   *
+   * @param sessionId the id of the session that the upload belongs to, must not be
+   *          <code>null</code>
+   */
+  public void release( String sessionId ) {
+    if( sessionId == null ) {
+      throw new NullPointerException( "sessionId is null" );
+    }
+    lock.lock();
+    try {
+      Integer count = activeUploadsPerSession.get( sessionId );
+      if( count != null ) {
+        activeUploads--;
+        if( count.intValue() == 1 ) {
+          activeUploadsPerSession.remove( sessionId );
+        } else {
+          activeUploadsPerSession.put( sessionId, Integer.valueOf( count.intValue() - 1 ) );
+        }
+        // waiting uploads may belong to different sessions, each has to check its own limit
+        released.signalAll();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Sets the maximum number of uploads that are processed concurrently. A value of -1 indicates
+   * no limit.
+   *
+   * @param maxActiveUploads the maximum number of concurrent uploads, or -1
+   */
+  public void setMaxActiveUploads( int maxActiveUploads ) {
+    if( maxActiveUploads < -1 ) {
+      throw new IllegalArgumentException( "maxActiveUploads must be -1 or greater" );
+    }
+    lock.lock();
+    try {
+      this.maxActiveUploads = maxActiveUploads;
+      released.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the maximum number of uploads that are processed concurrently.
+   *
+   * @return the maximum number of concurrent uploads, or -1 if there is no limit
+   * @see #setMaxActiveUploads(int)
+   */
+  public int getMaxActiveUploads() {
+    lock.lock();
+    try {
+      return maxActiveUploads;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Sets the maximum number of uploads of a single session that are processed concurrently. A
+   * value of -1 indicates no limit.
+   *
+   * @param maxActiveUploadsPerSession the maximum number of concurrent uploads per session, or -1
+   */
+  public void setMaxActiveUploadsPerSession( int maxActiveUploadsPerSession ) {
+    if( maxActiveUploadsPerSession < -1 ) {
+      throw new IllegalArgumentException( "maxActiveUploadsPerSession must be -1 or greater" );
+    }
+    lock.lock();
+    try {
+      this.maxActiveUploadsPerSession = maxActiveUploadsPerSession;
+      released.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the maximum number of uploads of a single session that are processed concurrently.
+   *
+   * @return the maximum number of concurrent uploads per session, or -1 if there is no limit
+   * @see #setMaxActiveUploadsPerSession(int)
+   */
+  public int getMaxActiveUploadsPerSession() {
+    lock.lock();
+    try {
+      return maxActiveUploadsPerSession;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Sets the maximum number of uploads that wait to be admitted. Uploads that exceed the limits
+   * while the queue is full are rejected right away. The default value of 0 rejects all uploads
+   * that exceed the limits.
+   *
+   * @param maxQueuedUploads the maximum number of waiting uploads, must not be negative
+   */
+  public void setMaxQueuedUploads( int maxQueuedUploads ) {
+    if( maxQueuedUploads < 0 ) {
+      throw new IllegalArgumentException( "maxQueuedUploads must not be negative" );
+    }
+    lock.lock();
+    try {
+      this.maxQueuedUploads = maxQueuedUploads;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the maximum number of uploads that wait to be admitted.
+   *
+   * @return the maximum number of waiting uploads
+   * @see #setMaxQueuedUploads(int)
+   */
+  public int getMaxQueuedUploads() {
+    lock.lock();
+    try {
+      return maxQueuedUploads;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Sets the maximum time that an upload waits in the queue before it is rejected.
+   *
+   * @param queueTimeout the timeout in milliseconds, must not be negative
+   */
+  public void setQueueTimeout( long queueTimeout ) {
+    if( queueTimeout < 0 ) {
+      throw new IllegalArgumentException( "queueTimeout must not be negative" );
+    }
+    lock.lock();
+    try {
+      this.queueTimeout = queueTimeout;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the maximum time that an upload waits in the queue before it is rejected.
+   *
+   * @return the timeout in milliseconds
+   * @see #setQueueTimeout(long)
+   */
+  public long getQueueTimeout() {
+    lock.lock();
+    try {
+      return queueTimeout;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Sets the number of seconds that clients of rejected uploads are asked to wait before they
+   * retry, as sent in the <code>Retry-After</code> header.
+   *
+   * @param retryAfter the delay in seconds, must not be negative
+   */
+  public void setRetryAfter( int retryAfter ) {
+    if( retryAfter < 0 ) {
+      throw new IllegalArgumentException( "retryAfter must not be negative" );
+    }
+    lock.lock();
+    try {
+      this.retryAfter = retryAfter;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the number of seconds that clients of rejected uploads are asked to wait before they
+   * retry.
+   *
+   * @return the delay in seconds
+   * @see #setRetryAfter(int)
+   */
+  public int getRetryAfter() {
+    lock.lock();
+    try {
+      return retryAfter;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the number of uploads that are currently being processed.
+   *
+   * @return the number of active uploads
+   */
+  public int getActiveUploadCount() {
+    lock.lock();
+    try {
+      return activeUploads;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the number of uploads that are currently waiting to be admitted.
+   *
+   * @return the number of queued uploads
+   */
+  public int getQueuedUploadCount() {
+    lock.lock();
+    try {
+      return queuedUploads;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the number of uploads that have been rejected since this admission control has been
+   * created.
+   *
+   * @return the number of rejected uploads
+   */
+  public long getRejectedUploadCount() {
+    lock.lock();
+    try {
+      return rejectedUploads;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private boolean waitInQueue( String sessionId ) throws InterruptedException {
+    boolean result = false;
+    if( queuedUploads < maxQueuedUploads ) {
+      queuedUploads++;
+      try {
+        long nanos = TimeUnit.MILLISECONDS.toNanos( queueTimeout );
+        result = canStart( sessionId );
+        while( !result && nanos > 0 ) {
+          nanos = released.awaitNanos( nanos );
+          result = canStart( sessionId );
+        }
+      } finally {
+        queuedUploads--;
+      }
+    }
+    return result;
+  }
+
+  private boolean canStart( String sessionId ) {
+    Integer sessionUploads = activeUploadsPerSession.get( sessionId );
+    int sessionCount = sessionUploads == null ? 0 : sessionUploads.intValue();
+    return    ( maxActiveUploads == -1 || activeUploads < maxActiveUploads )
+           && ( maxActiveUploadsPerSession == -1 || sessionCount < maxActiveUploadsPerSession );
+  }
+
+  private void start( String sessionId ) {
+    Integer sessionUploads = activeUploadsPerSession.get( sessionId );
+    int sessionCount = sessionUploads == null ? 0 : sessionUploads.intValue();
+    activeUploadsPerSession.put( sessionId, Integer.valueOf( sessionCount + 1 ) );
+    activeUploads++;
+  }
+
+}
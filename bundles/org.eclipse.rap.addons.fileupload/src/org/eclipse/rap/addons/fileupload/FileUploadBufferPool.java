@@ -0,0 +1,159 @@
+/*******************************************************************************
+ * Copyright (c) 2014 EclipseSource and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    EclipseSource - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.rap.addons.fileupload;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A bounded pool of byte arrays that file upload receivers can use as I/O buffers. Reusing buffers
+ * avoids allocating a new array for every received file. Buffers that are returned while the pool
+ * is full are left to the garbage collector.
+ * <p>
+ * This class is thread safe. A buffer must not be used anymore after it has been returned to the
+ * pool.
+ * </p>
+ *
+ * @see DiskFileUploadReceiver#setBufferPool(FileUploadBufferPool)
+ */
+public final class FileUploadBufferPool {
+
+  /**
+   * The size of the buffers in the default pool in bytes.
+   */
+  public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * The maximum number of bytes held by the default pool.
+   */
+  public static final long DEFAULT_MAX_POOL_SIZE = 16 * 1024 * 1024;
+
+  private static final FileUploadBufferPool DEFAULT
+    = new FileUploadBufferPool( DEFAULT_BUFFER_SIZE, DEFAULT_MAX_POOL_SIZE );
+
+  private final int bufferSize;
+  private final int maxBufferCount;
+  private final Queue<byte[]> buffers;
+  private final AtomicInteger bufferCount;
+  private final AtomicLong hitCount;
+  private final AtomicLong missCount;
+
+  /**
+   * Creates a new buffer pool.
+   *
+   * @param bufferSize the size of the buffers in bytes, must be greater than zero
+   * @param maxPoolSize the maximum number of bytes held by idle buffers in this pool, must not be
+   *          negative
+   */
+  public FileUploadBufferPool( int bufferSize, long maxPoolSize ) {
+    if( bufferSize <= 0 ) {
+      throw new IllegalArgumentException( "bufferSize must be greater than zero" );
+    }
+    if( maxPoolSize < 0 ) {
+      throw new IllegalArgumentException( "maxPoolSize must not be negative" );
+    }
+    this.bufferSize = bufferSize;
+    maxBufferCount = ( int )Math.min( Integer.MAX_VALUE, maxPoolSize / bufferSize );
+    buffers = new ConcurrentLinkedQueue<byte[]>();
+    bufferCount = new AtomicInteger();
+    hitCount = new AtomicLong();
+    missCount = new AtomicLong();
+  }
+
+  /**
+   * Returns the buffer pool that is shared by all receivers that have not been configured with a
+   * pool of their own.
+   *
+   * @return the default buffer pool
+   */
+  public static FileUploadBufferPool getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * Borrows a buffer from this pool. If no idle buffer is available, a new one is created. The
+   * buffer should be handed back using <code>returnBuffer()</code> when it is not needed anymore.
+   *
+   * @return a buffer with a length of <code>getBufferSize()</code>, never <code>null</code>
+   * @see #returnBuffer(byte[])
+   */
+  public byte[] borrowBuffer() {
+    byte[] result = buffers.poll();
+    if( result != null ) {
+      bufferCount.decrementAndGet();
+      hitCount.incrementAndGet();
+    } else {
+      missCount.incrementAndGet();
+      result = new byte[ bufferSize ];
+    }
+    return result;
+  }
+
+  /**
+   * Returns a buffer to this pool. Buffers that do not match the buffer size of this pool are
+   * ignored, as well as buffers that exceed the maximum pool size.
+   *
+   * @param buffer the buffer to return, must not be <code>null</code>
+   * @see #borrowBuffer()
+   */
+  public void returnBuffer( byte[] buffer ) {
+    if( buffer == null ) {
+      throw new NullPointerException( "buffer is null" );
+    }
+    if( buffer.length == bufferSize ) {
+      if( bufferCount.incrementAndGet() <= maxBufferCount ) {
+        buffers.offer( buffer );
+      } else {
+        bufferCount.decrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Returns the size of the buffers in this pool.
+   *
+   * @return the buffer size in bytes
+   */
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+  /**
+   * Returns the number of idle buffers that are currently held by this pool.
+   *
+   * @return the number of idle buffers
+   */
+  public int getPooledBufferCount() {
+    return bufferCount.get();
+  }
+
+  /**
+   * Returns the number of times a buffer could be taken from the pool.
+   *
+   * @return the number of pool hits
+   */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /**
+   * Returns the number of times a new buffer had to be created because the pool was empty.
+   *
+   * @return the number of pool misses
+   */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+}
@@ -0,0 +1,248 @@
+/*******************************************************************************
+ * Copyright (c) 2014 EclipseSource and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    EclipseSource - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.rap.addons.fileupload;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * A content-addressed store for uploaded files. Every distinct content is stored only once, in a
+ * file that is named after the digest of the content. Files are reference counted: every upload
+ * of the same content adds a reference to the existing file, and the file is deleted when the last
+ * reference is released.
+ * <p>
+ * The index of known digests is held in memory. Files that already exist in the store directory,
+ * e.g. from a previous run, are reused when the same content is uploaded again.
+ * </p>
+ * <p>
+ * This class is thread safe. A store can be shared between several receivers.
+ * </p>
+ *
+ * @see ContentAddressedFileUploadReceiver
+ */
+public final class FileUploadContentStore {
+
+  private static final String TEMP_FILE_PREFIX = "upload_";
+  private static final String TEMP_FILE_SUFFIX = ".tmp";
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  private final File directory;
+  private final Map<String, Entry> entries;
+  private final Map<File, Entry> entriesByFile;
+  private long duplicateCount;
+  private long savedBytes;
+
+  /**
+   * Creates a new content store. If the directory does not exist, it is created when the first
+   * file is stored.
+   *
+   * @param directory the directory to store files in, must not be <code>null</code>
+   */
+  public FileUploadContentStore( File directory ) {
+    if( directory == null ) {
+      throw new NullPointerException( "directory is null" );
+    }
+    this.directory = directory.getAbsoluteFile();
+    entries = new HashMap<String, Entry>();
+    entriesByFile = new HashMap<File, Entry>();
+  }
+
+  /**
+   * Returns the directory that files are stored in.
+   *
+   * @return the store directory
+   */
+  public File getDirectory() {
+    return directory;
+  }
+
+  /**
+   * Returns the number of references to the given file.
+   *
+   * @param file a file of this store
+   * @return the number of references, or 0 if the file does not belong to this store
+   */
+  public int getReferenceCount( File file ) {
+    synchronized( entries ) {
+      Entry entry = entriesByFile.get( file.getAbsoluteFile() );
+      return entry != null ? entry.referenceCount : 0;
+    }
+  }
+
+  /**
+   * Releases a reference to the given file. The file is deleted when its last reference is
+   * released. Releasing a file that does not belong to this store has no effect.
+   *
+   * @param file a file of this store, must not be <code>null</code>
+   */
+  public void release( File file ) {
+    if( file == null ) {
+      throw new NullPointerException( "file is null" );
+    }
+    File fileToDelete = null;
+    synchronized( entries ) {
+      Entry entry = entriesByFile.get( file.getAbsoluteFile() );
+      if( entry != null ) {
+        entry.referenceCount--;
+        if( entry.referenceCount == 0 ) {
+          entries.remove( entry.key );
+          entriesByFile.remove( entry.file );
+          fileToDelete = entry.file;
+        }
+      }
+    }
+    if( fileToDelete != null ) {
+      fileToDelete.delete();
+    }
+  }
+
+  /**
+   * Returns the number of distinct files in this store.
+   *
+   * @return the number of stored files
+   */
+  public int getFileCount() {
+    synchronized( entries ) {
+      return entries.size();
+    }
+  }
+
+  /**
+   * Returns the number of uploads that have been resolved to an existing file.
+   *
+   * @return the number of duplicates
+   */
+  public long getDuplicateCount() {
+    synchronized( entries ) {
+      return duplicateCount;
+    }
+  }
+
+  /**
+   * Returns the total size of all uploads that have been resolved to an existing file, i.e. the
+   * disk space that has been saved by this store.
+   *
+   * @return the number of bytes saved
+   */
+  public long getSavedBytes() {
+    synchronized( entries ) {
+      return savedBytes;
+    }
+  }
+
+  /**
+   * Adds a reference to the file with the given content if it is already stored.
+   *
+   * @return the stored file or <code>null</code> if the content is unknown
+   */
+  File addReference( byte[] digest, long length ) {
+    String key = toHexString( digest );
+    synchronized( entries ) {
+      Entry entry = entries.get( key );
+      if( entry == null ) {
+        File file = new File( directory, key );
+        if( file.isFile() && file.length() == length ) {
+          entry = new Entry( key, file, length );
+          entries.put( key, entry );
+          entriesByFile.put( file, entry );
+        }
+      }
+      File result = null;
+      if( entry != null && entry.length == length ) {
+        entry.referenceCount++;
+        duplicateCount++;
+        savedBytes += length;
+        result = entry.file;
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Stores the given data, or adds a reference if the content is already stored.
+   */
+  File add( byte[] digest, byte[] data, int length ) throws IOException {
+    File result = addReference( digest, length );
+    if( result == null ) {
+      File tempFile = createTempFile();
+      FileOutputStream outputStream = new FileOutputStream( tempFile );
+      try {
+        outputStream.write( data, 0, length );
+      } finally {
+        outputStream.close();
+      }
+      result = add( digest, tempFile );
+    }
+    return result;
+  }
+
+  /**
+   * Moves the given file into the store, or deletes it and adds a reference if the content is
+   * already stored.
+   */
+  File add( byte[] digest, File tempFile ) throws IOException {
+    String key = toHexString( digest );
+    long length = tempFile.length();
+    synchronized( entries ) {
+      File result = addReference( digest, length );
+      if( result != null ) {
+        tempFile.delete();
+      } else {
+        result = new File( directory, key );
+        if( !tempFile.renameTo( result ) ) {
+          tempFile.delete();
+          throw new IOException( "Unable to store file: " + result.getAbsolutePath() );
+        }
+        Entry entry = new Entry( key, result, length );
+        entry.referenceCount = 1;
+        entries.put( key, entry );
+        entriesByFile.put( result, entry );
+      }
+      return result;
+    }
+  }
+
+  File createTempFile() throws IOException {
+    if( !directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory() ) {
+      throw new IOException( "Unable to create directory: " + directory.getAbsolutePath() );
+    }
+    return File.createTempFile( TEMP_FILE_PREFIX, TEMP_FILE_SUFFIX, directory );
+  }
+
+  private static String toHexString( byte[] bytes ) {
+    char[] result = new char[ bytes.length * 2 ];
+    for( int i = 0; i < bytes.length; i++ ) {
+      result[ i * 2 ] = HEX_DIGITS[ ( bytes[ i ] >> 4 ) & 0xf ];
+      result[ i * 2 + 1 ] = HEX_DIGITS[ bytes[ i ] & 0xf ];
+    }
+    return new String( result );
+  }
+
+  private static final class Entry {
+
+    final String key;
+    final File file;
+    final long length;
+    int referenceCount;
+
+    Entry( String key, File file, long length ) {
+      this.key = key;
+      this.file = file;
+      this.length = length;
+    }
+
+  }
+
+}
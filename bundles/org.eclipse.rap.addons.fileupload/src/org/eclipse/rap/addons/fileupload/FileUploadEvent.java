@@ -16,6 +16,10 @@ import java.util.EventObject;
 /**
  * Event object that provides information on a file upload. The source of this kind of events is
  * always a file upload handler.
+ * <p>
+ * Events are immutable snapshots of the state of an upload at the time they were created. They
+ * can be kept and passed to other threads, e.g. to update the UI later.
+ * </p>
  *
  * @noextend This class is not intended to be subclassed by clients.
  * @see FileUploadListener
@@ -29,7 +33,8 @@ public abstract class FileUploadEvent extends EventObject {
   }
 
   /**
-   * Array with details about successfully uploaded files.
+   * Array with details about successfully uploaded files. The array may be shared between events
+   * and must not be modified.
    *
    * @return an array with details about successfully uploaded files.
    */
@@ -50,6 +55,29 @@ public abstract class FileUploadEvent extends EventObject {
    */
   public abstract long getBytesRead();
 
+  /**
+   * The index of the file that is currently being received, in the order of the files in the
+   * upload request. Form fields that are not files are not counted.
+   *
+   * @return the zero-based index of the current file, or -1 if no file has been started yet
+   */
+  public abstract int getCurrentItemIndex();
+
+  /**
+   * The number of bytes of the current file that have been received so far.
+   *
+   * @return the number of bytes of the current file received
+   * @see #getCurrentItemIndex()
+   */
+  public abstract long getCurrentItemBytesRead();
+
+  /**
+   * The number of files that have been received completely.
+   *
+   * @return the number of completed files
+   */
+  public abstract int getCompletedItemCount();
+
   /**
    * If the upload has failed, this method will return the exception that has occurred.
    *
@@ -58,15 +86,15 @@ public abstract class FileUploadEvent extends EventObject {
   public abstract Exception getException();
 
   protected void dispatchProgress() {
-    ( ( FileUploadHandler )source ).getListeners().notifyUploadProgress( this );
+    ( ( FileUploadHandler )source ).notifyUploadProgress( this );
   }
 
   protected void dispatchFinished() {
-    ( ( FileUploadHandler )source ).getListeners().notifyUploadFinished( this );
+    ( ( FileUploadHandler )source ).notifyUploadFinished( this );
   }
 
   protected void dispatchFailed() {
-    ( ( FileUploadHandler )source ).getListeners().notifyUploadFailed( this );
+    ( ( FileUploadHandler )source ).notifyUploadFailed( this );
   }
 
 }
@@ -10,9 +10,19 @@
  ******************************************************************************/
 package org.eclipse.rap.addons.fileupload;
 
+import java.io.File;
+import java.util.concurrent.Executor;
+
+import org.eclipse.rap.addons.fileupload.internal.DigestingInputStream;
+import org.eclipse.rap.addons.fileupload.internal.FileUploadEventQueue;
 import org.eclipse.rap.addons.fileupload.internal.FileUploadHandlerStore;
 import org.eclipse.rap.addons.fileupload.internal.FileUploadListenerList;
+import org.eclipse.rap.addons.fileupload.internal.FileUploadRateLimits;
 import org.eclipse.rap.addons.fileupload.internal.FileUploadServiceHandler;
+import org.eclipse.rap.rwt.RWT;
+import org.eclipse.rap.rwt.service.UISession;
+import org.eclipse.rap.rwt.service.UISessionEvent;
+import org.eclipse.rap.rwt.service.UISessionListener;
 
 
 /**
@@ -25,10 +35,41 @@ import org.eclipse.rap.addons.fileupload.internal.FileUploadServiceHandler;
  */
 public class FileUploadHandler {
 
+  /**
+   * The default maximum number of unfinished resumable uploads per handler.
+   */
+  public static final int DEFAULT_MAX_RESUMABLE_UPLOADS = 16;
+
+  /**
+   * The default time in milliseconds after which a non-blocking upload is aborted if the client
+   * does not send any data.
+   */
+  public static final long DEFAULT_STALL_TIMEOUT = 5 * 60 * 1000L;
+
   private final String token;
   private final FileUploadReceiver receiver;
   private final FileUploadListenerList listeners;
+  private final UISession uiSession;
+  private final UISessionListener uiSessionListener;
+  private final FileUploadHandlerStore handlerStore;
   private long maxFileSize = -1;
+  private long maxRequestSize = -1;
+  private int maxFileCount = -1;
+  private volatile int maxResumableUploads = DEFAULT_MAX_RESUMABLE_UPLOADS;
+  private volatile long maxBytesPerSecond = -1;
+  private volatile long maxSessionBytesPerSecond = -1;
+  private volatile long idleTimeout;
+  private boolean deleteFilesOnDispose;
+  private volatile File resumableUploadDirectory;
+  private volatile boolean nonBlockingIO;
+  private volatile long stallTimeout = DEFAULT_STALL_TIMEOUT;
+  private volatile File spoolDirectory;
+  private volatile boolean builtInMultipartParser;
+  private String[] digestAlgorithms = new String[ 0 ];
+  private long minProgressInterval;
+  private long minProgressBytes;
+  private int minProgressPercent;
+  private volatile FileUploadEventQueue eventQueue;
 
   /**
    * Constructs a file upload handler that is associated with the given receiver. The receiver is
@@ -44,7 +85,18 @@ public class FileUploadHandler {
     this.receiver = receiver;
     token = FileUploadHandlerStore.createToken();
     listeners = new FileUploadListenerList();
-    FileUploadHandlerStore.getInstance().registerHandler( token, this );
+    uiSession = RWT.getUISession();
+    uiSessionListener = new UISessionListener() {
+      public void beforeDestroy( UISessionEvent event ) {
+        handlerStore.expireHandler( token, FileUploadHandler.this );
+        // files must not outlive the session, even if they are kept on dispose
+        releaseFiles();
+      }
+    };
+    // keep a reference, there is no application context when the session times out
+    handlerStore = FileUploadHandlerStore.getInstance();
+    handlerStore.registerHandler( token, this );
+    uiSession.addUISessionListener( uiSessionListener );
   }
 
   /**
@@ -97,9 +149,17 @@ public class FileUploadHandler {
    * Closes and de-registers the upload handler. After calling this method, no subsequent upload
    * requests for this handler will be accepted anymore. Clients <em>must</em> call this method
    * before discarding the instance of the handler to allow it to be garbage collected.
+   * <p>
+   * Handlers are disposed of automatically when their UI session ends, or when they have not
+   * received an upload request within their idle timeout.
+   * </p>
+   *
+   * @see #setIdleTimeout(long)
    */
   public void dispose() {
-    FileUploadHandlerStore.getInstance().deregisterHandler( token );
+    handlerStore.deregisterHandler( token );
+    deleteFiles();
+    uiSession.removeUISessionListener( uiSessionListener );
   }
 
   /**
@@ -120,12 +180,642 @@ public class FileUploadHandler {
     this.maxFileSize = maxFileSize;
   }
 
-  FileUploadListenerList getListeners() {
-    return listeners;
+  /**
+   * Returns the maximum size in bytes of an upload request for this handler, including all files
+   * and the multipart encoding. The default value of -1, indicates no limit.
+   * @see #setMaxRequestSize
+   */
+  public long getMaxRequestSize() {
+    return maxRequestSize;
+  }
+
+  /**
+   * Sets the maximum size in bytes of an upload request for this handler, including all files and
+   * the multipart encoding. Requests that announce a larger Content-Length are rejected before any
+   * data is read, other requests are rejected as soon as the limit is exceeded. A value of -1
+   * indicates no limit.
+   * @see #getMaxRequestSize
+   */
+  public void setMaxRequestSize( long maxRequestSize ) {
+    if( maxRequestSize < -1 ) {
+      throw new IllegalArgumentException( "maxRequestSize must be -1 or greater" );
+    }
+    this.maxRequestSize = maxRequestSize;
+  }
+
+  /**
+   * Returns the maximum number of files in an upload request for this handler. The default value
+   * of -1, indicates no limit.
+   * @see #setMaxFileCount
+   */
+  public int getMaxFileCount() {
+    return maxFileCount;
+  }
+
+  /**
+   * Sets the maximum number of files in an upload request for this handler. A request is rejected
+   * as soon as it exceeds this number, before the surplus file is read. A value of -1 indicates no
+   * limit.
+   * @see #getMaxFileCount
+   */
+  public void setMaxFileCount( int maxFileCount ) {
+    if( maxFileCount < -1 ) {
+      throw new IllegalArgumentException( "maxFileCount must be -1 or greater" );
+    }
+    this.maxFileCount = maxFileCount;
+  }
+
+  /**
+   * Sets the time after which this handler is disposed of if it is not used. The idle time starts
+   * when the handler is created and is reset by every upload request. The handler does not expire
+   * while an upload is in progress. Expired handlers are detected by a periodic sweep, so they may
+   * be disposed of a few seconds after their idle timeout has elapsed. The default value of 0
+   * indicates no timeout.
+   *
+   * @param idleTimeout the idle timeout in milliseconds, or 0 for no timeout
+   */
+  public void setIdleTimeout( long idleTimeout ) {
+    if( idleTimeout < 0 ) {
+      throw new IllegalArgumentException( "idleTimeout must not be negative" );
+    }
+    this.idleTimeout = idleTimeout;
+  }
+
+  /**
+   * Returns the time after which this handler is disposed of if it is not used.
+   *
+   * @return the idle timeout in milliseconds, or 0 for no timeout
+   * @see #setIdleTimeout(long)
+   */
+  public long getIdleTimeout() {
+    return idleTimeout;
+  }
+
+  /**
+   * Returns the number of file upload handlers that are currently registered in this
+   * application.
+   *
+   * @return the number of registered handlers
+   */
+  public static int getActiveHandlerCount() {
+    return FileUploadHandlerStore.getInstance().getHandlerCount();
+  }
+
+  /**
+   * Returns the number of file upload handlers in this application that have been disposed of
+   * automatically, because their idle timeout has elapsed or their UI session has ended.
+   *
+   * @return the number of expired handlers
+   * @see #setIdleTimeout(long)
+   */
+  public static long getExpiredHandlerCount() {
+    return FileUploadHandlerStore.getInstance().getExpiredHandlerCount();
+  }
+
+  /**
+   * Controls whether the files that the receiver has stored for this handler are deleted when the
+   * handler is disposed of. The default is <code>false</code>, in which case the files are kept
+   * until the UI session ends, their time to live expires or the virtual machine shuts down,
+   * whichever comes first.
+   *
+   * @param deleteFilesOnDispose <code>true</code> to delete the received files on dispose
+   * @see FileUploadReaper
+   * @see DiskFileUploadReceiver#setTimeToLive(long)
+   */
+  public void setDeleteFilesOnDispose( boolean deleteFilesOnDispose ) {
+    this.deleteFilesOnDispose = deleteFilesOnDispose;
+  }
+
+  /**
+   * Returns whether the files that the receiver has stored for this handler are deleted when the
+   * handler is disposed of.
+   *
+   * @return <code>true</code> if the received files are deleted on dispose
+   * @see #setDeleteFilesOnDispose(boolean)
+   */
+  public boolean getDeleteFilesOnDispose() {
+    return deleteFilesOnDispose;
+  }
+
+  /**
+   * Enables resumable uploads and sets the directory to store their partial data in. A resumable
+   * upload transfers a single file in chunks. If the connection breaks, the client asks for the
+   * number of bytes received and continues from there, instead of sending the whole file again.
+   * Once all bytes have been received, the file is passed to the receiver like any other upload.
+   * <p>
+   * The protocol uses the upload URL of this handler with an additional <code>upload</code>
+   * parameter:
+   * </p>
+   * <ul>
+   * <li><code>POST &amp;upload=new</code> with the header <code>Upload-Length</code> and the
+   * optional parameters <code>fileName</code> and <code>contentType</code> creates an upload and
+   * returns its id in the header <code>Upload-Id</code>.</li>
+   * <li><code>GET &amp;upload=&lt;id&gt;</code> or <code>HEAD</code> returns the number of
+   * bytes received so far in the header <code>Upload-Offset</code>.</li>
+   * <li><code>POST &amp;upload=&lt;id&gt;</code> with the header <code>Upload-Offset</code>
+   * appends the request body. An offset that does not match the bytes received so far is rejected
+   * with the status 409 (Conflict).</li>
+   * </ul>
+   * <p>
+   * Uploads created with the header <code>Upload-Mode: parallel</code> accept chunks in any order
+   * and over several connections at once. The offset of a chunk is its position in the file, the
+   * ranges received so far are returned in the header <code>Upload-Ranges</code>. Chunks are
+   * written in place into a file of the full length, progress is reported for the whole file.
+   * </p>
+   * <p>
+   * The state of an upload is kept in files, so that an upload can be resumed by a later request
+   * of the same handler. Unfinished uploads are deleted when the UI session ends or after
+   * <code>FileUploadReaper.DEFAULT_TIME_TO_LIVE</code>. The data file of a parallel upload is only
+   * allocated up front if the maximum file size of this handler is limited, since the length is
+   * declared by the client. By default, resumable uploads are disabled.
+   * </p>
+   *
+   * @param directory the directory for partial uploads, or <code>null</code> to disable resumable
+   *          uploads
+   * @see #setMaxResumableUploads(int)
+   */
+  public void setResumableUploadDirectory( File directory ) {
+    resumableUploadDirectory = directory;
+  }
+
+  /**
+   * Returns the directory that partial data of resumable uploads is stored in.
+   *
+   * @return the directory, or <code>null</code> if resumable uploads are disabled
+   * @see #setResumableUploadDirectory(File)
+   */
+  public File getResumableUploadDirectory() {
+    return resumableUploadDirectory;
+  }
+
+  /**
+   * Sets the maximum number of unfinished resumable uploads of this handler. Requests to create
+   * more uploads are rejected with the status 503 (Service Unavailable) until an upload has been
+   * completed or deleted. The default is <code>DEFAULT_MAX_RESUMABLE_UPLOADS</code>, a value of -1
+   * indicates no limit.
+   *
+   * @param maxResumableUploads the maximum number of unfinished uploads, or -1 for no limit
+   * @see #setResumableUploadDirectory(File)
+   */
+  public void setMaxResumableUploads( int maxResumableUploads ) {
+    if( maxResumableUploads < -1 ) {
+      throw new IllegalArgumentException( "maxResumableUploads must be -1 or greater" );
+    }
+    this.maxResumableUploads = maxResumableUploads;
+  }
+
+  /**
+   * Returns the maximum number of unfinished resumable uploads of this handler.
+   *
+   * @return the maximum number of unfinished uploads, or -1 for no limit
+   * @see #setMaxResumableUploads(int)
+   */
+  public int getMaxResumableUploads() {
+    return maxResumableUploads;
+  }
+
+  /**
+   * Sets the algorithms to compute digests of uploaded files with. The digests are computed in a
+   * single pass while the receiver reads the uploaded data, so that the files do not have to be
+   * read again. Any algorithm supported by <code>MessageDigest</code>, e.g. <code>"SHA-256"</code>,
+   * and <code>FileDigests.CRC32</code> can be used. By default, no digests are computed.
+   * <p>
+   * The results can be obtained from the file details, which implement <code>FileDigests</code>
+   * if at least one algorithm has been set.
+   * </p>
+   *
+   * @param algorithms the names of the digest algorithms, must not be <code>null</code>
+   * @throws IllegalArgumentException if an algorithm is not supported
+   * @see FileDigests
+   */
+  public void setDigestAlgorithms( String... algorithms ) {
+    if( algorithms == null ) {
+      throw new NullPointerException( "algorithms is null" );
+    }
+    for( int i = 0; i < algorithms.length; i++ ) {
+      if( algorithms[ i ] == null ) {
+        throw new NullPointerException( "algorithm is null" );
+      }
+      if( !DigestingInputStream.isSupported( algorithms[ i ] ) ) {
+        throw new IllegalArgumentException( "Unsupported digest algorithm: " + algorithms[ i ] );
+      }
+    }
+    digestAlgorithms = algorithms.clone();
+  }
+
+  /**
+   * Returns the algorithms to compute digests of uploaded files with.
+   *
+   * @return the names of the digest algorithms, or an empty array if no digests are computed
+   * @see #setDigestAlgorithms(String...)
+   */
+  public String[] getDigestAlgorithms() {
+    return digestAlgorithms.clone();
+  }
+
+  /**
+   * Sets the maximum rate at which uploads to this handler are read, in bytes per second. If
+   * several uploads to this handler run at the same time, they share this rate. Short bursts of up
+   * to one second worth of data are not delayed. The default value of -1 indicates no limit.
+   *
+   * @param maxBytesPerSecond the maximum rate in bytes per second, or -1 for no limit
+   * @see #setMaxSessionBytesPerSecond(long)
+   * @see #setGlobalMaxBytesPerSecond(long)
+   */
+  public void setMaxBytesPerSecond( long maxBytesPerSecond ) {
+    checkRate( maxBytesPerSecond );
+    this.maxBytesPerSecond = maxBytesPerSecond;
+  }
+
+  /**
+   * Returns the maximum rate at which uploads to this handler are read.
+   *
+   * @return the maximum rate in bytes per second, or -1 if there is no limit
+   * @see #setMaxBytesPerSecond(long)
+   */
+  public long getMaxBytesPerSecond() {
+    return maxBytesPerSecond;
+  }
+
+  /**
+   * Sets the maximum rate at which uploads of the HTTP session are read while they are uploaded
+   * to this handler, in bytes per second. All uploads of a session share this rate, so handlers
+   * of the same session should use the same value. The default value of -1 indicates no limit.
+   *
+   * @param maxSessionBytesPerSecond the maximum rate in bytes per second, or -1 for no limit
+   * @see #setMaxBytesPerSecond(long)
+   */
+  public void setMaxSessionBytesPerSecond( long maxSessionBytesPerSecond ) {
+    checkRate( maxSessionBytesPerSecond );
+    this.maxSessionBytesPerSecond = maxSessionBytesPerSecond;
+  }
+
+  /**
+   * Returns the maximum rate at which uploads of the HTTP session are read.
+   *
+   * @return the maximum rate in bytes per second, or -1 if there is no limit
+   * @see #setMaxSessionBytesPerSecond(long)
+   */
+  public long getMaxSessionBytesPerSecond() {
+    return maxSessionBytesPerSecond;
+  }
+
+  /**
+   * Sets the maximum rate at which all uploads are read, in bytes per second. All uploads to all
+   * handlers share this rate. The default value of -1 indicates no limit.
+   *
+   * @param maxBytesPerSecond the maximum rate in bytes per second, or -1 for no limit
+   * @see #setMaxBytesPerSecond(long)
+   */
+  public static void setGlobalMaxBytesPerSecond( long maxBytesPerSecond ) {
+    checkRate( maxBytesPerSecond );
+    FileUploadRateLimits.setGlobalMaxBytesPerSecond( maxBytesPerSecond );
+  }
+
+  /**
+   * Returns the maximum rate at which all uploads are read.
+   *
+   * @return the maximum rate in bytes per second, or -1 if there is no limit
+   * @see #setGlobalMaxBytesPerSecond(long)
+   */
+  public static long getGlobalMaxBytesPerSecond() {
+    return FileUploadRateLimits.getGlobalMaxBytesPerSecond();
+  }
+
+  /**
+   * Sets the minimum time between two progress events. Progress that is made within this time is
+   * coalesced into the next event. The last progress of an upload is always reported, before the
+   * upload is reported as finished or failed. The default value of 0 reports every increase of the
+   * bytes read.
+   *
+   * @param minProgressInterval the minimum interval in milliseconds, must not be negative
+   * @see FileUploadListener#uploadProgress(FileUploadEvent)
+   */
+  public void setMinProgressInterval( long minProgressInterval ) {
+    if( minProgressInterval < 0 ) {
+      throw new IllegalArgumentException( "minProgressInterval must not be negative" );
+    }
+    this.minProgressInterval = minProgressInterval;
+  }
+
+  /**
+   * Returns the minimum time between two progress events.
+   *
+   * @return the minimum interval in milliseconds
+   * @see #setMinProgressInterval(long)
+   */
+  public long getMinProgressInterval() {
+    return minProgressInterval;
+  }
+
+  /**
+   * Sets the number of bytes that have to be read before the next progress event is sent. If both
+   * a byte and a percent delta are set, an event is sent as soon as one of them is reached. The
+   * last progress of an upload is always reported. The default value of 0 sets no byte delta.
+   *
+   * @param minProgressBytes the minimum number of bytes between two progress events, must not be
+   *          negative
+   * @see #setMinProgressPercent(int)
+   */
+  public void setMinProgressBytes( long minProgressBytes ) {
+    if( minProgressBytes < 0 ) {
+      throw new IllegalArgumentException( "minProgressBytes must not be negative" );
+    }
+    this.minProgressBytes = minProgressBytes;
+  }
+
+  /**
+   * Returns the number of bytes that have to be read before the next progress event is sent.
+   *
+   * @return the minimum number of bytes between two progress events
+   * @see #setMinProgressBytes(long)
+   */
+  public long getMinProgressBytes() {
+    return minProgressBytes;
+  }
+
+  /**
+   * Sets the percentage of the request content that has to be read before the next progress event
+   * is sent. This setting has no effect if the content length of a request is unknown. The default
+   * value of 0 sets no percent delta.
+   *
+   * @param minProgressPercent the minimum progress between two events in percent, from 0 to 100
+   * @see #setMinProgressBytes(long)
+   */
+  public void setMinProgressPercent( int minProgressPercent ) {
+    if( minProgressPercent < 0 || minProgressPercent > 100 ) {
+      throw new IllegalArgumentException( "minProgressPercent must be between 0 and 100" );
+    }
+    this.minProgressPercent = minProgressPercent;
+  }
+
+  /**
+   * Returns the percentage of the request content that has to be read before the next progress
+   * event is sent.
+   *
+   * @return the minimum progress between two events in percent
+   * @see #setMinProgressPercent(int)
+   */
+  public int getMinProgressPercent() {
+    return minProgressPercent;
+  }
+
+  /**
+   * Controls whether listeners are notified asynchronously. By default, listeners are notified on
+   * the thread that reads the upload request, so that a slow listener slows down the upload. In
+   * asynchronous mode, events are added to a bounded queue of this handler and delivered by a
+   * shared executor. Events are still delivered one at a time and in order, and every upload ends
+   * with a finished or failed event. If listeners cannot keep up, the oldest pending progress
+   * events are dropped.
+   * <p>
+   * Events that are delivered asynchronously reflect the state of the upload at the time they
+   * were created. This setting should not be changed while an upload is in progress.
+   * </p>
+   *
+   * @param asyncDispatch <code>true</code> to notify listeners asynchronously
+   * @see #setDispatchExecutor(Executor)
+   */
+  public void setAsyncDispatch( boolean asyncDispatch ) {
+    if( asyncDispatch && eventQueue == null ) {
+      eventQueue = new FileUploadEventQueue( listeners, FileUploadEventQueue.DEFAULT_CAPACITY );
+    } else if( !asyncDispatch ) {
+      eventQueue = null;
+    }
+  }
+
+  /**
+   * Returns whether listeners are notified asynchronously.
+   *
+   * @return <code>true</code> if listeners are notified asynchronously
+   * @see #setAsyncDispatch(boolean)
+   */
+  public boolean getAsyncDispatch() {
+    return eventQueue != null;
+  }
+
+  /**
+   * Controls whether upload requests are processed with the non-blocking I/O of Servlet 3.1. By
+   * default, an upload occupies a thread of the servlet container until the last byte has been
+   * received, so that slow clients can exhaust the thread pool. With non-blocking I/O, the request
+   * is read and parsed only when data has arrived, and no thread waits for the client in between.
+   * <p>
+   * Since receivers read the uploaded data from a stream, every file is buffered until it has been
+   * received completely and is passed to the receiver afterwards. Small files are buffered in
+   * memory, larger files in temporary files. The receiver is called on a separate pool of threads,
+   * so that neither the threads of the servlet container nor other uploads wait for it. Listeners
+   * are notified on the threads that deliver the data or pass it to the receiver.
+   * </p>
+   * <p>
+   * Non-blocking I/O requires a Servlet 3.1 container and a servlet that supports asynchronous
+   * processing. Otherwise, uploads are processed with blocking I/O, regardless of this setting.
+   * Resumable uploads are always processed with blocking I/O. By default, non-blocking I/O is
+   * disabled.
+   * </p>
+   *
+   * @param nonBlockingIO <code>true</code> to process uploads with non-blocking I/O if supported
+   */
+  public void setNonBlockingIO( boolean nonBlockingIO ) {
+    this.nonBlockingIO = nonBlockingIO;
+  }
+
+  /**
+   * Returns whether upload requests are processed with non-blocking I/O if supported by the
+   * servlet container.
+   *
+   * @return <code>true</code> if non-blocking I/O is enabled
+   * @see #setNonBlockingIO(boolean)
+   */
+  public boolean getNonBlockingIO() {
+    return nonBlockingIO;
+  }
+
+  /**
+   * Sets the time after which an upload that is processed with non-blocking I/O is aborted if the
+   * client has not sent any data. The time is measured from the last data received, so slow uploads
+   * are not aborted as long as data keeps arriving. Pauses caused by the rate limits do not count.
+   * The default is <code>DEFAULT_STALL_TIMEOUT</code>, a value of 0 indicates no timeout.
+   *
+   * @param stallTimeout the stall timeout in milliseconds, or 0 for no timeout
+   * @see #setNonBlockingIO(boolean)
+   */
+  public void setStallTimeout( long stallTimeout ) {
+    if( stallTimeout < 0 ) {
+      throw new IllegalArgumentException( "stallTimeout must not be negative" );
+    }
+    this.stallTimeout = stallTimeout;
+  }
+
+  /**
+   * Returns the time after which an upload that is processed with non-blocking I/O is aborted if
+   * the client has not sent any data.
+   *
+   * @return the stall timeout in milliseconds, or 0 for no timeout
+   * @see #setStallTimeout(long)
+   */
+  public long getStallTimeout() {
+    return stallTimeout;
+  }
+
+  /**
+   * Sets the directory in which uploads that are processed with non-blocking I/O buffer large
+   * files until they are passed to the receiver. The buffered files are deleted when the receiver
+   * has returned, and are tracked by the <code>FileUploadReaper</code> in case they are not.
+   *
+   * @param directory the directory for buffered files, or <code>null</code> for the default
+   *          temporary directory
+   * @see #setNonBlockingIO(boolean)
+   */
+  public void setSpoolDirectory( File directory ) {
+    spoolDirectory = directory;
+  }
+
+  /**
+   * Returns the directory in which uploads that are processed with non-blocking I/O buffer large
+   * files.
+   *
+   * @return the directory, or <code>null</code> if the default temporary directory is used
+   * @see #setSpoolDirectory(File)
+   */
+  public File getSpoolDirectory() {
+    return spoolDirectory;
+  }
+
+  /**
+   * Controls whether blocking uploads are parsed with the multipart parser of this bundle instead
+   * of Apache Commons FileUpload. The built-in parser reads the request in large portions into a
+   * pooled buffer, finds the boundaries with a Boyer-Moore-Horspool search and lets receivers read
+   * directly from that buffer. It needs considerably less CPU time and memory allocations for large
+   * files. Limits, progress events, rate limits and digests behave the same with both parsers.
+   * <p>
+   * Uploads that are processed with non-blocking I/O always use the built-in parser. By default,
+   * Commons FileUpload is used.
+   * </p>
+   *
+   * @param builtInMultipartParser <code>true</code> to use the built-in parser
+   * @see #setNonBlockingIO(boolean)
+   */
+  public void setBuiltInMultipartParser( boolean builtInMultipartParser ) {
+    this.builtInMultipartParser = builtInMultipartParser;
+  }
+
+  /**
+   * Returns whether blocking uploads are parsed with the built-in multipart parser.
+   *
+   * @return <code>true</code> if the built-in parser is used
+   * @see #setBuiltInMultipartParser(boolean)
+   */
+  public boolean getBuiltInMultipartParser() {
+    return builtInMultipartParser;
+  }
+
+  /**
+   * Returns the number of progress events that have been dropped because the listeners of this
+   * handler could not keep up in asynchronous mode.
+   *
+   * @return the number of dropped progress events
+   * @see #setAsyncDispatch(boolean)
+   */
+  public long getDroppedProgressEventCount() {
+    FileUploadEventQueue queue = eventQueue;
+    return queue != null ? queue.getDroppedCount() : 0;
+  }
+
+  /**
+   * Sets the executor that delivers the events of all handlers in asynchronous mode. By default,
+   * a shared pool of daemon threads is used.
+   *
+   * @param executor the executor to use, must not be <code>null</code>
+   * @see #setAsyncDispatch(boolean)
+   */
+  public static void setDispatchExecutor( Executor executor ) {
+    if( executor == null ) {
+      throw new NullPointerException( "executor is null" );
+    }
+    FileUploadEventQueue.setExecutor( executor );
+  }
+
+  /**
+   * Returns the executor that delivers the events of all handlers in asynchronous mode.
+   *
+   * @return the executor, never <code>null</code>
+   * @see #setDispatchExecutor(Executor)
+   */
+  public static Executor getDispatchExecutor() {
+    return FileUploadEventQueue.getExecutor();
+  }
+
+  /**
+   * Sets the generator that creates the tokens of file upload handlers. The tokens identify the
+   * handlers in upload URLs. The generator is used for all handlers that are created afterwards,
+   * in all applications. By default, a <code>SecureTokenGenerator</code> is used.
+   *
+   * @param generator the token generator to use, must not be <code>null</code>
+   * @see SecureTokenGenerator
+   */
+  public static void setTokenGenerator( FileUploadTokenGenerator generator ) {
+    if( generator == null ) {
+      throw new NullPointerException( "generator is null" );
+    }
+    FileUploadHandlerStore.setTokenGenerator( generator );
+  }
+
+  /**
+   * Returns the generator that creates the tokens of file upload handlers.
+   *
+   * @return the token generator, never <code>null</code>
+   * @see #setTokenGenerator(FileUploadTokenGenerator)
+   */
+  public static FileUploadTokenGenerator getTokenGenerator() {
+    return FileUploadHandlerStore.getTokenGenerator();
+  }
+
+  void notifyUploadProgress( FileUploadEvent event ) {
+    FileUploadEventQueue queue = eventQueue;
+    if( queue != null ) {
+      queue.addProgress( event );
+    } else {
+      listeners.notifyUploadProgress( event );
+    }
+  }
+
+  void notifyUploadFinished( FileUploadEvent event ) {
+    FileUploadEventQueue queue = eventQueue;
+    if( queue != null ) {
+      queue.addFinished( event );
+    } else {
+      listeners.notifyUploadFinished( event );
+    }
+  }
+
+  void notifyUploadFailed( FileUploadEvent event ) {
+    FileUploadEventQueue queue = eventQueue;
+    if( queue != null ) {
+      queue.addFailed( event );
+    } else {
+      listeners.notifyUploadFailed( event );
+    }
   }
 
   String getToken() {
     return token;
   }
 
+  private static void checkRate( long bytesPerSecond ) {
+    if( bytesPerSecond == 0 || bytesPerSecond < -1 ) {
+      throw new IllegalArgumentException( "bytesPerSecond must be positive or -1" );
+    }
+  }
+
+  private void deleteFiles() {
+    if( deleteFilesOnDispose ) {
+      releaseFiles();
+    }
+  }
+
+  private void releaseFiles() {
+    // the receiver releases its data first, the reaper deletes the remaining files
+    receiver.release();
+    FileUploadReaper.getInstance().release( receiver );
+  }
+
 }
@@ -0,0 +1,119 @@
+/*******************************************************************************
+ * Copyright (c) 2014 EclipseSource and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    EclipseSource - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.rap.addons.fileupload;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Limits the total amount of memory that receivers may use to hold uploaded data. Receivers
+ * reserve memory before they allocate it and release it when the data is released. If a
+ * reservation exceeds the limit, it is rejected, and the receiver has to fall back to disk.
+ * <p>
+ * This class is thread safe.
+ * </p>
+ *
+ * @see MemoryFileUploadReceiver#setMemoryBudget(FileUploadMemoryBudget)
+ */
+public final class FileUploadMemoryBudget {
+
+  /**
+   * The limit of the default budget in bytes.
+   */
+  public static final long DEFAULT_LIMIT = 64 * 1024 * 1024;
+
+  private static final FileUploadMemoryBudget DEFAULT = new FileUploadMemoryBudget( DEFAULT_LIMIT );
+
+  private final long limit;
+  private final AtomicLong reservedBytes;
+
+  /**
+   * Creates a new memory budget.
+   *
+   * @param limit the maximum number of bytes that can be reserved, must not be negative
+   */
+  public FileUploadMemoryBudget( long limit ) {
+    if( limit < 0 ) {
+      throw new IllegalArgumentException( "limit must not be negative" );
+    }
+    this.limit = limit;
+    reservedBytes = new AtomicLong();
+  }
+
+  /**
+   * Returns the memory budget that is shared by all receivers that have not been configured with a
+   * budget of their own.
+   *
+   * @return the default memory budget
+   */
+  public static FileUploadMemoryBudget getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * Tries to reserve the given number of bytes. The reservation succeeds only if it does not exceed
+   * the limit of this budget. Successful reservations must be released using
+   * <code>release()</code>.
+   *
+   * @param bytes the number of bytes to reserve, must not be negative
+   * @return <code>true</code> if the bytes have been reserved, <code>false</code> otherwise
+   * @see #release(long)
+   */
+  public boolean reserve( long bytes ) {
+    if( bytes < 0 ) {
+      throw new IllegalArgumentException( "bytes must not be negative" );
+    }
+    boolean result = false;
+    boolean done = false;
+    while( !done ) {
+      long current = reservedBytes.get();
+      if( current + bytes > limit ) {
+        done = true;
+      } else if( reservedBytes.compareAndSet( current, current + bytes ) ) {
+        result = true;
+        done = true;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Releases a number of bytes that have been reserved before.
+   *
+   * @param bytes the number of bytes to release, must not be negative
+   * @see #reserve(long)
+   */
+  public void release( long bytes ) {
+    if( bytes < 0 ) {
+      throw new IllegalArgumentException( "bytes must not be negative" );
+    }
+    reservedBytes.addAndGet( -bytes );
+  }
+
+  /**
+   * Returns the maximum number of bytes that can be reserved.
+   *
+   * @return the limit in bytes
+   */
+  public long getLimit() {
+    return limit;
+  }
+
+  /**
+   * Returns the number of bytes that are currently reserved.
+   *
+   * @return the number of reserved bytes
+   */
+  public long getReservedBytes() {
+    return reservedBytes.get();
+  }
+
+}
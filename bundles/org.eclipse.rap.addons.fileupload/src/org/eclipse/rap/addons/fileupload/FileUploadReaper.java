@@ -0,0 +1,306 @@
+/*******************************************************************************
+ * Copyright (c) 2014 EclipseSource and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    EclipseSource - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.rap.addons.fileupload;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.WeakHashMap;
+
+import org.eclipse.rap.addons.fileupload.internal.FileMetadataCache;
+
+
+/**
+ * Keeps track of files and directories that have been created for uploaded data and deletes them
+ * when they are not needed anymore. Tracked files are deleted
+ * <ul>
+ * <li>when their time to live has expired,</li>
+ * <li>when their owner is released, e.g. when the UI session of a file upload handler ends,</li>
+ * <li>when the virtual machine shuts down, or the reaper is stopped.</li>
+ * </ul>
+ * Files that have been deleted or moved by the application are dropped from the reaper on the next
+ * sweep. Directories are deleted including their contents. Owners are only referenced weakly, so
+ * that tracked files do not keep them from being garbage collected.
+ * <p>
+ * This class is thread safe.
+ * </p>
+ *
+ * @see DiskFileUploadReceiver#setTimeToLive(long)
+ * @see FileUploadHandler#setDeleteFilesOnDispose(boolean)
+ */
+public final class FileUploadReaper {
+
+  /**
+   * The time to live in milliseconds of files that are tracked without an explicit time to live,
+   * which is one day.
+   */
+  public static final long DEFAULT_TIME_TO_LIVE = 24 * 60 * 60 * 1000L;
+
+  static final long SWEEP_INTERVAL = 60 * 1000;
+
+  private static final FileUploadReaper INSTANCE = new FileUploadReaper();
+
+  private final Map<File, Artifact> artifacts;
+  private final Map<Object, List<Artifact>> artifactsByOwner;
+  private Timer timer;
+  private Thread shutdownHook;
+  private long deletedCount;
+  private long reclaimedBytes;
+
+  FileUploadReaper() {
+    artifacts = new HashMap<File, Artifact>();
+    artifactsByOwner = new WeakHashMap<Object, List<Artifact>>();
+  }
+
+  /**
+   * Returns the reaper that is shared by all file upload receivers.
+   *
+   * @return the shared reaper instance
+   */
+  public static FileUploadReaper getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Starts tracking the given file or directory.
+   *
+   * @param file the file or directory to track, must not be <code>null</code>
+   * @param owner the object that the file belongs to, or <code>null</code>
+   * @param timeToLive the time in milliseconds after which the file is deleted, a value of zero or
+   *          less means that the <code>DEFAULT_TIME_TO_LIVE</code> is used
+   * @see #release(Object)
+   */
+  public void track( File file, Object owner, long timeToLive ) {
+    if( file == null ) {
+      throw new NullPointerException( "file is null" );
+    }
+    long effectiveTimeToLive = timeToLive > 0 ? timeToLive : DEFAULT_TIME_TO_LIVE;
+    long expirationTime = System.currentTimeMillis() + effectiveTimeToLive;
+    Artifact artifact = new Artifact( file.getAbsoluteFile(), owner, expirationTime );
+    synchronized( artifacts ) {
+      Artifact previous = artifacts.put( artifact.file, artifact );
+      if( previous != null ) {
+        removeFromOwner( previous );
+      }
+      if( owner != null ) {
+        List<Artifact> ownedArtifacts = artifactsByOwner.get( owner );
+        if( ownedArtifacts == null ) {
+          ownedArtifacts = new ArrayList<Artifact>();
+          artifactsByOwner.put( owner, ownedArtifacts );
+        }
+        ownedArtifacts.add( artifact );
+      }
+      ensureStarted();
+    }
+  }
+
+  /**
+   * Deletes all tracked files that belong to the given owner.
+   *
+   * @param owner the owner whose files to delete, must not be <code>null</code>
+   */
+  public void release( Object owner ) {
+    if( owner == null ) {
+      throw new NullPointerException( "owner is null" );
+    }
+    List<Artifact> ownedArtifacts;
+    synchronized( artifacts ) {
+      ownedArtifacts = artifactsByOwner.remove( owner );
+      if( ownedArtifacts != null ) {
+        for( Artifact artifact : ownedArtifacts ) {
+          artifacts.remove( artifact.file );
+        }
+      }
+    }
+    if( ownedArtifacts != null ) {
+      delete( ownedArtifacts );
+    }
+  }
+
+  /**
+   * Stops the reaper and deletes all tracked files. The sweep timer is cancelled and the shutdown
+   * hook is removed, so that no thread or class loader is held after the reaper has been stopped,
+   * e.g. when the bundle is stopped. The reaper is started again when another file is tracked.
+   */
+  public void stop() {
+    synchronized( artifacts ) {
+      if( timer != null ) {
+        timer.cancel();
+        timer = null;
+      }
+      if( shutdownHook != null ) {
+        try {
+          Runtime.getRuntime().removeShutdownHook( shutdownHook );
+        } catch( IllegalStateException exception ) {
+          // the virtual machine is shutting down, the hook is running anyway
+        }
+        shutdownHook = null;
+      }
+    }
+    reapAll();
+  }
+
+  /**
+   * Returns the number of files and directories that are currently tracked.
+   *
+   * @return the number of tracked files
+   */
+  public int getTrackedCount() {
+    synchronized( artifacts ) {
+      return artifacts.size();
+    }
+  }
+
+  /**
+   * Returns the number of files and directories that have been deleted by this reaper.
+   *
+   * @return the number of deleted files
+   */
+  public long getDeletedCount() {
+    synchronized( artifacts ) {
+      return deletedCount;
+    }
+  }
+
+  /**
+   * Returns the total size of all files that have been deleted by this reaper.
+   *
+   * @return the number of bytes reclaimed
+   */
+  public long getReclaimedBytes() {
+    synchronized( artifacts ) {
+      return reclaimedBytes;
+    }
+  }
+
+  boolean isStarted() {
+    synchronized( artifacts ) {
+      return timer != null;
+    }
+  }
+
+  void sweep( long now ) {
+    List<Artifact> expiredArtifacts = new ArrayList<Artifact>();
+    synchronized( artifacts ) {
+      Iterator<Artifact> iterator = artifacts.values().iterator();
+      while( iterator.hasNext() ) {
+        Artifact artifact = iterator.next();
+        boolean expired = artifact.expirationTime <= now;
+        if( expired || !artifact.file.exists() ) {
+          iterator.remove();
+          removeFromOwner( artifact );
+          if( expired ) {
+            expiredArtifacts.add( artifact );
+          }
+        }
+      }
+    }
+    delete( expiredArtifacts );
+  }
+
+  void reapAll() {
+    List<Artifact> allArtifacts;
+    synchronized( artifacts ) {
+      allArtifacts = new ArrayList<Artifact>( artifacts.values() );
+      artifacts.clear();
+      artifactsByOwner.clear();
+    }
+    delete( allArtifacts );
+  }
+
+  private void removeFromOwner( Artifact artifact ) {
+    Object owner = artifact.owner != null ? artifact.owner.get() : null;
+    if( owner != null ) {
+      List<Artifact> ownedArtifacts = artifactsByOwner.get( owner );
+      if( ownedArtifacts != null ) {
+        ownedArtifacts.remove( artifact );
+        if( ownedArtifacts.isEmpty() ) {
+          artifactsByOwner.remove( owner );
+        }
+      }
+    }
+  }
+
+  private void delete( List<Artifact> artifactsToDelete ) {
+    long count = 0;
+    long bytes = 0;
+    for( Artifact artifact : artifactsToDelete ) {
+      long[] result = deleteRecursively( artifact.file );
+      count += result[ 0 ];
+      bytes += result[ 1 ];
+    }
+    synchronized( artifacts ) {
+      deletedCount += count;
+      reclaimedBytes += bytes;
+    }
+  }
+
+  private void ensureStarted() {
+    if( timer == null ) {
+      timer = new Timer( "FileUploadReaper", true );
+      timer.schedule( new TimerTask() {
+        @Override
+        public void run() {
+          sweep( System.currentTimeMillis() );
+        }
+      }, SWEEP_INTERVAL, SWEEP_INTERVAL );
+      shutdownHook = new Thread( "FileUploadReaper shutdown" ) {
+        @Override
+        public void run() {
+          reapAll();
+        }
+      };
+      Runtime.getRuntime().addShutdownHook( shutdownHook );
+    }
+  }
+
+  private static long[] deleteRecursively( File file ) {
+    long count = 0;
+    long bytes = 0;
+    File[] children = file.listFiles();
+    if( children != null ) {
+      for( int i = 0; i < children.length; i++ ) {
+        long[] result = deleteRecursively( children[ i ] );
+        count += result[ 0 ];
+        bytes += result[ 1 ];
+      }
+    }
+    long length = file.isFile() ? file.length() : 0;
+    if( file.delete() ) {
+      count++;
+      bytes += length;
+    }
+    // a file that is created at the same path later on must not get the metadata of this file
+    FileMetadataCache.getInstance().remove( file );
+    return new long[] { count, bytes };
+  }
+
+  private static final class Artifact {
+
+    final File file;
+    final WeakReference<Object> owner;
+    final long expirationTime;
+
+    Artifact( File file, Object owner, long expirationTime ) {
+      this.file = file;
+      this.owner = owner != null ? new WeakReference<Object>( owner ) : null;
+      this.expirationTime = expirationTime;
+    }
+
+  }
+
+}
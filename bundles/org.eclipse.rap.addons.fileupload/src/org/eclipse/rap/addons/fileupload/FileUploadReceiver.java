@@ -29,4 +29,14 @@ public abstract class FileUploadReceiver {
    */
   public abstract void receive( InputStream stream, FileDetails details ) throws IOException;
 
+  /**
+   * Releases all data that this receiver holds for the files it has received. This method is
+   * called when the UI session of the file upload handler ends, and when the handler is disposed of
+   * if its files are deleted on dispose. The default implementation does nothing.
+   *
+   * @see FileUploadHandler#setDeleteFilesOnDispose(boolean)
+   */
+  public void release() {
+  }
+
 }
@@ -0,0 +1,33 @@
+/*******************************************************************************
+ * Copyright (c) 2014 EclipseSource and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    EclipseSource - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.rap.addons.fileupload;
+
+
+/**
+ * Creates the tokens that identify file upload handlers in upload URLs. Since a token grants
+ * access to its upload handler, tokens must be unpredictable and unique.
+ * <p>
+ * Implementations must be thread safe, tokens are created concurrently by all UI sessions.
+ * </p>
+ *
+ * @see FileUploadHandler#setTokenGenerator(FileUploadTokenGenerator)
+ */
+public interface FileUploadTokenGenerator {
+
+  /**
+   * Creates a new token. Tokens are used as a URL parameter and should therefore consist of URL
+   * safe characters only.
+   *
+   * @return a new token, never <code>null</code>
+   */
+  String createToken();
+
+}
@@ -0,0 +1,300 @@
+/*******************************************************************************
+ * Copyright (c) 2014 EclipseSource and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    EclipseSource - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.rap.addons.fileupload;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.rap.addons.fileupload.internal.UploadedDataImpl;
+
+
+/**
+ * A file upload receiver that keeps small files in memory and stores larger files on disk. Files
+ * up to the threshold size are held in memory, as long as the memory budget allows. When a file
+ * exceeds the threshold, or no more memory can be reserved, the data received so far and the rest
+ * of the file are written to a temporary file.
+ * <p>
+ * The received data <em>must</em> be released when it is not needed anymore.
+ * </p>
+ *
+ * @see UploadedData#release()
+ * @see FileUploadMemoryBudget
+ */
+public class MemoryFileUploadReceiver extends FileUploadReceiver {
+
+  /**
+   * The default threshold in bytes, up to which files are held in memory.
+   */
+  public static final int DEFAULT_THRESHOLD = 64 * 1024;
+
+  private static final int INITIAL_CAPACITY = 8 * 1024;
+  private static final String TEMP_FILE_PREFIX = "fileupload_";
+  private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+  private final List<UploadedData> uploadedData;
+  private int threshold;
+  private boolean useDirectBuffers;
+  private FileUploadMemoryBudget memoryBudget;
+  private FileUploadBufferPool bufferPool;
+  private File spillDirectory;
+
+  public MemoryFileUploadReceiver() {
+    uploadedData = new ArrayList<UploadedData>();
+    threshold = DEFAULT_THRESHOLD;
+    memoryBudget = FileUploadMemoryBudget.getDefault();
+    bufferPool = FileUploadBufferPool.getDefault();
+  }
+
+  @Override
+  public void receive( InputStream stream, FileDetails details ) throws IOException {
+    byte[] chunk = bufferPool.borrowBuffer();
+    try {
+      UploadedData data = receive( stream, details, chunk );
+      synchronized( uploadedData ) {
+        uploadedData.add( data );
+      }
+    } finally {
+      bufferPool.returnBuffer( chunk );
+    }
+  }
+
+  /**
+   * Returns the data that has been received so far.
+   *
+   * @return an array with the received data or an empty array if nothing has been received yet
+   */
+  public UploadedData[] getUploadedData() {
+    synchronized( uploadedData ) {
+      return uploadedData.toArray( new UploadedData[ 0 ] );
+    }
+  }
+
+  /**
+   * Releases all data that has been received so far and forgets about it.
+   *
+   * @see UploadedData#release()
+   */
+  @Override
+  public void release() {
+    UploadedData[] data;
+    synchronized( uploadedData ) {
+      data = uploadedData.toArray( new UploadedData[ 0 ] );
+      uploadedData.clear();
+    }
+    for( int i = 0; i < data.length; i++ ) {
+      data[ i ].release();
+    }
+  }
+
+  /**
+   * Sets the maximum size of files to be held in memory. Larger files are stored on disk. A value
+   * of 0 stores all files on disk.
+   *
+   * @param threshold the threshold in bytes, must not be negative
+   */
+  public void setThreshold( int threshold ) {
+    if( threshold < 0 ) {
+      throw new IllegalArgumentException( "threshold must not be negative" );
+    }
+    this.threshold = threshold;
+  }
+
+  /**
+   * Returns the maximum size of files to be held in memory.
+   *
+   * @return the threshold in bytes
+   * @see #setThreshold(int)
+   */
+  public int getThreshold() {
+    return threshold;
+  }
+
+  /**
+   * Controls whether files are held in direct buffers outside of the Java heap, instead of heap
+   * buffers. The default is <code>false</code>.
+   *
+   * @param useDirectBuffers <code>true</code> to use direct buffers
+   */
+  public void setUseDirectBuffers( boolean useDirectBuffers ) {
+    this.useDirectBuffers = useDirectBuffers;
+  }
+
+  /**
+   * Returns whether files are held in direct buffers outside of the Java heap.
+   *
+   * @return <code>true</code> if direct buffers are used
+   * @see #setUseDirectBuffers(boolean)
+   */
+  public boolean getUseDirectBuffers() {
+    return useDirectBuffers;
+  }
+
+  /**
+   * Sets the budget to reserve memory from. By default, the shared budget returned by
+   * <code>FileUploadMemoryBudget.getDefault()</code> is used.
+   *
+   * @param memoryBudget the memory budget to use, must not be <code>null</code>
+   */
+  public void setMemoryBudget( FileUploadMemoryBudget memoryBudget ) {
+    if( memoryBudget == null ) {
+      throw new NullPointerException( "memoryBudget is null" );
+    }
+    this.memoryBudget = memoryBudget;
+  }
+
+  /**
+   * Returns the budget that memory is reserved from.
+   *
+   * @return the memory budget, never <code>null</code>
+   */
+  public FileUploadMemoryBudget getMemoryBudget() {
+    return memoryBudget;
+  }
+
+  /**
+   * Sets the pool to borrow I/O buffers from. By default, the shared pool returned by
+   * <code>FileUploadBufferPool.getDefault()</code> is used.
+   *
+   * @param bufferPool the buffer pool to use, must not be <code>null</code>
+   */
+  public void setBufferPool( FileUploadBufferPool bufferPool ) {
+    if( bufferPool == null ) {
+      throw new NullPointerException( "bufferPool is null" );
+    }
+    this.bufferPool = bufferPool;
+  }
+
+  /**
+   * Returns the pool that I/O buffers are borrowed from.
+   *
+   * @return the buffer pool, never <code>null</code>
+   */
+  public FileUploadBufferPool getBufferPool() {
+    return bufferPool;
+  }
+
+  /**
+   * Sets the directory to store files in that exceed the threshold. The default is
+   * <code>null</code>, which uses the default temporary directory.
+   *
+   * @param spillDirectory the directory for large files, or <code>null</code>
+   */
+  public void setSpillDirectory( File spillDirectory ) {
+    this.spillDirectory = spillDirectory;
+  }
+
+  /**
+   * Returns the directory to store files in that exceed the threshold.
+   *
+   * @return the directory for large files, or <code>null</code> if the default temporary directory
+   *         is used
+   */
+  public File getSpillDirectory() {
+    return spillDirectory;
+  }
+
+  private UploadedData receive( InputStream stream, FileDetails details, byte[] chunk )
+    throws IOException
+  {
+    UploadedData result = null;
+    ByteBuffer buffer = null;
+    long reservedBytes = 0;
+    try {
+      int bytesRead = stream.read( chunk );
+      while( bytesRead != -1 && result == null ) {
+        int required = ( buffer == null ? 0 : buffer.position() ) + bytesRead;
+        if( buffer == null || required > buffer.capacity() ) {
+          int capacity = getNewCapacity( buffer, required );
+          if( required <= threshold && memoryBudget.reserve( capacity - getCapacity( buffer ) ) ) {
+            reservedBytes += capacity - getCapacity( buffer );
+            buffer = grow( buffer, capacity );
+          } else {
+            result = spill( stream, details, buffer, chunk, bytesRead );
+          }
+        }
+        if( result == null ) {
+          buffer.put( chunk, 0, bytesRead );
+          bytesRead = stream.read( chunk );
+        }
+      }
+      if( result == null ) {
+        if( buffer == null ) {
+          buffer = ByteBuffer.allocate( 0 );
+        }
+        buffer.flip();
+        result = new UploadedDataImpl( details, buffer, memoryBudget, reservedBytes );
+        reservedBytes = 0;
+      }
+    } finally {
+      memoryBudget.release( reservedBytes );
+    }
+    return result;
+  }
+
+  private int getNewCapacity( ByteBuffer buffer, int required ) {
+    int capacity = buffer == null ? Math.min( INITIAL_CAPACITY, threshold ) : buffer.capacity() * 2;
+    return Math.min( threshold, Math.max( capacity, required ) );
+  }
+
+  private static int getCapacity( ByteBuffer buffer ) {
+    return buffer == null ? 0 : buffer.capacity();
+  }
+
+  private ByteBuffer grow( ByteBuffer buffer, int capacity ) {
+    ByteBuffer result = useDirectBuffers
+                      ? ByteBuffer.allocateDirect( capacity )
+                      : ByteBuffer.allocate( capacity );
+    if( buffer != null ) {
+      buffer.flip();
+      result.put( buffer );
+    }
+    return result;
+  }
+
+  private UploadedData spill( InputStream stream,
+                              FileDetails details,
+                              ByteBuffer buffer,
+                              byte[] chunk,
+                              int chunkLength )
+    throws IOException
+  {
+    File file = File.createTempFile( TEMP_FILE_PREFIX, TEMP_FILE_SUFFIX, spillDirectory );
+    FileUploadReaper.getInstance().track( file, this, FileUploadReaper.DEFAULT_TIME_TO_LIVE );
+    long length = 0;
+    FileOutputStream outputStream = new FileOutputStream( file );
+    try {
+      if( buffer != null ) {
+        buffer.flip();
+        length = buffer.remaining();
+        FileChannel channel = outputStream.getChannel();
+        while( buffer.hasRemaining() ) {
+          channel.write( buffer );
+        }
+      }
+      int bytesRead = chunkLength;
+      while( bytesRead != -1 ) {
+        outputStream.write( chunk, 0, bytesRead );
+        length += bytesRead;
+        bytesRead = stream.read( chunk );
+      }
+    } finally {
+      outputStream.close();
+    }
+    return new UploadedDataImpl( details, file, length );
+  }
+
+}
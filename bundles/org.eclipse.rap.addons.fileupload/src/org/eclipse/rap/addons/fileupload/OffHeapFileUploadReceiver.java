@@ -0,0 +1,376 @@
+/*******************************************************************************
+ * Copyright (c) 2014 EclipseSource and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    EclipseSource - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.rap.addons.fileupload;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.rap.addons.fileupload.internal.UploadedDataImpl;
+
+
+/**
+ * A file upload receiver that keeps uploaded files outside of the Java heap, for applications that
+ * process uploaded data right away. Files are written either into direct byte buffers, or into a
+ * scratch file that is mapped into memory. In both cases, the data can be accessed as a read-only
+ * <code>ByteBuffer</code> without reading it back from disk. Since a buffer cannot hold more than
+ * 2GB, larger files are not supported.
+ * <p>
+ * Direct buffers are reserved from a memory budget. If the budget is exhausted, the receiver falls
+ * back to a mapped scratch file. The received data <em>must</em> be released when it is not needed
+ * anymore.
+ * </p>
+ *
+ * @see UploadedData#getByteBuffer()
+ * @see UploadedData#release()
+ */
+public class OffHeapFileUploadReceiver extends FileUploadReceiver {
+
+  private static final int INITIAL_CAPACITY = 64 * 1024;
+  private static final long MAX_LENGTH = Integer.MAX_VALUE;
+  private static final String SCRATCH_FILE_PREFIX = "fileupload_";
+  private static final String SCRATCH_FILE_SUFFIX = ".tmp";
+  private static final AtomicLong totalOutstandingBytes = new AtomicLong();
+
+  private final List<UploadedData> uploadedData;
+  private final AtomicLong outstandingBytes;
+  private boolean useMappedFiles;
+  private FileUploadMemoryBudget memoryBudget;
+  private FileUploadBufferPool bufferPool;
+  private File scratchDirectory;
+
+  public OffHeapFileUploadReceiver() {
+    uploadedData = new ArrayList<UploadedData>();
+    outstandingBytes = new AtomicLong();
+    memoryBudget = FileUploadMemoryBudget.getDefault();
+    bufferPool = FileUploadBufferPool.getDefault();
+  }
+
+  @Override
+  public void receive( InputStream stream, FileDetails details ) throws IOException {
+    long contentLength = details != null ? details.getContentLength() : -1;
+    checkLength( contentLength );
+    byte[] chunk = bufferPool.borrowBuffer();
+    try {
+      UploadedDataImpl data = useMappedFiles
+                            ? receiveMapped( stream, details, chunk, createScratchFile(), 0 )
+                            : receiveDirect( stream, details, contentLength, chunk );
+      track( data );
+      synchronized( uploadedData ) {
+        uploadedData.add( data );
+      }
+    } finally {
+      bufferPool.returnBuffer( chunk );
+    }
+  }
+
+  /**
+   * Returns the data that has been received so far.
+   *
+   * @return an array with the received data or an empty array if nothing has been received yet
+   */
+  public UploadedData[] getUploadedData() {
+    synchronized( uploadedData ) {
+      return uploadedData.toArray( new UploadedData[ 0 ] );
+    }
+  }
+
+  /**
+   * Releases all data that has been received so far and forgets about it.
+   *
+   * @see UploadedData#release()
+   */
+  @Override
+  public void release() {
+    UploadedData[] data;
+    synchronized( uploadedData ) {
+      data = uploadedData.toArray( new UploadedData[ 0 ] );
+      uploadedData.clear();
+    }
+    for( int i = 0; i < data.length; i++ ) {
+      data[ i ].release();
+    }
+  }
+
+  /**
+   * Returns the number of bytes held off-heap by data of this receiver that has not been released
+   * yet.
+   *
+   * @return the number of outstanding bytes
+   */
+  public long getOutstandingBytes() {
+    return outstandingBytes.get();
+  }
+
+  /**
+   * Returns the number of bytes held off-heap by data of all receivers of this type that has not
+   * been released yet.
+   *
+   * @return the total number of outstanding bytes
+   */
+  public static long getTotalOutstandingBytes() {
+    return totalOutstandingBytes.get();
+  }
+
+  /**
+   * Controls whether files are written into scratch files that are mapped into memory, instead of
+   * direct buffers. The default is <code>false</code>.
+   *
+   * @param useMappedFiles <code>true</code> to use mapped scratch files
+   */
+  public void setUseMappedFiles( boolean useMappedFiles ) {
+    this.useMappedFiles = useMappedFiles;
+  }
+
+  /**
+   * Returns whether files are written into scratch files that are mapped into memory.
+   *
+   * @return <code>true</code> if mapped scratch files are used
+   * @see #setUseMappedFiles(boolean)
+   */
+  public boolean getUseMappedFiles() {
+    return useMappedFiles;
+  }
+
+  /**
+   * Sets the budget to reserve direct memory from. By default, the shared budget returned by
+   * <code>FileUploadMemoryBudget.getDefault()</code> is used.
+   *
+   * @param memoryBudget the memory budget to use, must not be <code>null</code>
+   */
+  public void setMemoryBudget( FileUploadMemoryBudget memoryBudget ) {
+    if( memoryBudget == null ) {
+      throw new NullPointerException( "memoryBudget is null" );
+    }
+    this.memoryBudget = memoryBudget;
+  }
+
+  /**
+   * Returns the budget that direct memory is reserved from.
+   *
+   * @return the memory budget, never <code>null</code>
+   */
+  public FileUploadMemoryBudget getMemoryBudget() {
+    return memoryBudget;
+  }
+
+  /**
+   * Sets the pool to borrow I/O buffers from. By default, the shared pool returned by
+   * <code>FileUploadBufferPool.getDefault()</code> is used.
+   *
+   * @param bufferPool the buffer pool to use, must not be <code>null</code>
+   */
+  public void setBufferPool( FileUploadBufferPool bufferPool ) {
+    if( bufferPool == null ) {
+      throw new NullPointerException( "bufferPool is null" );
+    }
+    this.bufferPool = bufferPool;
+  }
+
+  /**
+   * Returns the pool that I/O buffers are borrowed from.
+   *
+   * @return the buffer pool, never <code>null</code>
+   */
+  public FileUploadBufferPool getBufferPool() {
+    return bufferPool;
+  }
+
+  /**
+   * Sets the directory to create scratch files in. The default is <code>null</code>, which uses
+   * the default temporary directory.
+   *
+   * @param scratchDirectory the directory for scratch files, or <code>null</code>
+   */
+  public void setScratchDirectory( File scratchDirectory ) {
+    this.scratchDirectory = scratchDirectory;
+  }
+
+  /**
+   * Returns the directory to create scratch files in.
+   *
+   * @return the directory for scratch files, or <code>null</code> if the default temporary
+   *         directory is used
+   */
+  public File getScratchDirectory() {
+    return scratchDirectory;
+  }
+
+  private UploadedDataImpl receiveDirect( InputStream stream,
+                                          FileDetails details,
+                                          long contentLength,
+                                          byte[] chunk )
+    throws IOException
+  {
+    UploadedDataImpl result = null;
+    ByteBuffer buffer = null;
+    long reservedBytes = 0;
+    try {
+      int bytesRead = stream.read( chunk );
+      while( bytesRead != -1 && result == null ) {
+        long required = ( buffer == null ? 0 : buffer.position() ) + ( long )bytesRead;
+        checkLength( required );
+        if( buffer == null || required > buffer.capacity() ) {
+          int capacity = getNewCapacity( buffer, ( int )required, contentLength );
+          long additionalBytes = capacity - ( buffer == null ? 0 : buffer.capacity() );
+          if( memoryBudget.reserve( additionalBytes ) ) {
+            reservedBytes += additionalBytes;
+            buffer = grow( buffer, capacity );
+          } else {
+            result = spill( stream, details, buffer, chunk, bytesRead );
+          }
+        }
+        if( result == null ) {
+          buffer.put( chunk, 0, bytesRead );
+          bytesRead = stream.read( chunk );
+        }
+      }
+      if( result == null ) {
+        if( buffer == null ) {
+          buffer = ByteBuffer.allocateDirect( 0 );
+        }
+        buffer.flip();
+        result = new UploadedDataImpl( details, buffer, memoryBudget, reservedBytes );
+        reservedBytes = 0;
+      }
+    } finally {
+      memoryBudget.release( reservedBytes );
+    }
+    return result;
+  }
+
+  private UploadedDataImpl spill( InputStream stream,
+                                  FileDetails details,
+                                  ByteBuffer buffer,
+                                  byte[] chunk,
+                                  int chunkLength )
+    throws IOException
+  {
+    ByteBuffer received = buffer;
+    if( received == null ) {
+      received = ByteBuffer.wrap( chunk, 0, chunkLength );
+    } else {
+      received.flip();
+    }
+    long length = received.remaining() + ( buffer != null ? chunkLength : 0 );
+    File file = createScratchFile();
+    boolean written = false;
+    FileOutputStream outputStream = new FileOutputStream( file );
+    try {
+      FileChannel channel = outputStream.getChannel();
+      while( received.hasRemaining() ) {
+        channel.write( received );
+      }
+      if( buffer != null ) {
+        outputStream.write( chunk, 0, chunkLength );
+      }
+      written = true;
+    } finally {
+      outputStream.close();
+      if( !written ) {
+        file.delete();
+      }
+    }
+    return receiveMapped( stream, details, chunk, file, length );
+  }
+
+  /**
+   * Appends the rest of the stream to the given scratch file and maps it. The scratch file is
+   * deleted if this fails, including when the file becomes too large to be mapped.
+   */
+  private static UploadedDataImpl receiveMapped( InputStream stream,
+                                                 FileDetails details,
+                                                 byte[] chunk,
+                                                 File file,
+                                                 long initialLength )
+    throws IOException
+  {
+    UploadedDataImpl result = null;
+    try {
+      long length = initialLength;
+      FileOutputStream outputStream = new FileOutputStream( file, true );
+      try {
+        int bytesRead = stream.read( chunk );
+        while( bytesRead != -1 ) {
+          length += bytesRead;
+          checkLength( length );
+          outputStream.write( chunk, 0, bytesRead );
+          bytesRead = stream.read( chunk );
+        }
+      } finally {
+        outputStream.close();
+      }
+      UploadedDataImpl data = new UploadedDataImpl( details, file, length );
+      // map the file while the written pages are still in the file system cache
+      data.getByteBuffer();
+      result = data;
+    } finally {
+      if( result == null ) {
+        file.delete();
+      }
+    }
+    return result;
+  }
+
+  private File createScratchFile() throws IOException {
+    File file = File.createTempFile( SCRATCH_FILE_PREFIX, SCRATCH_FILE_SUFFIX, scratchDirectory );
+    FileUploadReaper.getInstance().track( file, this, FileUploadReaper.DEFAULT_TIME_TO_LIVE );
+    return file;
+  }
+
+  private void track( UploadedDataImpl data ) {
+    final long length = data.getLength();
+    outstandingBytes.addAndGet( length );
+    totalOutstandingBytes.addAndGet( length );
+    data.setReleaseHook( new Runnable() {
+      public void run() {
+        outstandingBytes.addAndGet( -length );
+        totalOutstandingBytes.addAndGet( -length );
+      }
+    } );
+  }
+
+  private static void checkLength( long length ) throws IOException {
+    if( length > MAX_LENGTH ) {
+      throw new IOException( "File exceeds the maximum size of "
+                             + MAX_LENGTH
+                             + " bytes for off-heap data" );
+    }
+  }
+
+  private static int getNewCapacity( ByteBuffer buffer, int required, long contentLength ) {
+    int capacity;
+    if( buffer == null ) {
+      capacity = contentLength > 0 && contentLength <= Integer.MAX_VALUE
+               ? ( int )contentLength
+               : INITIAL_CAPACITY;
+    } else {
+      capacity = ( int )Math.min( Integer.MAX_VALUE, buffer.capacity() * 2L );
+    }
+    return Math.max( capacity, required );
+  }
+
+  private static ByteBuffer grow( ByteBuffer buffer, int capacity ) {
+    ByteBuffer result = ByteBuffer.allocateDirect( capacity );
+    if( buffer != null ) {
+      buffer.flip();
+      result.put( buffer );
+    }
+    return result;
+  }
+
+}
@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Copyright (c) 2014 EclipseSource and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    EclipseSource - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.rap.addons.fileupload;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+
+/**
+ * The default token generator. Tokens consist of 128 random bits from a
+ * <code>SecureRandom</code>, encoded as 22 characters of the URL safe Base64 alphabet. Every
+ * thread uses a random number generator of its own, so that concurrent token creation does not
+ * contend on a shared lock.
+ * <p>
+ * This class is thread safe.
+ * </p>
+ */
+public final class SecureTokenGenerator implements FileUploadTokenGenerator {
+
+  /**
+   * The length of the created tokens.
+   */
+  public static final int TOKEN_LENGTH = 22;
+
+  private static final int RANDOM_BYTES = 16;
+  private static final char[] ALPHABET
+    = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+
+  private static final SecureRandom SEED_SOURCE = new SecureRandom();
+
+  private final ThreadLocal<SecureRandom> random;
+
+  public SecureTokenGenerator() {
+    random = new ThreadLocal<SecureRandom>() {
+      @Override
+      protected SecureRandom initialValue() {
+        return createSecureRandom();
+      }
+    };
+  }
+
+  public String createToken() {
+    byte[] bytes = new byte[ RANDOM_BYTES ];
+    random.get().nextBytes( bytes );
+    return encode( bytes );
+  }
+
+  static String encode( byte[] bytes ) {
+    // Base64 without padding, 16 bytes result in 22 characters
+    char[] result = new char[ ( bytes.length * 8 + 5 ) / 6 ];
+    int index = 0;
+    int buffer = 0;
+    int bits = 0;
+    for( int i = 0; i < bytes.length; i++ ) {
+      buffer = ( buffer << 8 ) | ( bytes[ i ] & 0xff );
+      bits += 8;
+      while( bits >= 6 ) {
+        bits -= 6;
+        result[ index++ ] = ALPHABET[ ( buffer >> bits ) & 0x3f ];
+      }
+    }
+    if( bits > 0 ) {
+      result[ index ] = ALPHABET[ ( buffer << ( 6 - bits ) ) & 0x3f ];
+    }
+    return new String( result );
+  }
+
+  private static SecureRandom createSecureRandom() {
+    SecureRandom result;
+    try {
+      // The default algorithm on some platforms reads from a device that is shared by all
+      // instances and synchronized, SHA1PRNG instances are independent of each other
+      result = SecureRandom.getInstance( "SHA1PRNG" );
+    } catch( NoSuchAlgorithmException exception ) {
+      result = new SecureRandom();
+    }
+    // Seeding before first use replaces the self-seeding, which may block on some platforms
+    byte[] seed = new byte[ RANDOM_BYTES * 2 ];
+    synchronized( SEED_SOURCE ) {
+      SEED_SOURCE.nextBytes( seed );
+    }
+    result.setSeed( seed );
+    return result;
+  }
+
+}
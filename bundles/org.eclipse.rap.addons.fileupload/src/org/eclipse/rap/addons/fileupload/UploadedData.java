@@ -0,0 +1,81 @@
+/*******************************************************************************
+ * Copyright (c) 2014 EclipseSource and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    EclipseSource - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.rap.addons.fileupload;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+/**
+ * Provides access to the data of an uploaded file that has been kept in memory or stored in a
+ * file. Uploaded data <em>must</em> be released when it is not needed anymore, to return the
+ * memory to the memory budget and to delete files.
+ *
+ * @see MemoryFileUploadReceiver
+ */
+public interface UploadedData {
+
+  /**
+   * The details of the uploaded file like file name and content-type, as transmitted by the
+   * client.
+   *
+   * @return the file details, or <code>null</code> if not available
+   */
+  FileDetails getFileDetails();
+
+  /**
+   * The number of bytes that have been received.
+   *
+   * @return the length in bytes
+   */
+  long getLength();
+
+  /**
+   * Whether the data is held in memory or has been stored in a file.
+   *
+   * @return <code>true</code> if the data is held in memory
+   */
+  boolean isInMemory();
+
+  /**
+   * Returns a read-only buffer with the uploaded data. Every call returns a new buffer that shares
+   * the underlying data, so that the position and limit of the returned buffers are independent.
+   * If the data has been stored in a file, the file is mapped into memory.
+   *
+   * @return a read-only buffer with the uploaded data
+   * @throws IOException if the data has been stored in a file that cannot be read
+   * @throws IllegalStateException if the data has been released
+   */
+  ByteBuffer getByteBuffer() throws IOException;
+
+  /**
+   * Returns the file that the uploaded data has been stored in.
+   *
+   * @return the file, or <code>null</code> if the data is held in memory
+   * @throws IllegalStateException if the data has been released
+   */
+  File getFile();
+
+  /**
+   * Releases the uploaded data. Memory is returned to the memory budget and files are deleted.
+   * Calling this method more than once has no effect.
+   */
+  void release();
+
+  /**
+   * Whether the data has been released.
+   *
+   * @return <code>true</code> if the data has been released
+   */
+  boolean isReleased();
+
+}
@@ -0,0 +1,479 @@
+/*******************************************************************************
+ * Copyright (c) 2014 EclipseSource and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    EclipseSource - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.rap.addons.fileupload.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.fileupload.FileUploadBase.FileSizeLimitExceededException;
+import org.apache.commons.fileupload.FileUploadBase.FileUploadIOException;
+import org.apache.commons.fileupload.FileUploadException;
+import org.eclipse.rap.addons.fileupload.FileUploadBufferPool;
+import org.eclipse.rap.addons.fileupload.FileUploadHandler;
+
+
+/**
+ * Processes a multipart upload request with the non-blocking I/O of Servlet 3.1. The request body
+ * is read in the callbacks of a <code>ReadListener</code> whenever data has arrived, and parsed
+ * incrementally. No thread is blocked while waiting for a slow client.
+ * <p>
+ * Receivers read the data of a file from a stream, which would block. Therefore, the data of a
+ * file is buffered until the file has been received completely and passed to the receiver
+ * afterwards. Small files are buffered in memory, larger files in temporary files. The receiver is
+ * called on a separate pool of threads, reading is suspended until it has returned.
+ * </p>
+ * <p>
+ * This class must only be loaded if the Servlet 3.1 API is available.
+ * </p>
+ */
+final class AsyncFileUploadProcessor implements ReadListener, MultipartParser.PartHandler {
+
+  static final int MEMORY_THRESHOLD = 64 * 1024;
+
+  private static ScheduledExecutorService scheduler;
+  private static Executor receiveExecutor;
+
+  private final FileUploadHandler handler;
+  private final FileUploadTracker tracker;
+  private final Runnable completion;
+  private final FileUploadBufferPool bufferPool;
+  private final LinkedList<BufferedPart> bufferedParts;
+  private HttpServletResponse response;
+  private AsyncContext asyncContext;
+  private ServletInputStream input;
+  private MultipartParser parser;
+  private TokenBucket[] buckets;
+  private byte[] buffer;
+  private long contentLength;
+  private long bytesRead;
+  private long stallTimeout;
+  private long lastActivity;
+  private ScheduledFuture<?> stallCheck;
+  private int fileCount;
+  private String fileName;
+  private String contentType;
+  private PartSpool spool;
+  private boolean receiving;
+  private boolean paused;
+  private boolean done;
+  private boolean contextCompleted;
+
+  /**
+   * @param handler the handler to process the upload for
+   * @param completion the callback to run when the processing has completed
+   */
+  AsyncFileUploadProcessor( FileUploadHandler handler, Runnable completion ) {
+    this.handler = handler;
+    this.completion = completion;
+    tracker = new FileUploadTracker( handler );
+    bufferPool = FileUploadBufferPool.getDefault();
+    bufferedParts = new LinkedList<BufferedPart>();
+  }
+
+  /**
+   * Starts the asynchronous processing of the given request. Returns as soon as the request has
+   * been put into asynchronous mode. The completion callback is run exactly once, when the upload
+   * has finished, failed or timed out.
+   */
+  synchronized void start( HttpServletRequest request, HttpServletResponse response ) {
+    this.response = response;
+    try {
+      contentLength = FileUploadProcessor.getContentLength( request );
+      FileUploadProcessor.checkRequestSize( handler, contentLength );
+      String boundary = MultipartParser.getBoundary( request.getContentType() );
+      if( boundary == null ) {
+        String message = "the request was rejected because no multipart boundary was found";
+        throw new FileUploadException( message );
+      }
+      String encoding = request.getCharacterEncoding();
+      parser = new MultipartParser( boundary, encoding != null ? encoding : "UTF-8", this );
+      buckets = FileUploadRateLimits.getBuckets( handler, request.getSession( false ) );
+      buffer = bufferPool.borrowBuffer();
+      asyncContext = request.startAsync();
+      // slow uploads must not be cut off, stalled clients are detected by the stall check
+      asyncContext.setTimeout( 0 );
+      asyncContext.addListener( new ContextListener() );
+      stallTimeout = TimeUnit.MILLISECONDS.toNanos( handler.getStallTimeout() );
+      lastActivity = System.nanoTime();
+      if( stallTimeout > 0 ) {
+        scheduleStallCheck( stallTimeout );
+      }
+      input = request.getInputStream();
+      input.setReadListener( this );
+    } catch( Exception exception ) {
+      fail( exception );
+    }
+  }
+
+  public synchronized void onDataAvailable() {
+    // while paused or receiving, reading is resumed by the scheduler or the receiving thread
+    if( !paused && !receiving ) {
+      readAvailable();
+    }
+  }
+
+  public synchronized void onAllDataRead() {
+    if( !done && !paused && !receiving ) {
+      try {
+        finish();
+      } catch( Exception exception ) {
+        fail( exception );
+      }
+    }
+  }
+
+  public synchronized void onError( Throwable throwable ) {
+    fail( throwable instanceof Exception ? ( Exception )throwable : new Exception( throwable ) );
+  }
+
+  public void partStarted( String fieldName, String fileName, String contentType )
+    throws IOException
+  {
+    // form fields are ignored, as in the blocking processor
+    if( fileName != null ) {
+      try {
+        FileUploadProcessor.checkFileCount( handler, ++fileCount );
+      } catch( FileCountLimitExceededException exception ) {
+        throw new FileUploadIOException( exception );
+      }
+      tracker.startItem();
+      this.fileName = FileUploadProcessor.stripFileName( fileName );
+      this.contentType = contentType;
+      File directory = handler.getSpoolDirectory();
+      spool = new PartSpool( MEMORY_THRESHOLD, directory, handler.getReceiver() );
+    }
+  }
+
+  public void partData( byte[] data, int offset, int length ) throws IOException {
+    if( spool != null ) {
+      try {
+        FileUploadProcessor.checkFileSize( handler.getMaxFileSize(), spool.getSize() + length );
+      } catch( FileSizeLimitExceededException exception ) {
+        throw new FileUploadIOException( exception );
+      }
+      spool.write( data, offset, length );
+      tracker.addItemBytes( length );
+    }
+  }
+
+  public void partFinished() throws IOException {
+    if( spool != null ) {
+      FileDetailsImpl details = new FileDetailsImpl( fileName, contentType, spool.getSize() );
+      bufferedParts.add( new BufferedPart( spool, details ) );
+      spool = null;
+      if( !receiving ) {
+        receiving = true;
+        getReceiveExecutor().execute( new Runnable() {
+          public void run() {
+            receiveBufferedParts();
+          }
+        } );
+      }
+    }
+  }
+
+  /**
+   * Passes the buffered parts to the receiver without holding the lock of the processor, and
+   * resumes reading afterwards.
+   */
+  private void receiveBufferedParts() {
+    BufferedPart part = takeBufferedPart();
+    while( part != null ) {
+      try {
+        receive( part.spool.openInputStream(), part.details );
+        synchronized( this ) {
+          tracker.addFile( part.details );
+        }
+      } catch( Exception exception ) {
+        synchronized( this ) {
+          fail( exception );
+        }
+      } finally {
+        part.spool.dispose();
+      }
+      part = takeBufferedPart();
+    }
+  }
+
+  private synchronized BufferedPart takeBufferedPart() {
+    BufferedPart result = done ? null : bufferedParts.poll();
+    if( result == null ) {
+      receiving = false;
+      // the time spent in the receiver is not the client's fault
+      lastActivity = System.nanoTime();
+      if( !done && !paused ) {
+        readAvailable();
+      }
+    }
+    return result;
+  }
+
+  private void readAvailable() {
+    try {
+      while( !done && !paused && !receiving && input.isReady() ) {
+        int count = input.read( buffer );
+        if( count == -1 ) {
+          finish();
+        } else if( count > 0 ) {
+          process( count );
+          pause( count );
+        }
+      }
+      if( !done && !paused && !receiving && input.isFinished() ) {
+        finish();
+      }
+    } catch( Exception exception ) {
+      fail( exception );
+    }
+  }
+
+  private void process( int count ) throws IOException, FileUploadException {
+    lastActivity = System.nanoTime();
+    bytesRead += count;
+    FileUploadProcessor.checkRequestSize( handler, bytesRead );
+    tracker.setContentLength( contentLength );
+    tracker.setBytesRead( bytesRead );
+    tracker.handleProgress();
+    parser.write( buffer, 0, count );
+  }
+
+  /**
+   * Takes the given number of bytes from the rate limits. If the client is too fast, reading is
+   * resumed later by the scheduler instead of blocking the current thread.
+   */
+  private void pause( int count ) {
+    long now = System.nanoTime();
+    long waitNanos = 0;
+    for( int i = 0; i < buckets.length; i++ ) {
+      waitNanos = Math.max( waitNanos, buckets[ i ].reserve( count, now ) );
+    }
+    paused = waitNanos > 0;
+    if( paused ) {
+      getScheduler().schedule( new Runnable() {
+        public void run() {
+          synchronized( AsyncFileUploadProcessor.this ) {
+            paused = false;
+            // the time spent in the pause is not the client's fault
+            lastActivity = System.nanoTime();
+            readAvailable();
+          }
+        }
+      }, waitNanos, TimeUnit.NANOSECONDS );
+    }
+  }
+
+  private void scheduleStallCheck( long delayNanos ) {
+    stallCheck = getScheduler().schedule( new Runnable() {
+      public void run() {
+        synchronized( AsyncFileUploadProcessor.this ) {
+          checkStalled();
+        }
+      }
+    }, delayNanos, TimeUnit.NANOSECONDS );
+  }
+
+  /**
+   * Fails the upload if no data has arrived within the stall timeout, otherwise checks again when
+   * the stall timeout would elapse next.
+   */
+  private void checkStalled() {
+    if( !done ) {
+      long idleTime = paused || receiving ? 0 : System.nanoTime() - lastActivity;
+      if( idleTime >= stallTimeout ) {
+        long millis = TimeUnit.NANOSECONDS.toMillis( stallTimeout );
+        String message = "the client did not send any data within " + millis + " ms";
+        fail( new IOException( message ), HttpServletResponse.SC_REQUEST_TIMEOUT );
+      } else {
+        scheduleStallCheck( stallTimeout - idleTime );
+      }
+    }
+  }
+
+  private void finish() throws IOException {
+    parser.close();
+    if( tracker.isEmpty() ) {
+      String errorMessage = "No file upload data found in request";
+      tracker.setException( new Exception( errorMessage ) );
+      tracker.handleFailed();
+      response.sendError( HttpServletResponse.SC_BAD_REQUEST, errorMessage );
+    } else {
+      tracker.handleFinished();
+    }
+    complete();
+  }
+
+  private void fail( Exception failure ) {
+    Exception exception = failure;
+    Throwable cause = exception.getCause();
+    if( FileUploadProcessor.isLimitExceeded( cause ) ) {
+      exception = ( Exception )cause;
+    }
+    int errorCode = FileUploadProcessor.isLimitExceeded( exception )
+                  ? HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE
+                  : HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+    fail( exception, errorCode );
+  }
+
+  private void fail( Exception exception, int errorCode ) {
+    if( !done ) {
+      tracker.setException( exception );
+      try {
+        tracker.handleFailed();
+      } finally {
+        try {
+          if( !contextCompleted && !response.isCommitted() ) {
+            response.sendError( errorCode, exception.getMessage() );
+          }
+        } catch( IOException ioException ) {
+          // the client is gone, there is no one to report the error to
+        }
+        complete();
+      }
+    }
+  }
+
+  private void complete() {
+    done = true;
+    if( stallCheck != null ) {
+      stallCheck.cancel( false );
+      stallCheck = null;
+    }
+    if( spool != null ) {
+      spool.dispose();
+      spool = null;
+    }
+    // a part that is being received is disposed of by the receiving thread
+    while( !bufferedParts.isEmpty() ) {
+      bufferedParts.removeFirst().spool.dispose();
+    }
+    if( buffer != null ) {
+      bufferPool.returnBuffer( buffer );
+      buffer = null;
+    }
+    try {
+      if( asyncContext != null && !contextCompleted ) {
+        asyncContext.complete();
+      }
+    } finally {
+      completion.run();
+    }
+  }
+
+  private void receive( InputStream stream, FileDetailsImpl details ) throws IOException {
+    InputStream receiverStream = stream;
+    try {
+      String[] digestAlgorithms = handler.getDigestAlgorithms();
+      DigestingInputStream digestingStream = null;
+      if( digestAlgorithms.length > 0 ) {
+        digestingStream = new DigestingInputStream( stream, digestAlgorithms, details );
+        receiverStream = digestingStream;
+      }
+      handler.getReceiver().receive( receiverStream, details );
+      if( digestingStream != null ) {
+        digestingStream.drain();
+      }
+    } finally {
+      receiverStream.close();
+    }
+  }
+
+  /**
+   * Fails the upload if the container ends the asynchronous processing, so that the completion
+   * callback runs and the admission of the upload is released.
+   */
+  private final class ContextListener implements AsyncListener {
+
+    public void onTimeout( AsyncEvent event ) {
+      synchronized( AsyncFileUploadProcessor.this ) {
+        String message = "the request timed out";
+        fail( new IOException( message ), HttpServletResponse.SC_REQUEST_TIMEOUT );
+      }
+    }
+
+    public void onError( AsyncEvent event ) {
+      synchronized( AsyncFileUploadProcessor.this ) {
+        Throwable throwable = event.getThrowable();
+        fail( throwable instanceof Exception ? ( Exception )throwable : new Exception( throwable ) );
+      }
+    }
+
+    public void onComplete( AsyncEvent event ) {
+      synchronized( AsyncFileUploadProcessor.this ) {
+        if( !done ) {
+          contextCompleted = true;
+          fail( new IOException( "the request was completed before the upload has finished" ) );
+        }
+      }
+    }
+
+    public void onStartAsync( AsyncEvent event ) {
+      // the listener is registered after the processing has been started
+    }
+  }
+
+  private static final class BufferedPart {
+
+    final PartSpool spool;
+    final FileDetailsImpl details;
+
+    BufferedPart( PartSpool spool, FileDetailsImpl details ) {
+      this.spool = spool;
+      this.details = details;
+    }
+  }
+
+  private static synchronized Executor getReceiveExecutor() {
+    if( receiveExecutor == null ) {
+      int threadCount = Math.max( 2, Runtime.getRuntime().availableProcessors() );
+      receiveExecutor = Executors.newFixedThreadPool( threadCount, new ThreadFactory() {
+        private final AtomicInteger threadNumber = new AtomicInteger();
+        public Thread newThread( Runnable runnable ) {
+          String name = "FileUpload receiver " + threadNumber.incrementAndGet();
+          Thread thread = new Thread( runnable, name );
+          thread.setDaemon( true );
+          return thread;
+        }
+      } );
+    }
+    return receiveExecutor;
+  }
+
+  private static synchronized ScheduledExecutorService getScheduler() {
+    if( scheduler == null ) {
+      scheduler = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+        public Thread newThread( Runnable runnable ) {
+          Thread thread = new Thread( runnable, "FileUpload rate limiter" );
+          thread.setDaemon( true );
+          return thread;
+        }
+      } );
+    }
+    return scheduler;
+  }
+
+}
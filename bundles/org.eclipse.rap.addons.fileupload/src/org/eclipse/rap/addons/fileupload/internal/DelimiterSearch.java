@@ -0,0 +1,82 @@
+/*******************************************************************************
+ * Copyright (c) 2014 EclipseSource and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    EclipseSource - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.rap.addons.fileupload.internal;
+
+
+/**
+ * Searches a byte pattern using the Boyer-Moore-Horspool algorithm. The last byte of the current
+ * window decides how far the window can be shifted, so that most bytes of the data are never
+ * compared. For a multipart delimiter of 40 bytes, the search typically looks at only one byte in
+ * 40.
+ * <p>
+ * Instances are immutable and can be shared.
+ * </p>
+ */
+final class DelimiterSearch {
+
+  private final byte[] pattern;
+  private final int[] shifts;
+
+  DelimiterSearch( byte[] pattern ) {
+    if( pattern.length == 0 ) {
+      throw new IllegalArgumentException( "pattern is empty" );
+    }
+    this.pattern = pattern;
+    shifts = new int[ 256 ];
+    int last = pattern.length - 1;
+    for( int i = 0; i < shifts.length; i++ ) {
+      shifts[ i ] = pattern.length;
+    }
+    for( int i = 0; i < last; i++ ) {
+      shifts[ pattern[ i ] & 0xFF ] = last - i;
+    }
+  }
+
+  int getLength() {
+    return pattern.length;
+  }
+
+  /**
+   * Returns the index of the first occurrence of the pattern in the given range of the buffer, or
+   * -1 if the range does not contain it.
+   *
+   * @param from the index to start at
+   * @param to the index after the last byte to search
+   */
+  int indexOf( byte[] buffer, int from, int to ) {
+    int last = pattern.length - 1;
+    int position = from;
+    while( position + last < to ) {
+      byte lastByte = buffer[ position + last ];
+      if( lastByte == pattern[ last ] ) {
+        int i = last - 1;
+        while( i >= 0 && buffer[ position + i ] == pattern[ i ] ) {
+          i--;
+        }
+        if( i < 0 ) {
+          return position;
+        }
+      }
+      position += shifts[ lastByte & 0xFF ];
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the index up to which the given range of the buffer can be consumed without cutting
+   * off the beginning of an occurrence that continues after the range. Assumes that the range does
+   * not contain the pattern.
+   */
+  int getSafeEnd( int from, int to ) {
+    return Math.max( from, to - pattern.length + 1 );
+  }
+
+}
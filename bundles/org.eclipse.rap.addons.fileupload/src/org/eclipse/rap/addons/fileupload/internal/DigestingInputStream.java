@@ -0,0 +1,182 @@
+/*******************************************************************************
+ * Copyright (c) 2014 EclipseSource and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    EclipseSource - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.rap.addons.fileupload.internal;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.eclipse.rap.addons.fileupload.FileDigests;
+
+
+/**
+ * An input stream that computes digests with several algorithms in a single pass over the data.
+ * When the end of the stream is reached, the digests are passed to the file details.
+ */
+public final class DigestingInputStream extends FilterInputStream {
+
+  private static final int SKIP_BUFFER_SIZE = 4096;
+
+  private final String[] algorithms;
+  private final MessageDigest[] digests;
+  private final CRC32 crc32;
+  private final FileDetailsImpl details;
+  private boolean finished;
+
+  public DigestingInputStream( InputStream in, String[] algorithms, FileDetailsImpl details ) {
+    super( in );
+    this.algorithms = algorithms;
+    this.details = details;
+    digests = new MessageDigest[ algorithms.length ];
+    CRC32 checksum = null;
+    for( int i = 0; i < algorithms.length; i++ ) {
+      if( FileDigests.CRC32.equals( algorithms[ i ] ) ) {
+        checksum = new CRC32();
+      } else {
+        digests[ i ] = createMessageDigest( algorithms[ i ] );
+      }
+    }
+    crc32 = checksum;
+  }
+
+  /**
+   * Checks whether digests can be computed with the given algorithm.
+   */
+  public static boolean isSupported( String algorithm ) {
+    boolean result = FileDigests.CRC32.equals( algorithm );
+    if( !result ) {
+      try {
+        MessageDigest.getInstance( algorithm );
+        result = true;
+      } catch( NoSuchAlgorithmException exception ) {
+        result = false;
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public int read() throws IOException {
+    int result = in.read();
+    if( result != -1 ) {
+      for( int i = 0; i < digests.length; i++ ) {
+        if( digests[ i ] != null ) {
+          digests[ i ].update( ( byte )result );
+        }
+      }
+      if( crc32 != null ) {
+        crc32.update( result );
+      }
+    } else {
+      finish();
+    }
+    return result;
+  }
+
+  @Override
+  public int read( byte[] buffer, int offset, int length ) throws IOException {
+    int result = in.read( buffer, offset, length );
+    if( result > 0 ) {
+      for( int i = 0; i < digests.length; i++ ) {
+        if( digests[ i ] != null ) {
+          digests[ i ].update( buffer, offset, result );
+        }
+      }
+      if( crc32 != null ) {
+        crc32.update( buffer, offset, result );
+      }
+    } else if( result == -1 ) {
+      finish();
+    }
+    return result;
+  }
+
+  @Override
+  public long skip( long count ) throws IOException {
+    // skipped bytes must be digested as well
+    byte[] buffer = new byte[ ( int )Math.min( SKIP_BUFFER_SIZE, Math.max( count, 1 ) ) ];
+    long result = 0;
+    boolean done = count <= 0;
+    while( !done ) {
+      int bytesRead = read( buffer, 0, ( int )Math.min( buffer.length, count - result ) );
+      if( bytesRead == -1 ) {
+        done = true;
+      } else {
+        result += bytesRead;
+        done = result >= count;
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  @Override
+  public void mark( int readlimit ) {
+    // not supported, see markSupported()
+  }
+
+  @Override
+  public void reset() throws IOException {
+    throw new IOException( "mark/reset not supported" );
+  }
+
+  /**
+   * Reads the remaining data, so that the digests cover the entire stream.
+   */
+  public void drain() throws IOException {
+    byte[] buffer = new byte[ SKIP_BUFFER_SIZE ];
+    while( read( buffer, 0, buffer.length ) != -1 ) {
+      // digests are updated in read()
+    }
+  }
+
+  private void finish() {
+    if( !finished ) {
+      finished = true;
+      Map<String, byte[]> result = new LinkedHashMap<String, byte[]>();
+      for( int i = 0; i < algorithms.length; i++ ) {
+        if( digests[ i ] != null ) {
+          result.put( algorithms[ i ], digests[ i ].digest() );
+        } else {
+          result.put( algorithms[ i ], toBytes( crc32.getValue() ) );
+        }
+      }
+      details.setDigests( result );
+    }
+  }
+
+  private static byte[] toBytes( long value ) {
+    return new byte[] {
+      ( byte )( value >>> 24 ),
+      ( byte )( value >>> 16 ),
+      ( byte )( value >>> 8 ),
+      ( byte )value
+    };
+  }
+
+  private static MessageDigest createMessageDigest( String algorithm ) {
+    try {
+      return MessageDigest.getInstance( algorithm );
+    } catch( NoSuchAlgorithmException exception ) {
+      throw new IllegalArgumentException( "Unsupported digest algorithm: " + algorithm );
+    }
+  }
+
+}
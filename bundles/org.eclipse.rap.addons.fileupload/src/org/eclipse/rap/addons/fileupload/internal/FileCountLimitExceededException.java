@@ -0,0 +1,40 @@
+/*******************************************************************************
+ * Copyright (c) 2014 EclipseSource and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    EclipseSource - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.rap.addons.fileupload.internal;
+
+import org.apache.commons.fileupload.FileUploadException;
+
+
+/**
+ * Thrown when an upload request contains more files than permitted.
+ */
+public class FileCountLimitExceededException extends FileUploadException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final int actualCount;
+  private final int permittedCount;
+
+  public FileCountLimitExceededException( String message, int actualCount, int permittedCount ) {
+    super( message );
+    this.actualCount = actualCount;
+    this.permittedCount = permittedCount;
+  }
+
+  public int getActualCount() {
+    return actualCount;
+  }
+
+  public int getPermittedCount() {
+    return permittedCount;
+  }
+
+}
@@ -10,14 +10,19 @@
  ******************************************************************************/
 package org.eclipse.rap.addons.fileupload.internal;
 
+import java.util.Collections;
+import java.util.Map;
+
 import org.eclipse.rap.addons.fileupload.FileDetails;
+import org.eclipse.rap.addons.fileupload.FileDigests;
 
 
-public final class FileDetailsImpl implements FileDetails {
+public final class FileDetailsImpl implements FileDetails, FileDigests {
 
   private final String fileName;
   private final String contentType;
   private final long contentLength;
+  private volatile Map<String, byte[]> digests;
 
   public FileDetailsImpl( String fileName, String contentType, long contentLength ) {
     this.fileName = fileName;
@@ -37,4 +42,21 @@ public final class FileDetailsImpl implements FileDetails {
     return contentLength;
   }
 
+  public String[] getDigestAlgorithms() {
+    Map<String, byte[]> currentDigests = digests;
+    return currentDigests != null
+         ? currentDigests.keySet().toArray( new String[ 0 ] )
+         : new String[ 0 ];
+  }
+
+  public byte[] getDigest( String algorithm ) {
+    Map<String, byte[]> currentDigests = digests;
+    byte[] result = currentDigests != null ? currentDigests.get( algorithm ) : null;
+    return result != null ? result.clone() : null;
+  }
+
+  void setDigests( Map<String, byte[]> digests ) {
+    this.digests = Collections.unmodifiableMap( digests );
+  }
+
 }
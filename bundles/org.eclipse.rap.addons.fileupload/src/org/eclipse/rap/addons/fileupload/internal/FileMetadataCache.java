@@ -0,0 +1,204 @@
+/*******************************************************************************
+ * Copyright (c) 2014 EclipseSource and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    EclipseSource - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.rap.addons.fileupload.internal;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.eclipse.rap.addons.fileupload.FileMetadata;
+
+
+/**
+ * Keeps the metadata of received files. The most recent entries are held in memory, older entries
+ * are evicted. Optionally, the content types of files in a shared upload directory are appended to
+ * a single index file per directory, which should be read only if an entry is not available in
+ * memory. When a file is removed, an empty entry is appended, so that a later file with the same
+ * name does not get its content type. The index is compacted when it is first written to in this
+ * virtual machine and after every <code>COMPACTION_THRESHOLD</code> entries, dropping superseded
+ * entries and entries of files that do not exist anymore.
+ */
+public final class FileMetadataCache {
+
+  public static final String INDEX_FILE_NAME = "content-types.idx";
+  public static final String INDEX_TEMP_FILE_NAME = INDEX_FILE_NAME + ".tmp";
+
+  static final int COMPACTION_THRESHOLD = 1000;
+
+  private static final int MAX_ENTRIES = 10000;
+  private static final String CHARSET = "UTF-8";
+  private static final char SEPARATOR = '\t';
+  private static final FileMetadataCache INSTANCE = new FileMetadataCache( MAX_ENTRIES );
+
+  private final Map<File, FileMetadata> entries;
+  private final Map<File, Integer> appendedEntries;
+
+  FileMetadataCache( final int maxEntries ) {
+    entries = new LinkedHashMap<File, FileMetadata>( 16, 0.75f, true ) {
+      private static final long serialVersionUID = 1L;
+      @Override
+      protected boolean removeEldestEntry( Entry<File, FileMetadata> eldest ) {
+        return size() > maxEntries;
+      }
+    };
+    appendedEntries = new HashMap<File, Integer>();
+  }
+
+  public static FileMetadataCache getInstance() {
+    return INSTANCE;
+  }
+
+  public void put( File file, FileMetadata metadata ) {
+    synchronized( entries ) {
+      entries.put( file.getAbsoluteFile(), metadata );
+    }
+  }
+
+  public FileMetadata get( File file ) {
+    synchronized( entries ) {
+      return entries.get( file.getAbsoluteFile() );
+    }
+  }
+
+  /**
+   * Removes the metadata of the given file from memory, and its persisted content type, if any.
+   */
+  public void remove( File file ) {
+    synchronized( entries ) {
+      entries.remove( file.getAbsoluteFile() );
+    }
+    File indexFile = getIndexFile( file );
+    if( !isIndexFile( file.getName() ) && indexFile.exists() ) {
+      try {
+        append( indexFile, file.getName(), "" );
+      } catch( IOException exception ) {
+        exception.printStackTrace();
+      }
+    }
+  }
+
+  public void persist( File file, String contentType ) throws IOException {
+    append( getIndexFile( file ), file.getName(), contentType );
+  }
+
+  public String readPersisted( File file ) {
+    String result = null;
+    File indexFile = getIndexFile( file );
+    if( indexFile.exists() ) {
+      String prefix = file.getName() + SEPARATOR;
+      try {
+        BufferedReader reader = new BufferedReader( createReader( indexFile ) );
+        try {
+          String line = reader.readLine();
+          while( line != null ) {
+            if( line.startsWith( prefix ) ) {
+              result = line.substring( prefix.length() );
+            }
+            line = reader.readLine();
+          }
+        } finally {
+          reader.close();
+        }
+      } catch( IOException exception ) {
+        exception.printStackTrace();
+      }
+    }
+    // an empty entry marks a removed file
+    return result != null && result.length() > 0 ? result : null;
+  }
+
+  private void append( File indexFile, String name, String contentType ) throws IOException {
+    String line = name + SEPARATOR + contentType + "\n";
+    synchronized( appendedEntries ) {
+      Integer count = appendedEntries.get( indexFile );
+      // the index may have grown in previous runs
+      if( count == null || count.intValue() >= COMPACTION_THRESHOLD ) {
+        compact( indexFile );
+        count = Integer.valueOf( 0 );
+      }
+      OutputStream outputStream = new FileOutputStream( indexFile, true );
+      try {
+        outputStream.write( line.getBytes( CHARSET ) );
+      } finally {
+        outputStream.close();
+      }
+      appendedEntries.put( indexFile, Integer.valueOf( count.intValue() + 1 ) );
+    }
+  }
+
+  /**
+   * Rewrites the given index with the latest entry of every file that still exists.
+   */
+  private static void compact( File indexFile ) throws IOException {
+    if( indexFile.exists() ) {
+      Map<String, String> contentTypes = new LinkedHashMap<String, String>();
+      BufferedReader reader = new BufferedReader( createReader( indexFile ) );
+      try {
+        String line = reader.readLine();
+        while( line != null ) {
+          int index = line.indexOf( SEPARATOR );
+          if( index != -1 ) {
+            String name = line.substring( 0, index );
+            // keep the order of the latest entries
+            contentTypes.remove( name );
+            contentTypes.put( name, line.substring( index + 1 ) );
+          }
+          line = reader.readLine();
+        }
+      } finally {
+        reader.close();
+      }
+      File directory = indexFile.getParentFile();
+      File tempFile = new File( directory, INDEX_TEMP_FILE_NAME );
+      Writer writer = new OutputStreamWriter( new FileOutputStream( tempFile ), CHARSET );
+      try {
+        for( Entry<String, String> entry : contentTypes.entrySet() ) {
+          String contentType = entry.getValue();
+          if( contentType.length() > 0 && new File( directory, entry.getKey() ).exists() ) {
+            writer.write( entry.getKey() + SEPARATOR + contentType + "\n" );
+          }
+        }
+      } finally {
+        writer.close();
+      }
+      if( !tempFile.renameTo( indexFile ) ) {
+        // renaming onto an existing file fails on some platforms
+        indexFile.delete();
+        if( !tempFile.renameTo( indexFile ) ) {
+          throw new IOException( "Could not replace index file: " + indexFile );
+        }
+      }
+    }
+  }
+
+  private static File getIndexFile( File file ) {
+    return new File( file.getAbsoluteFile().getParentFile(), INDEX_FILE_NAME );
+  }
+
+  private static boolean isIndexFile( String name ) {
+    return INDEX_FILE_NAME.equals( name ) || INDEX_TEMP_FILE_NAME.equals( name );
+  }
+
+  private static InputStreamReader createReader( File file ) throws IOException {
+    return new InputStreamReader( new FileInputStream( file ), CHARSET );
+  }
+
+}
@@ -0,0 +1,46 @@
+/*******************************************************************************
+ * Copyright (c) 2014 EclipseSource and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    EclipseSource - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.rap.addons.fileupload.internal;
+
+import org.eclipse.rap.addons.fileupload.FileMetadata;
+
+
+public final class FileMetadataImpl implements FileMetadata {
+
+  private final String contentType;
+  private final long length;
+  private final long checksum;
+  private final long receiveTime;
+
+  public FileMetadataImpl( String contentType, long length, long checksum, long receiveTime ) {
+    this.contentType = contentType;
+    this.length = length;
+    this.checksum = checksum;
+    this.receiveTime = receiveTime;
+  }
+
+  public String getContentType() {
+    return contentType;
+  }
+
+  public long getLength() {
+    return length;
+  }
+
+  public long getChecksum() {
+    return checksum;
+  }
+
+  public long getReceiveTime() {
+    return receiveTime;
+  }
+
+}
@@ -0,0 +1,208 @@
+/*******************************************************************************
+ * Copyright (c) 2014 EclipseSource and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    EclipseSource - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.rap.addons.fileupload.internal;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.rap.addons.fileupload.FileUploadEvent;
+
+
+/**
+ * Notifies the listeners of a handler on an executor, so that listeners do not block the thread
+ * that reads the upload request. Events are delivered one at a time, in the order in which they
+ * have been added. The queue is bounded: when it is full, the oldest progress event is dropped.
+ * Finished and failed events are never dropped.
+ */
+public final class FileUploadEventQueue {
+
+  public static final int DEFAULT_CAPACITY = 64;
+
+  private static final int PROGRESS = 0;
+  private static final int FINISHED = 1;
+  private static final int FAILED = 2;
+
+  private static volatile Executor executor;
+
+  private final FileUploadListenerList listeners;
+  private final int capacity;
+  private final LinkedList<Entry> entries;
+  private final AtomicLong droppedCount;
+  private final Runnable drainer;
+  private boolean scheduled;
+
+  public FileUploadEventQueue( FileUploadListenerList listeners, int capacity ) {
+    if( capacity <= 0 ) {
+      throw new IllegalArgumentException( "capacity must be positive" );
+    }
+    this.listeners = listeners;
+    this.capacity = capacity;
+    entries = new LinkedList<Entry>();
+    droppedCount = new AtomicLong();
+    drainer = new Runnable() {
+      public void run() {
+        drain();
+      }
+    };
+  }
+
+  public void addProgress( FileUploadEvent event ) {
+    add( new Entry( PROGRESS, FileUploadEventSnapshot.of( event ) ) );
+  }
+
+  public void addFinished( FileUploadEvent event ) {
+    add( new Entry( FINISHED, FileUploadEventSnapshot.of( event ) ) );
+  }
+
+  public void addFailed( FileUploadEvent event ) {
+    add( new Entry( FAILED, FileUploadEventSnapshot.of( event ) ) );
+  }
+
+  public int getSize() {
+    synchronized( entries ) {
+      return entries.size();
+    }
+  }
+
+  public long getDroppedCount() {
+    return droppedCount.get();
+  }
+
+  public static void setExecutor( Executor executor ) {
+    FileUploadEventQueue.executor = executor;
+  }
+
+  public static Executor getExecutor() {
+    Executor result = executor;
+    if( result == null ) {
+      synchronized( FileUploadEventQueue.class ) {
+        if( executor == null ) {
+          executor = createDefaultExecutor();
+        }
+        result = executor;
+      }
+    }
+    return result;
+  }
+
+  private void add( Entry entry ) {
+    synchronized( entries ) {
+      if( entry.type == PROGRESS && entries.size() >= capacity ) {
+        dropOldestProgress();
+      }
+      entries.add( entry );
+    }
+    scheduleIfNeeded();
+  }
+
+  private void dropOldestProgress() {
+    Iterator<Entry> iterator = entries.iterator();
+    boolean dropped = false;
+    while( iterator.hasNext() && !dropped ) {
+      if( iterator.next().type == PROGRESS ) {
+        iterator.remove();
+        droppedCount.incrementAndGet();
+        dropped = true;
+      }
+    }
+  }
+
+  private void scheduleIfNeeded() {
+    boolean schedule;
+    synchronized( entries ) {
+      schedule = !scheduled && !entries.isEmpty();
+      scheduled = scheduled || schedule;
+    }
+    if( schedule ) {
+      try {
+        getExecutor().execute( drainer );
+      } catch( RuntimeException exception ) {
+        synchronized( entries ) {
+          scheduled = false;
+        }
+        throw exception;
+      }
+    }
+  }
+
+  private void drain() {
+    boolean completed = false;
+    try {
+      Entry entry = poll();
+      while( entry != null ) {
+        entry.dispatch();
+        entry = poll();
+      }
+      completed = true;
+    } finally {
+      if( !completed ) {
+        // a listener has failed, deliver the remaining events in a new run
+        synchronized( entries ) {
+          scheduled = false;
+        }
+        scheduleIfNeeded();
+      }
+    }
+  }
+
+  private Entry poll() {
+    synchronized( entries ) {
+      Entry result = null;
+      if( entries.isEmpty() ) {
+        scheduled = false;
+      } else {
+        result = entries.removeFirst();
+      }
+      return result;
+    }
+  }
+
+  private static Executor createDefaultExecutor() {
+    int threadCount = Math.max( 2, Runtime.getRuntime().availableProcessors() );
+    return Executors.newFixedThreadPool( threadCount, new ThreadFactory() {
+      private final AtomicInteger threadNumber = new AtomicInteger();
+      public Thread newThread( Runnable runnable ) {
+        String name = "FileUpload event dispatcher " + threadNumber.incrementAndGet();
+        Thread thread = new Thread( runnable, name );
+        thread.setDaemon( true );
+        return thread;
+      }
+    } );
+  }
+
+  private final class Entry {
+
+    final int type;
+    final FileUploadEvent event;
+
+    Entry( int type, FileUploadEvent event ) {
+      this.type = type;
+      this.event = event;
+    }
+
+    void dispatch() {
+      if( type == PROGRESS ) {
+        listeners.notifyUploadProgress( event );
+      } else if( type == FINISHED ) {
+        listeners.notifyUploadFinished( event );
+      } else {
+        listeners.notifyUploadFailed( event );
+      }
+    }
+
+  }
+
+}
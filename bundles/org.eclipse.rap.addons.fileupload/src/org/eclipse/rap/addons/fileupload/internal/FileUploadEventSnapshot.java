@@ -0,0 +1,120 @@
+/*******************************************************************************
+ * Copyright (c) 2014 EclipseSource and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    EclipseSource - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.rap.addons.fileupload.internal;
+
+import org.eclipse.rap.addons.fileupload.FileDetails;
+import org.eclipse.rap.addons.fileupload.FileUploadEvent;
+import org.eclipse.rap.addons.fileupload.FileUploadHandler;
+
+
+/**
+ * An immutable event that holds the state of an upload at the time it was created. Snapshots can
+ * be read repeatedly at no cost and passed to other threads. The file details array is shared
+ * between snapshots, it is replaced rather than modified when a file is added.
+ */
+final class FileUploadEventSnapshot extends FileUploadEvent {
+
+  private static final long serialVersionUID = 1L;
+
+  private final FileDetails[] fileDetails;
+  private final long contentLength;
+  private final long bytesRead;
+  private final int currentItemIndex;
+  private final long currentItemBytesRead;
+  private final int completedItemCount;
+  private final Exception exception;
+
+  FileUploadEventSnapshot( FileUploadHandler source,
+                           FileDetails[] fileDetails,
+                           long contentLength,
+                           long bytesRead,
+                           int currentItemIndex,
+                           long currentItemBytesRead,
+                           Exception exception )
+  {
+    super( source );
+    this.fileDetails = fileDetails;
+    this.contentLength = contentLength;
+    this.bytesRead = bytesRead;
+    this.currentItemIndex = currentItemIndex;
+    this.currentItemBytesRead = currentItemBytesRead;
+    this.exception = exception;
+    completedItemCount = fileDetails.length;
+  }
+
+  /**
+   * Returns an immutable snapshot of the given event. If the event is a snapshot already, it is
+   * returned as is.
+   */
+  static FileUploadEventSnapshot of( FileUploadEvent event ) {
+    FileUploadEventSnapshot result;
+    if( event instanceof FileUploadEventSnapshot ) {
+      result = ( FileUploadEventSnapshot )event;
+    } else {
+      result = new FileUploadEventSnapshot( ( FileUploadHandler )event.getSource(),
+                                            event.getFileDetails().clone(),
+                                            event.getContentLength(),
+                                            event.getBytesRead(),
+                                            event.getCurrentItemIndex(),
+                                            event.getCurrentItemBytesRead(),
+                                            event.getException() );
+    }
+    return result;
+  }
+
+  @Override
+  public FileDetails[] getFileDetails() {
+    return fileDetails;
+  }
+
+  @Override
+  public long getContentLength() {
+    return contentLength;
+  }
+
+  @Override
+  public long getBytesRead() {
+    return bytesRead;
+  }
+
+  @Override
+  public int getCurrentItemIndex() {
+    return currentItemIndex;
+  }
+
+  @Override
+  public long getCurrentItemBytesRead() {
+    return currentItemBytesRead;
+  }
+
+  @Override
+  public int getCompletedItemCount() {
+    return completedItemCount;
+  }
+
+  @Override
+  public Exception getException() {
+    return exception;
+  }
+
+  void dispatchAsProgress() {
+    super.dispatchProgress();
+  }
+
+  void dispatchAsFinished() {
+    super.dispatchFinished();
+  }
+
+  void dispatchAsFailed() {
+    super.dispatchFailed();
+  }
+
+}
@@ -12,22 +12,71 @@ package org.eclipse.rap.addons.fileupload.internal;
 
 import static org.eclipse.rap.rwt.SingletonUtil.getUniqueInstance;
 
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Iterator;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.eclipse.rap.addons.fileupload.FileUploadHandler;
+import org.eclipse.rap.addons.fileupload.FileUploadReaper;
+import org.eclipse.rap.addons.fileupload.FileUploadTokenGenerator;
+import org.eclipse.rap.addons.fileupload.SecureTokenGenerator;
 import org.eclipse.rap.rwt.RWT;
+import org.eclipse.rap.rwt.service.ApplicationContextEvent;
+import org.eclipse.rap.rwt.service.ApplicationContextListener;
 
 
 public final class FileUploadHandlerStore {
 
-  private final Map<String, FileUploadHandler> handlers;
+  // interval of the sweep for idle handlers, which runs on a timer shared by all applications
+  static final long SWEEP_INTERVAL = 10 * 1000;
+
+  // number of lock stripes for concurrent updates, lookups do not lock at all
+  private static final int CONCURRENCY_LEVEL
+    = Math.max( 16, Runtime.getRuntime().availableProcessors() * 4 );
+
+  private static volatile FileUploadTokenGenerator tokenGenerator = new SecureTokenGenerator();
+  private static final Object timerLock = new Object();
+  private static volatile long sweepInterval = SWEEP_INTERVAL;
+  private static int activeStores;
+  private static Timer timer;
+
+  private final ConcurrentMap<String, Registration> registrations;
+  private final AtomicLong expiredCount;
+  private final TimerTask sweepTask;
 
   private FileUploadHandlerStore() {
-    handlers = Collections.synchronizedMap( new HashMap<String, FileUploadHandler>() );
+    registrations = new ConcurrentHashMap<String, Registration>( 16, 0.75f, CONCURRENCY_LEVEL );
+    expiredCount = new AtomicLong();
     RWT.getServiceManager().registerServiceHandler( FileUploadServiceHandler.SERVICE_HANDLER_ID,
                                                     new FileUploadServiceHandler() );
+    // idle handlers must expire even if no further requests arrive
+    sweepTask = new TimerTask() {
+      @Override
+      public void run() {
+        try {
+          sweep( System.currentTimeMillis() );
+        } catch( RuntimeException exception ) {
+          // a failing handler must not end the timer that is shared by all applications
+        }
+      }
+    };
+    synchronized( timerLock ) {
+      activeStores++;
+      if( timer == null ) {
+        timer = new Timer( "FileUploadHandlerStore sweep", true );
+      }
+      timer.schedule( sweepTask, sweepInterval, sweepInterval );
+    }
+    RWT.getApplicationContext().addApplicationContextListener( new ApplicationContextListener() {
+      public void beforeDestroy( ApplicationContextEvent event ) {
+        destroy();
+      }
+    } );
   }
 
   public static FileUploadHandlerStore getInstance() {
@@ -35,21 +84,144 @@ public final class FileUploadHandlerStore {
   }
 
   public void registerHandler( String token, FileUploadHandler fileUploadHandler ) {
-    handlers.put( token, fileUploadHandler );
+    long now = System.currentTimeMillis();
+    registrations.put( token, new Registration( fileUploadHandler, now ) );
   }
 
   public void deregisterHandler( String token ) {
-    handlers.remove( token );
+    if( token != null ) {
+      registrations.remove( token );
+    }
   }
 
   public FileUploadHandler getHandler( String token ) {
-    return handlers.get( token );
+    FileUploadHandler result = null;
+    if( token != null ) {
+      long now = System.currentTimeMillis();
+      Registration registration = registrations.get( token );
+      if( registration != null && !registration.isExpired( now ) ) {
+        registration.lastAccessTime = now;
+        result = registration.handler;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Marks the handler with the given token as busy. Busy handlers do not expire while idle.
+   */
+  public void uploadStarted( String token ) {
+    Registration registration = registrations.get( token );
+    if( registration != null ) {
+      registration.activeUploads.incrementAndGet();
+    }
+  }
+
+  /**
+   * Marks an upload of the handler with the given token as finished, which resets its idle time.
+   */
+  public void uploadFinished( String token ) {
+    Registration registration = registrations.get( token );
+    if( registration != null ) {
+      registration.lastAccessTime = System.currentTimeMillis();
+      registration.activeUploads.decrementAndGet();
+    }
+  }
+
+  /**
+   * Deregisters and disposes of the given handler, e.g. when its UI session ends, and counts it as
+   * expired.
+   */
+  public void expireHandler( String token, FileUploadHandler handler ) {
+    Registration registration = registrations.get( token );
+    if( registration != null && registration.handler == handler ) {
+      expire( token, registration );
+    }
+  }
+
+  public int getHandlerCount() {
+    return registrations.size();
+  }
+
+  public long getExpiredHandlerCount() {
+    return expiredCount.get();
+  }
+
+  void sweep( long now ) {
+    Iterator<Entry<String, Registration>> iterator = registrations.entrySet().iterator();
+    while( iterator.hasNext() ) {
+      Entry<String, Registration> entry = iterator.next();
+      if( entry.getValue().isExpired( now ) ) {
+        expire( entry.getKey(), entry.getValue() );
+      }
+    }
+  }
+
+  /**
+   * Stops the sweep of this store. The shared timer and reaper are stopped when the last
+   * application that uses file uploads is destroyed, e.g. when the bundle is stopped, so that their
+   * threads and the shutdown hook do not outlive the bundle.
+   */
+  private void destroy() {
+    boolean last;
+    synchronized( timerLock ) {
+      sweepTask.cancel();
+      last = --activeStores == 0;
+      if( last ) {
+        timer.cancel();
+        timer = null;
+      }
+    }
+    if( last ) {
+      FileUploadReaper.getInstance().stop();
+    }
+  }
+
+  private void expire( String token, Registration registration ) {
+    if( registrations.remove( token, registration ) ) {
+      expiredCount.incrementAndGet();
+      registration.handler.dispose();
+    }
   }
 
   public static String createToken() {
-    int random1 = ( int )( Math.random() * 0xfffffff );
-    int random2 = ( int )( Math.random() * 0xfffffff );
-    return Integer.toHexString( random1 ) + Integer.toHexString( random2 );
+    return tokenGenerator.createToken();
+  }
+
+  public static void setTokenGenerator( FileUploadTokenGenerator generator ) {
+    tokenGenerator = generator;
+  }
+
+  public static FileUploadTokenGenerator getTokenGenerator() {
+    return tokenGenerator;
+  }
+
+  /**
+   * Sets the interval of the sweep for stores that are created afterwards.
+   */
+  static void setSweepInterval( long interval ) {
+    sweepInterval = interval;
+  }
+
+  private static final class Registration {
+
+    final FileUploadHandler handler;
+    final AtomicInteger activeUploads;
+    volatile long lastAccessTime;
+
+    Registration( FileUploadHandler handler, long lastAccessTime ) {
+      this.handler = handler;
+      this.lastAccessTime = lastAccessTime;
+      activeUploads = new AtomicInteger();
+    }
+
+    boolean isExpired( long now ) {
+      long idleTimeout = handler.getIdleTimeout();
+      return    idleTimeout > 0
+             && activeUploads.get() == 0
+             && now - lastAccessTime >= idleTimeout;
+    }
+
   }
 
 }
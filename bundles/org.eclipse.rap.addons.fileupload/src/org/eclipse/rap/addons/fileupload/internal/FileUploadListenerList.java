@@ -10,52 +10,82 @@
  ******************************************************************************/
 package org.eclipse.rap.addons.fileupload.internal;
 
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Set;
-
 import org.eclipse.rap.addons.fileupload.FileUploadEvent;
 import org.eclipse.rap.addons.fileupload.FileUploadListener;
 
 
+/**
+ * A thread-safe list of listeners. Listeners are kept in an array that is copied on every change,
+ * so that listeners can be notified without locking or allocation, while other threads add or
+ * remove listeners. Listeners are notified in the order in which they have been added.
+ */
 public final class FileUploadListenerList {
 
-  private final Set<FileUploadListener> listeners;
+  private static final FileUploadListener[] EMPTY = new FileUploadListener[ 0 ];
+
+  private final Object lock;
+  private volatile FileUploadListener[] listeners;
 
   public FileUploadListenerList() {
-    listeners = new HashSet<FileUploadListener>();
+    lock = new Object();
+    listeners = EMPTY;
   }
 
   public void addUploadListener( FileUploadListener listener ) {
-    listeners.add( listener );
+    synchronized( lock ) {
+      if( indexOf( listener ) == -1 ) {
+        FileUploadListener[] newListeners = new FileUploadListener[ listeners.length + 1 ];
+        System.arraycopy( listeners, 0, newListeners, 0, listeners.length );
+        newListeners[ listeners.length ] = listener;
+        listeners = newListeners;
+      }
+    }
   }
 
   public void removeUploadListener( FileUploadListener listener ) {
-    listeners.remove( listener );
+    synchronized( lock ) {
+      int index = indexOf( listener );
+      if( index != -1 ) {
+        FileUploadListener[] newListeners = EMPTY;
+        if( listeners.length > 1 ) {
+          newListeners = new FileUploadListener[ listeners.length - 1 ];
+          System.arraycopy( listeners, 0, newListeners, 0, index );
+          System.arraycopy( listeners, index + 1, newListeners, index, newListeners.length - index );
+        }
+        listeners = newListeners;
+      }
+    }
   }
 
   public void notifyUploadProgress( FileUploadEvent event ) {
-    Iterator iterator = listeners.iterator();
-    while( iterator.hasNext() ) {
-      FileUploadListener listener = ( FileUploadListener )iterator.next();
-      listener.uploadProgress( event );
+    FileUploadListener[] currentListeners = listeners;
+    for( int i = 0; i < currentListeners.length; i++ ) {
+      currentListeners[ i ].uploadProgress( event );
     }
   }
 
   public void notifyUploadFinished( FileUploadEvent event ) {
-    Iterator iterator = listeners.iterator();
-    while( iterator.hasNext() ) {
-      FileUploadListener listener = ( FileUploadListener )iterator.next();
-      listener.uploadFinished( event );
+    FileUploadListener[] currentListeners = listeners;
+    for( int i = 0; i < currentListeners.length; i++ ) {
+      currentListeners[ i ].uploadFinished( event );
     }
   }
 
   public void notifyUploadFailed( FileUploadEvent event ) {
-    Iterator iterator = listeners.iterator();
-    while( iterator.hasNext() ) {
-      FileUploadListener listener = ( FileUploadListener )iterator.next();
-      listener.uploadFailed( event );
+    FileUploadListener[] currentListeners = listeners;
+    for( int i = 0; i < currentListeners.length; i++ ) {
+      currentListeners[ i ].uploadFailed( event );
+    }
+  }
+
+  private int indexOf( FileUploadListener listener ) {
+    int result = -1;
+    for( int i = 0; i < listeners.length && result == -1; i++ ) {
+      if( listeners[ i ].equals( listener ) ) {
+        result = i;
+      }
     }
+    return result;
   }
 
 }
@@ -10,6 +10,7 @@
  ******************************************************************************/
 package org.eclipse.rap.addons.fileupload.internal;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -17,11 +18,15 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.fileupload.FileUploadBase.FileSizeLimitExceededException;
+import org.apache.commons.fileupload.FileUploadBase.SizeLimitExceededException;
+import org.apache.commons.fileupload.FileItemHeaders;
 import org.apache.commons.fileupload.FileItemIterator;
 import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.FileUploadBase.FileUploadIOException;
+import org.apache.commons.fileupload.FileUploadException;
 import org.apache.commons.fileupload.ProgressListener;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
-import org.eclipse.rap.addons.fileupload.FileDetails;
+import org.eclipse.rap.addons.fileupload.FileUploadBufferPool;
 import org.eclipse.rap.addons.fileupload.FileUploadHandler;
 import org.eclipse.rap.addons.fileupload.FileUploadReceiver;
 
@@ -30,6 +35,7 @@ final class FileUploadProcessor {
 
   private final FileUploadHandler handler;
   private final FileUploadTracker tracker;
+  private TokenBucket[] buckets;
 
   FileUploadProcessor( FileUploadHandler handler ) {
     this.handler = handler;
@@ -40,13 +46,11 @@ final class FileUploadProcessor {
     throws IOException
   {
     try {
-      ServletFileUpload upload = createUpload();
-      FileItemIterator iter = upload.getItemIterator( request );
-      while( iter.hasNext() ) {
-        FileItemStream item = iter.next();
-        if( !item.isFormField() ) {
-          receive( item );
-        }
+      buckets = FileUploadRateLimits.getBuckets( handler, request.getSession( false ) );
+      if( handler.getBuiltInMultipartParser() ) {
+        receiveParts( request );
+      } else {
+        receiveItems( request );
       }
       if( tracker.isEmpty() ) {
         String errorMessage = "No file upload data found in request";
@@ -58,21 +62,73 @@ final class FileUploadProcessor {
       }
     } catch( Exception exception ) {
       Throwable cause = exception.getCause();
-      if( cause instanceof FileSizeLimitExceededException ) {
+      if( isLimitExceeded( cause ) ) {
         exception = ( Exception )cause;
       }
       tracker.setException( exception );
       tracker.handleFailed();
-      int errorCode = exception instanceof FileSizeLimitExceededException
+      int errorCode = isLimitExceeded( exception )
                     ? HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE
                     : HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
       response.sendError( errorCode, exception.getMessage() );
     }
   }
 
+  private void receiveItems( HttpServletRequest request ) throws IOException, FileUploadException {
+    ServletFileUpload upload = createUpload();
+    // checks the Content-Length against the request size limit before anything is read
+    FileItemIterator iter = upload.getItemIterator( request );
+    int fileCount = 0;
+    while( iter.hasNext() ) {
+      FileItemStream item = iter.next();
+      if( !item.isFormField() ) {
+        checkFileCount( handler, ++fileCount );
+        FileItemHeaders headers = item.getHeaders();
+        String contentLength = headers != null ? headers.getHeader( "Content-Length" ) : null;
+        receive( item.openStream(), item.getName(), item.getContentType(), contentLength );
+      }
+    }
+  }
+
+  private void receiveParts( HttpServletRequest request ) throws IOException, FileUploadException {
+    long contentLength = getContentLength( request );
+    checkRequestSize( handler, contentLength );
+    String boundary = MultipartParser.getBoundary( request.getContentType() );
+    if( boundary == null ) {
+      String message = "the request was rejected because no multipart boundary was found";
+      throw new FileUploadException( message );
+    }
+    String encoding = request.getCharacterEncoding();
+    InputStream input = new RequestInputStream( request.getInputStream(), contentLength );
+    FileUploadBufferPool bufferPool = FileUploadBufferPool.getDefault();
+    byte[] buffer = bufferPool.borrowBuffer();
+    try {
+      MultipartReader reader = new MultipartReader( input,
+                                                    boundary,
+                                                    encoding != null ? encoding : "UTF-8",
+                                                    buffer,
+                                                    handler.getMaxFileSize() );
+      int fileCount = 0;
+      while( reader.nextPart() ) {
+        String fileName = reader.getFileName();
+        // form fields are ignored
+        if( fileName != null ) {
+          checkFileCount( handler, ++fileCount );
+          receive( reader.getPartStream(),
+                   fileName,
+                   reader.getContentType(),
+                   reader.getHeader( "content-length" ) );
+        }
+      }
+    } finally {
+      bufferPool.returnBuffer( buffer );
+    }
+  }
+
   private ServletFileUpload createUpload() {
     ServletFileUpload upload = new ServletFileUpload();
     upload.setFileSizeMax( handler.getMaxFileSize() );
+    upload.setSizeMax( handler.getMaxRequestSize() );
     upload.setProgressListener( createProgressListener() );
     return upload;
   }
@@ -95,21 +151,95 @@ final class FileUploadProcessor {
     return result;
   }
 
-  private void receive( FileItemStream item ) throws IOException {
-    InputStream stream = item.openStream();
+  static void checkFileCount( FileUploadHandler handler, int fileCount )
+    throws FileCountLimitExceededException
+  {
+    int maxFileCount = handler.getMaxFileCount();
+    if( maxFileCount != -1 && fileCount > maxFileCount ) {
+      String message = "The request contains more than the permitted " + maxFileCount + " files";
+      throw new FileCountLimitExceededException( message, fileCount, maxFileCount );
+    }
+  }
+
+  static void checkFileSize( long maxFileSize, long size ) throws FileSizeLimitExceededException {
+    if( maxFileSize != -1 && size > maxFileSize ) {
+      String message = "The file exceeds its maximum permitted size of " + maxFileSize + " bytes.";
+      throw new FileSizeLimitExceededException( message, size, maxFileSize );
+    }
+  }
+
+  static void checkRequestSize( FileUploadHandler handler, long size )
+    throws SizeLimitExceededException
+  {
+    long maxRequestSize = handler.getMaxRequestSize();
+    if( maxRequestSize != -1 && size > maxRequestSize ) {
+      String message = "the request was rejected because its size ("
+                       + size
+                       + ") exceeds the configured maximum ("
+                       + maxRequestSize
+                       + ")";
+      throw new SizeLimitExceededException( message, size, maxRequestSize );
+    }
+  }
+
+  private void receive( InputStream itemStream,
+                        String name,
+                        String contentType,
+                        String contentLengthHeader )
+    throws IOException, FileUploadException
+  {
+    long contentLength = parseLength( contentLengthHeader );
+    // the declared length is used to preallocate files, do not trust it beyond the limit
+    checkFileSize( handler.getMaxFileSize(), contentLength );
+    InputStream stream = tracker.startItem( itemStream );
+    if( buckets.length > 0 ) {
+      stream = new RateLimitedInputStream( stream, buckets );
+    }
     try {
-      String fileName = stripFileName( item.getName() );
-      String contentType = item.getContentType();
-      FileDetails details = new FileDetailsImpl( fileName, contentType, -1 );
+      String fileName = stripFileName( name );
+      FileDetailsImpl details = new FileDetailsImpl( fileName, contentType, contentLength );
+      String[] digestAlgorithms = handler.getDigestAlgorithms();
+      DigestingInputStream digestingStream = null;
+      if( digestAlgorithms.length > 0 ) {
+        digestingStream = new DigestingInputStream( stream, digestAlgorithms, details );
+        stream = digestingStream;
+      }
       FileUploadReceiver receiver = handler.getReceiver();
       receiver.receive( stream, details );
+      if( digestingStream != null ) {
+        digestingStream.drain();
+      }
       tracker.addFile( details );
     } finally {
       stream.close();
     }
   }
 
-  private static String stripFileName( String name ) {
+  static boolean isLimitExceeded( Throwable exception ) {
+    return    exception instanceof FileSizeLimitExceededException
+           || exception instanceof SizeLimitExceededException
+           || exception instanceof FileCountLimitExceededException;
+  }
+
+  static long getContentLength( HttpServletRequest request ) {
+    // the header supports lengths above 2 GB, unlike getContentLength()
+    long result = parseLength( request.getHeader( "Content-Length" ) );
+    return result == -1 ? Math.max( -1, request.getContentLength() ) : result;
+  }
+
+  private static long parseLength( String header ) {
+    long result = -1;
+    if( header != null ) {
+      try {
+        result = Long.parseLong( header.trim() );
+      } catch( NumberFormatException exception ) {
+        result = -1;
+      }
+    }
+    return result < 0 ? -1 : result;
+  }
+
+  static String stripFileName( String name ) {
     String result = name;
     int lastSlash = result.lastIndexOf( '/' );
     if( lastSlash != -1 ) {
@@ -123,4 +253,59 @@ final class FileUploadProcessor {
     return result;
   }
 
+  /**
+   * Reports the progress of the request and enforces its size limit while the built-in parser
+   * reads the body.
+   */
+  final class RequestInputStream extends FilterInputStream {
+
+    private final long contentLength;
+    private long bytesRead;
+
+    RequestInputStream( InputStream in, long contentLength ) {
+      super( in );
+      this.contentLength = contentLength;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int result = super.read();
+      if( result != -1 ) {
+        count( 1 );
+      }
+      return result;
+    }
+
+    @Override
+    public int read( byte[] buffer, int offset, int length ) throws IOException {
+      int result = super.read( buffer, offset, length );
+      if( result > 0 ) {
+        count( result );
+      }
+      return result;
+    }
+
+    @Override
+    public long skip( long count ) throws IOException {
+      // skipped bytes have been transferred as well and must count toward the request size
+      long result = super.skip( count );
+      if( result > 0 ) {
+        count( result );
+      }
+      return result;
+    }
+
+    private void count( long bytes ) throws IOException {
+      bytesRead += bytes;
+      try {
+        checkRequestSize( handler, bytesRead );
+      } catch( SizeLimitExceededException exception ) {
+        throw new FileUploadIOException( exception );
+      }
+      tracker.setContentLength( contentLength );
+      tracker.setBytesRead( bytesRead );
+      tracker.handleProgress();
+    }
+  }
+
 }
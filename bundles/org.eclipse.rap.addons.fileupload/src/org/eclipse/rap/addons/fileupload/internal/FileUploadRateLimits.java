@@ -0,0 +1,74 @@
+/*******************************************************************************
+ * Copyright (c) 2014 EclipseSource and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    EclipseSource - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.rap.addons.fileupload.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.eclipse.rap.addons.fileupload.FileUploadHandler;
+
+
+/**
+ * Holds the token buckets that limit the upload rate per handler, per HTTP session and globally.
+ * Buckets are looked up once per request, and are discarded together with their handler or
+ * session.
+ */
+public final class FileUploadRateLimits {
+
+  private static final Object GLOBAL_KEY = new Object();
+  private static final Map<Object, TokenBucket> buckets = new WeakHashMap<Object, TokenBucket>();
+
+  private static volatile long globalMaxBytesPerSecond = -1;
+
+  private FileUploadRateLimits() {
+    // prevent instantiation
+  }
+
+  public static void setGlobalMaxBytesPerSecond( long maxBytesPerSecond ) {
+    globalMaxBytesPerSecond = maxBytesPerSecond;
+  }
+
+  public static long getGlobalMaxBytesPerSecond() {
+    return globalMaxBytesPerSecond;
+  }
+
+  /**
+   * Returns the buckets that apply to an upload to the given handler in the given session, or an
+   * empty array if the upload is not limited.
+   */
+  static TokenBucket[] getBuckets( FileUploadHandler handler, Object session ) {
+    List<TokenBucket> result = new ArrayList<TokenBucket>( 3 );
+    synchronized( buckets ) {
+      addBucket( result, handler, handler.getMaxBytesPerSecond() );
+      if( session != null ) {
+        addBucket( result, session, handler.getMaxSessionBytesPerSecond() );
+      }
+      addBucket( result, GLOBAL_KEY, globalMaxBytesPerSecond );
+    }
+    return result.toArray( new TokenBucket[ result.size() ] );
+  }
+
+  private static void addBucket( List<TokenBucket> list, Object key, long rate ) {
+    if( rate > 0 ) {
+      TokenBucket bucket = buckets.get( key );
+      if( bucket == null ) {
+        bucket = new TokenBucket( rate );
+        buckets.put( key, bucket );
+      } else {
+        bucket.setRate( rate );
+      }
+      list.add( bucket );
+    }
+  }
+
+}
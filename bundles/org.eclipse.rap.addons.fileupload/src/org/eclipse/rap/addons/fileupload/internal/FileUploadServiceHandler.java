@@ -20,6 +20,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.eclipse.rap.addons.fileupload.FileUploadAdmissionControl;
 import org.eclipse.rap.addons.fileupload.FileUploadHandler;
 import org.eclipse.rap.rwt.RWT;
 import org.eclipse.rap.rwt.service.ServiceHandler;
@@ -31,6 +32,18 @@ public final class FileUploadServiceHandler implements ServiceHandler {
 
   static final String SERVICE_HANDLER_ID = "org.eclipse.rap.fileupload";
 
+  private static final boolean NON_BLOCKING_IO_AVAILABLE = isNonBlockingIOAvailable();
+
+  private final FileUploadAdmissionControl admissionControl;
+
+  public FileUploadServiceHandler() {
+    this( FileUploadAdmissionControl.getDefault() );
+  }
+
+  FileUploadServiceHandler( FileUploadAdmissionControl admissionControl ) {
+    this.admissionControl = admissionControl;
+  }
+
   public void service( HttpServletRequest request, HttpServletResponse response )
     throws IOException, ServletException
   {
@@ -39,10 +52,16 @@ public final class FileUploadServiceHandler implements ServiceHandler {
     boolean hasSession = request.getSession( false ) != null;
     if( hasSession ) {
       String token = request.getParameter( PARAMETER_TOKEN );
-      FileUploadHandler registeredHandler = FileUploadHandlerStore.getInstance().getHandler( token );
+      FileUploadHandlerStore handlerStore = FileUploadHandlerStore.getInstance();
+      FileUploadHandler registeredHandler = handlerStore.getHandler( token );
       if( registeredHandler == null ) {
         String message = "Invalid or missing token";
         response.sendError( HttpServletResponse.SC_FORBIDDEN, message );
+      } else if( ResumableUploadProcessor.isOffsetQuery( request ) ) {
+        // clients must be able to find out where to resume while uploads are saturated
+        new ResumableUploadProcessor( registeredHandler ).handleRequest( request, response );
+      } else if( ResumableUploadProcessor.isResumableUploadRequest( request ) ) {
+        process( registeredHandler, token, request, response );
       } else if( !"POST".equals( request.getMethod().toUpperCase() ) ) {
         String message = "Only POST requests allowed";
         response.sendError( HttpServletResponse.SC_METHOD_NOT_ALLOWED, message );
@@ -50,10 +69,82 @@ public final class FileUploadServiceHandler implements ServiceHandler {
         String message = "Content must be in multipart type";
         response.sendError( HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE, message );
       } else {
-        FileUploadProcessor processor = new FileUploadProcessor( registeredHandler );
-        processor.handleFileUpload( request, response );
+        process( registeredHandler, token, request, response );
+      }
+    }
+  }
+
+  private void process( FileUploadHandler handler,
+                        final String token,
+                        HttpServletRequest request,
+                        HttpServletResponse response )
+    throws IOException
+  {
+    final String sessionId = request.getSession( false ).getId();
+    if( admit( sessionId ) ) {
+      final FileUploadHandlerStore handlerStore = FileUploadHandlerStore.getInstance();
+      Runnable completion = new Runnable() {
+        public void run() {
+          try {
+            handlerStore.uploadFinished( token );
+          } finally {
+            admissionControl.release( sessionId );
+          }
+        }
+      };
+      boolean async = false;
+      try {
+        handlerStore.uploadStarted( token );
+        if( ResumableUploadProcessor.isResumableUploadRequest( request ) ) {
+          new ResumableUploadProcessor( handler ).handleRequest( request, response );
+        } else if( isNonBlockingIOSupported( handler, request ) ) {
+          // the processor runs the completion when the upload has finished
+          async = true;
+          new AsyncFileUploadProcessor( handler, completion ).start( request, response );
+        } else {
+          new FileUploadProcessor( handler ).handleFileUpload( request, response );
+        }
+      } finally {
+        if( !async ) {
+          completion.run();
+        }
       }
+    } else {
+      String retryAfter = String.valueOf( admissionControl.getRetryAfter() );
+      response.setHeader( "Retry-After", retryAfter );
+      String message = "Too many concurrent uploads";
+      response.sendError( HttpServletResponse.SC_SERVICE_UNAVAILABLE, message );
+    }
+  }
+
+  private static boolean isNonBlockingIOSupported( FileUploadHandler handler,
+                                                   HttpServletRequest request )
+  {
+    // isAsyncSupported() must not be called before the Servlet 3.1 API is known to be present
+    return handler.getNonBlockingIO() && NON_BLOCKING_IO_AVAILABLE && request.isAsyncSupported();
+  }
+
+  private static boolean isNonBlockingIOAvailable() {
+    boolean result;
+    try {
+      Class.forName( "javax.servlet.ReadListener" );
+      result = true;
+    } catch( ClassNotFoundException exception ) {
+      result = false;
+    } catch( LinkageError error ) {
+      result = false;
+    }
+    return result;
+  }
+
+  private boolean admit( String sessionId ) {
+    boolean result = false;
+    try {
+      result = admissionControl.admit( sessionId );
+    } catch( InterruptedException exception ) {
+      Thread.currentThread().interrupt();
     }
+    return result;
   }
 
   public static String getUrl( String token ) {
@@ -10,33 +10,74 @@
  ******************************************************************************/
 package org.eclipse.rap.addons.fileupload.internal;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
 
 import org.eclipse.rap.addons.fileupload.FileDetails;
-import org.eclipse.rap.addons.fileupload.FileUploadEvent;
 import org.eclipse.rap.addons.fileupload.FileUploadHandler;
 
 
 final class FileUploadTracker {
 
   private final FileUploadHandler handler;
-  private final List<FileDetails> files;
+  private final long minProgressInterval;
+  private final long minProgressBytes;
+  private final int minProgressPercent;
+  private FileDetails[] files;
   private long contentLength;
   private long bytesRead;
+  private int currentItemIndex;
+  private long currentItemBytesRead;
   private Exception exception;
+  private long lastProgressTime;
+  private long lastProgressBytes;
+  private boolean progressPending;
 
   FileUploadTracker( FileUploadHandler handler ) {
     this.handler = handler;
-    files = new ArrayList<FileDetails>();
+    files = new FileDetails[ 0 ];
+    currentItemIndex = -1;
+    // settings are fixed for the duration of a request
+    minProgressInterval = TimeUnit.MILLISECONDS.toNanos( handler.getMinProgressInterval() );
+    minProgressBytes = handler.getMinProgressBytes();
+    minProgressPercent = handler.getMinProgressPercent();
+    lastProgressBytes = -1;
+  }
+
+  /**
+   * Starts tracking the next file. Returns a stream that counts the bytes read from the given
+   * stream as bytes of this file.
+   */
+  InputStream startItem( InputStream stream ) {
+    startItem();
+    return new ItemInputStream( stream );
+  }
+
+  /**
+   * Starts tracking the next file. The bytes of this file have to be counted using
+   * <code>addItemBytes()</code>.
+   */
+  void startItem() {
+    currentItemIndex++;
+    currentItemBytesRead = 0;
+  }
+
+  void addItemBytes( long count ) {
+    currentItemBytesRead += count;
   }
 
   void addFile( FileDetails details ) {
-    files.add( details );
+    // events share the array, so it is replaced instead of modified
+    FileDetails[] newFiles = new FileDetails[ files.length + 1 ];
+    System.arraycopy( files, 0, newFiles, 0, files.length );
+    newFiles[ files.length ] = details;
+    files = newFiles;
   }
 
   boolean isEmpty() {
-    return files.isEmpty();
+    return files.length == 0;
   }
 
   void setContentLength( long contentLength ) {
@@ -51,56 +92,102 @@ final class FileUploadTracker {
     this.exception = exception;
   }
 
+  /**
+   * Reports the current progress to the listeners, unless it is coalesced with later progress
+   * according to the progress settings of the handler.
+   */
   void handleProgress() {
-    new InternalFileUploadEvent( handler ).dispatchAsProgress();
+    long now = System.nanoTime();
+    if( isProgressDue( now ) ) {
+      dispatchProgress( now );
+    } else {
+      progressPending = true;
+    }
   }
 
   void handleFinished() {
-    new InternalFileUploadEvent( handler ).dispatchAsFinished();
+    flushProgress();
+    createEvent().dispatchAsFinished();
   }
 
   void handleFailed() {
-    new InternalFileUploadEvent( handler ).dispatchAsFailed();
+    flushProgress();
+    createEvent().dispatchAsFailed();
   }
 
-  private final class InternalFileUploadEvent extends FileUploadEvent {
+  private boolean isProgressDue( long now ) {
+    boolean result;
+    if( lastProgressBytes == -1 || ( contentLength >= 0 && bytesRead >= contentLength ) ) {
+      // always report the first and the last progress
+      result = true;
+    } else {
+      result = now - lastProgressTime >= minProgressInterval && isDeltaReached();
+    }
+    return result;
+  }
 
-    private static final long serialVersionUID = 1L;
+  private boolean isDeltaReached() {
+    long delta = bytesRead - lastProgressBytes;
+    boolean bytesReached = minProgressBytes > 0 && delta >= minProgressBytes;
+    boolean percentReached =    minProgressPercent > 0
+                             && contentLength > 0
+                             && delta * 100 / contentLength >= minProgressPercent;
+    boolean noDelta = minProgressBytes == 0 && minProgressPercent == 0;
+    return noDelta || bytesReached || percentReached;
+  }
 
-    private InternalFileUploadEvent( FileUploadHandler source ) {
-      super( source );
+  private void flushProgress() {
+    if( progressPending ) {
+      dispatchProgress( System.nanoTime() );
     }
+  }
 
-    @Override
-    public FileDetails[] getFileDetails() {
-      return files.toArray( new FileDetails[ 0 ] );
-    }
+  private void dispatchProgress( long now ) {
+    lastProgressTime = now;
+    lastProgressBytes = bytesRead;
+    progressPending = false;
+    createEvent().dispatchAsProgress();
+  }
 
-    @Override
-    public long getContentLength() {
-      return contentLength;
-    }
+  private FileUploadEventSnapshot createEvent() {
+    return new FileUploadEventSnapshot( handler,
+                                        files,
+                                        contentLength,
+                                        bytesRead,
+                                        currentItemIndex,
+                                        currentItemBytesRead,
+                                        exception );
+  }
 
-    @Override
-    public long getBytesRead() {
-      return bytesRead;
-    }
+  private final class ItemInputStream extends FilterInputStream {
 
-    @Override
-    public Exception getException() {
-      return exception;
+    private ItemInputStream( InputStream in ) {
+      super( in );
     }
 
-    void dispatchAsProgress() {
-      super.dispatchProgress();
+    @Override
+    public int read() throws IOException {
+      int result = super.read();
+      if( result != -1 ) {
+        currentItemBytesRead++;
+      }
+      return result;
     }
 
-    void dispatchAsFinished() {
-      super.dispatchFinished();
+    @Override
+    public int read( byte[] buffer, int offset, int length ) throws IOException {
+      int result = super.read( buffer, offset, length );
+      if( result > 0 ) {
+        currentItemBytesRead += result;
+      }
+      return result;
     }
 
-    void dispatchAsFailed() {
-      super.dispatchFailed();
+    @Override
+    public long skip( long count ) throws IOException {
+      long result = super.skip( count );
+      currentItemBytesRead += result;
+      return result;
     }
   }
 }
@@ -0,0 +1,355 @@
+/*******************************************************************************
+ * Copyright (c) 2014 EclipseSource and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    EclipseSource - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.rap.addons.fileupload.internal;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+
+/**
+ * An incremental parser for <code>multipart/form-data</code> request bodies. The body is passed
+ * to the parser in arbitrary portions as it arrives, the parser reports the parts to a handler.
+ * Since it never waits for data, the parser can be driven by non-blocking I/O.
+ * <p>
+ * This class is not thread safe.
+ * </p>
+ */
+final class MultipartParser {
+
+  /**
+   * Receives the parts found by the parser.
+   */
+  interface PartHandler {
+
+    /**
+     * Notifies that a part has started.
+     *
+     * @param fieldName the name of the form field, or <code>null</code>
+     * @param fileName the file name, or <code>null</code> if the part is not a file
+     * @param contentType the content type, or <code>null</code>
+     */
+    void partStarted( String fieldName, String fileName, String contentType ) throws IOException;
+
+    /**
+     * Passes data of the current part. The buffer is reused by the parser, its content is only
+     * valid during this call.
+     */
+    void partData( byte[] buffer, int offset, int length ) throws IOException;
+
+    void partFinished() throws IOException;
+
+  }
+
+  static final int MAX_HEADER_SIZE = 10 * 1024;
+
+  private static final byte CR = 0x0D;
+  private static final byte LF = 0x0A;
+  private static final byte DASH = 0x2D;
+  private static final DelimiterSearch HEADER_END
+    = new DelimiterSearch( new byte[] { CR, LF, CR, LF } );
+  private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+
+  private static final int PREAMBLE = 0;
+  private static final int DELIMITER = 1;
+  private static final int HEADERS = 2;
+  private static final int BODY = 3;
+  private static final int EPILOGUE = 4;
+
+  private final DelimiterSearch delimiter;
+  private final String headerEncoding;
+  private final PartHandler handler;
+  private byte[] buffer;
+  private int length;
+  private int position;
+  private int state;
+
+  /**
+   * @param boundary the boundary from the content type of the request
+   * @param headerEncoding the encoding of the part headers
+   * @param handler the handler to report the parts to
+   */
+  MultipartParser( String boundary, String headerEncoding, PartHandler handler ) {
+    this.headerEncoding = headerEncoding;
+    this.handler = handler;
+    delimiter = new DelimiterSearch( toAscii( "\r\n--" + boundary ) );
+    buffer = new byte[ Math.max( INITIAL_BUFFER_SIZE, delimiter.getLength() * 2 ) ];
+    // the first delimiter may be at the very start of the body, without a preceding line break
+    buffer[ 0 ] = CR;
+    buffer[ 1 ] = LF;
+    length = 2;
+    state = PREAMBLE;
+  }
+
+  /**
+   * Returns the boundary parameter of the given multipart content type, or <code>null</code> if
+   * there is none.
+   */
+  static String getBoundary( String contentType ) {
+    String result = null;
+    if( contentType != null ) {
+      result = parseParameters( contentType ).get( "boundary" );
+      if( result != null && result.length() == 0 ) {
+        result = null;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Parses the next portion of the body.
+   */
+  void write( byte[] data, int offset, int count ) throws IOException {
+    append( data, offset, count );
+    position = 0;
+    while( parseNext() ) {
+      // continue with the next state
+    }
+    // keep the unparsed bytes, e.g. an incomplete delimiter or header block
+    consume( position );
+  }
+
+  /**
+   * Completes parsing at the end of the body.
+   *
+   * @throws IOException if the body ended before the final delimiter
+   */
+  void close() throws IOException {
+    if( state != EPILOGUE ) {
+      throw new IOException( "Stream ended unexpectedly" );
+    }
+  }
+
+  boolean isComplete() {
+    return state == EPILOGUE;
+  }
+
+  /**
+   * Parses the buffer from the current position. Returns <code>false</code> if more data is
+   * needed to continue, the bytes before the position can be discarded then.
+   */
+  private boolean parseNext() throws IOException {
+    boolean result;
+    if( state == PREAMBLE ) {
+      result = parsePreamble();
+    } else if( state == DELIMITER ) {
+      result = parseDelimiter();
+    } else if( state == HEADERS ) {
+      result = parseHeaders();
+    } else if( state == BODY ) {
+      result = parseBody();
+    } else {
+      position = length;
+      result = false;
+    }
+    return result;
+  }
+
+  private boolean parsePreamble() {
+    boolean result = false;
+    int index = delimiter.indexOf( buffer, position, length );
+    if( index == -1 ) {
+      position = delimiter.getSafeEnd( position, length );
+    } else {
+      state = DELIMITER;
+      position = index + delimiter.getLength();
+      result = true;
+    }
+    return result;
+  }
+
+  private boolean parseDelimiter() throws IOException {
+    boolean result = false;
+    int start = position;
+    // skip transport padding
+    while( start < length && ( buffer[ start ] == ' ' || buffer[ start ] == '\t' ) ) {
+      start++;
+    }
+    if( length - start >= 2 ) {
+      if( buffer[ start ] == DASH && buffer[ start + 1 ] == DASH ) {
+        state = EPILOGUE;
+        position = length;
+      } else if( buffer[ start ] == CR && buffer[ start + 1 ] == LF ) {
+        state = HEADERS;
+        position = start + 2;
+        result = true;
+      } else {
+        throw new IOException( "Unexpected characters after boundary" );
+      }
+    }
+    return result;
+  }
+
+  private boolean parseHeaders() throws IOException {
+    boolean result = false;
+    if( length - position >= 2 && buffer[ position ] == CR && buffer[ position + 1 ] == LF ) {
+      // a part without headers
+      position += 2;
+      startPart( new HashMap<String, String>() );
+      result = true;
+    } else {
+      int index = HEADER_END.indexOf( buffer, position, length );
+      if( index == -1 ) {
+        if( length - position > MAX_HEADER_SIZE ) {
+          throw new IOException( "Header section exceeds the maximum size of "
+                                 + MAX_HEADER_SIZE
+                                 + " bytes" );
+        }
+      } else {
+        String headers = decode( buffer, position, index - position );
+        position = index + HEADER_END.getLength();
+        startPart( parseHeaderLines( headers ) );
+        result = true;
+      }
+    }
+    return result;
+  }
+
+  private boolean parseBody() throws IOException {
+    boolean result = false;
+    int index = delimiter.indexOf( buffer, position, length );
+    if( index == -1 ) {
+      // the end of the buffer may contain the beginning of the next delimiter
+      int end = delimiter.getSafeEnd( position, length );
+      if( end > position ) {
+        handler.partData( buffer, position, end - position );
+      }
+      position = end;
+    } else {
+      if( index > position ) {
+        handler.partData( buffer, position, index - position );
+      }
+      handler.partFinished();
+      state = DELIMITER;
+      position = index + delimiter.getLength();
+      result = true;
+    }
+    return result;
+  }
+
+  private void startPart( Map<String, String> headers ) throws IOException {
+    String fieldName = null;
+    String fileName = null;
+    String disposition = headers.get( "content-disposition" );
+    if( disposition != null ) {
+      Map<String, String> parameters = parseParameters( disposition );
+      fieldName = parameters.get( "name" );
+      fileName = parameters.get( "filename" );
+    }
+    state = BODY;
+    handler.partStarted( fieldName, fileName, headers.get( "content-type" ) );
+  }
+
+  private void append( byte[] data, int offset, int count ) {
+    if( length + count > buffer.length ) {
+      byte[] newBuffer = new byte[ Math.max( buffer.length * 2, length + count ) ];
+      System.arraycopy( buffer, 0, newBuffer, 0, length );
+      buffer = newBuffer;
+    }
+    System.arraycopy( data, offset, buffer, length, count );
+    length += count;
+  }
+
+  private void consume( int count ) {
+    System.arraycopy( buffer, count, buffer, 0, length - count );
+    length -= count;
+  }
+
+  private String decode( byte[] bytes, int offset, int count ) throws IOException {
+    try {
+      return new String( bytes, offset, count, headerEncoding );
+    } catch( UnsupportedEncodingException exception ) {
+      return new String( bytes, offset, count, "ISO-8859-1" );
+    }
+  }
+
+  /**
+   * Parses a header section. Header names are converted to lower case, folded lines are joined.
+   */
+  static Map<String, String> parseHeaderLines( String headers ) {
+    Map<String, String> result = new HashMap<String, String>();
+    String name = null;
+    StringBuilder value = new StringBuilder();
+    String[] lines = headers.split( "\r\n" );
+    for( int i = 0; i < lines.length; i++ ) {
+      String line = lines[ i ];
+      if( line.length() > 0 && ( line.charAt( 0 ) == ' ' || line.charAt( 0 ) == '\t' ) ) {
+        // folded continuation of the previous header
+        value.append( ' ' ).append( line.trim() );
+      } else {
+        putHeader( result, name, value );
+        int colon = line.indexOf( ':' );
+        name = colon == -1 ? null : line.substring( 0, colon ).trim().toLowerCase( Locale.ENGLISH );
+        value.setLength( 0 );
+        if( colon != -1 ) {
+          value.append( line.substring( colon + 1 ).trim() );
+        }
+      }
+    }
+    putHeader( result, name, value );
+    return result;
+  }
+
+  private static void putHeader( Map<String, String> headers, String name, StringBuilder value ) {
+    if( name != null && !headers.containsKey( name ) ) {
+      headers.put( name, value.toString() );
+    }
+  }
+
+  /**
+   * Parses the parameters of a header value like <code>form-data; name="file";
+   * filename="a.txt"</code>. Parameter names are converted to lower case.
+   */
+  static Map<String, String> parseParameters( String header ) {
+    Map<String, String> result = new HashMap<String, String>();
+    int position = header.indexOf( ';' );
+    while( position != -1 && position < header.length() ) {
+      int start = position + 1;
+      int equals = header.indexOf( '=', start );
+      int semicolon = header.indexOf( ';', start );
+      if( equals == -1 || ( semicolon != -1 && semicolon < equals ) ) {
+        position = semicolon;
+      } else {
+        String name = header.substring( start, equals ).trim().toLowerCase( Locale.ENGLISH );
+        int valueStart = equals + 1;
+        while( valueStart < header.length() && header.charAt( valueStart ) == ' ' ) {
+          valueStart++;
+        }
+        String value;
+        if( valueStart < header.length() && header.charAt( valueStart ) == '"' ) {
+          int quote = header.indexOf( '"', valueStart + 1 );
+          int valueEnd = quote == -1 ? header.length() : quote;
+          value = header.substring( valueStart + 1, valueEnd );
+          position = header.indexOf( ';', valueEnd );
+        } else {
+          int valueEnd = semicolon == -1 ? header.length() : semicolon;
+          value = header.substring( valueStart, valueEnd ).trim();
+          position = semicolon;
+        }
+        if( !result.containsKey( name ) ) {
+          result.put( name, value );
+        }
+      }
+    }
+    return result;
+  }
+
+  static byte[] toAscii( String string ) {
+    byte[] result = new byte[ string.length() ];
+    for( int i = 0; i < result.length; i++ ) {
+      result[ i ] = ( byte )string.charAt( i );
+    }
+    return result;
+  }
+
+}
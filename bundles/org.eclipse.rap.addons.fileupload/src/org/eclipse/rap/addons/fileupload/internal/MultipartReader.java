@@ -0,0 +1,332 @@
+/*******************************************************************************
+ * Copyright (c) 2014 EclipseSource and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    EclipseSource - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.rap.addons.fileupload.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.fileupload.FileUploadBase.FileSizeLimitExceededException;
+import org.apache.commons.fileupload.FileUploadBase.FileUploadIOException;
+
+
+/**
+ * Reads the parts of a <code>multipart/form-data</code> request body from a blocking stream. The
+ * body is read into a single buffer in large portions, the delimiters are found with a
+ * Boyer-Moore-Horspool search, and the stream of a part reads directly from that buffer.
+ * <p>
+ * The stream of a part is only valid until the next part is requested. This class is not thread
+ * safe.
+ * </p>
+ */
+final class MultipartReader {
+
+  private static final byte CR = 0x0D;
+  private static final byte LF = 0x0A;
+  private static final byte DASH = 0x2D;
+  private static final DelimiterSearch HEADER_END
+    = new DelimiterSearch( new byte[] { CR, LF, CR, LF } );
+
+  private final InputStream input;
+  private final DelimiterSearch delimiter;
+  private final String headerEncoding;
+  private final long maxPartSize;
+  private final byte[] buffer;
+  private int head;
+  private int tail;
+  private boolean started;
+  private boolean finished;
+  private Map<String, String> headers;
+  private PartInputStream partStream;
+
+  /**
+   * @param input the stream to read the body from
+   * @param boundary the boundary from the content type of the request
+   * @param headerEncoding the encoding of the part headers
+   * @param buffer the buffer to read into, it must be considerably larger than the maximum header
+   *          size
+   * @param maxPartSize the maximum size of a part in bytes, or -1 for no limit
+   */
+  MultipartReader( InputStream input,
+                   String boundary,
+                   String headerEncoding,
+                   byte[] buffer,
+                   long maxPartSize )
+  {
+    this.input = input;
+    this.headerEncoding = headerEncoding;
+    this.buffer = buffer;
+    this.maxPartSize = maxPartSize;
+    delimiter = new DelimiterSearch( MultipartParser.toAscii( "\r\n--" + boundary ) );
+    if( buffer.length < MultipartParser.MAX_HEADER_SIZE + delimiter.getLength() * 2 ) {
+      throw new IllegalArgumentException( "buffer is too small" );
+    }
+    // the first delimiter may be at the very start of the body, without a preceding line break
+    buffer[ 0 ] = CR;
+    buffer[ 1 ] = LF;
+    tail = 2;
+  }
+
+  /**
+   * Advances to the next part. The rest of the current part is skipped.
+   *
+   * @return <code>false</code> if there are no more parts
+   * @throws IOException if the body is malformed or ends unexpectedly
+   */
+  boolean nextPart() throws IOException {
+    if( !finished ) {
+      if( started ) {
+        partStream.skipRemaining();
+      } else {
+        skipPreamble();
+        started = true;
+      }
+      readDelimiterSuffix();
+      if( !finished ) {
+        readHeaders();
+        partStream = new PartInputStream();
+      }
+    }
+    if( finished ) {
+      headers = null;
+      partStream = null;
+    }
+    return !finished;
+  }
+
+  String getFieldName() {
+    return getDispositionParameter( "name" );
+  }
+
+  /**
+   * Returns the file name of the current part, or <code>null</code> if the part is not a file.
+   */
+  String getFileName() {
+    return getDispositionParameter( "filename" );
+  }
+
+  String getContentType() {
+    return getHeader( "content-type" );
+  }
+
+  /**
+   * Returns the value of the given header of the current part.
+   *
+   * @param name the header name in lower case
+   */
+  String getHeader( String name ) {
+    return headers.get( name );
+  }
+
+  /**
+   * Returns the stream to read the content of the current part from. The stream ends at the next
+   * delimiter.
+   */
+  InputStream getPartStream() {
+    return partStream;
+  }
+
+  private void skipPreamble() throws IOException {
+    int index = delimiter.indexOf( buffer, head, tail );
+    while( index == -1 ) {
+      head = delimiter.getSafeEnd( head, tail );
+      fill();
+      index = delimiter.indexOf( buffer, head, tail );
+    }
+    head = index + delimiter.getLength();
+  }
+
+  private void readDelimiterSuffix() throws IOException {
+    boolean done = false;
+    while( !done ) {
+      // skip transport padding
+      while( head < tail && ( buffer[ head ] == ' ' || buffer[ head ] == '\t' ) ) {
+        head++;
+      }
+      if( tail - head >= 2 ) {
+        if( buffer[ head ] == DASH && buffer[ head + 1 ] == DASH ) {
+          finished = true;
+        } else if( buffer[ head ] == CR && buffer[ head + 1 ] == LF ) {
+          head += 2;
+        } else {
+          throw new IOException( "Unexpected characters after boundary" );
+        }
+        done = true;
+      } else {
+        fill();
+      }
+    }
+  }
+
+  private void readHeaders() throws IOException {
+    headers = null;
+    while( headers == null ) {
+      if( tail - head >= 2 && buffer[ head ] == CR && buffer[ head + 1 ] == LF ) {
+        // a part without headers
+        head += 2;
+        headers = new HashMap<String, String>();
+      } else {
+        int index = HEADER_END.indexOf( buffer, head, tail );
+        int size = index == -1 ? tail - head : index - head;
+        if( size > MultipartParser.MAX_HEADER_SIZE ) {
+          throw new IOException( "Header section exceeds the maximum size of "
+                                 + MultipartParser.MAX_HEADER_SIZE
+                                 + " bytes" );
+        } else if( index != -1 ) {
+          headers = MultipartParser.parseHeaderLines( decode( head, size ) );
+          head = index + HEADER_END.getLength();
+        } else {
+          fill();
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads more data into the buffer. Unread data is moved to the start of the buffer first.
+   *
+   * @throws IOException if the body has ended
+   */
+  private void fill() throws IOException {
+    if( head > 0 ) {
+      System.arraycopy( buffer, head, buffer, 0, tail - head );
+      tail -= head;
+      head = 0;
+    }
+    int count = input.read( buffer, tail, buffer.length - tail );
+    if( count == -1 ) {
+      throw new IOException( "Stream ended unexpectedly" );
+    }
+    tail += count;
+  }
+
+  private String getDispositionParameter( String name ) {
+    String result = null;
+    String disposition = headers.get( "content-disposition" );
+    if( disposition != null ) {
+      result = MultipartParser.parseParameters( disposition ).get( name );
+    }
+    return result;
+  }
+
+  private String decode( int offset, int count ) throws IOException {
+    try {
+      return new String( buffer, offset, count, headerEncoding );
+    } catch( UnsupportedEncodingException exception ) {
+      return new String( buffer, offset, count, "ISO-8859-1" );
+    }
+  }
+
+  /**
+   * Reads the content of the current part from the buffer. The end of the data that is known to
+   * belong to the part is remembered, so that the buffer is searched only once.
+   */
+  private final class PartInputStream extends InputStream {
+
+    private int dataEnd;
+    private boolean delimiterFound;
+    private boolean ended;
+    private long size;
+
+    PartInputStream() {
+      dataEnd = head;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int result = -1;
+      if( ensureData() ) {
+        count( 1 );
+        result = buffer[ head++ ] & 0xFF;
+      }
+      return result;
+    }
+
+    @Override
+    public int read( byte[] destination, int offset, int length ) throws IOException {
+      int result = -1;
+      if( length == 0 ) {
+        result = 0;
+      } else if( ensureData() ) {
+        result = Math.min( length, dataEnd - head );
+        count( result );
+        System.arraycopy( buffer, head, destination, offset, result );
+        head += result;
+      }
+      return result;
+    }
+
+    @Override
+    public long skip( long count ) throws IOException {
+      long result = 0;
+      if( count > 0 && ensureData() ) {
+        result = Math.min( count, dataEnd - head );
+        count( result );
+        head += ( int )result;
+      }
+      return result;
+    }
+
+    @Override
+    public int available() {
+      return ended ? 0 : dataEnd - head;
+    }
+
+    @Override
+    public void close() throws IOException {
+      // like commons-fileupload, closing a part stream skips the rest of the part
+      skipRemaining();
+    }
+
+    void skipRemaining() throws IOException {
+      while( ensureData() ) {
+        head = dataEnd;
+      }
+    }
+
+    /**
+     * Makes sure that the buffer contains data of this part. Returns <code>false</code> at the
+     * end of the part, the buffer is then positioned after the delimiter.
+     */
+    private boolean ensureData() throws IOException {
+      while( !ended && head == dataEnd ) {
+        if( delimiterFound ) {
+          ended = true;
+          head = dataEnd + delimiter.getLength();
+        } else {
+          if( tail - head < delimiter.getLength() ) {
+            fill();
+          }
+          int index = delimiter.indexOf( buffer, head, tail );
+          delimiterFound = index != -1;
+          dataEnd = delimiterFound ? index : delimiter.getSafeEnd( head, tail );
+          if( dataEnd == head && !delimiterFound ) {
+            fill();
+            dataEnd = head;
+          }
+        }
+      }
+      return !ended;
+    }
+
+    private void count( long bytes ) throws IOException {
+      size += bytes;
+      try {
+        FileUploadProcessor.checkFileSize( maxPartSize, size );
+      } catch( FileSizeLimitExceededException exception ) {
+        throw new FileUploadIOException( exception );
+      }
+    }
+  }
+
+}
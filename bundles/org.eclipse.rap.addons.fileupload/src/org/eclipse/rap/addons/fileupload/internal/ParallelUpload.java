@@ -0,0 +1,191 @@
+/*******************************************************************************
+ * Copyright (c) 2014 EclipseSource and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    EclipseSource - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.rap.addons.fileupload.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+
+/**
+ * The state of a parallel upload that is shared by all requests that currently write a chunk of
+ * it. It aggregates the bytes of all chunks, so that progress can be reported for the whole file.
+ * The state exists as long as at least one chunk is being written, the received ranges are
+ * persisted when a chunk ends.
+ * <p>
+ * Once the upload is committed, chunks that are still in progress must not touch its files
+ * anymore. Writes hold a shared lock, so that a commit waits for writes that are in progress and
+ * all later writes are skipped.
+ * </p>
+ * <p>
+ * This class is thread safe.
+ * </p>
+ */
+final class ParallelUpload {
+
+  private static final Map<String, ParallelUpload> ACTIVE = new HashMap<String, ParallelUpload>();
+
+  private final ResumableUpload upload;
+  private final String key;
+  private final ReceivedRanges ranges;
+  private final ReadWriteLock commitLock;
+  private int activeChunks;
+  private volatile boolean committed;
+
+  private ParallelUpload( ResumableUpload upload, String key, ReceivedRanges ranges ) {
+    this.upload = upload;
+    this.key = key;
+    this.ranges = ranges;
+    commitLock = new ReentrantReadWriteLock();
+  }
+
+  /**
+   * Returns the shared state of the given upload and registers a new chunk. Every call must be
+   * followed by a call to <code>releaseChunk()</code>.
+   */
+  static ParallelUpload startChunk( ResumableUpload upload ) throws IOException {
+    String key = upload.getDataFile().getAbsolutePath();
+    synchronized( ACTIVE ) {
+      ParallelUpload result = ACTIVE.get( key );
+      if( result == null ) {
+        result = new ParallelUpload( upload, key, upload.readReceivedRanges() );
+        ACTIVE.put( key, result );
+      }
+      result.activeChunks++;
+      return result;
+    }
+  }
+
+  static int getActiveCount() {
+    synchronized( ACTIVE ) {
+      return ACTIVE.size();
+    }
+  }
+
+  /**
+   * Opens the data file to write a chunk, or returns <code>null</code> if the upload has been
+   * committed or deleted in the meantime. The data file is never created.
+   */
+  RandomAccessFile openDataFile() throws IOException {
+    commitLock.readLock().lock();
+    try {
+      File dataFile = upload.getDataFile();
+      return committed || !dataFile.isFile() ? null : new RandomAccessFile( dataFile, "rw" );
+    } finally {
+      commitLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Writes the given bytes at the given position of the data file, unless the upload has been
+   * committed.
+   *
+   * @return the number of bytes written, or -1 if the upload has been committed
+   */
+  int write( FileChannel channel, ByteBuffer buffer, long position ) throws IOException {
+    commitLock.readLock().lock();
+    try {
+      return committed ? -1 : channel.write( buffer, position );
+    } finally {
+      commitLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Claims the right to pass the completed file to the receiver. Waits for writes that are in
+   * progress, later writes of other chunks are skipped.
+   *
+   * @return <code>true</code> if the commit has been claimed by the caller
+   */
+  boolean claimCommit() {
+    commitLock.writeLock().lock();
+    try {
+      boolean result = !committed && upload.claimCommit();
+      if( result ) {
+        committed = true;
+      }
+      return result;
+    } finally {
+      commitLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Releases a claimed commit that has failed, so that chunks can be written again.
+   */
+  void releaseCommit() {
+    commitLock.writeLock().lock();
+    try {
+      committed = false;
+      upload.releaseCommit();
+    } finally {
+      commitLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Adds the bytes that a chunk has written at the given position to the received ranges. Bytes
+   * that have been received before, by a chunk that is sent again or by an overlapping chunk that
+   * is still in progress, are not counted twice.
+   */
+  synchronized void addBytes( long position, long count ) {
+    ranges.add( position, position + count );
+  }
+
+  /**
+   * Returns the number of bytes received so far, including the bytes of chunks that are still
+   * being written.
+   */
+  synchronized long getBytesReceived() {
+    return ranges.getCoveredBytes();
+  }
+
+  /**
+   * Persists the received ranges when a chunk ends. The ranges include the bytes that have been
+   * written by chunks that are still in progress. They are not persisted once the upload has been
+   * committed or deleted, so that its files are not created again.
+   *
+   * @return a copy of the ranges received so far
+   */
+  ReceivedRanges finishChunk() throws IOException {
+    commitLock.readLock().lock();
+    try {
+      synchronized( this ) {
+        if( !committed && upload.exists() ) {
+          upload.writeReceivedRanges( ranges );
+        }
+        return ranges.copy();
+      }
+    } finally {
+      commitLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Deregisters a chunk that has been started with <code>startChunk()</code>. The shared state is
+   * discarded when the last chunk has been released.
+   */
+  void releaseChunk() {
+    synchronized( ACTIVE ) {
+      activeChunks--;
+      if( activeChunks == 0 ) {
+        ACTIVE.remove( key );
+      }
+    }
+  }
+
+}
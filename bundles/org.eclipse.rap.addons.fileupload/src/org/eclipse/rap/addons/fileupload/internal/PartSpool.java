@@ -0,0 +1,126 @@
+/*******************************************************************************
+ * Copyright (c) 2014 EclipseSource and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    EclipseSource - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.rap.addons.fileupload.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.eclipse.rap.addons.fileupload.FileUploadReaper;
+
+
+/**
+ * Buffers the data of a part until it has been received completely. The data is kept in memory up
+ * to a threshold and moved to a temporary file when the threshold is exceeded. Temporary files are
+ * tracked by the <code>FileUploadReaper</code>, so that they are deleted even if the spool is
+ * never disposed of.
+ */
+final class PartSpool extends OutputStream {
+
+  private final int threshold;
+  private final File directory;
+  private final Object owner;
+  private MemoryBuffer memory;
+  private File file;
+  private OutputStream fileStream;
+  private long size;
+
+  /**
+   * @param threshold the number of bytes up to which the data is kept in memory
+   * @param directory the directory for the temporary file, or <code>null</code> for the default
+   *          temporary directory
+   * @param owner the owner to track the temporary file for, or <code>null</code>
+   */
+  PartSpool( int threshold, File directory, Object owner ) {
+    this.threshold = threshold;
+    this.directory = directory;
+    this.owner = owner;
+    memory = new MemoryBuffer();
+  }
+
+  @Override
+  public void write( int value ) throws IOException {
+    write( new byte[] { ( byte )value }, 0, 1 );
+  }
+
+  @Override
+  public void write( byte[] buffer, int offset, int length ) throws IOException {
+    if( file == null && memory.size() + length > threshold ) {
+      file = File.createTempFile( "upload-", ".part", directory );
+      FileUploadReaper.getInstance().track( file, owner, FileUploadReaper.DEFAULT_TIME_TO_LIVE );
+      fileStream = new FileOutputStream( file );
+      memory.writeTo( fileStream );
+      memory = null;
+    }
+    if( file == null ) {
+      memory.write( buffer, offset, length );
+    } else {
+      fileStream.write( buffer, offset, length );
+    }
+    size += length;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if( fileStream != null ) {
+      fileStream.close();
+    }
+  }
+
+  long getSize() {
+    return size;
+  }
+
+  boolean isInMemory() {
+    return file == null;
+  }
+
+  File getFile() {
+    return file;
+  }
+
+  /**
+   * Returns a stream to read the buffered data. The spool is closed for writing.
+   */
+  InputStream openInputStream() throws IOException {
+    close();
+    return file == null ? memory.toInputStream() : new FileInputStream( file );
+  }
+
+  /**
+   * Releases the buffered data and deletes the temporary file, if any.
+   */
+  void dispose() {
+    try {
+      close();
+    } catch( IOException exception ) {
+      // the file is deleted anyway
+    }
+    if( file != null ) {
+      file.delete();
+    }
+    memory = null;
+  }
+
+  private static final class MemoryBuffer extends ByteArrayOutputStream {
+
+    InputStream toInputStream() {
+      // avoids the copy made by toByteArray()
+      return new ByteArrayInputStream( buf, 0, count );
+    }
+  }
+
+}
@@ -0,0 +1,77 @@
+/*******************************************************************************
+ * Copyright (c) 2014 EclipseSource and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    EclipseSource - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.rap.addons.fileupload.internal;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * An input stream that limits the rate at which data is read from the underlying stream to the
+ * rates of the given token buckets.
+ */
+final class RateLimitedInputStream extends FilterInputStream {
+
+  private final TokenBucket[] buckets;
+
+  RateLimitedInputStream( InputStream in, TokenBucket[] buckets ) {
+    super( in );
+    this.buckets = buckets;
+  }
+
+  @Override
+  public int read() throws IOException {
+    int result = super.read();
+    if( result != -1 ) {
+      take( 1 );
+    }
+    return result;
+  }
+
+  @Override
+  public int read( byte[] buffer, int offset, int length ) throws IOException {
+    int result = super.read( buffer, offset, length );
+    if( result > 0 ) {
+      take( result );
+    }
+    return result;
+  }
+
+  @Override
+  public long skip( long count ) throws IOException {
+    long result = super.skip( count );
+    if( result > 0 ) {
+      take( result );
+    }
+    return result;
+  }
+
+  private void take( long bytes ) throws IOException {
+    // wait for the most restrictive limit, the others refill in the meantime
+    long now = System.nanoTime();
+    long waitNanos = 0;
+    for( int i = 0; i < buckets.length; i++ ) {
+      waitNanos = Math.max( waitNanos, buckets[ i ].reserve( bytes, now ) );
+    }
+    if( waitNanos > 0 ) {
+      try {
+        TimeUnit.NANOSECONDS.sleep( waitNanos );
+      } catch( InterruptedException exception ) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException( "Interrupted while waiting for bandwidth" );
+      }
+    }
+  }
+
+}
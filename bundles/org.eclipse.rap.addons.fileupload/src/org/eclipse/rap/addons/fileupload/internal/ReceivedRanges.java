@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * Copyright (c) 2014 EclipseSource and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    EclipseSource - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.rap.addons.fileupload.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * The byte ranges of a file that have been received so far. Adjacent and overlapping ranges are
+ * merged. The string representation lists the ranges with inclusive bounds, like the
+ * <code>Range</code> header of HTTP, e.g. <code>"0-99,200-299"</code>.
+ * <p>
+ * This class is not thread safe.
+ * </p>
+ */
+final class ReceivedRanges {
+
+  // sorted, disjoint and non-adjacent pairs of start (inclusive) and end (exclusive)
+  private final List<long[]> ranges;
+
+  ReceivedRanges() {
+    ranges = new ArrayList<long[]>();
+  }
+
+  static ReceivedRanges parse( String string ) {
+    ReceivedRanges result = new ReceivedRanges();
+    String[] parts = string.split( "," );
+    for( int i = 0; i < parts.length; i++ ) {
+      String part = parts[ i ].trim();
+      if( part.length() > 0 ) {
+        int separator = part.indexOf( '-' );
+        if( separator == -1 ) {
+          throw new IllegalArgumentException( "Invalid range: " + part );
+        }
+        long start = Long.parseLong( part.substring( 0, separator ).trim() );
+        long end = Long.parseLong( part.substring( separator + 1 ).trim() ) + 1;
+        result.add( start, end );
+      }
+    }
+    return result;
+  }
+
+  ReceivedRanges copy() {
+    ReceivedRanges result = new ReceivedRanges();
+    for( long[] range : ranges ) {
+      result.ranges.add( range.clone() );
+    }
+    return result;
+  }
+
+  /**
+   * Adds the range from <code>start</code> (inclusive) to <code>end</code> (exclusive).
+   */
+  void add( long start, long end ) {
+    if( start < 0 || end < start ) {
+      throw new IllegalArgumentException( "Invalid range: " + start + ", " + end );
+    }
+    if( start < end ) {
+      long newStart = start;
+      long newEnd = end;
+      int index = 0;
+      while( index < ranges.size() && ranges.get( index )[ 1 ] < newStart ) {
+        index++;
+      }
+      while( index < ranges.size() && ranges.get( index )[ 0 ] <= newEnd ) {
+        long[] range = ranges.remove( index );
+        newStart = Math.min( newStart, range[ 0 ] );
+        newEnd = Math.max( newEnd, range[ 1 ] );
+      }
+      ranges.add( index, new long[] { newStart, newEnd } );
+    }
+  }
+
+  /**
+   * Returns the number of bytes covered by all ranges.
+   */
+  long getCoveredBytes() {
+    long result = 0;
+    for( long[] range : ranges ) {
+      result += range[ 1 ] - range[ 0 ];
+    }
+    return result;
+  }
+
+  /**
+   * Returns the number of bytes between <code>start</code> (inclusive) and <code>end</code>
+   * (exclusive) that are covered by the ranges.
+   */
+  long getCoveredBytes( long start, long end ) {
+    long result = 0;
+    for( long[] range : ranges ) {
+      result += Math.max( 0, Math.min( end, range[ 1 ] ) - Math.max( start, range[ 0 ] ) );
+    }
+    return result;
+  }
+
+  /**
+   * Returns the number of bytes that have been received without a gap from the start of the file.
+   */
+  long getContiguousLength() {
+    return !ranges.isEmpty() && ranges.get( 0 )[ 0 ] == 0 ? ranges.get( 0 )[ 1 ] : 0;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder result = new StringBuilder();
+    for( long[] range : ranges ) {
+      if( result.length() > 0 ) {
+        result.append( ',' );
+      }
+      result.append( range[ 0 ] ).append( '-' ).append( range[ 1 ] - 1 );
+    }
+    return result.toString();
+  }
+
+}
@@ -0,0 +1,318 @@
+/*******************************************************************************
+ * Copyright (c) 2014 EclipseSource and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    EclipseSource - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.rap.addons.fileupload.internal;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+
+import org.eclipse.rap.addons.fileupload.FileUploadReaper;
+
+
+/**
+ * The persistent state of a resumable upload. The data that has been received so far is stored in
+ * a data file, the properties of the upload in a state file next to it. The offset of the upload
+ * is the length of the data file, so that a resumed upload continues with the first byte that has
+ * not been written.
+ * <p>
+ * The chunks of a parallel upload may arrive in any order. Every chunk is written at its position
+ * in the data file, which can be allocated with the full length up front. The ranges that have
+ * been received are kept in a third file, the offset is the length of the first range.
+ * </p>
+ * <p>
+ * The claim to commit an upload is kept in memory rather than in a file, so that it cannot outlive
+ * a crash of the virtual machine and block the upload forever.
+ * </p>
+ */
+final class ResumableUpload {
+
+  private static final String DATA_FILE_SUFFIX = ".part";
+  private static final String STATE_FILE_SUFFIX = ".upload";
+  private static final String RANGES_FILE_SUFFIX = ".ranges";
+  private static final String PROPERTY_LENGTH = "length";
+  private static final String PROPERTY_FILE_NAME = "fileName";
+  private static final String PROPERTY_CONTENT_TYPE = "contentType";
+  private static final String PROPERTY_PARALLEL = "parallel";
+  private static final String PROPERTY_RANGES = "ranges";
+  // the data files of uploads that are currently being committed
+  private static final Set<File> CLAIMED_COMMITS = new HashSet<File>();
+
+  private final String id;
+  private final File dataFile;
+  private final File stateFile;
+  private final File rangesFile;
+  private final long length;
+  private final String fileName;
+  private final String contentType;
+  private final boolean parallel;
+
+  private ResumableUpload( File directory,
+                           String id,
+                           long length,
+                           String fileName,
+                           String contentType,
+                           boolean parallel )
+  {
+    this.id = id;
+    this.length = length;
+    this.fileName = fileName;
+    this.contentType = contentType;
+    this.parallel = parallel;
+    dataFile = new File( directory, id + DATA_FILE_SUFFIX ).getAbsoluteFile();
+    stateFile = new File( directory, id + STATE_FILE_SUFFIX );
+    rangesFile = new File( directory, id + RANGES_FILE_SUFFIX );
+  }
+
+  /**
+   * Creates a new upload and persists its state. The data file is empty.
+   */
+  static ResumableUpload create( File directory,
+                                 String id,
+                                 long length,
+                                 String fileName,
+                                 String contentType,
+                                 boolean parallel )
+    throws IOException
+  {
+    checkId( id );
+    if( !directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory() ) {
+      throw new IOException( "Unable to create directory: " + directory.getAbsolutePath() );
+    }
+    ResumableUpload result
+      = new ResumableUpload( directory, id, length, fileName, contentType, parallel );
+    if( !result.dataFile.createNewFile() ) {
+      throw new IOException( "Upload already exists: " + id );
+    }
+    if( parallel ) {
+      result.writeReceivedRanges( new ReceivedRanges() );
+    }
+    result.writeState();
+    return result;
+  }
+
+  /**
+   * Loads the upload with the given id, or returns <code>null</code> if it does not exist.
+   */
+  static ResumableUpload load( File directory, String id ) throws IOException {
+    ResumableUpload result = null;
+    if( isValidId( id ) ) {
+      File stateFile = new File( directory, id + STATE_FILE_SUFFIX );
+      if( stateFile.isFile() ) {
+        Properties properties = readProperties( stateFile );
+        long length = parseLength( properties.getProperty( PROPERTY_LENGTH ) );
+        String parallel = properties.getProperty( PROPERTY_PARALLEL );
+        result = new ResumableUpload( directory,
+                                      id,
+                                      length,
+                                      properties.getProperty( PROPERTY_FILE_NAME ),
+                                      properties.getProperty( PROPERTY_CONTENT_TYPE ),
+                                      Boolean.valueOf( parallel ).booleanValue() );
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Allocates the data file of a parallel upload with the full length, so that the file system
+   * does not have to extend it while the chunks are written. The length is declared by the client,
+   * callers must make sure that it is bounded.
+   */
+  void preallocate() throws IOException {
+    RandomAccessFile file = new RandomAccessFile( dataFile, "rw" );
+    try {
+      file.setLength( length );
+    } finally {
+      file.close();
+    }
+  }
+
+  /**
+   * Registers the files of this upload with the reaper, so that they are deleted if the upload is
+   * abandoned.
+   *
+   * @param owner the owner to register the files for
+   * @param timeToLive the time in milliseconds after which the files are deleted
+   */
+  void track( Object owner, long timeToLive ) {
+    FileUploadReaper reaper = FileUploadReaper.getInstance();
+    reaper.track( dataFile, owner, timeToLive );
+    reaper.track( stateFile, owner, timeToLive );
+    if( parallel ) {
+      reaper.track( rangesFile, owner, timeToLive );
+    }
+  }
+
+  String getId() {
+    return id;
+  }
+
+  long getLength() {
+    return length;
+  }
+
+  boolean isParallel() {
+    return parallel;
+  }
+
+  long getOffset() throws IOException {
+    return parallel ? readReceivedRanges().getContiguousLength() : dataFile.length();
+  }
+
+  String getFileName() {
+    return fileName;
+  }
+
+  String getContentType() {
+    return contentType;
+  }
+
+  File getDataFile() {
+    return dataFile;
+  }
+
+  /**
+   * Returns the ranges that have been received so far. The ranges are empty if the upload has been
+   * committed or deleted since it has been loaded.
+   */
+  ReceivedRanges readReceivedRanges() throws IOException {
+    ReceivedRanges result = new ReceivedRanges();
+    if( parallel ) {
+      Properties properties;
+      try {
+        properties = readProperties( rangesFile );
+      } catch( FileNotFoundException exception ) {
+        properties = new Properties();
+      }
+      try {
+        result = ReceivedRanges.parse( properties.getProperty( PROPERTY_RANGES, "" ) );
+      } catch( IllegalArgumentException exception ) {
+        throw new IOException( "Invalid upload state, ranges: " + exception.getMessage() );
+      }
+    }
+    return result;
+  }
+
+  void writeReceivedRanges( ReceivedRanges ranges ) throws IOException {
+    Properties properties = new Properties();
+    properties.setProperty( PROPERTY_RANGES, ranges.toString() );
+    writeProperties( rangesFile, properties );
+  }
+
+  /**
+   * Claims the right to pass the completed file to the receiver. Only one request can claim an
+   * upload, even if several requests complete it at the same time. The claim is released when the
+   * upload is deleted.
+   *
+   * @return <code>true</code> if the commit has been claimed by the caller
+   */
+  boolean claimCommit() {
+    synchronized( CLAIMED_COMMITS ) {
+      return CLAIMED_COMMITS.add( dataFile );
+    }
+  }
+
+  /**
+   * Releases a claimed commit that has failed, so that it can be repeated.
+   */
+  void releaseCommit() {
+    synchronized( CLAIMED_COMMITS ) {
+      CLAIMED_COMMITS.remove( dataFile );
+    }
+  }
+
+  /**
+   * Returns whether the state of this upload still exists, i.e. it has not been committed.
+   */
+  boolean exists() {
+    return stateFile.isFile();
+  }
+
+  void delete() {
+    stateFile.delete();
+    rangesFile.delete();
+    dataFile.delete();
+    releaseCommit();
+  }
+
+  /**
+   * Ids are used as file names, only characters of the URL-safe base64 alphabet are allowed.
+   */
+  static boolean isValidId( String id ) {
+    boolean result = id != null && id.length() > 0;
+    for( int i = 0; result && i < id.length(); i++ ) {
+      char ch = id.charAt( i );
+      result =    ( ch >= 'a' && ch <= 'z' )
+               || ( ch >= 'A' && ch <= 'Z' )
+               || ( ch >= '0' && ch <= '9' )
+               || ch == '-'
+               || ch == '_';
+    }
+    return result;
+  }
+
+  private void writeState() throws IOException {
+    Properties properties = new Properties();
+    properties.setProperty( PROPERTY_LENGTH, String.valueOf( length ) );
+    if( fileName != null ) {
+      properties.setProperty( PROPERTY_FILE_NAME, fileName );
+    }
+    if( contentType != null ) {
+      properties.setProperty( PROPERTY_CONTENT_TYPE, contentType );
+    }
+    if( parallel ) {
+      properties.setProperty( PROPERTY_PARALLEL, String.valueOf( parallel ) );
+    }
+    writeProperties( stateFile, properties );
+  }
+
+  private static Properties readProperties( File file ) throws IOException {
+    Properties result = new Properties();
+    InputStream stream = new FileInputStream( file );
+    try {
+      result.load( stream );
+    } finally {
+      stream.close();
+    }
+    return result;
+  }
+
+  private static void writeProperties( File file, Properties properties ) throws IOException {
+    OutputStream stream = new FileOutputStream( file );
+    try {
+      properties.store( stream, null );
+    } finally {
+      stream.close();
+    }
+  }
+
+  private static void checkId( String id ) {
+    if( !isValidId( id ) ) {
+      throw new IllegalArgumentException( "Invalid upload id: " + id );
+    }
+  }
+
+  private static long parseLength( String value ) throws IOException {
+    try {
+      return Long.parseLong( value );
+    } catch( NumberFormatException exception ) {
+      throw new IOException( "Invalid upload state, length: " + value );
+    }
+  }
+
+}
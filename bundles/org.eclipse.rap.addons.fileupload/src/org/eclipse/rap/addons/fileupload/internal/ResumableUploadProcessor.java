@@ -0,0 +1,527 @@
+/*******************************************************************************
+ * Copyright (c) 2014 EclipseSource and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    EclipseSource - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.rap.addons.fileupload.internal;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.rap.addons.fileupload.FileUploadBufferPool;
+import org.eclipse.rap.addons.fileupload.FileUploadHandler;
+import org.eclipse.rap.addons.fileupload.FileUploadReaper;
+
+
+/**
+ * Processes the requests of the resumable upload protocol. A resumable upload transfers a single
+ * file in one or more chunks, so that an interrupted upload can be continued with the first byte
+ * that has not been received:
+ * <ul>
+ * <li>A <code>POST</code> request with the parameter <code>upload=new</code> and the header
+ * <code>Upload-Length</code> creates an upload. The optional parameters <code>fileName</code> and
+ * <code>contentType</code> describe the file. The id of the new upload is returned in the header
+ * <code>Upload-Id</code>.</li>
+ * <li>A <code>GET</code> or <code>HEAD</code> request with the parameter <code>upload=id</code>
+ * returns the number of bytes received so far in the header <code>Upload-Offset</code>.</li>
+ * <li>A <code>POST</code> request with the parameter <code>upload=id</code> and the header
+ * <code>Upload-Offset</code> appends the request body to the upload. The offset has to match the
+ * number of bytes received so far. When all bytes have been received, the file is passed to the
+ * receiver of the handler.</li>
+ * </ul>
+ * <p>
+ * An upload that is created with the header <code>Upload-Mode: parallel</code> accepts chunks in
+ * any order and concurrently. The header <code>Upload-Offset</code> of a chunk denotes its position
+ * in the file. The ranges received so far are returned in the header <code>Upload-Ranges</code>,
+ * so that a client can resend missing chunks after an interruption.
+ * </p>
+ */
+final class ResumableUploadProcessor {
+
+  static final String PARAMETER_UPLOAD = "upload";
+  static final String PARAMETER_FILE_NAME = "fileName";
+  static final String PARAMETER_CONTENT_TYPE = "contentType";
+  static final String NEW_UPLOAD = "new";
+  static final String HEADER_ID = "Upload-Id";
+  static final String HEADER_OFFSET = "Upload-Offset";
+  static final String HEADER_LENGTH = "Upload-Length";
+  static final String HEADER_MODE = "Upload-Mode";
+  static final String HEADER_RANGES = "Upload-Ranges";
+  static final String PARALLEL_MODE = "parallel";
+
+  // the unfinished uploads per handler, an id is mapped to null while its upload is created
+  private static final Map<FileUploadHandler, Map<String, ResumableUpload>> OPEN_UPLOADS
+    = new WeakHashMap<FileUploadHandler, Map<String, ResumableUpload>>();
+
+  private final FileUploadHandler handler;
+  private final FileUploadTracker tracker;
+  private final FileUploadBufferPool bufferPool;
+
+  ResumableUploadProcessor( FileUploadHandler handler ) {
+    this.handler = handler;
+    tracker = new FileUploadTracker( handler );
+    bufferPool = FileUploadBufferPool.getDefault();
+  }
+
+  static boolean isResumableUploadRequest( HttpServletRequest request ) {
+    return request.getParameter( PARAMETER_UPLOAD ) != null;
+  }
+
+  /**
+   * Returns whether the given request only asks for the state of a resumable upload. These
+   * requests do not transfer any data.
+   */
+  static boolean isOffsetQuery( HttpServletRequest request ) {
+    String method = request.getMethod().toUpperCase();
+    return    isResumableUploadRequest( request )
+           && ( "GET".equals( method ) || "HEAD".equals( method ) );
+  }
+
+  void handleRequest( HttpServletRequest request, HttpServletResponse response )
+    throws IOException
+  {
+    File directory = handler.getResumableUploadDirectory();
+    String id = request.getParameter( PARAMETER_UPLOAD );
+    String method = request.getMethod().toUpperCase();
+    response.setHeader( "Cache-Control", "no-store" );
+    if( directory == null ) {
+      String message = "Resumable uploads are not enabled";
+      response.sendError( HttpServletResponse.SC_BAD_REQUEST, message );
+    } else if( "POST".equals( method ) && NEW_UPLOAD.equals( id ) ) {
+      createUpload( directory, request, response );
+    } else if( "GET".equals( method ) || "HEAD".equals( method ) ) {
+      queryOffset( ResumableUpload.load( directory, id ), response );
+    } else if( "POST".equals( method ) ) {
+      appendChunk( ResumableUpload.load( directory, id ), request, response );
+    } else {
+      String message = "Only GET, HEAD and POST requests allowed";
+      response.sendError( HttpServletResponse.SC_METHOD_NOT_ALLOWED, message );
+    }
+  }
+
+  private void createUpload( File directory,
+                             HttpServletRequest request,
+                             HttpServletResponse response )
+    throws IOException
+  {
+    long length = parseLong( request.getHeader( HEADER_LENGTH ) );
+    if( length < 0 ) {
+      String message = "Missing or invalid " + HEADER_LENGTH + " header";
+      response.sendError( HttpServletResponse.SC_BAD_REQUEST, message );
+    } else if( exceedsLimit( length, handler.getMaxFileSize() )
+               || exceedsLimit( length, handler.getMaxRequestSize() ) )
+    {
+      String message = "The file exceeds the permitted size";
+      response.sendError( HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, message );
+    } else {
+      String fileName = request.getParameter( PARAMETER_FILE_NAME );
+      if( fileName != null ) {
+        fileName = FileUploadProcessor.stripFileName( fileName );
+      }
+      String contentType = request.getParameter( PARAMETER_CONTENT_TYPE );
+      boolean parallel = PARALLEL_MODE.equalsIgnoreCase( request.getHeader( HEADER_MODE ) );
+      String id = createId();
+      if( !reserveUpload( id ) ) {
+        String message = "Too many unfinished resumable uploads";
+        response.sendError( HttpServletResponse.SC_SERVICE_UNAVAILABLE, message );
+      } else {
+        ResumableUpload upload = null;
+        boolean created = false;
+        try {
+          upload = ResumableUpload.create( directory, id, length, fileName, contentType, parallel );
+          upload.track( handler.getReceiver(), FileUploadReaper.DEFAULT_TIME_TO_LIVE );
+          // the length is declared by the client, only preallocate if it is bounded
+          if( parallel && handler.getMaxFileSize() != -1 ) {
+            upload.preallocate();
+          }
+          created = true;
+        } finally {
+          if( !created && upload != null ) {
+            upload.delete();
+          }
+          registerUpload( id, created ? upload : null );
+        }
+        response.setStatus( HttpServletResponse.SC_CREATED );
+        response.setHeader( HEADER_ID, upload.getId() );
+        setOffsetHeaders( upload, response );
+        if( length == 0 ) {
+          commit( upload, response );
+        }
+      }
+    }
+  }
+
+  /**
+   * Reserves a slot for a new upload of the handler. Uploads that have been completed or deleted
+   * in the meantime are dropped first.
+   */
+  private boolean reserveUpload( String id ) {
+    int maxResumableUploads = handler.getMaxResumableUploads();
+    synchronized( OPEN_UPLOADS ) {
+      Map<String, ResumableUpload> uploads = OPEN_UPLOADS.get( handler );
+      if( uploads == null ) {
+        uploads = new HashMap<String, ResumableUpload>();
+        OPEN_UPLOADS.put( handler, uploads );
+      }
+      Iterator<ResumableUpload> iterator = uploads.values().iterator();
+      while( iterator.hasNext() ) {
+        ResumableUpload upload = iterator.next();
+        if( upload != null && !upload.exists() ) {
+          iterator.remove();
+        }
+      }
+      boolean result = maxResumableUploads == -1 || uploads.size() < maxResumableUploads;
+      if( result ) {
+        uploads.put( id, null );
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Replaces the reservation of an upload with the created upload, or removes it if the upload
+   * could not be created.
+   */
+  private void registerUpload( String id, ResumableUpload upload ) {
+    synchronized( OPEN_UPLOADS ) {
+      Map<String, ResumableUpload> uploads = OPEN_UPLOADS.get( handler );
+      if( upload == null ) {
+        uploads.remove( id );
+      } else {
+        uploads.put( id, upload );
+      }
+    }
+  }
+
+  private static void queryOffset( ResumableUpload upload, HttpServletResponse response )
+    throws IOException
+  {
+    if( upload == null ) {
+      response.sendError( HttpServletResponse.SC_NOT_FOUND, "Unknown upload" );
+    } else {
+      setOffsetHeaders( upload, response );
+    }
+  }
+
+  private void appendChunk( ResumableUpload upload,
+                            HttpServletRequest request,
+                            HttpServletResponse response )
+    throws IOException
+  {
+    long offset = parseLong( request.getHeader( HEADER_OFFSET ) );
+    if( upload == null ) {
+      response.sendError( HttpServletResponse.SC_NOT_FOUND, "Unknown upload" );
+    } else if( offset < 0 ) {
+      String message = "Missing or invalid " + HEADER_OFFSET + " header";
+      response.sendError( HttpServletResponse.SC_BAD_REQUEST, message );
+    } else if( upload.isParallel() ) {
+      appendParallelChunk( upload, offset, request, response );
+    } else {
+      FileOutputStream outputStream = new FileOutputStream( upload.getDataFile(), true );
+      try {
+        FileLock lock = tryLock( outputStream.getChannel() );
+        if( lock == null ) {
+          String message = "The upload is being written by another request";
+          response.sendError( HttpServletResponse.SC_CONFLICT, message );
+        } else if( offset != upload.getOffset() ) {
+          setOffsetHeaders( upload, response );
+          String message = "The offset does not match the number of bytes received";
+          response.sendError( HttpServletResponse.SC_CONFLICT, message );
+        } else {
+          boolean exceeded;
+          try {
+            exceeded = write( upload, request, outputStream );
+          } finally {
+            lock.release();
+          }
+          setOffsetHeaders( upload, response );
+          if( exceeded ) {
+            String message = "The chunk exceeds the length of the upload";
+            response.sendError( HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, message );
+          } else {
+            response.setStatus( HttpServletResponse.SC_NO_CONTENT );
+            if( upload.getOffset() == upload.getLength() ) {
+              commit( upload, response );
+            }
+          }
+        }
+      } finally {
+        outputStream.close();
+      }
+    }
+  }
+
+  /**
+   * Appends the request body to the data file. Returns <code>true</code> if the body exceeds the
+   * length of the upload, in which case the surplus bytes are discarded.
+   */
+  private boolean write( ResumableUpload upload,
+                         HttpServletRequest request,
+                         FileOutputStream outputStream )
+    throws IOException
+  {
+    long length = upload.getLength();
+    long bytesWritten = upload.getOffset();
+    InputStream stream = openStream( request );
+    tracker.setContentLength( length );
+    byte[] buffer = bufferPool.borrowBuffer();
+    boolean exceeded = false;
+    try {
+      int bytesRead = stream.read( buffer );
+      while( bytesRead != -1 && !exceeded ) {
+        int count = ( int )Math.min( bytesRead, length - bytesWritten );
+        outputStream.write( buffer, 0, count );
+        bytesWritten += count;
+        exceeded = count < bytesRead;
+        tracker.setBytesRead( bytesWritten );
+        tracker.handleProgress();
+        bytesRead = exceeded ? -1 : stream.read( buffer );
+      }
+    } finally {
+      bufferPool.returnBuffer( buffer );
+    }
+    return exceeded;
+  }
+
+  private void appendParallelChunk( ResumableUpload upload,
+                                    long offset,
+                                    HttpServletRequest request,
+                                    HttpServletResponse response )
+    throws IOException
+  {
+    if( offset > upload.getLength() ) {
+      String message = "The offset exceeds the length of the upload";
+      response.sendError( HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, message );
+    } else {
+      ParallelUpload parallelUpload = ParallelUpload.startChunk( upload );
+      try {
+        RandomAccessFile file = parallelUpload.openDataFile();
+        if( file == null ) {
+          // committed or deleted since the upload has been loaded
+          response.sendError( HttpServletResponse.SC_NOT_FOUND, "Unknown upload" );
+        } else {
+          boolean exceeded;
+          ReceivedRanges ranges;
+          try {
+            exceeded = writeAt( upload, parallelUpload, file, request, offset );
+          } finally {
+            file.close();
+            ranges = parallelUpload.finishChunk();
+          }
+          setRangeHeaders( upload, ranges, response );
+          if( exceeded ) {
+            String message = "The chunk exceeds the length of the upload";
+            response.sendError( HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, message );
+          } else {
+            response.setStatus( HttpServletResponse.SC_NO_CONTENT );
+            if( ranges.getCoveredBytes() == upload.getLength() ) {
+              commit( upload, parallelUpload, response );
+            }
+          }
+        }
+      } finally {
+        // the chunk stays registered during the commit, so that concurrent chunks share its state
+        parallelUpload.releaseChunk();
+      }
+    }
+  }
+
+  /**
+   * Writes the request body into the data file, starting at the given position. Concurrent
+   * chunks write to the same file through separate channels. Every write is added to the shared
+   * received ranges right away, so that the range that has been written is recorded even if the
+   * request fails. Writing stops when the upload is committed by another chunk, all of its bytes
+   * have been received then. Returns <code>true</code> if the body exceeds the length of the
+   * upload.
+   */
+  private boolean writeAt( ResumableUpload upload,
+                           ParallelUpload parallelUpload,
+                           RandomAccessFile file,
+                           HttpServletRequest request,
+                           long offset )
+    throws IOException
+  {
+    long length = upload.getLength();
+    long position = offset;
+    boolean exceeded = false;
+    boolean committed = false;
+    FileChannel channel = file.getChannel();
+    InputStream stream = openStream( request );
+    tracker.setContentLength( length );
+    byte[] buffer = bufferPool.borrowBuffer();
+    try {
+      int bytesRead = stream.read( buffer );
+      while( bytesRead != -1 && !exceeded && !committed ) {
+        int count = ( int )Math.min( bytesRead, length - position );
+        ByteBuffer byteBuffer = ByteBuffer.wrap( buffer, 0, count );
+        while( byteBuffer.hasRemaining() && !committed ) {
+          int written = parallelUpload.write( channel, byteBuffer, position );
+          if( written == -1 ) {
+            committed = true;
+          } else {
+            parallelUpload.addBytes( position, written );
+            position += written;
+          }
+        }
+        exceeded = count < bytesRead;
+        tracker.setBytesRead( parallelUpload.getBytesReceived() );
+        tracker.handleProgress();
+        bytesRead = exceeded || committed ? -1 : stream.read( buffer );
+      }
+    } finally {
+      bufferPool.returnBuffer( buffer );
+    }
+    return exceeded;
+  }
+
+  private InputStream openStream( HttpServletRequest request ) throws IOException {
+    InputStream result = tracker.startItem( request.getInputStream() );
+    TokenBucket[] buckets = FileUploadRateLimits.getBuckets( handler, request.getSession( false ) );
+    if( buckets.length > 0 ) {
+      result = new RateLimitedInputStream( result, buckets );
+    }
+    return result;
+  }
+
+  private void commit( ResumableUpload upload, HttpServletResponse response ) throws IOException {
+    commit( upload, null, response );
+  }
+
+  /**
+   * Passes the completed file to the receiver. If several requests complete the upload at the
+   * same time, only the first one commits it. The commit of a parallel upload is claimed through
+   * its shared state, so that chunks in progress stop writing.
+   */
+  private void commit( ResumableUpload upload,
+                       ParallelUpload parallelUpload,
+                       HttpServletResponse response )
+    throws IOException
+  {
+    if( parallelUpload != null ? parallelUpload.claimCommit() : upload.claimCommit() ) {
+      if( !upload.exists() ) {
+        // committed by another request in the meantime
+        releaseCommit( upload, parallelUpload );
+      } else {
+        FileDetailsImpl details = new FileDetailsImpl( upload.getFileName(),
+                                                       upload.getContentType(),
+                                                       upload.getLength() );
+        try {
+          receive( upload, details );
+          upload.delete();
+          tracker.addFile( details );
+          tracker.handleFinished();
+        } catch( Exception exception ) {
+          // the upload is kept, the commit can be repeated with an empty chunk
+          releaseCommit( upload, parallelUpload );
+          tracker.setException( exception );
+          tracker.handleFailed();
+          int status = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+          response.sendError( status, exception.getMessage() );
+        }
+      }
+    }
+  }
+
+  private static void releaseCommit( ResumableUpload upload, ParallelUpload parallelUpload ) {
+    if( parallelUpload != null ) {
+      parallelUpload.releaseCommit();
+    } else {
+      upload.releaseCommit();
+    }
+  }
+
+  private void receive( ResumableUpload upload, FileDetailsImpl details ) throws IOException {
+    InputStream stream = new FileInputStream( upload.getDataFile() );
+    try {
+      String[] digestAlgorithms = handler.getDigestAlgorithms();
+      DigestingInputStream digestingStream = null;
+      if( digestAlgorithms.length > 0 ) {
+        digestingStream = new DigestingInputStream( stream, digestAlgorithms, details );
+        stream = digestingStream;
+      }
+      handler.getReceiver().receive( stream, details );
+      if( digestingStream != null ) {
+        digestingStream.drain();
+      }
+    } finally {
+      stream.close();
+    }
+  }
+
+  private static void setOffsetHeaders( ResumableUpload upload, HttpServletResponse response )
+    throws IOException
+  {
+    if( upload.isParallel() ) {
+      setRangeHeaders( upload, upload.readReceivedRanges(), response );
+    } else {
+      response.setHeader( HEADER_OFFSET, String.valueOf( upload.getOffset() ) );
+      response.setHeader( HEADER_LENGTH, String.valueOf( upload.getLength() ) );
+    }
+  }
+
+  private static void setRangeHeaders( ResumableUpload upload,
+                                       ReceivedRanges ranges,
+                                       HttpServletResponse response )
+  {
+    response.setHeader( HEADER_OFFSET, String.valueOf( ranges.getContiguousLength() ) );
+    response.setHeader( HEADER_LENGTH, String.valueOf( upload.getLength() ) );
+    response.setHeader( HEADER_MODE, PARALLEL_MODE );
+    response.setHeader( HEADER_RANGES, ranges.toString() );
+  }
+
+  private static FileLock tryLock( FileChannel channel ) throws IOException {
+    FileLock result;
+    try {
+      result = channel.tryLock();
+    } catch( OverlappingFileLockException exception ) {
+      // held by another thread of this virtual machine
+      result = null;
+    }
+    return result;
+  }
+
+  private static String createId() {
+    String result = FileUploadHandlerStore.createToken();
+    if( !ResumableUpload.isValidId( result ) ) {
+      throw new IllegalStateException( "Token generator created an invalid upload id" );
+    }
+    return result;
+  }
+
+  private static boolean exceedsLimit( long length, long limit ) {
+    return limit != -1 && length > limit;
+  }
+
+  private static long parseLong( String value ) {
+    long result = -1;
+    if( value != null ) {
+      try {
+        result = Long.parseLong( value.trim() );
+      } catch( NumberFormatException exception ) {
+        result = -1;
+      }
+    }
+    return result;
+  }
+
+}
@@ -0,0 +1,61 @@
+/*******************************************************************************
+ * Copyright (c) 2014 EclipseSource and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    EclipseSource - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.rap.addons.fileupload.internal;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * A token bucket that limits a byte rate. The bucket holds up to one second worth of bytes, so
+ * that short bursts are not delayed. Callers take bytes after they have read them, and may leave
+ * the bucket in debt. Each caller then waits until its debt is paid off, so that concurrent
+ * callers share the rate.
+ */
+final class TokenBucket {
+
+  private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos( 1 );
+
+  private long rate;
+  private double tokens;
+  private long lastRefillTime;
+
+  TokenBucket( long rate ) {
+    setRate( rate );
+    tokens = rate;
+    lastRefillTime = System.nanoTime();
+  }
+
+  synchronized void setRate( long rate ) {
+    if( rate <= 0 ) {
+      throw new IllegalArgumentException( "rate must be positive" );
+    }
+    this.rate = rate;
+  }
+
+  synchronized long getRate() {
+    return rate;
+  }
+
+  /**
+   * Takes the given number of bytes from the bucket and returns the time in nanoseconds that the
+   * caller has to wait.
+   */
+  synchronized long reserve( long bytes, long now ) {
+    long elapsed = now - lastRefillTime;
+    if( elapsed > 0 ) {
+      tokens = Math.min( rate, tokens + ( double )elapsed * rate / NANOS_PER_SECOND );
+      lastRefillTime = now;
+    }
+    tokens -= bytes;
+    return tokens < 0 ? ( long )( -tokens * NANOS_PER_SECOND / rate ) : 0;
+  }
+
+}
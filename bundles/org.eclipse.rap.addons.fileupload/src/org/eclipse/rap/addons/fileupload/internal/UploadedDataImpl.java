@@ -0,0 +1,143 @@
+/*******************************************************************************
+ * Copyright (c) 2014 EclipseSource and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    EclipseSource - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.rap.addons.fileupload.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import org.eclipse.rap.addons.fileupload.FileDetails;
+import org.eclipse.rap.addons.fileupload.FileUploadMemoryBudget;
+import org.eclipse.rap.addons.fileupload.UploadedData;
+
+
+public final class UploadedDataImpl implements UploadedData {
+
+  private final FileDetails details;
+  private final long length;
+  private final FileUploadMemoryBudget memoryBudget;
+  private final long reservedBytes;
+  private ByteBuffer buffer;
+  private File file;
+  private ByteBuffer mappedBuffer;
+  private Runnable releaseHook;
+  private boolean released;
+
+  /**
+   * Creates uploaded data that is held in memory.
+   *
+   * @param buffer the buffer with the data between position and limit
+   * @param memoryBudget the budget to release the reserved bytes to
+   * @param reservedBytes the number of bytes reserved for the buffer
+   */
+  public UploadedDataImpl( FileDetails details,
+                           ByteBuffer buffer,
+                           FileUploadMemoryBudget memoryBudget,
+                           long reservedBytes )
+  {
+    this.details = details;
+    this.buffer = buffer;
+    this.memoryBudget = memoryBudget;
+    this.reservedBytes = reservedBytes;
+    length = buffer.remaining();
+  }
+
+  /**
+   * Creates uploaded data that has been stored in a file.
+   */
+  public UploadedDataImpl( FileDetails details, File file, long length ) {
+    this.details = details;
+    this.file = file;
+    this.length = length;
+    memoryBudget = null;
+    reservedBytes = 0;
+  }
+
+  public FileDetails getFileDetails() {
+    return details;
+  }
+
+  public long getLength() {
+    return length;
+  }
+
+  public synchronized boolean isInMemory() {
+    return file == null;
+  }
+
+  public synchronized ByteBuffer getByteBuffer() throws IOException {
+    checkNotReleased();
+    ByteBuffer result;
+    if( buffer != null ) {
+      result = buffer.asReadOnlyBuffer();
+    } else {
+      if( mappedBuffer == null ) {
+        mappedBuffer = map( file, length );
+      }
+      result = mappedBuffer.duplicate();
+    }
+    return result;
+  }
+
+  public synchronized File getFile() {
+    checkNotReleased();
+    return file;
+  }
+
+  public synchronized void release() {
+    if( !released ) {
+      released = true;
+      if( buffer != null ) {
+        buffer = null;
+        memoryBudget.release( reservedBytes );
+      }
+      if( file != null ) {
+        mappedBuffer = null;
+        file.delete();
+      }
+      if( releaseHook != null ) {
+        releaseHook.run();
+      }
+    }
+  }
+
+  public synchronized boolean isReleased() {
+    return released;
+  }
+
+  /**
+   * Sets a runnable that is run once when this data is released.
+   */
+  public synchronized void setReleaseHook( Runnable releaseHook ) {
+    this.releaseHook = releaseHook;
+  }
+
+  private void checkNotReleased() {
+    if( released ) {
+      throw new IllegalStateException( "Uploaded data has been released" );
+    }
+  }
+
+  private static ByteBuffer map( File file, long length ) throws IOException {
+    RandomAccessFile randomAccessFile = new RandomAccessFile( file, "r" );
+    try {
+      FileChannel channel = randomAccessFile.getChannel();
+      // the mapping remains valid after the channel has been closed
+      return channel.map( MapMode.READ_ONLY, 0, length );
+    } finally {
+      randomAccessFile.close();
+    }
+  }
+
+}
@@ -15,6 +15,7 @@ import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -178,6 +179,31 @@ public class FileUploadRunnable_Test {
     verify( progressCollector ).updateProgress( 50 );
   }
 
+  @Test
+  public void testHandleProgress_withItem_updatesItemIcons() {
+    runnable.handleProgress( 100, 200, 1, 1 );
+
+    verify( uploadPanel ).updateIcon( 0, State.FINISHED );
+    verify( uploadPanel ).updateIcon( 1, State.UPLOADING );
+    verify( uploadPanel, never() ).updateIcons( State.UPLOADING );
+    assertEquals( State.UPLOADING, runnable.getState() );
+  }
+
+  @Test
+  public void testHandleProgress_withSameItem_updatesItemIconOnce() {
+    runnable.handleProgress( 100, 200, 0, 0 );
+    runnable.handleProgress( 150, 200, 0, 0 );
+
+    verify( uploadPanel ).updateIcon( 0, State.UPLOADING );
+  }
+
+  @Test
+  public void testHandleProgress_withItem_updatesProgress() {
+    runnable.handleProgress( 100, 200, 0, 0 );
+
+    verify( progressCollector ).updateProgress( 50 );
+  }
+
   @Test
   public void testHandleFinished_updatesIcons() {
     runnable.handleFinished( Collections.EMPTY_LIST );
@@ -309,6 +335,21 @@ public class FileUploadRunnable_Test {
       return 0;
     }
 
+    @Override
+    public int getCurrentItemIndex() {
+      return -1;
+    }
+
+    @Override
+    public long getCurrentItemBytesRead() {
+      return 0;
+    }
+
+    @Override
+    public int getCompletedItemCount() {
+      return 0;
+    }
+
     @Override
     public Exception getException() {
       return null;
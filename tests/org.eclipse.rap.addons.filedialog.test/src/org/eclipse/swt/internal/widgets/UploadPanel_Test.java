@@ -11,9 +11,12 @@
 package org.eclipse.swt.internal.widgets;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import org.eclipse.rap.rwt.testfixture.internal.Fixture;
+import org.eclipse.swt.graphics.Image;
 import org.eclipse.swt.internal.widgets.FileUploadRunnable.State;
 import org.eclipse.swt.widgets.Composite;
 import org.eclipse.swt.widgets.Control;
@@ -74,6 +77,24 @@ public class UploadPanel_Test {
     uploadPanel.updateIcons( State.UPLOADING );
   }
 
+  @Test
+  public void testUpdateIcon_updatesSingleRow() {
+    Label icon0 = ( Label )getRow( 0 ).getChildren()[ 0 ];
+    Label icon1 = ( Label )getRow( 1 ).getChildren()[ 0 ];
+    Image waitingImage = icon1.getImage();
+
+    uploadPanel.updateIcon( 0, State.UPLOADING );
+
+    assertNotSame( waitingImage, icon0.getImage() );
+    assertSame( waitingImage, icon1.getImage() );
+  }
+
+  @Test
+  public void testUpdateIcon_withInvalidIndex() {
+    uploadPanel.updateIcon( 2, State.UPLOADING );
+    uploadPanel.updateIcon( -1, State.UPLOADING );
+  }
+
   private Composite getRow( int index ) {
     return ( Composite )uploadPanel.getChildren()[ index ];
   }
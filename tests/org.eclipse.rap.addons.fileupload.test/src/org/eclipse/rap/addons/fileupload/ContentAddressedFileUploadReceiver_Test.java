@@ -0,0 +1,258 @@
+/*******************************************************************************
+ * Copyright (c) 2014 EclipseSource and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    EclipseSource - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.rap.addons.fileupload;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+
+import org.eclipse.rap.addons.fileupload.internal.FileDetailsImpl;
+import org.eclipse.rap.addons.fileupload.test.FileUploadTestUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class ContentAddressedFileUploadReceiver_Test {
+
+  private File storeDirectory;
+  private FileUploadContentStore contentStore;
+  private ContentAddressedFileUploadReceiver receiver;
+
+  @Before
+  public void setUp() throws IOException {
+    storeDirectory = FileUploadTestUtil.createTempDirectory();
+    contentStore = new FileUploadContentStore( storeDirectory );
+    receiver = new ContentAddressedFileUploadReceiver( contentStore );
+    receiver.setBufferPool( new FileUploadBufferPool( 16, 100 ) );
+  }
+
+  @After
+  public void tearDown() {
+    FileUploadTestUtil.deleteRecursively( storeDirectory );
+  }
+
+  @Test
+  public void testCreate_withNullStore() {
+    try {
+      new ContentAddressedFileUploadReceiver( null );
+      fail();
+    } catch( NullPointerException expected ) {
+    }
+  }
+
+  @Test
+  public void testInitialValues() {
+    assertSame( contentStore, receiver.getContentStore() );
+    assertEquals( 0, receiver.getTargetFiles().length );
+    assertEquals( 0, receiver.getFileDetails().length );
+    assertEquals( ContentAddressedFileUploadReceiver.DEFAULT_MEMORY_THRESHOLD,
+                  receiver.getMemoryThreshold() );
+    assertSame( FileUploadMemoryBudget.getDefault(), receiver.getMemoryBudget() );
+  }
+
+  @Test
+  public void testSetMemoryBudget_withNull() {
+    try {
+      receiver.setMemoryBudget( null );
+      fail();
+    } catch( NullPointerException expected ) {
+    }
+  }
+
+  @Test
+  public void testSetMemoryThreshold_withNegativeValue() {
+    try {
+      receiver.setMemoryThreshold( -1 );
+      fail();
+    } catch( IllegalArgumentException expected ) {
+    }
+  }
+
+  @Test
+  public void testReceive() throws IOException {
+    receive( "foo", "foo.txt" );
+
+    File file = receiver.getTargetFiles()[ 0 ];
+    assertEquals( "foo", FileUploadTestUtil.getFileContents( file ) );
+    assertEquals( storeDirectory.getAbsoluteFile(), file.getParentFile() );
+    assertEquals( "foo.txt", receiver.getFileDetails()[ 0 ].getFileName() );
+    assertEquals( 1, contentStore.getReferenceCount( file ) );
+  }
+
+  @Test
+  public void testReceive_namesFileAfterDigest() throws IOException {
+    receive( "", "empty.txt" );
+
+    String expected = "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855";
+    assertEquals( expected, receiver.getTargetFiles()[ 0 ].getName() );
+  }
+
+  @Test
+  public void testReceive_duplicate() throws IOException {
+    receive( "foo", "foo.txt" );
+    receive( "foo", "bar.txt" );
+
+    File[] files = receiver.getTargetFiles();
+    assertEquals( files[ 0 ], files[ 1 ] );
+    assertEquals( 2, contentStore.getReferenceCount( files[ 0 ] ) );
+    assertEquals( 1, contentStore.getFileCount() );
+    assertEquals( 1, contentStore.getDuplicateCount() );
+    assertEquals( 3, contentStore.getSavedBytes() );
+    assertEquals( 1, storeDirectory.listFiles().length );
+  }
+
+  @Test
+  public void testReceive_differentContent() throws IOException {
+    receive( "foo", "foo.txt" );
+    receive( "bar", "bar.txt" );
+
+    File[] files = receiver.getTargetFiles();
+    assertFalse( files[ 0 ].equals( files[ 1 ] ) );
+    assertEquals( 2, contentStore.getFileCount() );
+    assertEquals( 0, contentStore.getDuplicateCount() );
+  }
+
+  @Test
+  public void testReceive_largeFile() throws IOException {
+    receiver.setMemoryThreshold( 20 );
+    String content = createContent( 100 );
+
+    receive( content, "foo.txt" );
+    receive( content, "bar.txt" );
+
+    File[] files = receiver.getTargetFiles();
+    assertEquals( content, FileUploadTestUtil.getFileContents( files[ 0 ] ) );
+    assertEquals( files[ 0 ], files[ 1 ] );
+    assertEquals( 1, storeDirectory.listFiles().length );
+  }
+
+  @Test
+  public void testReceive_releasesReservedMemory() throws IOException {
+    FileUploadMemoryBudget memoryBudget = new FileUploadMemoryBudget( 1024 );
+    receiver.setMemoryBudget( memoryBudget );
+
+    receive( createContent( 100 ), "foo.txt" );
+
+    assertEquals( 0, memoryBudget.getReservedBytes() );
+  }
+
+  @Test
+  public void testReceive_writesToDiskWhenBudgetIsExhausted() throws IOException {
+    FileUploadMemoryBudget memoryBudget = new FileUploadMemoryBudget( 10 );
+    receiver.setMemoryBudget( memoryBudget );
+    String content = createContent( 100 );
+
+    receive( content, "foo.txt" );
+
+    File file = receiver.getTargetFiles()[ 0 ];
+    assertEquals( content, FileUploadTestUtil.getFileContents( file ) );
+    assertEquals( 1, storeDirectory.listFiles().length );
+    assertEquals( 0, memoryBudget.getReservedBytes() );
+  }
+
+  @Test
+  public void testReceive_largeAndSmallFileWithSameContent() throws IOException {
+    String content = createContent( 100 );
+    receive( content, "foo.txt" );
+    receiver.setMemoryThreshold( 0 );
+
+    receive( content, "bar.txt" );
+
+    File[] files = receiver.getTargetFiles();
+    assertEquals( files[ 0 ], files[ 1 ] );
+  }
+
+  @Test
+  public void testReceive_sharedStore() throws IOException {
+    ContentAddressedFileUploadReceiver otherReceiver
+      = new ContentAddressedFileUploadReceiver( contentStore );
+
+    receive( "foo", "foo.txt" );
+    byte[] content = "foo".getBytes();
+    otherReceiver.receive( new ByteArrayInputStream( content ), createDetails( "bar.txt" ) );
+
+    assertEquals( receiver.getTargetFiles()[ 0 ], otherReceiver.getTargetFiles()[ 0 ] );
+  }
+
+  @Test
+  public void testReceive_reusesExistingFile() throws IOException {
+    receive( "foo", "foo.txt" );
+    File file = receiver.getTargetFiles()[ 0 ];
+    FileUploadContentStore newStore = new FileUploadContentStore( storeDirectory );
+    ContentAddressedFileUploadReceiver newReceiver
+      = new ContentAddressedFileUploadReceiver( newStore );
+
+    newReceiver.receive( new ByteArrayInputStream( "foo".getBytes() ), createDetails( "foo.txt" ) );
+
+    assertEquals( file, newReceiver.getTargetFiles()[ 0 ] );
+    assertEquals( 1, newStore.getReferenceCount( file ) );
+  }
+
+  @Test
+  public void testRelease_keepsSharedFile() throws IOException {
+    ContentAddressedFileUploadReceiver otherReceiver
+      = new ContentAddressedFileUploadReceiver( contentStore );
+    receive( "foo", "foo.txt" );
+    otherReceiver.receive( new ByteArrayInputStream( "foo".getBytes() ), createDetails( "foo" ) );
+    File file = receiver.getTargetFiles()[ 0 ];
+
+    receiver.release();
+
+    assertTrue( file.exists() );
+    assertEquals( 0, receiver.getTargetFiles().length );
+    assertEquals( 1, contentStore.getReferenceCount( file ) );
+  }
+
+  @Test
+  public void testRelease_deletesUnreferencedFile() throws IOException {
+    receive( "foo", "foo.txt" );
+    receive( "foo", "bar.txt" );
+    File file = receiver.getTargetFiles()[ 0 ];
+
+    receiver.release();
+
+    assertFalse( file.exists() );
+    assertEquals( 0, contentStore.getFileCount() );
+  }
+
+  @Test
+  public void testReleaseFile_withUnknownFile() {
+    File file = new File( storeDirectory, "foo" );
+
+    contentStore.release( file );
+
+    assertEquals( 0, contentStore.getReferenceCount( file ) );
+  }
+
+  private void receive( String content, String fileName ) throws IOException {
+    receiver.receive( new ByteArrayInputStream( content.getBytes() ), createDetails( fileName ) );
+  }
+
+  private static FileDetails createDetails( String fileName ) {
+    return new FileDetailsImpl( fileName, "text/plain", -1 );
+  }
+
+  private static String createContent( int length ) {
+    StringBuffer buffer = new StringBuffer( length );
+    for( int i = 0; i < length; i++ ) {
+      buffer.append( ( char )( 'a' + i % 26 ) );
+    }
+    return buffer.toString();
+  }
+
+}
@@ -13,13 +13,19 @@ package org.eclipse.rap.addons.fileupload;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
 
 import org.eclipse.rap.addons.fileupload.internal.FileDetailsImpl;
+import org.eclipse.rap.addons.fileupload.internal.FileMetadataCache;
 import org.eclipse.rap.addons.fileupload.test.FileUploadTestUtil;
 import org.junit.After;
 import org.junit.Test;
@@ -29,9 +35,14 @@ public class DiskFileUploadReceiver_Test {
 
   private File createdFile;
   private File createdContentTypeFile;
+  private File tempDirectory;
 
   @After
   public void tearDown() {
+    if( tempDirectory != null ) {
+      FileUploadTestUtil.deleteRecursively( tempDirectory );
+      tempDirectory = null;
+    }
     if( createdFile != null ) {
       createdFile.delete();
       createdFile = null;
@@ -78,6 +89,81 @@ public class DiskFileUploadReceiver_Test {
     assertEquals( null, DiskFileUploadReceiver.getContentType( new File( "test" ) ) );
   }
 
+  @Test
+  public void testGetFileMetadata() throws IOException {
+    DiskFileUploadReceiver receiver = new DiskFileUploadReceiver();
+    receiver.setComputeChecksum( true );
+    String content = "Hello world!";
+    long startTime = System.currentTimeMillis();
+
+    FileDetails details = new FileDetailsImpl( "foo.bar", "text/plain", content.length() );
+    receiver.receive( new ByteArrayInputStream( content.getBytes() ), details );
+    createdFile = receiver.getTargetFiles()[ 0 ];
+    FileMetadata metadata = DiskFileUploadReceiver.getFileMetadata( createdFile );
+
+    CRC32 checksum = new CRC32();
+    checksum.update( content.getBytes() );
+    assertEquals( "text/plain", metadata.getContentType() );
+    assertEquals( content.length(), metadata.getLength() );
+    assertEquals( checksum.getValue(), metadata.getChecksum() );
+    assertTrue( metadata.getReceiveTime() >= startTime );
+  }
+
+  @Test
+  public void testGetFileMetadata_withFileChannel() throws IOException {
+    DiskFileUploadReceiver receiver = new DiskFileUploadReceiver();
+    receiver.setUseFileChannel( true );
+    receiver.setComputeChecksum( true );
+    String content = createLongContent( 100000 );
+
+    FileDetails details = new FileDetailsImpl( "foo.bar", "text/plain", content.length() );
+    receiver.receive( new ByteArrayInputStream( content.getBytes() ), details );
+    createdFile = receiver.getTargetFiles()[ 0 ];
+    FileMetadata metadata = DiskFileUploadReceiver.getFileMetadata( createdFile );
+
+    CRC32 checksum = new CRC32();
+    checksum.update( content.getBytes() );
+    assertEquals( content.length(), metadata.getLength() );
+    assertEquals( checksum.getValue(), metadata.getChecksum() );
+  }
+
+  @Test
+  public void testComputeChecksum_isFalseByDefault() {
+    DiskFileUploadReceiver receiver = new DiskFileUploadReceiver();
+
+    assertFalse( receiver.getComputeChecksum() );
+  }
+
+  @Test
+  public void testGetFileMetadata_withoutChecksum() throws IOException {
+    DiskFileUploadReceiver receiver = new DiskFileUploadReceiver();
+
+    FileDetails details = new FileDetailsImpl( "foo.bar", "text/plain", 5 );
+    receiver.receive( new ByteArrayInputStream( "Hello".getBytes() ), details );
+    createdFile = receiver.getTargetFiles()[ 0 ];
+    FileMetadata metadata = DiskFileUploadReceiver.getFileMetadata( createdFile );
+
+    assertEquals( 5, metadata.getLength() );
+    assertEquals( -1, metadata.getChecksum() );
+  }
+
+  @Test
+  public void testGetFileMetadata_fallsBackToContentTypeFile() throws IOException {
+    testReceive();
+    FileMetadataCache.getInstance().remove( createdFile );
+
+    FileMetadata metadata = DiskFileUploadReceiver.getFileMetadata( createdFile );
+
+    assertEquals( "text/plain", metadata.getContentType() );
+    assertEquals( createdFile.length(), metadata.getLength() );
+    assertEquals( -1, metadata.getChecksum() );
+  }
+
+  @Test
+  public void testGetFileMetadata_withUnknownFile() {
+    assertNull( DiskFileUploadReceiver.getFileMetadata( new File( "test" ) ) );
+  }
+
   @Test
   public void testCreatedTargetFilesDiffer() throws IOException {
     DiskFileUploadReceiver receiver = new DiskFileUploadReceiver();
@@ -104,6 +190,354 @@ public class DiskFileUploadReceiver_Test {
     assertEquals( content, FileUploadTestUtil.getFileContents( createdFile ) );
   }
 
+  @Test
+  public void testUseFileChannel_isFalseByDefault() {
+    DiskFileUploadReceiver receiver = new DiskFileUploadReceiver();
+
+    assertFalse( receiver.getUseFileChannel() );
+  }
+
+  @Test
+  public void testReceive_withFileChannel() throws IOException {
+    DiskFileUploadReceiver receiver = new DiskFileUploadReceiver();
+    receiver.setUseFileChannel( true );
+    String content = createLongContent( 20000 );
+
+    FileDetails details = new FileDetailsImpl( "foo.bar", "text/plain", content.length() );
+    receiver.receive( new ByteArrayInputStream( content.getBytes() ), details );
+    createdFile = receiver.getTargetFiles()[ 0 ];
+
+    assertTrue( createdFile.exists() );
+    assertEquals( content, FileUploadTestUtil.getFileContents( createdFile ) );
+  }
+
+  @Test
+  public void testReceive_withFileChannelAndEmptyStream() throws IOException {
+    DiskFileUploadReceiver receiver = new DiskFileUploadReceiver();
+    receiver.setUseFileChannel( true );
+
+    FileDetails details = new FileDetailsImpl( "foo.bar", "text/plain", 0 );
+    receiver.receive( new ByteArrayInputStream( new byte[ 0 ] ), details );
+    createdFile = receiver.getTargetFiles()[ 0 ];
+
+    assertTrue( createdFile.exists() );
+    assertEquals( 0, createdFile.length() );
+  }
+
+  @Test
+  public void testPreallocate_isFalseByDefault() {
+    DiskFileUploadReceiver receiver = new DiskFileUploadReceiver();
+
+    assertFalse( receiver.getPreallocate() );
+  }
+
+  @Test
+  public void testReceive_withPreallocate() throws IOException {
+    DiskFileUploadReceiver receiver = new DiskFileUploadReceiver();
+    receiver.setPreallocate( true );
+    String content = createLongContent( 20000 );
+
+    FileDetails details = new FileDetailsImpl( "foo.bar", "text/plain", content.length() );
+    receiver.receive( new ByteArrayInputStream( content.getBytes() ), details );
+    createdFile = receiver.getTargetFiles()[ 0 ];
+
+    assertEquals( content, FileUploadTestUtil.getFileContents( createdFile ) );
+    assertEquals( 20000, DiskFileUploadReceiver.getFileMetadata( createdFile ).getLength() );
+  }
+
+  @Test
+  public void testReceive_withPreallocateAndDeclaredLengthAboveMaximum() throws IOException {
+    final File[] targetFile = new File[ 1 ];
+    DiskFileUploadReceiver receiver = new DiskFileUploadReceiver() {
+      @Override
+      protected File createTargetFile( FileDetails details ) throws IOException {
+        targetFile[ 0 ] = super.createTargetFile( details );
+        return targetFile[ 0 ];
+      }
+    };
+    receiver.setPreallocate( true );
+    long declaredLength = DiskFileUploadReceiver.MAX_PREALLOCATED_LENGTH + 1;
+    final long[] lengthWhileReceiving = new long[] { -1 };
+    InputStream stream = new ByteArrayInputStream( "foo".getBytes() ) {
+      @Override
+      public synchronized int read( byte[] bytes, int offset, int length ) {
+        if( lengthWhileReceiving[ 0 ] == -1 ) {
+          lengthWhileReceiving[ 0 ] = targetFile[ 0 ].length();
+        }
+        return super.read( bytes, offset, length );
+      }
+    };
+
+    FileDetails details = new FileDetailsImpl( "foo.bar", "text/plain", declaredLength );
+    receiver.receive( stream, details );
+    createdFile = receiver.getTargetFiles()[ 0 ];
+
+    assertEquals( 0, lengthWhileReceiving[ 0 ] );
+    assertEquals( "foo", FileUploadTestUtil.getFileContents( createdFile ) );
+  }
+
+  @Test
+  public void testReceive_withPreallocateAndShorterContent() throws IOException {
+    DiskFileUploadReceiver receiver = new DiskFileUploadReceiver();
+    receiver.setPreallocate( true );
+    String content = createLongContent( 1000 );
+
+    FileDetails details = new FileDetailsImpl( "foo.bar", "text/plain", 5000 );
+    receiver.receive( new ByteArrayInputStream( content.getBytes() ), details );
+    createdFile = receiver.getTargetFiles()[ 0 ];
+
+    assertEquals( 1000, createdFile.length() );
+    assertEquals( content, FileUploadTestUtil.getFileContents( createdFile ) );
+  }
+
+  @Test
+  public void testReceive_withPreallocateAndLongerContent() throws IOException {
+    DiskFileUploadReceiver receiver = new DiskFileUploadReceiver();
+    receiver.setPreallocate( true );
+    String content = createLongContent( 5000 );
+
+    FileDetails details = new FileDetailsImpl( "foo.bar", "text/plain", 1000 );
+    receiver.receive( new ByteArrayInputStream( content.getBytes() ), details );
+    createdFile = receiver.getTargetFiles()[ 0 ];
+
+    assertEquals( content, FileUploadTestUtil.getFileContents( createdFile ) );
+  }
+
+  @Test
+  public void testReceive_withPreallocateAndUnknownLength() throws IOException {
+    DiskFileUploadReceiver receiver = new DiskFileUploadReceiver();
+    receiver.setPreallocate( true );
+    String content = createLongContent( 1000 );
+
+    FileDetails details = new FileDetailsImpl( "foo.bar", "text/plain", -1 );
+    receiver.receive( new ByteArrayInputStream( content.getBytes() ), details );
+    createdFile = receiver.getTargetFiles()[ 0 ];
+
+    assertEquals( content, FileUploadTestUtil.getFileContents( createdFile ) );
+  }
+
+  @Test
+  public void testReceive_withPreallocateDeletesFileIfTransferFails() throws IOException {
+    File[] targetFile = new File[ 1 ];
+    DiskFileUploadReceiver receiver = createCapturingReceiver( targetFile );
+    receiver.setPreallocate( true );
+
+    FileDetails details = new FileDetailsImpl( "foo.bar", "text/plain", 5000 );
+    try {
+      receiver.receive( createFailingStream( 1000 ), details );
+      fail();
+    } catch( IOException expected ) {
+    }
+
+    assertFalse( targetFile[ 0 ].exists() );
+    assertFalse( targetFile[ 0 ].getParentFile().exists() );
+    assertEquals( 0, receiver.getTargetFiles().length );
+  }
+
+  @Test
+  public void testReceive_deletesFileIfWriteFails() throws IOException {
+    File[] targetFile = new File[ 1 ];
+    DiskFileUploadReceiver receiver = createCapturingReceiver( targetFile );
+
+    try {
+      receiver.receive( createFailingStream( 1000 ), null );
+      fail();
+    } catch( IOException expected ) {
+    }
+
+    assertFalse( targetFile[ 0 ].exists() );
+    assertFalse( targetFile[ 0 ].getParentFile().exists() );
+    assertEquals( 0, receiver.getTargetFiles().length );
+  }
+
+  @Test
+  public void testReceive_withTargetDirectoryDeletesFileIfWriteFails() throws IOException {
+    tempDirectory = FileUploadTestUtil.createTempDirectory();
+    File[] targetFile = new File[ 1 ];
+    DiskFileUploadReceiver receiver = createCapturingReceiver( targetFile );
+    receiver.setTargetDirectory( tempDirectory );
+    receiver.setUseFileChannel( true );
+
+    try {
+      receiver.receive( createFailingStream( 1000 ), null );
+      fail();
+    } catch( IOException expected ) {
+    }
+
+    assertFalse( targetFile[ 0 ].exists() );
+    assertTrue( tempDirectory.isDirectory() );
+  }
+
+  @Test
+  public void testTimeToLive_isDefaultTimeToLiveByDefault() {
+    DiskFileUploadReceiver receiver = new DiskFileUploadReceiver();
+
+    assertEquals( FileUploadReaper.DEFAULT_TIME_TO_LIVE, receiver.getTimeToLive() );
+  }
+
+  @Test
+  public void testSetTimeToLive_withZero() {
+    DiskFileUploadReceiver receiver = new DiskFileUploadReceiver();
+
+    try {
+      receiver.setTimeToLive( 0 );
+      fail();
+    } catch( IllegalArgumentException expected ) {
+    }
+  }
+
+  @Test
+  public void testBufferPool_isDefaultPoolByDefault() {
+    DiskFileUploadReceiver receiver = new DiskFileUploadReceiver();
+
+    assertSame( FileUploadBufferPool.getDefault(), receiver.getBufferPool() );
+  }
+
+  @Test
+  public void testSetBufferPool_withNull() {
+    DiskFileUploadReceiver receiver = new DiskFileUploadReceiver();
+
+    try {
+      receiver.setBufferPool( null );
+      fail();
+    } catch( NullPointerException expected ) {
+    }
+  }
+
+  @Test
+  public void testReceive_returnsBufferToPool() throws IOException {
+    DiskFileUploadReceiver receiver = new DiskFileUploadReceiver();
+    FileUploadBufferPool bufferPool = new FileUploadBufferPool( 4, 100 );
+    receiver.setBufferPool( bufferPool );
+    String content = "Hello world!";
+
+    FileDetails details = new FileDetailsImpl( "foo.bar", "text/plain", content.length() );
+    receiver.receive( new ByteArrayInputStream( content.getBytes() ), details );
+    createdFile = receiver.getTargetFiles()[ 0 ];
+
+    assertEquals( content, FileUploadTestUtil.getFileContents( createdFile ) );
+    assertEquals( 1, bufferPool.getMissCount() );
+    assertEquals( 1, bufferPool.getPooledBufferCount() );
+  }
+
+  @Test
+  public void testReceive_withFileChannelAndSmallBuffer() throws IOException {
+    DiskFileUploadReceiver receiver = new DiskFileUploadReceiver();
+    receiver.setUseFileChannel( true );
+    receiver.setBufferPool( new FileUploadBufferPool( 7, 100 ) );
+    String content = createLongContent( 1000 );
+
+    FileDetails details = new FileDetailsImpl( "foo.bar", "text/plain", content.length() );
+    receiver.receive( new ByteArrayInputStream( content.getBytes() ), details );
+    createdFile = receiver.getTargetFiles()[ 0 ];
+
+    assertEquals( content, FileUploadTestUtil.getFileContents( createdFile ) );
+  }
+
+  @Test
+  public void testTargetDirectory_isNullByDefault() {
+    DiskFileUploadReceiver receiver = new DiskFileUploadReceiver();
+
+    assertNull( receiver.getTargetDirectory() );
+  }
+
+  @Test
+  public void testCreateTargetFile_withTargetDirectory() throws IOException {
+    DiskFileUploadReceiver receiver = new DiskFileUploadReceiver();
+    tempDirectory = FileUploadTestUtil.createTempDirectory();
+    receiver.setTargetDirectory( tempDirectory );
+
+    FileDetails details = new FileDetailsImpl( "foo.bar", "text/plain", 5 );
+    File file1 = receiver.createTargetFile( details );
+    File file2 = receiver.createTargetFile( details );
+    File file3 = receiver.createTargetFile( new FileDetailsImpl( "foo", "text/plain", 5 ) );
+    File file4 = receiver.createTargetFile( new FileDetailsImpl( "foo", "text/plain", 5 ) );
+
+    assertEquals( tempDirectory, file1.getParentFile() );
+    assertEquals( tempDirectory, file2.getParentFile() );
+    assertEquals( "foo.bar", file1.getName() );
+    assertEquals( "foo_1.bar", file2.getName() );
+    assertEquals( "foo", file3.getName() );
+    assertEquals( "foo_1", file4.getName() );
+  }
+
+  @Test
+  public void testCreateTargetFile_withTargetDirectoryAndReservedName() throws IOException {
+    DiskFileUploadReceiver receiver = new DiskFileUploadReceiver();
+    tempDirectory = FileUploadTestUtil.createTempDirectory();
+    receiver.setTargetDirectory( tempDirectory );
+
+    FileDetails details = new FileDetailsImpl( "content-types.idx", "text/plain", 5 );
+    File file = receiver.createTargetFile( details );
+
+    assertEquals( "content-types_1.idx", file.getName() );
+  }
+
+  @Test
+  public void testCreateTargetFile_createsMissingTargetDirectory() throws IOException {
+    DiskFileUploadReceiver receiver = new DiskFileUploadReceiver();
+    tempDirectory = FileUploadTestUtil.createTempDirectory();
+    File targetDirectory = new File( tempDirectory, "uploads" );
+    receiver.setTargetDirectory( targetDirectory );
+
+    File file = receiver.createTargetFile( new FileDetailsImpl( "foo.bar", "text/plain", 5 ) );
+
+    assertEquals( targetDirectory, file.getParentFile() );
+    assertTrue( file.exists() );
+  }
+
+  @Test
+  public void testReceive_withTargetDirectory() throws IOException {
+    DiskFileUploadReceiver receiver = new DiskFileUploadReceiver();
+    tempDirectory = FileUploadTestUtil.createTempDirectory();
+    receiver.setTargetDirectory( tempDirectory );
+
+    FileDetails details1 = new FileDetailsImpl( "foo.txt", "text/plain", 3 );
+    receiver.receive( new ByteArrayInputStream( "foo".getBytes() ), details1 );
+    FileDetails details2 = new FileDetailsImpl( "foo.txt", "text/html", 3 );
+    receiver.receive( new ByteArrayInputStream( "bar".getBytes() ), details2 );
+
+    File[] targetFiles = receiver.getTargetFiles();
+    assertEquals( 2, tempDirectory.listFiles().length );
+    assertEquals( "foo", FileUploadTestUtil.getFileContents( targetFiles[ 0 ] ) );
+    assertEquals( "bar", FileUploadTestUtil.getFileContents( targetFiles[ 1 ] ) );
+    assertEquals( "text/plain", DiskFileUploadReceiver.getContentType( targetFiles[ 0 ] ) );
+    assertEquals( "text/html", DiskFileUploadReceiver.getContentType( targetFiles[ 1 ] ) );
+  }
+
+  @Test
+  public void testReceive_withTargetDirectoryAndPersistedContentTypes() throws IOException {
+    DiskFileUploadReceiver receiver = new DiskFileUploadReceiver();
+    tempDirectory = FileUploadTestUtil.createTempDirectory();
+    receiver.setTargetDirectory( tempDirectory );
+    receiver.setPersistContentTypes( true );
+
+    FileDetails details = new FileDetailsImpl( "foo.txt", "text/plain", 3 );
+    receiver.receive( new ByteArrayInputStream( "foo".getBytes() ), details );
+
+    File targetFile = receiver.getTargetFiles()[ 0 ];
+    assertTrue( new File( tempDirectory, "content-types.idx" ).exists() );
+    assertEquals( "text/plain", DiskFileUploadReceiver.getContentType( targetFile ) );
+  }
+
+  @Test
+  public void testReceive_reusedNameDoesNotGetContentTypeOfReapedFile() throws IOException {
+    DiskFileUploadReceiver receiver = new DiskFileUploadReceiver();
+    tempDirectory = FileUploadTestUtil.createTempDirectory();
+    receiver.setTargetDirectory( tempDirectory );
+    receiver.setPersistContentTypes( true );
+    FileDetails details = new FileDetailsImpl( "foo.txt", "text/plain", 3 );
+    receiver.receive( new ByteArrayInputStream( "foo".getBytes() ), details );
+    FileUploadReaper.getInstance().release( receiver );
+
+    details = new FileDetailsImpl( "foo.txt", null, 3 );
+    receiver.receive( new ByteArrayInputStream( "bar".getBytes() ), details );
+
+    File targetFile = receiver.getTargetFiles()[ 1 ];
+    assertEquals( "foo.txt", targetFile.getName() );
+    assertNull( FileMetadataCache.getInstance().readPersisted( targetFile ) );
+  }
+
   @Test
   public void testReceiveWithNullDetails() throws IOException {
     DiskFileUploadReceiver receiver = new DiskFileUploadReceiver();
@@ -118,4 +552,36 @@ public class DiskFileUploadReceiver_Test {
     assertEquals( content, FileUploadTestUtil.getFileContents( createdFile ) );
   }
 
+  private static DiskFileUploadReceiver createCapturingReceiver( final File[] targetFile ) {
+    return new DiskFileUploadReceiver() {
+      @Override
+      protected File createTargetFile( FileDetails details ) throws IOException {
+        targetFile[ 0 ] = super.createTargetFile( details );
+        return targetFile[ 0 ];
+      }
+    };
+  }
+
+  private static InputStream createFailingStream( final int length ) {
+    return new InputStream() {
+      private int remaining = length;
+      @Override
+      public int read() throws IOException {
+        if( remaining == 0 ) {
+          throw new IOException( "Connection reset" );
+        }
+        remaining--;
+        return 'a';
+      }
+    };
+  }
+
+  private static String createLongContent( int length ) {
+    StringBuffer buffer = new StringBuffer( length );
+    for( int i = 0; i < length; i++ ) {
+      buffer.append( ( char )( 'a' + i % 26 ) );
+    }
+    return buffer.toString();
+  }
+
 }
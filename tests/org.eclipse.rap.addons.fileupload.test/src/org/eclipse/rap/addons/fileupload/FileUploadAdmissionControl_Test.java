@@ -0,0 +1,196 @@
+/*******************************************************************************
+ * Copyright (c) 2014 EclipseSource and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    EclipseSource - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.rap.addons.fileupload;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class FileUploadAdmissionControl_Test {
+
+  private FileUploadAdmissionControl admissionControl;
+
+  @Before
+  public void setUp() {
+    admissionControl = new FileUploadAdmissionControl();
+  }
+
+  @Test
+  public void testDefaults() {
+    assertEquals( -1, admissionControl.getMaxActiveUploads() );
+    assertEquals( -1, admissionControl.getMaxActiveUploadsPerSession() );
+    assertEquals( 0, admissionControl.getMaxQueuedUploads() );
+    assertEquals( FileUploadAdmissionControl.DEFAULT_QUEUE_TIMEOUT,
+                  admissionControl.getQueueTimeout() );
+    assertEquals( FileUploadAdmissionControl.DEFAULT_RETRY_AFTER,
+                  admissionControl.getRetryAfter() );
+  }
+
+  @Test
+  public void testSetMaxActiveUploads_withInvalidValue() {
+    try {
+      admissionControl.setMaxActiveUploads( -2 );
+      fail();
+    } catch( IllegalArgumentException expected ) {
+    }
+  }
+
+  @Test
+  public void testSetMaxQueuedUploads_withNegativeValue() {
+    try {
+      admissionControl.setMaxQueuedUploads( -1 );
+      fail();
+    } catch( IllegalArgumentException expected ) {
+    }
+  }
+
+  @Test
+  public void testAdmit_withNull() throws InterruptedException {
+    try {
+      admissionControl.admit( null );
+      fail();
+    } catch( NullPointerException expected ) {
+    }
+  }
+
+  @Test
+  public void testAdmit_withoutLimits() throws InterruptedException {
+    assertTrue( admissionControl.admit( "session" ) );
+    assertTrue( admissionControl.admit( "session" ) );
+
+    assertEquals( 2, admissionControl.getActiveUploadCount() );
+  }
+
+  @Test
+  public void testAdmit_exceedsMaxActiveUploads() throws InterruptedException {
+    admissionControl.setMaxActiveUploads( 1 );
+    admissionControl.admit( "session1" );
+
+    boolean admitted = admissionControl.admit( "session2" );
+
+    assertFalse( admitted );
+    assertEquals( 1, admissionControl.getActiveUploadCount() );
+    assertEquals( 1, admissionControl.getRejectedUploadCount() );
+  }
+
+  @Test
+  public void testAdmit_exceedsMaxActiveUploadsPerSession() throws InterruptedException {
+    admissionControl.setMaxActiveUploadsPerSession( 1 );
+    admissionControl.admit( "session1" );
+
+    assertFalse( admissionControl.admit( "session1" ) );
+    assertTrue( admissionControl.admit( "session2" ) );
+  }
+
+  @Test
+  public void testRelease_allowsNextUpload() throws InterruptedException {
+    admissionControl.setMaxActiveUploads( 1 );
+    admissionControl.admit( "session1" );
+
+    admissionControl.release( "session1" );
+
+    assertEquals( 0, admissionControl.getActiveUploadCount() );
+    assertTrue( admissionControl.admit( "session2" ) );
+  }
+
+  @Test
+  public void testRelease_withoutAdmit() {
+    admissionControl.release( "session" );
+
+    assertEquals( 0, admissionControl.getActiveUploadCount() );
+  }
+
+  @Test
+  public void testAdmit_waitsInQueueUntilTimeout() throws InterruptedException {
+    admissionControl.setMaxActiveUploads( 1 );
+    admissionControl.setMaxQueuedUploads( 1 );
+    admissionControl.setQueueTimeout( 20 );
+    admissionControl.admit( "session1" );
+
+    long start = System.currentTimeMillis();
+    boolean admitted = admissionControl.admit( "session2" );
+
+    assertFalse( admitted );
+    assertTrue( System.currentTimeMillis() - start >= 15 );
+    assertEquals( 0, admissionControl.getQueuedUploadCount() );
+    assertEquals( 1, admissionControl.getRejectedUploadCount() );
+  }
+
+  @Test
+  public void testAdmit_waitsInQueueUntilRelease() throws Exception {
+    admissionControl.setMaxActiveUploads( 1 );
+    admissionControl.setMaxQueuedUploads( 1 );
+    admissionControl.setQueueTimeout( 10000 );
+    admissionControl.admit( "session1" );
+    final AtomicBoolean admitted = new AtomicBoolean();
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          admitted.set( admissionControl.admit( "session2" ) );
+        } catch( InterruptedException exception ) {
+          // fail below
+        }
+      }
+    };
+    thread.start();
+    waitForQueuedUploads( 1 );
+
+    admissionControl.release( "session1" );
+    thread.join( 10000 );
+
+    assertTrue( admitted.get() );
+    assertEquals( 1, admissionControl.getActiveUploadCount() );
+    assertEquals( 0, admissionControl.getQueuedUploadCount() );
+  }
+
+  @Test
+  public void testAdmit_rejectedWhenQueueIsFull() throws Exception {
+    admissionControl.setMaxActiveUploads( 1 );
+    admissionControl.setMaxQueuedUploads( 1 );
+    admissionControl.setQueueTimeout( 10000 );
+    admissionControl.admit( "session1" );
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          admissionControl.admit( "session2" );
+        } catch( InterruptedException exception ) {
+          // expected
+        }
+      }
+    };
+    thread.start();
+    waitForQueuedUploads( 1 );
+
+    boolean admitted = admissionControl.admit( "session3" );
+
+    assertFalse( admitted );
+    thread.interrupt();
+    thread.join( 10000 );
+  }
+
+  private void waitForQueuedUploads( int count ) throws InterruptedException {
+    long end = System.currentTimeMillis() + 10000;
+    while( admissionControl.getQueuedUploadCount() < count && System.currentTimeMillis() < end ) {
+      Thread.sleep( 1 );
+    }
+    assertEquals( count, admissionControl.getQueuedUploadCount() );
+  }
+
+}
@@ -0,0 +1,116 @@
+/*******************************************************************************
+ * Copyright (c) 2014 EclipseSource and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    EclipseSource - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.rap.addons.fileupload;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+
+public class FileUploadBufferPool_Test {
+
+  @Test
+  public void testCreate_withInvalidBufferSize() {
+    try {
+      new FileUploadBufferPool( 0, 100 );
+      fail();
+    } catch( IllegalArgumentException expected ) {
+    }
+  }
+
+  @Test
+  public void testCreate_withNegativeMaxPoolSize() {
+    try {
+      new FileUploadBufferPool( 10, -1 );
+      fail();
+    } catch( IllegalArgumentException expected ) {
+    }
+  }
+
+  @Test
+  public void testGetDefault() {
+    FileUploadBufferPool pool = FileUploadBufferPool.getDefault();
+
+    assertNotNull( pool );
+    assertSame( pool, FileUploadBufferPool.getDefault() );
+    assertEquals( FileUploadBufferPool.DEFAULT_BUFFER_SIZE, pool.getBufferSize() );
+  }
+
+  @Test
+  public void testBorrowBuffer_fromEmptyPool() {
+    FileUploadBufferPool pool = new FileUploadBufferPool( 10, 100 );
+
+    byte[] buffer = pool.borrowBuffer();
+
+    assertEquals( 10, buffer.length );
+    assertEquals( 0, pool.getHitCount() );
+    assertEquals( 1, pool.getMissCount() );
+  }
+
+  @Test
+  public void testBorrowBuffer_reusesReturnedBuffer() {
+    FileUploadBufferPool pool = new FileUploadBufferPool( 10, 100 );
+    byte[] buffer = pool.borrowBuffer();
+
+    pool.returnBuffer( buffer );
+
+    assertSame( buffer, pool.borrowBuffer() );
+    assertEquals( 1, pool.getHitCount() );
+    assertEquals( 1, pool.getMissCount() );
+  }
+
+  @Test
+  public void testReturnBuffer_withNull() {
+    FileUploadBufferPool pool = new FileUploadBufferPool( 10, 100 );
+
+    try {
+      pool.returnBuffer( null );
+      fail();
+    } catch( NullPointerException expected ) {
+    }
+  }
+
+  @Test
+  public void testReturnBuffer_ignoresBufferWithDifferentSize() {
+    FileUploadBufferPool pool = new FileUploadBufferPool( 10, 100 );
+
+    pool.returnBuffer( new byte[ 20 ] );
+
+    assertEquals( 0, pool.getPooledBufferCount() );
+  }
+
+  @Test
+  public void testReturnBuffer_respectsMaxPoolSize() {
+    FileUploadBufferPool pool = new FileUploadBufferPool( 10, 25 );
+
+    pool.returnBuffer( new byte[ 10 ] );
+    pool.returnBuffer( new byte[ 10 ] );
+    pool.returnBuffer( new byte[ 10 ] );
+
+    assertEquals( 2, pool.getPooledBufferCount() );
+  }
+
+  @Test
+  public void testReturnBuffer_withZeroMaxPoolSize() {
+    FileUploadBufferPool pool = new FileUploadBufferPool( 10, 0 );
+    byte[] buffer = pool.borrowBuffer();
+
+    pool.returnBuffer( buffer );
+
+    assertEquals( 0, pool.getPooledBufferCount() );
+    assertNotSame( buffer, pool.borrowBuffer() );
+  }
+
+}
@@ -13,14 +13,23 @@ package org.eclipse.rap.addons.fileupload;
 import static org.eclipse.rap.rwt.internal.service.ContextProvider.getApplicationContext;
 import static org.hamcrest.CoreMatchers.containsString;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
@@ -28,10 +37,13 @@ import javax.servlet.http.HttpServletResponse;
 import org.eclipse.rap.addons.fileupload.internal.FileUploadHandlerStore;
 import org.eclipse.rap.addons.fileupload.internal.FileUploadServiceHandler;
 import org.eclipse.rap.addons.fileupload.test.FileUploadTestUtil;
+import org.eclipse.rap.addons.fileupload.test.FileUploadTestUtil.FileData;
 import org.eclipse.rap.addons.fileupload.test.TestFileUploadEvent;
 import org.eclipse.rap.addons.fileupload.test.TestFileUploadListener;
 import org.eclipse.rap.addons.fileupload.test.TestFileUploadReceiver;
+import org.eclipse.rap.rwt.RWT;
 import org.eclipse.rap.rwt.internal.service.ContextProvider;
+import org.eclipse.rap.rwt.internal.service.UISessionImpl;
 import org.eclipse.rap.rwt.service.ServiceHandler;
 import org.eclipse.rap.rwt.testfixture.internal.Fixture;
 import org.eclipse.rap.rwt.testfixture.internal.TestResponse;
@@ -86,6 +98,311 @@ public class FileUploadHandler_Test {
     assertNull( getRegisteredHandler( handler.getToken() ) );
   }
 
+  @Test
+  public void testDeleteFilesOnDispose_isFalseByDefault() {
+    assertFalse( handler.getDeleteFilesOnDispose() );
+  }
+
+  @Test
+  public void testDispose_keepsReceivedFilesByDefault() throws IOException {
+    DiskFileUploadReceiver receiver = new DiskFileUploadReceiver();
+    FileUploadHandler handler = new FileUploadHandler( receiver );
+    receiver.receive( new ByteArrayInputStream( "foo".getBytes() ), null );
+    File targetFile = receiver.getTargetFiles()[ 0 ];
+
+    handler.dispose();
+
+    assertTrue( targetFile.exists() );
+    FileUploadTestUtil.deleteRecursively( targetFile.getParentFile() );
+  }
+
+  @Test
+  public void testDispose_deletesReceivedFiles() throws IOException {
+    DiskFileUploadReceiver receiver = new DiskFileUploadReceiver();
+    FileUploadHandler handler = new FileUploadHandler( receiver );
+    handler.setDeleteFilesOnDispose( true );
+    receiver.receive( new ByteArrayInputStream( "foo".getBytes() ), null );
+    File targetFile = receiver.getTargetFiles()[ 0 ];
+
+    handler.dispose();
+
+    assertFalse( targetFile.exists() );
+    assertFalse( targetFile.getParentFile().exists() );
+  }
+
+  @Test
+  public void testSessionEnd_deletesReceivedFiles() throws IOException {
+    DiskFileUploadReceiver receiver = new DiskFileUploadReceiver();
+    new FileUploadHandler( receiver );
+    receiver.receive( new ByteArrayInputStream( "foo".getBytes() ), null );
+    File targetFile = receiver.getTargetFiles()[ 0 ];
+
+    ( ( UISessionImpl )RWT.getUISession() ).shutdown();
+
+    assertFalse( targetFile.exists() );
+  }
+
+  @Test
+  public void testSessionEnd_releasesContentAddressedFiles() throws IOException {
+    File storeDirectory = FileUploadTestUtil.createTempDirectory();
+    FileUploadContentStore contentStore = new FileUploadContentStore( storeDirectory );
+    ContentAddressedFileUploadReceiver receiver
+      = new ContentAddressedFileUploadReceiver( contentStore );
+    new FileUploadHandler( receiver );
+    receiver.receive( new ByteArrayInputStream( "foo".getBytes() ), null );
+
+    try {
+      ( ( UISessionImpl )RWT.getUISession() ).shutdown();
+
+      assertEquals( 0, receiver.getTargetFiles().length );
+      assertEquals( 0, contentStore.getFileCount() );
+    } finally {
+      FileUploadTestUtil.deleteRecursively( storeDirectory );
+    }
+  }
+
+  @Test
+  public void testSessionEnd_releasesReceivedData() throws IOException {
+    FileUploadMemoryBudget memoryBudget = new FileUploadMemoryBudget( 1024 );
+    MemoryFileUploadReceiver receiver = new MemoryFileUploadReceiver();
+    receiver.setMemoryBudget( memoryBudget );
+    new FileUploadHandler( receiver );
+    receiver.receive( new ByteArrayInputStream( "foo".getBytes() ), null );
+    UploadedData data = receiver.getUploadedData()[ 0 ];
+
+    ( ( UISessionImpl )RWT.getUISession() ).shutdown();
+
+    assertTrue( data.isReleased() );
+    assertEquals( 0, receiver.getUploadedData().length );
+    assertEquals( 0, memoryBudget.getReservedBytes() );
+  }
+
+  @Test
+  public void testDispose_releasesReceivedDataIfFilesAreDeleted() throws IOException {
+    OffHeapFileUploadReceiver receiver = new OffHeapFileUploadReceiver();
+    FileUploadHandler handler = new FileUploadHandler( receiver );
+    handler.setDeleteFilesOnDispose( true );
+    receiver.receive( new ByteArrayInputStream( "foo".getBytes() ), null );
+    UploadedData data = receiver.getUploadedData()[ 0 ];
+
+    handler.dispose();
+
+    assertTrue( data.isReleased() );
+    assertEquals( 0, receiver.getUploadedData().length );
+  }
+
+  @Test
+  public void testDigestAlgorithms_isEmptyByDefault() {
+    assertEquals( 0, handler.getDigestAlgorithms().length );
+  }
+
+  @Test
+  public void testSetDigestAlgorithms() {
+    handler.setDigestAlgorithms( "SHA-256", FileDigests.CRC32 );
+
+    String[] algorithms = handler.getDigestAlgorithms();
+
+    assertEquals( 2, algorithms.length );
+    assertEquals( "SHA-256", algorithms[ 0 ] );
+    assertEquals( FileDigests.CRC32, algorithms[ 1 ] );
+  }
+
+  @Test
+  public void testSetDigestAlgorithms_withNull() {
+    try {
+      handler.setDigestAlgorithms( ( String[] )null );
+      fail();
+    } catch( NullPointerException expected ) {
+    }
+  }
+
+  @Test
+  public void testSetDigestAlgorithms_withNullAlgorithm() {
+    try {
+      handler.setDigestAlgorithms( "SHA-256", null );
+      fail();
+    } catch( NullPointerException expected ) {
+    }
+  }
+
+  @Test
+  public void testSetDigestAlgorithms_withUnsupportedAlgorithm() {
+    try {
+      handler.setDigestAlgorithms( "foo" );
+      fail();
+    } catch( IllegalArgumentException expected ) {
+    }
+  }
+
+  @Test
+  public void testProgressSettings_defaults() {
+    assertEquals( 0, handler.getMinProgressInterval() );
+    assertEquals( 0, handler.getMinProgressBytes() );
+    assertEquals( 0, handler.getMinProgressPercent() );
+  }
+
+  @Test
+  public void testSetMinProgressInterval() {
+    handler.setMinProgressInterval( 250 );
+
+    assertEquals( 250, handler.getMinProgressInterval() );
+  }
+
+  @Test
+  public void testSetMinProgressInterval_withNegativeValue() {
+    try {
+      handler.setMinProgressInterval( -1 );
+      fail();
+    } catch( IllegalArgumentException expected ) {
+    }
+  }
+
+  @Test
+  public void testSetMinProgressBytes_withNegativeValue() {
+    try {
+      handler.setMinProgressBytes( -1 );
+      fail();
+    } catch( IllegalArgumentException expected ) {
+    }
+  }
+
+  @Test
+  public void testSetMinProgressPercent_withInvalidValue() {
+    try {
+      handler.setMinProgressPercent( 101 );
+      fail();
+    } catch( IllegalArgumentException expected ) {
+    }
+  }
+
+  @Test
+  public void testAsyncDispatch_isFalseByDefault() {
+    assertFalse( handler.getAsyncDispatch() );
+  }
+
+  @Test
+  public void testSetAsyncDispatch() {
+    handler.setAsyncDispatch( true );
+
+    assertTrue( handler.getAsyncDispatch() );
+  }
+
+  @Test
+  public void testSetDispatchExecutor_withNull() {
+    try {
+      FileUploadHandler.setDispatchExecutor( null );
+      fail();
+    } catch( NullPointerException expected ) {
+    }
+  }
+
+  @Test
+  public void testUploadWithAsyncDispatch() throws Exception {
+    final List<Runnable> runnables = new ArrayList<Runnable>();
+    Executor originalExecutor = FileUploadHandler.getDispatchExecutor();
+    FileUploadHandler.setDispatchExecutor( new Executor() {
+      public void execute( Runnable command ) {
+        runnables.add( command );
+      }
+    } );
+    try {
+      handler.addUploadListener( uploadListener );
+      handler.setAsyncDispatch( true );
+
+      fakeUploadRequest( handler, "The content", "text/plain", "short.txt" );
+      serviceHandler.service( ContextProvider.getRequest(), ContextProvider.getResponse() );
+
+      assertEquals( "", uploadListener.getLog() );
+      assertEquals( 1, runnables.size() );
+      runnables.get( 0 ).run();
+      assertEquals( "progress.finished.", uploadListener.getLog() );
+      FileUploadEvent event = uploadListener.getLastEvent();
+      assertEquals( "short.txt", event.getFileDetails()[ 0 ].getFileName() );
+    } finally {
+      FileUploadHandler.setDispatchExecutor( originalExecutor );
+    }
+  }
+
+  @Test
+  public void testUploadWithDigestAlgorithms() throws Exception {
+    TestFileUploadReceiver receiver = new TestFileUploadReceiver();
+    FileUploadHandler handler = new FileUploadHandler( receiver );
+    TestFileUploadListener listener = new TestFileUploadListener();
+    handler.addUploadListener( listener );
+    handler.setDigestAlgorithms( "SHA-256", "MD5" );
+    String content = "Lorem ipsum dolor sit amet.\n";
+
+    fakeUploadRequest( handler, content, "text/plain", "short.txt" );
+    serviceHandler.service( ContextProvider.getRequest(), ContextProvider.getResponse() );
+
+    FileDigests digests = ( FileDigests )listener.getLastEvent().getFileDetails()[ 0 ];
+    byte[] expected = MessageDigest.getInstance( "SHA-256" ).digest( content.getBytes() );
+    assertTrue( Arrays.equals( expected, digests.getDigest( "SHA-256" ) ) );
+    expected = MessageDigest.getInstance( "MD5" ).digest( content.getBytes() );
+    assertTrue( Arrays.equals( expected, digests.getDigest( "MD5" ) ) );
+  }
+
+  @Test
+  public void testTokenGenerator_isSecureTokenGeneratorByDefault() {
+    assertTrue( FileUploadHandler.getTokenGenerator() instanceof SecureTokenGenerator );
+    assertEquals( SecureTokenGenerator.TOKEN_LENGTH, handler.getToken().length() );
+  }
+
+  @Test
+  public void testSetTokenGenerator() {
+    FileUploadTokenGenerator defaultGenerator = FileUploadHandler.getTokenGenerator();
+    FileUploadHandler.setTokenGenerator( new FileUploadTokenGenerator() {
+      public String createToken() {
+        return "foo";
+      }
+    } );
+
+    try {
+      FileUploadHandler handler = new FileUploadHandler( new TestFileUploadReceiver() );
+
+      assertEquals( "foo", handler.getToken() );
+      assertSame( handler, getRegisteredHandler( "foo" ) );
+    } finally {
+      FileUploadHandler.setTokenGenerator( defaultGenerator );
+    }
+  }
+
+  @Test
+  public void testSetTokenGenerator_withNull() {
+    try {
+      FileUploadHandler.setTokenGenerator( null );
+      fail();
+    } catch( NullPointerException expected ) {
+    }
+  }
+
+  @Test
+  public void testIdleTimeout_isZeroByDefault() {
+    assertEquals( 0, handler.getIdleTimeout() );
+  }
+
+  @Test
+  public void testSetIdleTimeout_withNegativeValue() {
+    try {
+      handler.setIdleTimeout( -1 );
+      fail();
+    } catch( IllegalArgumentException expected ) {
+    }
+  }
+
+  @Test
+  public void testSessionEnd_disposesHandler() {
+    long expiredCount = FileUploadHandler.getExpiredHandlerCount();
+    int activeCount = FileUploadHandler.getActiveHandlerCount();
+    FileUploadHandlerStore handlerStore = FileUploadHandlerStore.getInstance();
+
+    ( ( UISessionImpl )RWT.getUISession() ).shutdown();
+
+    assertNull( handlerStore.getHandler( handler.getToken() ) );
+    assertEquals( activeCount - 1, handlerStore.getHandlerCount() );
+    assertEquals( expiredCount + 1, handlerStore.getExpiredHandlerCount() );
+  }
+
   @Test
   public void testGetReceiver() {
     FileUploadReceiver receiver = new TestFileUploadReceiver();
@@ -226,6 +543,218 @@ public class FileUploadHandler_Test {
     assertThat( getResponseContent(), containsString( "HTTP ERROR 413" ) );
   }
 
+  @Test
+  public void testUploadWithExceedMaxLimit_withBuiltInMultipartParser()
+    throws IOException, ServletException
+  {
+    TestFileUploadReceiver receiver = new TestFileUploadReceiver();
+    FileUploadHandler handler = new FileUploadHandler( receiver );
+    handler.setBuiltInMultipartParser( true );
+    handler.setMaxFileSize( 1000 );
+
+    fakeUploadRequest( handler, createContent( 1200 ), "text/plain", "short.txt" );
+    serviceHandler.service( ContextProvider.getRequest(), ContextProvider.getResponse() );
+
+    assertEquals( HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, getResponseErrorStatus() );
+    assertThat( getResponseContent(), containsString( "HTTP ERROR 413" ) );
+  }
+
+  @Test
+  public void testRequestLimits_defaults() {
+    assertEquals( -1, handler.getMaxRequestSize() );
+    assertEquals( -1, handler.getMaxFileCount() );
+  }
+
+  @Test
+  public void testSetMaxRequestSize_withInvalidValue() {
+    try {
+      handler.setMaxRequestSize( -2 );
+      fail();
+    } catch( IllegalArgumentException expected ) {
+    }
+  }
+
+  @Test
+  public void testMaxResumableUploads_isLimitedByDefault() {
+    assertEquals( FileUploadHandler.DEFAULT_MAX_RESUMABLE_UPLOADS,
+                  handler.getMaxResumableUploads() );
+  }
+
+  @Test
+  public void testSetMaxResumableUploads_withInvalidValue() {
+    try {
+      handler.setMaxResumableUploads( -2 );
+      fail();
+    } catch( IllegalArgumentException expected ) {
+    }
+  }
+
+  @Test
+  public void testStallTimeout_isLimitedByDefault() {
+    assertEquals( FileUploadHandler.DEFAULT_STALL_TIMEOUT, handler.getStallTimeout() );
+  }
+
+  @Test
+  public void testSpoolDirectory_isNullByDefault() {
+    assertNull( handler.getSpoolDirectory() );
+  }
+
+  @Test
+  public void testSetStallTimeout_withNegativeValue() {
+    try {
+      handler.setStallTimeout( -1 );
+      fail();
+    } catch( IllegalArgumentException expected ) {
+    }
+  }
+
+  @Test
+  public void testSetMaxFileCount_withInvalidValue() {
+    try {
+      handler.setMaxFileCount( -2 );
+      fail();
+    } catch( IllegalArgumentException expected ) {
+    }
+  }
+
+  @Test
+  public void testUploadWithExceedMaxRequestSize() throws IOException, ServletException {
+    TestFileUploadReceiver receiver = new TestFileUploadReceiver();
+    FileUploadHandler handler = new FileUploadHandler( receiver );
+    handler.addUploadListener( uploadListener );
+    handler.setMaxRequestSize( 100 );
+
+    fakeUploadRequest( handler, createContent( 200 ), "text/plain", "short.txt" );
+    serviceHandler.service( ContextProvider.getRequest(), ContextProvider.getResponse() );
+
+    assertEquals( HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, getResponseErrorStatus() );
+    assertEquals( "failed.", uploadListener.getLog() );
+    assertEquals( 0, receiver.getTotal() );
+  }
+
+  @Test
+  public void testUploadWithExceedMaxRequestSize_withBuiltInMultipartParser()
+    throws IOException, ServletException
+  {
+    TestFileUploadReceiver receiver = new TestFileUploadReceiver();
+    FileUploadHandler handler = new FileUploadHandler( receiver );
+    handler.addUploadListener( uploadListener );
+    handler.setBuiltInMultipartParser( true );
+    handler.setMaxRequestSize( 100 );
+
+    fakeUploadRequest( handler, createContent( 200 ), "text/plain", "short.txt" );
+    serviceHandler.service( ContextProvider.getRequest(), ContextProvider.getResponse() );
+
+    assertEquals( HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, getResponseErrorStatus() );
+    assertEquals( "failed.", uploadListener.getLog() );
+    assertEquals( 0, receiver.getTotal() );
+  }
+
+  @Test
+  public void testUploadWithinMaxRequestSize() throws IOException, ServletException {
+    TestFileUploadReceiver receiver = new TestFileUploadReceiver();
+    FileUploadHandler handler = new FileUploadHandler( receiver );
+    handler.setMaxRequestSize( 1000 );
+
+    fakeUploadRequest( handler, createContent( 200 ), "text/plain", "short.txt" );
+    serviceHandler.service( ContextProvider.getRequest(), ContextProvider.getResponse() );
+
+    assertEquals( 0, getResponseErrorStatus() );
+    assertEquals( 200, receiver.getContent().length );
+  }
+
+  @Test
+  public void testUploadWithExceedMaxFileCount() throws IOException, ServletException {
+    TestFileUploadReceiver receiver = new TestFileUploadReceiver();
+    FileUploadHandler handler = new FileUploadHandler( receiver );
+    handler.addUploadListener( uploadListener );
+    handler.setMaxFileCount( 1 );
+
+    FileUploadTestUtil.fakeUploadRequest( handler,
+                                          new FileData( "foo", "text/plain", "foo.txt" ),
+                                          new FileData( "bar", "text/plain", "bar.txt" ) );
+    serviceHandler.service( ContextProvider.getRequest(), ContextProvider.getResponse() );
+
+    assertEquals( HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, getResponseErrorStatus() );
+    assertTrue( uploadListener.getLog().endsWith( "failed." ) );
+    assertEquals( 1, uploadListener.getLastEvent().getFileDetails().length );
+    assertEquals( "foo", new String( receiver.getContent() ) );
+  }
+
+  @Test
+  public void testRateLimits_defaults() {
+    assertEquals( -1, handler.getMaxBytesPerSecond() );
+    assertEquals( -1, handler.getMaxSessionBytesPerSecond() );
+    assertEquals( -1, FileUploadHandler.getGlobalMaxBytesPerSecond() );
+  }
+
+  @Test
+  public void testSetMaxBytesPerSecond() {
+    handler.setMaxBytesPerSecond( 1024 );
+
+    assertEquals( 1024, handler.getMaxBytesPerSecond() );
+  }
+
+  @Test
+  public void testSetMaxBytesPerSecond_withZero() {
+    try {
+      handler.setMaxBytesPerSecond( 0 );
+      fail();
+    } catch( IllegalArgumentException expected ) {
+    }
+  }
+
+  @Test
+  public void testSetMaxSessionBytesPerSecond_withInvalidValue() {
+    try {
+      handler.setMaxSessionBytesPerSecond( -2 );
+      fail();
+    } catch( IllegalArgumentException expected ) {
+    }
+  }
+
+  @Test
+  public void testUploadWithRateLimits() throws IOException, ServletException {
+    TestFileUploadReceiver receiver = new TestFileUploadReceiver();
+    FileUploadHandler handler = new FileUploadHandler( receiver );
+    handler.setMaxBytesPerSecond( 1000 * 1000 );
+    handler.setMaxSessionBytesPerSecond( 1000 * 1000 );
+    FileUploadHandler.setGlobalMaxBytesPerSecond( 1000 * 1000 );
+    try {
+      fakeUploadRequest( handler, createContent( 200 ), "text/plain", "short.txt" );
+      serviceHandler.service( ContextProvider.getRequest(), ContextProvider.getResponse() );
+    } finally {
+      FileUploadHandler.setGlobalMaxBytesPerSecond( -1 );
+    }
+
+    assertEquals( 0, getResponseErrorStatus() );
+    assertEquals( 200, receiver.getContent().length );
+  }
+
+  @Test
+  public void testNonBlockingIO_defaultsToFalse() {
+    assertFalse( handler.getNonBlockingIO() );
+  }
+
+  @Test
+  public void testSetNonBlockingIO() {
+    handler.setNonBlockingIO( true );
+
+    assertTrue( handler.getNonBlockingIO() );
+  }
+
+  @Test
+  public void testBuiltInMultipartParser_defaultsToFalse() {
+    assertFalse( handler.getBuiltInMultipartParser() );
+  }
+
+  @Test
+  public void testSetBuiltInMultipartParser() {
+    handler.setBuiltInMultipartParser( true );
+
+    assertTrue( handler.getBuiltInMultipartParser() );
+  }
+
   @Test
   public void testUploadWithException() throws IOException, ServletException {
     FileUploadReceiver receiver = new FileUploadReceiver() {
@@ -263,6 +792,14 @@ public class FileUploadHandler_Test {
     FileUploadTestUtil.fakeUploadRequest( handler, content, contentType, fileName );
   }
 
+  private static String createContent( int length ) {
+    StringBuilder builder = new StringBuilder();
+    for( int i = 0; i < length; i++ ) {
+      builder.append( ( char )( 'a' + i % 26 ) );
+    }
+    return builder.toString();
+  }
+
   private static FileUploadHandler getRegisteredHandler( String token ) {
     return FileUploadHandlerStore.getInstance().getHandler( token );
   }
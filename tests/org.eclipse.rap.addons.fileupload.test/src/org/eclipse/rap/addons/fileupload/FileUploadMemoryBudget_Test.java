@@ -0,0 +1,81 @@
+/*******************************************************************************
+ * Copyright (c) 2014 EclipseSource and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    EclipseSource - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.rap.addons.fileupload;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+
+public class FileUploadMemoryBudget_Test {
+
+  @Test
+  public void testCreate_withNegativeLimit() {
+    try {
+      new FileUploadMemoryBudget( -1 );
+      fail();
+    } catch( IllegalArgumentException expected ) {
+    }
+  }
+
+  @Test
+  public void testGetDefault() {
+    FileUploadMemoryBudget budget = FileUploadMemoryBudget.getDefault();
+
+    assertSame( budget, FileUploadMemoryBudget.getDefault() );
+    assertEquals( FileUploadMemoryBudget.DEFAULT_LIMIT, budget.getLimit() );
+  }
+
+  @Test
+  public void testReserve() {
+    FileUploadMemoryBudget budget = new FileUploadMemoryBudget( 100 );
+
+    assertTrue( budget.reserve( 60 ) );
+    assertTrue( budget.reserve( 40 ) );
+    assertEquals( 100, budget.getReservedBytes() );
+  }
+
+  @Test
+  public void testReserve_exceedsLimit() {
+    FileUploadMemoryBudget budget = new FileUploadMemoryBudget( 100 );
+    budget.reserve( 60 );
+
+    assertFalse( budget.reserve( 41 ) );
+    assertEquals( 60, budget.getReservedBytes() );
+  }
+
+  @Test
+  public void testReserve_withNegativeBytes() {
+    FileUploadMemoryBudget budget = new FileUploadMemoryBudget( 100 );
+
+    try {
+      budget.reserve( -1 );
+      fail();
+    } catch( IllegalArgumentException expected ) {
+    }
+  }
+
+  @Test
+  public void testRelease() {
+    FileUploadMemoryBudget budget = new FileUploadMemoryBudget( 100 );
+    budget.reserve( 100 );
+
+    budget.release( 30 );
+
+    assertEquals( 70, budget.getReservedBytes() );
+    assertTrue( budget.reserve( 30 ) );
+  }
+
+}
@@ -0,0 +1,244 @@
+/*******************************************************************************
+ * Copyright (c) 2014 EclipseSource and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    EclipseSource - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.rap.addons.fileupload;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+
+import org.eclipse.rap.addons.fileupload.internal.FileMetadataCache;
+import org.eclipse.rap.addons.fileupload.internal.FileMetadataImpl;
+import org.eclipse.rap.addons.fileupload.test.FileUploadTestUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class FileUploadReaper_Test {
+
+  private File tempDirectory;
+  private FileUploadReaper reaper;
+
+  @Before
+  public void setUp() {
+    tempDirectory = FileUploadTestUtil.createTempDirectory();
+    reaper = new FileUploadReaper();
+  }
+
+  @After
+  public void tearDown() {
+    reaper.stop();
+    FileUploadTestUtil.deleteRecursively( tempDirectory );
+  }
+
+  @Test
+  public void testTrack_withNullFile() {
+    try {
+      reaper.track( null, null, 0 );
+      fail();
+    } catch( NullPointerException expected ) {
+    }
+  }
+
+  @Test
+  public void testTrack() throws IOException {
+    reaper.track( createFile( "foo", 3 ), null, 0 );
+
+    assertEquals( 1, reaper.getTrackedCount() );
+  }
+
+  @Test
+  public void testTrack_sameFileTwice() throws IOException {
+    File file = createFile( "foo", 3 );
+
+    reaper.track( file, null, 0 );
+    reaper.track( file, null, 0 );
+
+    assertEquals( 1, reaper.getTrackedCount() );
+  }
+
+  @Test
+  public void testRelease_withNullOwner() {
+    try {
+      reaper.release( null );
+      fail();
+    } catch( NullPointerException expected ) {
+    }
+  }
+
+  @Test
+  public void testRelease_deletesFilesOfOwner() throws IOException {
+    Object owner = new Object();
+    File file1 = createFile( "foo", 3 );
+    File file2 = createFile( "bar", 5 );
+    reaper.track( file1, owner, 0 );
+    reaper.track( file2, new Object(), 0 );
+
+    reaper.release( owner );
+
+    assertFalse( file1.exists() );
+    assertTrue( file2.exists() );
+    assertEquals( 1, reaper.getTrackedCount() );
+    assertEquals( 1, reaper.getDeletedCount() );
+    assertEquals( 3, reaper.getReclaimedBytes() );
+  }
+
+  @Test
+  public void testRelease_invalidatesFileMetadata() throws IOException {
+    Object owner = new Object();
+    File file = createFile( "foo", 3 );
+    FileMetadataCache.getInstance().put( file, new FileMetadataImpl( "text/plain", 3, -1, 0 ) );
+    reaper.track( file, owner, 0 );
+
+    reaper.release( owner );
+
+    assertNull( FileMetadataCache.getInstance().get( file ) );
+  }
+
+  @Test
+  public void testRelease_deletesDirectoryRecursively() throws IOException {
+    Object owner = new Object();
+    File directory = new File( tempDirectory, "dir" );
+    directory.mkdir();
+    createFile( "dir/foo", 3 );
+    createFile( "dir/bar", 5 );
+    reaper.track( directory, owner, 0 );
+
+    reaper.release( owner );
+
+    assertFalse( directory.exists() );
+    assertEquals( 3, reaper.getDeletedCount() );
+    assertEquals( 8, reaper.getReclaimedBytes() );
+  }
+
+  @Test
+  public void testSweep_deletesExpiredFiles() throws IOException {
+    File file1 = createFile( "foo", 3 );
+    File file2 = createFile( "bar", 5 );
+    reaper.track( file1, null, 1000 );
+    reaper.track( file2, null, 0 );
+
+    reaper.sweep( System.currentTimeMillis() + 2000 );
+
+    assertFalse( file1.exists() );
+    assertTrue( file2.exists() );
+    assertEquals( 1, reaper.getTrackedCount() );
+    assertEquals( 3, reaper.getReclaimedBytes() );
+  }
+
+  @Test
+  public void testSweep_deletesFilesAfterDefaultTimeToLive() throws IOException {
+    File file = createFile( "foo", 3 );
+    reaper.track( file, null, 0 );
+
+    reaper.sweep( System.currentTimeMillis() + FileUploadReaper.DEFAULT_TIME_TO_LIVE + 1000 );
+
+    assertFalse( file.exists() );
+    assertEquals( 0, reaper.getTrackedCount() );
+  }
+
+  @Test
+  public void testSweep_keepsFilesBeforeExpiration() throws IOException {
+    File file = createFile( "foo", 3 );
+    reaper.track( file, null, 60000 );
+
+    reaper.sweep( System.currentTimeMillis() );
+
+    assertTrue( file.exists() );
+    assertEquals( 1, reaper.getTrackedCount() );
+  }
+
+  @Test
+  public void testSweep_dropsFilesDeletedByApplication() throws IOException {
+    Object owner = new Object();
+    File file = createFile( "foo", 3 );
+    reaper.track( file, owner, 0 );
+    file.delete();
+
+    reaper.sweep( System.currentTimeMillis() );
+
+    assertEquals( 0, reaper.getTrackedCount() );
+    assertEquals( 0, reaper.getDeletedCount() );
+  }
+
+  @Test
+  public void testReapAll() throws IOException {
+    File file1 = createFile( "foo", 3 );
+    File file2 = createFile( "bar", 5 );
+    reaper.track( file1, new Object(), 0 );
+    reaper.track( file2, null, 0 );
+
+    reaper.reapAll();
+
+    assertFalse( file1.exists() );
+    assertFalse( file2.exists() );
+    assertEquals( 0, reaper.getTrackedCount() );
+    assertEquals( 8, reaper.getReclaimedBytes() );
+  }
+
+  @Test
+  public void testStop() throws IOException {
+    File file = createFile( "foo", 3 );
+    reaper.track( file, new Object(), 0 );
+
+    reaper.stop();
+
+    assertFalse( reaper.isStarted() );
+    assertFalse( file.exists() );
+    assertEquals( 0, reaper.getTrackedCount() );
+  }
+
+  @Test
+  public void testTrack_restartsStoppedReaper() throws IOException {
+    reaper.track( createFile( "foo", 3 ), null, 0 );
+    reaper.stop();
+
+    reaper.track( createFile( "bar", 3 ), null, 0 );
+
+    assertTrue( reaper.isStarted() );
+    assertEquals( 1, reaper.getTrackedCount() );
+  }
+
+  @Test
+  public void testTrack_doesNotHoldOwner() throws Exception {
+    Object owner = new Object();
+    WeakReference<Object> ownerReference = new WeakReference<Object>( owner );
+    reaper.track( createFile( "foo", 3 ), owner, 0 );
+
+    owner = null;
+    for( int i = 0; i < 50 && ownerReference.get() != null; i++ ) {
+      System.gc();
+      Thread.sleep( 10 );
+    }
+
+    assertNull( ownerReference.get() );
+    assertEquals( 1, reaper.getTrackedCount() );
+  }
+
+  private File createFile( String name, int length ) throws IOException {
+    File result = new File( tempDirectory, name );
+    FileOutputStream outputStream = new FileOutputStream( result );
+    try {
+      outputStream.write( new byte[ length ] );
+    } finally {
+      outputStream.close();
+    }
+    return result;
+  }
+
+}
@@ -0,0 +1,257 @@
+/*******************************************************************************
+ * Copyright (c) 2014 EclipseSource and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    EclipseSource - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.rap.addons.fileupload;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.eclipse.rap.addons.fileupload.internal.FileDetailsImpl;
+import org.eclipse.rap.addons.fileupload.test.FileUploadTestUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class MemoryFileUploadReceiver_Test {
+
+  private MemoryFileUploadReceiver receiver;
+  private FileUploadMemoryBudget memoryBudget;
+
+  @Before
+  public void setUp() {
+    receiver = new MemoryFileUploadReceiver();
+    memoryBudget = new FileUploadMemoryBudget( 16 * 1024 );
+    receiver.setMemoryBudget( memoryBudget );
+    receiver.setBufferPool( new FileUploadBufferPool( 16, 100 ) );
+  }
+
+  @After
+  public void tearDown() {
+    UploadedData[] uploadedData = receiver.getUploadedData();
+    for( int i = 0; i < uploadedData.length; i++ ) {
+      uploadedData[ i ].release();
+    }
+  }
+
+  @Test
+  public void testInitialValues() {
+    MemoryFileUploadReceiver receiver = new MemoryFileUploadReceiver();
+
+    assertEquals( 0, receiver.getUploadedData().length );
+    assertEquals( MemoryFileUploadReceiver.DEFAULT_THRESHOLD, receiver.getThreshold() );
+    assertFalse( receiver.getUseDirectBuffers() );
+    assertSame( FileUploadMemoryBudget.getDefault(), receiver.getMemoryBudget() );
+    assertSame( FileUploadBufferPool.getDefault(), receiver.getBufferPool() );
+    assertNull( receiver.getSpillDirectory() );
+  }
+
+  @Test
+  public void testSetThreshold_withNegativeValue() {
+    try {
+      receiver.setThreshold( -1 );
+      fail();
+    } catch( IllegalArgumentException expected ) {
+    }
+  }
+
+  @Test
+  public void testReceive_keepsSmallFileInMemory() throws IOException {
+    String content = createContent( 100 );
+
+    receive( content );
+
+    UploadedData data = receiver.getUploadedData()[ 0 ];
+    assertTrue( data.isInMemory() );
+    assertNull( data.getFile() );
+    assertEquals( 100, data.getLength() );
+    assertEquals( "foo.txt", data.getFileDetails().getFileName() );
+    assertEquals( content, toString( data.getByteBuffer() ) );
+    assertTrue( memoryBudget.getReservedBytes() >= 100 );
+  }
+
+  @Test
+  public void testReceive_withDirectBuffers() throws IOException {
+    receiver.setUseDirectBuffers( true );
+    String content = createContent( 100 );
+
+    receive( content );
+
+    UploadedData data = receiver.getUploadedData()[ 0 ];
+    assertTrue( data.isInMemory() );
+    assertEquals( content, toString( data.getByteBuffer() ) );
+  }
+
+  @Test
+  public void testReceive_emptyFile() throws IOException {
+    receive( "" );
+
+    UploadedData data = receiver.getUploadedData()[ 0 ];
+    assertTrue( data.isInMemory() );
+    assertEquals( 0, data.getLength() );
+    assertEquals( 0, data.getByteBuffer().remaining() );
+  }
+
+  @Test
+  public void testReceive_spillsLargeFileToDisk() throws IOException {
+    receiver.setThreshold( 50 );
+    String content = createContent( 100 );
+
+    receive( content );
+
+    UploadedData data = receiver.getUploadedData()[ 0 ];
+    assertFalse( data.isInMemory() );
+    assertEquals( 100, data.getLength() );
+    assertEquals( content, FileUploadTestUtil.getFileContents( data.getFile() ) );
+    assertEquals( content, toString( data.getByteBuffer() ) );
+    assertEquals( 0, memoryBudget.getReservedBytes() );
+  }
+
+  @Test
+  public void testReceive_withZeroThreshold() throws IOException {
+    receiver.setThreshold( 0 );
+
+    receive( "foo" );
+
+    assertFalse( receiver.getUploadedData()[ 0 ].isInMemory() );
+  }
+
+  @Test
+  public void testReceive_spillsWhenMemoryBudgetIsExhausted() throws IOException {
+    receiver.setThreshold( 10 * 1024 );
+    String content = createContent( 9 * 1024 );
+
+    receive( content );
+    receive( content );
+
+    UploadedData[] uploadedData = receiver.getUploadedData();
+    assertTrue( uploadedData[ 0 ].isInMemory() );
+    assertFalse( uploadedData[ 1 ].isInMemory() );
+    assertEquals( content, toString( uploadedData[ 1 ].getByteBuffer() ) );
+  }
+
+  @Test
+  public void testReceive_withSpillDirectory() throws IOException {
+    File spillDirectory = FileUploadTestUtil.createTempDirectory();
+    receiver.setSpillDirectory( spillDirectory );
+    receiver.setThreshold( 0 );
+
+    try {
+      receive( "foo" );
+
+      assertEquals( spillDirectory, receiver.getUploadedData()[ 0 ].getFile().getParentFile() );
+    } finally {
+      tearDown();
+      FileUploadTestUtil.deleteRecursively( spillDirectory );
+    }
+  }
+
+  @Test
+  public void testRelease_returnsMemoryToBudget() throws IOException {
+    receive( "foo" );
+    UploadedData data = receiver.getUploadedData()[ 0 ];
+
+    data.release();
+
+    assertTrue( data.isReleased() );
+    assertEquals( 0, memoryBudget.getReservedBytes() );
+  }
+
+  @Test
+  public void testRelease_deletesFile() throws IOException {
+    receiver.setThreshold( 0 );
+    receive( "foo" );
+    UploadedData data = receiver.getUploadedData()[ 0 ];
+    File file = data.getFile();
+
+    data.release();
+
+    assertFalse( file.exists() );
+  }
+
+  @Test
+  public void testRelease_twice() throws IOException {
+    receive( "foo" );
+    UploadedData data = receiver.getUploadedData()[ 0 ];
+
+    data.release();
+    data.release();
+
+    assertEquals( 0, memoryBudget.getReservedBytes() );
+  }
+
+  @Test
+  public void testReleaseReceiver() throws IOException {
+    receive( "foo" );
+    receiver.setThreshold( 0 );
+    receive( "bar" );
+    UploadedData[] data = receiver.getUploadedData();
+    File file = data[ 1 ].getFile();
+
+    receiver.release();
+
+    assertEquals( 0, receiver.getUploadedData().length );
+    assertTrue( data[ 0 ].isReleased() );
+    assertTrue( data[ 1 ].isReleased() );
+    assertFalse( file.exists() );
+    assertEquals( 0, memoryBudget.getReservedBytes() );
+  }
+
+  @Test
+  public void testGetByteBuffer_afterRelease() throws IOException {
+    receive( "foo" );
+    UploadedData data = receiver.getUploadedData()[ 0 ];
+    data.release();
+
+    try {
+      data.getByteBuffer();
+      fail();
+    } catch( IllegalStateException expected ) {
+    }
+  }
+
+  @Test
+  public void testGetByteBuffer_isReadOnly() throws IOException {
+    receive( "foo" );
+
+    ByteBuffer buffer = receiver.getUploadedData()[ 0 ].getByteBuffer();
+
+    assertTrue( buffer.isReadOnly() );
+  }
+
+  private void receive( String content ) throws IOException {
+    FileDetails details = new FileDetailsImpl( "foo.txt", "text/plain", -1 );
+    receiver.receive( new ByteArrayInputStream( content.getBytes() ), details );
+  }
+
+  private static String toString( ByteBuffer buffer ) {
+    byte[] bytes = new byte[ buffer.remaining() ];
+    buffer.get( bytes );
+    return new String( bytes );
+  }
+
+  private static String createContent( int length ) {
+    StringBuffer buffer = new StringBuffer( length );
+    for( int i = 0; i < length; i++ ) {
+      buffer.append( ( char )( 'a' + i % 26 ) );
+    }
+    return buffer.toString();
+  }
+
+}
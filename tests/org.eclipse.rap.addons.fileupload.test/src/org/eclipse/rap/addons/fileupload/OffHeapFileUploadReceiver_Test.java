@@ -0,0 +1,308 @@
+/*******************************************************************************
+ * Copyright (c) 2014 EclipseSource and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    EclipseSource - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.rap.addons.fileupload;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+
+import org.eclipse.rap.addons.fileupload.internal.FileDetailsImpl;
+import org.eclipse.rap.addons.fileupload.test.FileUploadTestUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class OffHeapFileUploadReceiver_Test {
+
+  private OffHeapFileUploadReceiver receiver;
+  private FileUploadMemoryBudget memoryBudget;
+
+  @Before
+  public void setUp() {
+    receiver = new OffHeapFileUploadReceiver();
+    memoryBudget = new FileUploadMemoryBudget( 1024 * 1024 );
+    receiver.setMemoryBudget( memoryBudget );
+    receiver.setBufferPool( new FileUploadBufferPool( 16, 100 ) );
+  }
+
+  @After
+  public void tearDown() {
+    UploadedData[] uploadedData = receiver.getUploadedData();
+    for( int i = 0; i < uploadedData.length; i++ ) {
+      uploadedData[ i ].release();
+    }
+  }
+
+  @Test
+  public void testInitialValues() {
+    OffHeapFileUploadReceiver receiver = new OffHeapFileUploadReceiver();
+
+    assertEquals( 0, receiver.getUploadedData().length );
+    assertEquals( 0, receiver.getOutstandingBytes() );
+    assertFalse( receiver.getUseMappedFiles() );
+    assertSame( FileUploadMemoryBudget.getDefault(), receiver.getMemoryBudget() );
+    assertSame( FileUploadBufferPool.getDefault(), receiver.getBufferPool() );
+    assertNull( receiver.getScratchDirectory() );
+  }
+
+  @Test
+  public void testSetMemoryBudget_withNull() {
+    try {
+      receiver.setMemoryBudget( null );
+      fail();
+    } catch( NullPointerException expected ) {
+    }
+  }
+
+  @Test
+  public void testReceive_intoDirectBuffer() throws IOException {
+    String content = createContent( 100 );
+
+    receive( content );
+
+    UploadedData data = receiver.getUploadedData()[ 0 ];
+    ByteBuffer buffer = data.getByteBuffer();
+    assertTrue( data.isInMemory() );
+    assertTrue( buffer.isDirect() );
+    assertTrue( buffer.isReadOnly() );
+    assertEquals( content, toString( buffer ) );
+    assertTrue( memoryBudget.getReservedBytes() >= 100 );
+  }
+
+  @Test
+  public void testReceive_withKnownContentLength() throws IOException {
+    String content = createContent( 100 );
+    FileDetails details = new FileDetailsImpl( "foo.txt", "text/plain", 100 );
+
+    receiver.receive( new ByteArrayInputStream( content.getBytes() ), details );
+
+    assertEquals( 100, memoryBudget.getReservedBytes() );
+  }
+
+  @Test
+  public void testReceive_withoutDetails() throws IOException {
+    receiver.receive( new ByteArrayInputStream( "foo".getBytes() ), null );
+
+    assertEquals( "foo", toString( receiver.getUploadedData()[ 0 ].getByteBuffer() ) );
+  }
+
+  @Test
+  public void testReceive_withContentLengthExceedingBufferSize() throws IOException {
+    File scratchDirectory = FileUploadTestUtil.createTempDirectory();
+    receiver.setScratchDirectory( scratchDirectory );
+    receiver.setUseMappedFiles( true );
+    FileDetails details = new FileDetailsImpl( "foo.txt", "text/plain", 3L * 1024 * 1024 * 1024 );
+
+    try {
+      receiver.receive( new ByteArrayInputStream( "foo".getBytes() ), details );
+      fail();
+    } catch( IOException expected ) {
+    } finally {
+      FileUploadTestUtil.deleteRecursively( scratchDirectory );
+    }
+    assertEquals( 0, receiver.getUploadedData().length );
+  }
+
+  @Test
+  public void testReceive_deletesScratchFileOnFailure() throws IOException {
+    File scratchDirectory = FileUploadTestUtil.createTempDirectory();
+    receiver.setScratchDirectory( scratchDirectory );
+    receiver.setUseMappedFiles( true );
+    InputStream stream = new SequenceInputStream( new ByteArrayInputStream( "foo".getBytes() ),
+                                                  new InputStream() {
+      @Override
+      public int read() throws IOException {
+        throw new IOException( "connection reset" );
+      }
+    } );
+
+    try {
+      receiver.receive( stream, null );
+      fail();
+    } catch( IOException expected ) {
+      assertEquals( 0, scratchDirectory.list().length );
+    } finally {
+      FileUploadTestUtil.deleteRecursively( scratchDirectory );
+    }
+  }
+
+  @Test
+  public void testReceive_growsDirectBuffer() throws IOException {
+    String content = createContent( 200 * 1024 );
+
+    receive( content );
+
+    assertEquals( content, toString( receiver.getUploadedData()[ 0 ].getByteBuffer() ) );
+  }
+
+  @Test
+  public void testReceive_emptyFile() throws IOException {
+    receive( "" );
+
+    UploadedData data = receiver.getUploadedData()[ 0 ];
+    assertEquals( 0, data.getLength() );
+    assertEquals( 0, data.getByteBuffer().remaining() );
+  }
+
+  @Test
+  public void testReceive_intoMappedFile() throws IOException {
+    receiver.setUseMappedFiles( true );
+    String content = createContent( 100 );
+
+    receive( content );
+
+    UploadedData data = receiver.getUploadedData()[ 0 ];
+    ByteBuffer buffer = data.getByteBuffer();
+    assertFalse( data.isInMemory() );
+    assertTrue( buffer.isReadOnly() );
+    assertEquals( content, toString( buffer ) );
+    assertEquals( content, FileUploadTestUtil.getFileContents( data.getFile() ) );
+    assertEquals( 0, memoryBudget.getReservedBytes() );
+  }
+
+  @Test
+  public void testReceive_fallsBackToMappedFileWhenBudgetIsExhausted() throws IOException {
+    receiver.setMemoryBudget( new FileUploadMemoryBudget( 100 * 1024 ) );
+    String content = createContent( 200 * 1024 );
+
+    receive( content );
+
+    UploadedData data = receiver.getUploadedData()[ 0 ];
+    assertFalse( data.isInMemory() );
+    assertEquals( content, toString( data.getByteBuffer() ) );
+    assertEquals( 0, receiver.getMemoryBudget().getReservedBytes() );
+  }
+
+  @Test
+  public void testReceive_fallsBackToMappedFileOnFirstChunk() throws IOException {
+    receiver.setMemoryBudget( new FileUploadMemoryBudget( 0 ) );
+
+    receive( "foo" );
+
+    UploadedData data = receiver.getUploadedData()[ 0 ];
+    assertFalse( data.isInMemory() );
+    assertEquals( "foo", toString( data.getByteBuffer() ) );
+  }
+
+  @Test
+  public void testReceive_withScratchDirectory() throws IOException {
+    File scratchDirectory = FileUploadTestUtil.createTempDirectory();
+    receiver.setScratchDirectory( scratchDirectory );
+    receiver.setUseMappedFiles( true );
+
+    try {
+      receive( "foo" );
+
+      File file = receiver.getUploadedData()[ 0 ].getFile();
+      assertEquals( scratchDirectory, file.getParentFile() );
+    } finally {
+      tearDown();
+      FileUploadTestUtil.deleteRecursively( scratchDirectory );
+    }
+  }
+
+  @Test
+  public void testGetOutstandingBytes() throws IOException {
+    long totalBytes = OffHeapFileUploadReceiver.getTotalOutstandingBytes();
+
+    receive( createContent( 100 ) );
+    receiver.setUseMappedFiles( true );
+    receive( createContent( 50 ) );
+
+    assertEquals( 150, receiver.getOutstandingBytes() );
+    assertEquals( totalBytes + 150, OffHeapFileUploadReceiver.getTotalOutstandingBytes() );
+  }
+
+  @Test
+  public void testGetOutstandingBytes_afterRelease() throws IOException {
+    long totalBytes = OffHeapFileUploadReceiver.getTotalOutstandingBytes();
+    receive( createContent( 100 ) );
+    receive( createContent( 50 ) );
+
+    receiver.getUploadedData()[ 0 ].release();
+    receiver.getUploadedData()[ 0 ].release();
+
+    assertEquals( 50, receiver.getOutstandingBytes() );
+    assertEquals( totalBytes + 50, OffHeapFileUploadReceiver.getTotalOutstandingBytes() );
+  }
+
+  @Test
+  public void testRelease_deletesMappedFile() throws IOException {
+    receiver.setUseMappedFiles( true );
+    receive( "foo" );
+    UploadedData data = receiver.getUploadedData()[ 0 ];
+    File file = data.getFile();
+
+    data.release();
+
+    assertFalse( file.exists() );
+  }
+
+  @Test
+  public void testRelease_returnsMemoryToBudget() throws IOException {
+    receive( "foo" );
+
+    receiver.getUploadedData()[ 0 ].release();
+
+    assertEquals( 0, memoryBudget.getReservedBytes() );
+  }
+
+  @Test
+  public void testReleaseReceiver() throws IOException {
+    long totalBytes = OffHeapFileUploadReceiver.getTotalOutstandingBytes();
+    receive( "foo" );
+    receiver.setUseMappedFiles( true );
+    receive( "bar" );
+    UploadedData[] data = receiver.getUploadedData();
+    File file = data[ 1 ].getFile();
+
+    receiver.release();
+
+    assertEquals( 0, receiver.getUploadedData().length );
+    assertTrue( data[ 0 ].isReleased() );
+    assertTrue( data[ 1 ].isReleased() );
+    assertFalse( file.exists() );
+    assertEquals( 0, memoryBudget.getReservedBytes() );
+    assertEquals( 0, receiver.getOutstandingBytes() );
+    assertEquals( totalBytes, OffHeapFileUploadReceiver.getTotalOutstandingBytes() );
+  }
+
+  private void receive( String content ) throws IOException {
+    FileDetails details = new FileDetailsImpl( "foo.txt", "text/plain", -1 );
+    receiver.receive( new ByteArrayInputStream( content.getBytes() ), details );
+  }
+
+  private static String toString( ByteBuffer buffer ) {
+    byte[] bytes = new byte[ buffer.remaining() ];
+    buffer.get( bytes );
+    return new String( bytes );
+  }
+
+  private static String createContent( int length ) {
+    StringBuffer buffer = new StringBuffer( length );
+    for( int i = 0; i < length; i++ ) {
+      buffer.append( ( char )( 'a' + i % 26 ) );
+    }
+    return buffer.toString();
+  }
+
+}
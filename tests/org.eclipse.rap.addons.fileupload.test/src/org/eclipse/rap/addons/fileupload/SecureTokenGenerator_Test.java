@@ -0,0 +1,83 @@
+/*******************************************************************************
+ * Copyright (c) 2014 EclipseSource and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    EclipseSource - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.rap.addons.fileupload;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+
+public class SecureTokenGenerator_Test {
+
+  @Test
+  public void testCreateToken_hasFixedLength() {
+    SecureTokenGenerator generator = new SecureTokenGenerator();
+
+    for( int i = 0; i < 100; i++ ) {
+      assertEquals( SecureTokenGenerator.TOKEN_LENGTH, generator.createToken().length() );
+    }
+  }
+
+  @Test
+  public void testCreateToken_isUrlSafe() {
+    SecureTokenGenerator generator = new SecureTokenGenerator();
+
+    for( int i = 0; i < 100; i++ ) {
+      String token = generator.createToken();
+      assertTrue( token, token.matches( "[A-Za-z0-9_-]+" ) );
+    }
+  }
+
+  @Test
+  public void testCreateToken_isUnique() {
+    SecureTokenGenerator generator = new SecureTokenGenerator();
+    Set<String> tokens = new HashSet<String>();
+
+    for( int i = 0; i < 10000; i++ ) {
+      tokens.add( generator.createToken() );
+    }
+
+    assertEquals( 10000, tokens.size() );
+  }
+
+  @Test
+  public void testCreateToken_inDifferentThreads() throws InterruptedException {
+    final SecureTokenGenerator generator = new SecureTokenGenerator();
+    final String[] tokens = new String[ 2 ];
+    Thread thread = new Thread( new Runnable() {
+      public void run() {
+        tokens[ 0 ] = generator.createToken();
+      }
+    } );
+    thread.start();
+    thread.join();
+
+    tokens[ 1 ] = generator.createToken();
+
+    assertEquals( SecureTokenGenerator.TOKEN_LENGTH, tokens[ 0 ].length() );
+    assertTrue( !tokens[ 0 ].equals( tokens[ 1 ] ) );
+  }
+
+  @Test
+  public void testEncode() {
+    byte[] bytes = new byte[] {
+      ( byte )0xfb, ( byte )0xff, 0x00, 0x10, ( byte )0x83, 0x10, 0x51, ( byte )0x87,
+      0x20, ( byte )0x92, ( byte )0x8b, 0x30, ( byte )0xd3, ( byte )0x8f, 0x41, 0x14
+    };
+
+    assertEquals( "-_8AEIMQUYcgkosw049BFA", SecureTokenGenerator.encode( bytes ) );
+  }
+
+}
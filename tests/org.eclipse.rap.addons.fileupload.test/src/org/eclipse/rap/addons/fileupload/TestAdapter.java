@@ -17,4 +17,8 @@ public final class TestAdapter {
   public static String getTokenFor( FileUploadHandler handler ) {
     return handler.getToken();
   }
+
+  public static boolean isReaperStarted() {
+    return FileUploadReaper.getInstance().isStarted();
+  }
 }
@@ -0,0 +1,628 @@
+/*******************************************************************************
+ * Copyright (c) 2014 EclipseSource and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    EclipseSource - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.rap.addons.fileupload.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.rap.addons.fileupload.FileDetails;
+import org.eclipse.rap.addons.fileupload.FileUploadHandler;
+import org.eclipse.rap.addons.fileupload.FileUploadReceiver;
+import org.eclipse.rap.addons.fileupload.test.FileUploadTestUtil;
+import org.eclipse.rap.addons.fileupload.test.FileUploadTestUtil.FileData;
+import org.eclipse.rap.addons.fileupload.test.TestFileUploadListener;
+import org.eclipse.rap.addons.fileupload.test.TestFileUploadReceiver;
+import org.eclipse.rap.rwt.testfixture.internal.Fixture;
+import org.eclipse.rap.rwt.testfixture.internal.TestResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+
+@SuppressWarnings( "restriction" )
+public class AsyncFileUploadProcessor_Test {
+
+  private static final String BOUNDARY = "-----4711-----";
+
+  private TestFileUploadListener testListener;
+  private TestFileUploadReceiver testReceiver;
+  private FileUploadHandler uploadHandler;
+  private CountDownLatch completion;
+  private AsyncContext asyncContext;
+  private TestServletInputStream input;
+  private TestResponse response;
+
+  @Before
+  public void setUp() {
+    Fixture.setUp();
+    testListener = new TestFileUploadListener();
+    testReceiver = new TestFileUploadReceiver();
+    uploadHandler = new FileUploadHandler( testReceiver );
+    uploadHandler.addUploadListener( testListener );
+    completion = new CountDownLatch( 1 );
+    asyncContext = mock( AsyncContext.class );
+    input = new TestServletInputStream();
+    response = new TestResponse();
+  }
+
+  @After
+  public void tearDown() {
+    Fixture.tearDown();
+  }
+
+  @Test
+  public void testUpload() throws Exception {
+    byte[] body = createBody( new FileData( "Lorem ipsum", "text/plain", "test.txt" ) );
+    startProcessor( body.length );
+
+    input.arrive( body );
+    input.end();
+    awaitCompletion();
+
+    assertEquals( 0, response.getErrorStatus() );
+    assertEquals( "progress.finished.", testListener.getLog() );
+    assertEquals( "Lorem ipsum", new String( testReceiver.getContent() ) );
+    assertEquals( 11, testListener.getLastEvent().getFileDetails()[ 0 ].getContentLength() );
+    assertEquals( "test.txt", testListener.getLastEvent().getFileDetails()[ 0 ].getFileName() );
+    assertCompleted();
+  }
+
+  @Test
+  public void testUpload_dataArrivesInPortions() throws Exception {
+    byte[] body = createBody( new FileData( "Lorem ipsum", "text/plain", "test.txt" ) );
+    startProcessor( body.length );
+
+    for( int i = 0; i < body.length; i++ ) {
+      input.arrive( new byte[] { body[ i ] } );
+    }
+    input.end();
+    awaitCompletion();
+
+    assertEquals( "Lorem ipsum", new String( testReceiver.getContent() ) );
+    assertTrue( testListener.getLog().endsWith( "progress.finished." ) );
+    assertCompleted();
+  }
+
+  @Test
+  public void testUpload_doesNotCompleteBeforeEnd() throws IOException {
+    byte[] body = createBody( new FileData( "Lorem ipsum", "text/plain", "test.txt" ) );
+    startProcessor( body.length );
+
+    input.arrive( body );
+
+    assertEquals( 1, completion.getCount() );
+    verify( asyncContext, never() ).complete();
+  }
+
+  @Test
+  public void testUpload_multipleFiles() throws Exception {
+    byte[] body = createBody( new FileData( "first", "text/plain", "a.txt" ),
+                              new FileData( "second", "text/plain", "b.txt" ) );
+    startProcessor( body.length );
+
+    input.arrive( body );
+    input.end();
+    awaitCompletion();
+
+    assertEquals( 2, testListener.getLastEvent().getFileDetails().length );
+    assertEquals( 11, testReceiver.getTotal() );
+    assertEquals( "second", new String( testReceiver.getContent() ) );
+  }
+
+  @Test
+  public void testUpload_largeFileIsBufferedInFile() throws Exception {
+    String content = createContent( AsyncFileUploadProcessor.MEMORY_THRESHOLD * 2 );
+    byte[] body = createBody( new FileData( content, "text/plain", "test.txt" ) );
+    startProcessor( body.length );
+
+    for( int offset = 0; offset < body.length; offset += 1000 ) {
+      input.arrive( body, offset, Math.min( 1000, body.length - offset ) );
+    }
+    input.end();
+    awaitCompletion();
+
+    assertEquals( content, new String( testReceiver.getContent() ) );
+    assertCompleted();
+  }
+
+  @Test
+  public void testUpload_largeFileIsBufferedInSpoolDirectory() throws Exception {
+    final File spoolDirectory = FileUploadTestUtil.createTempDirectory();
+    final int[] spooledFileCount = new int[ 1 ];
+    uploadHandler = new FileUploadHandler( new FileUploadReceiver() {
+      @Override
+      public void receive( InputStream stream, FileDetails details ) throws IOException {
+        spooledFileCount[ 0 ] = spoolDirectory.list().length;
+        testReceiver.receive( stream, details );
+      }
+    } );
+    uploadHandler.setSpoolDirectory( spoolDirectory );
+    String content = createContent( AsyncFileUploadProcessor.MEMORY_THRESHOLD * 2 );
+    byte[] body = createBody( new FileData( content, "text/plain", "test.txt" ) );
+    startProcessor( body.length );
+
+    try {
+      input.arrive( body );
+      input.end();
+      awaitCompletion();
+
+      assertEquals( 1, spooledFileCount[ 0 ] );
+      assertEquals( 0, spoolDirectory.list().length );
+      assertEquals( content, new String( testReceiver.getContent() ) );
+    } finally {
+      FileUploadTestUtil.deleteRecursively( spoolDirectory );
+    }
+  }
+
+  @Test
+  public void testUpload_withoutFile() throws IOException {
+    String body = "--" + BOUNDARY + "\r\n"
+                  + "Content-Disposition: form-data; name=\"field\"\r\n\r\n"
+                  + "value\r\n"
+                  + "--" + BOUNDARY + "--\r\n";
+    startProcessor( body.length() );
+
+    input.arrive( toBytes( body ) );
+    input.end();
+
+    assertEquals( HttpServletResponse.SC_BAD_REQUEST, response.getErrorStatus() );
+    assertEquals( "progress.failed.", testListener.getLog() );
+    assertCompleted();
+  }
+
+  @Test
+  public void testUpload_exceedsMaxFileSize() throws IOException {
+    uploadHandler.setMaxFileSize( 5 );
+    byte[] body = createBody( new FileData( "Lorem ipsum", "text/plain", "test.txt" ) );
+    startProcessor( body.length );
+
+    input.arrive( body );
+
+    assertEquals( HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, response.getErrorStatus() );
+    assertTrue( testListener.getLog().endsWith( "failed." ) );
+    assertEquals( 0, testReceiver.getTotal() );
+    assertCompleted();
+  }
+
+  @Test
+  public void testUpload_contentLengthExceedsMaxRequestSize() throws IOException {
+    uploadHandler.setMaxRequestSize( 10 );
+    HttpServletRequest request = createRequest( 100 );
+
+    new AsyncFileUploadProcessor( uploadHandler, createCompletion() ).start( request, response );
+
+    assertEquals( HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, response.getErrorStatus() );
+    assertEquals( "failed.", testListener.getLog() );
+    verify( request, never() ).startAsync();
+    assertEquals( 0, completion.getCount() );
+  }
+
+  @Test
+  public void testUpload_bodyExceedsMaxRequestSize() throws IOException {
+    uploadHandler.setMaxRequestSize( 10 );
+    startProcessor( -1 );
+
+    input.arrive( createBody( new FileData( "Lorem ipsum", "text/plain", "test.txt" ) ) );
+
+    assertEquals( HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, response.getErrorStatus() );
+    assertCompleted();
+  }
+
+  @Test
+  public void testUpload_withoutBoundary() throws IOException {
+    HttpServletRequest request = createRequest( 100 );
+    when( request.getContentType() ).thenReturn( "multipart/form-data" );
+
+    new AsyncFileUploadProcessor( uploadHandler, createCompletion() ).start( request, response );
+
+    assertEquals( HttpServletResponse.SC_INTERNAL_SERVER_ERROR, response.getErrorStatus() );
+    assertEquals( 0, completion.getCount() );
+  }
+
+  @Test
+  public void testUpload_endsUnexpectedly() throws IOException {
+    byte[] body = createBody( new FileData( "Lorem ipsum", "text/plain", "test.txt" ) );
+    startProcessor( body.length );
+
+    input.arrive( body, 0, body.length / 2 );
+    input.end();
+
+    assertEquals( HttpServletResponse.SC_INTERNAL_SERVER_ERROR, response.getErrorStatus() );
+    assertEquals( "progress.failed.", testListener.getLog() );
+    assertCompleted();
+  }
+
+  @Test
+  public void testUpload_readError() throws IOException {
+    startProcessor( 100 );
+
+    input.listener.onError( new IOException( "connection reset" ) );
+
+    assertEquals( "failed.", testListener.getLog() );
+    assertEquals( "connection reset", testListener.getLastEvent().getException().getMessage() );
+    assertCompleted();
+  }
+
+  @Test
+  public void testUpload_isRateLimitedWithoutBlocking() throws Exception {
+    uploadHandler.setMaxBytesPerSecond( 2000 );
+    byte[] body = createBody( new FileData( createContent( 3000 ), "text/plain", "test.txt" ) );
+    startProcessor( body.length );
+    long start = System.nanoTime();
+
+    input.arrive( body, 0, 2000 );
+    input.arrive( body, 2000, body.length - 2000 );
+    long returned = System.nanoTime();
+    input.end();
+
+    assertTrue( TimeUnit.NANOSECONDS.toMillis( returned - start ) < 300 );
+    assertTrue( completion.await( 10, TimeUnit.SECONDS ) );
+    assertTrue( TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start ) >= 300 );
+    assertEquals( 3000, testReceiver.getTotal() );
+  }
+
+  @Test
+  public void testUpload_doesNotLimitRequestDuration() throws IOException {
+    startProcessor( 100 );
+
+    verify( asyncContext ).setTimeout( 0 );
+  }
+
+  @Test
+  public void testUpload_stalled() throws Exception {
+    uploadHandler.setStallTimeout( 100 );
+    byte[] body = createBody( new FileData( "Lorem ipsum", "text/plain", "test.txt" ) );
+    startProcessor( body.length );
+
+    input.arrive( body, 0, body.length / 2 );
+
+    assertTrue( completion.await( 10, TimeUnit.SECONDS ) );
+    assertEquals( HttpServletResponse.SC_REQUEST_TIMEOUT, response.getErrorStatus() );
+    assertEquals( "progress.failed.", testListener.getLog() );
+    assertCompleted();
+  }
+
+  @Test
+  public void testUpload_slowUploadOutlivesStallTimeout() throws Exception {
+    uploadHandler.setStallTimeout( 200 );
+    byte[] body = createBody( new FileData( createContent( 100 ), "text/plain", "test.txt" ) );
+    startProcessor( body.length );
+    long start = System.nanoTime();
+
+    int portion = body.length / 8 + 1;
+    for( int offset = 0; offset < body.length; offset += portion ) {
+      Thread.sleep( 100 );
+      input.arrive( body, offset, Math.min( portion, body.length - offset ) );
+    }
+    input.end();
+
+    assertTrue( TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start ) >= 400 );
+    assertTrue( completion.await( 10, TimeUnit.SECONDS ) );
+    assertEquals( 0, response.getErrorStatus() );
+    assertEquals( 100, testReceiver.getTotal() );
+    assertCompleted();
+  }
+
+  @Test
+  public void testUpload_rateLimitedUploadOutlivesStallTimeout() throws Exception {
+    uploadHandler.setStallTimeout( 100 );
+    uploadHandler.setMaxBytesPerSecond( 2000 );
+    byte[] body = createBody( new FileData( createContent( 3000 ), "text/plain", "test.txt" ) );
+    startProcessor( body.length );
+    long start = System.nanoTime();
+
+    input.arrive( body, 0, 2000 );
+    input.arrive( body, 2000, body.length - 2000 );
+    input.end();
+
+    assertTrue( completion.await( 10, TimeUnit.SECONDS ) );
+    assertTrue( TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start ) >= 300 );
+    assertEquals( 0, response.getErrorStatus() );
+    assertEquals( 3000, testReceiver.getTotal() );
+    assertCompleted();
+  }
+
+  @Test
+  public void testUpload_timeout() throws IOException {
+    byte[] body = createBody( new FileData( "Lorem ipsum", "text/plain", "test.txt" ) );
+    startProcessor( body.length );
+    input.arrive( body, 0, body.length / 2 );
+
+    getAsyncListener().onTimeout( new AsyncEvent( asyncContext ) );
+
+    assertEquals( HttpServletResponse.SC_REQUEST_TIMEOUT, response.getErrorStatus() );
+    assertEquals( "progress.failed.", testListener.getLog() );
+    assertCompleted();
+  }
+
+  @Test
+  public void testUpload_dataAfterTimeoutIsIgnored() throws IOException {
+    byte[] body = createBody( new FileData( "Lorem ipsum", "text/plain", "test.txt" ) );
+    startProcessor( body.length );
+    AsyncListener listener = getAsyncListener();
+    input.arrive( body, 0, body.length / 2 );
+    listener.onTimeout( new AsyncEvent( asyncContext ) );
+
+    input.arrive( body, body.length / 2, body.length - body.length / 2 );
+    input.end();
+    listener.onComplete( new AsyncEvent( asyncContext ) );
+
+    assertEquals( "progress.failed.", testListener.getLog() );
+    assertEquals( 0, testReceiver.getTotal() );
+    assertCompleted();
+  }
+
+  @Test
+  public void testUpload_asyncError() throws IOException {
+    startProcessor( 100 );
+
+    getAsyncListener().onError( new AsyncEvent( asyncContext, new IOException( "broken pipe" ) ) );
+
+    assertEquals( "failed.", testListener.getLog() );
+    assertEquals( "broken pipe", testListener.getLastEvent().getException().getMessage() );
+    assertCompleted();
+  }
+
+  @Test
+  public void testUpload_completedByContainer() throws IOException {
+    startProcessor( 100 );
+
+    getAsyncListener().onComplete( new AsyncEvent( asyncContext ) );
+
+    assertEquals( "failed.", testListener.getLog() );
+    assertEquals( 0, completion.getCount() );
+    assertEquals( 0, response.getErrorStatus() );
+    verify( asyncContext, never() ).complete();
+  }
+
+  @Test
+  public void testUpload_receiverDoesNotBlockReading() throws Exception {
+    final CountDownLatch receiverStarted = new CountDownLatch( 1 );
+    final CountDownLatch receiverReleased = new CountDownLatch( 1 );
+    uploadHandler = new FileUploadHandler( new FileUploadReceiver() {
+      @Override
+      public void receive( InputStream stream, FileDetails details ) throws IOException {
+        receiverStarted.countDown();
+        try {
+          receiverReleased.await();
+        } catch( InterruptedException exception ) {
+          throw new IOException( exception.getMessage() );
+        }
+        testReceiver.receive( stream, details );
+      }
+    } );
+    uploadHandler.addUploadListener( testListener );
+    byte[] body = createBody( new FileData( "first", "text/plain", "a.txt" ),
+                              new FileData( "second", "text/plain", "b.txt" ) );
+    startProcessor( body.length );
+
+    input.arrive( body );
+    input.end();
+
+    assertTrue( receiverStarted.await( 10, TimeUnit.SECONDS ) );
+    assertEquals( 1, completion.getCount() );
+    receiverReleased.countDown();
+    awaitCompletion();
+    assertEquals( 2, testListener.getLastEvent().getFileDetails().length );
+    assertEquals( 11, testReceiver.getTotal() );
+    assertCompleted();
+  }
+
+  @Test
+  public void testUpload_receiverRunsOnSeparateThread() throws Exception {
+    final Thread[] receiverThread = new Thread[ 1 ];
+    uploadHandler = new FileUploadHandler( new FileUploadReceiver() {
+      @Override
+      public void receive( InputStream stream, FileDetails details ) throws IOException {
+        receiverThread[ 0 ] = Thread.currentThread();
+        testReceiver.receive( stream, details );
+      }
+    } );
+    byte[] body = createBody( new FileData( "Lorem ipsum", "text/plain", "test.txt" ) );
+    startProcessor( body.length );
+
+    input.arrive( body );
+    input.end();
+
+    awaitCompletion();
+    assertNotSame( Thread.currentThread(), receiverThread[ 0 ] );
+    assertEquals( "Lorem ipsum", new String( testReceiver.getContent() ) );
+  }
+
+  @Test
+  public void testUpload_receiverFails() throws Exception {
+    uploadHandler = new FileUploadHandler( new FileUploadReceiver() {
+      @Override
+      public void receive( InputStream stream, FileDetails details ) throws IOException {
+        throw new IOException( "disk full" );
+      }
+    } );
+    uploadHandler.addUploadListener( testListener );
+    byte[] body = createBody( new FileData( "Lorem ipsum", "text/plain", "test.txt" ) );
+    startProcessor( body.length );
+
+    input.arrive( body );
+    input.end();
+
+    awaitCompletion();
+    assertEquals( HttpServletResponse.SC_INTERNAL_SERVER_ERROR, response.getErrorStatus() );
+    assertEquals( "disk full", testListener.getLastEvent().getException().getMessage() );
+    assertCompleted();
+  }
+
+  private void awaitCompletion() throws InterruptedException {
+    assertTrue( completion.await( 10, TimeUnit.SECONDS ) );
+  }
+
+  private AsyncListener getAsyncListener() {
+    ArgumentCaptor<AsyncListener> captor = ArgumentCaptor.forClass( AsyncListener.class );
+    verify( asyncContext ).addListener( captor.capture() );
+    return captor.getValue();
+  }
+
+  private void startProcessor( long contentLength ) throws IOException {
+    HttpServletRequest request = createRequest( contentLength );
+    new AsyncFileUploadProcessor( uploadHandler, createCompletion() ).start( request, response );
+  }
+
+  private HttpServletRequest createRequest( long contentLength ) throws IOException {
+    HttpServletRequest request = mock( HttpServletRequest.class );
+    when( request.getContentType() ).thenReturn( "multipart/form-data; boundary=" + BOUNDARY );
+    when( request.getContentLength() ).thenReturn( ( int )contentLength );
+    when( request.getInputStream() ).thenReturn( input );
+    when( request.startAsync() ).thenReturn( asyncContext );
+    return request;
+  }
+
+  private Runnable createCompletion() {
+    return new Runnable() {
+      public void run() {
+        // the completion must run exactly once
+        assertEquals( 1, completion.getCount() );
+        completion.countDown();
+      }
+    };
+  }
+
+  private void assertCompleted() {
+    assertEquals( 0, completion.getCount() );
+    verify( asyncContext ).complete();
+  }
+
+  private static byte[] createBody( FileData... fileData ) {
+    return toBytes( FileUploadTestUtil.createMultipartBody( BOUNDARY, fileData ) );
+  }
+
+  private static String createContent( int length ) {
+    StringBuilder result = new StringBuilder();
+    for( int i = 0; i < length; i++ ) {
+      result.append( ( char )( 'a' + i % 26 ) );
+    }
+    return result.toString();
+  }
+
+  private static byte[] toBytes( String string ) {
+    try {
+      return string.getBytes( "ISO-8859-1" );
+    } catch( UnsupportedEncodingException exception ) {
+      throw new RuntimeException( exception );
+    }
+  }
+
+  /**
+   * Simulates the non-blocking input of a Servlet 3.1 container. Data can be read only after it has
+   * arrived. Like a container, the stream notifies the read listener only if the last call to
+   * isReady() returned false.
+   */
+  private static final class TestServletInputStream extends ServletInputStream {
+
+    private final ByteArrayOutputStream arrived = new ByteArrayOutputStream();
+    private ReadListener listener;
+    private int position;
+    private boolean ended;
+    private boolean waiting;
+
+    void arrive( byte[] data ) throws IOException {
+      arrive( data, 0, data.length );
+    }
+
+    void arrive( byte[] data, int offset, int length ) throws IOException {
+      boolean notify;
+      synchronized( this ) {
+        arrived.write( data, offset, length );
+        notify = waiting;
+        waiting = false;
+      }
+      if( notify ) {
+        listener.onDataAvailable();
+      }
+    }
+
+    void end() throws IOException {
+      boolean notify;
+      synchronized( this ) {
+        ended = true;
+        notify = waiting && isFinished();
+        waiting = false;
+      }
+      if( notify ) {
+        listener.onAllDataRead();
+      }
+    }
+
+    @Override
+    public synchronized boolean isReady() {
+      waiting = position == arrived.size() && !ended;
+      return !waiting;
+    }
+
+    @Override
+    public synchronized boolean isFinished() {
+      return ended && position == arrived.size();
+    }
+
+    @Override
+    public void setReadListener( ReadListener readListener ) {
+      listener = readListener;
+      // containers call onDataAvailable() initially, if data is available
+      if( isReady() ) {
+        try {
+          listener.onDataAvailable();
+        } catch( IOException exception ) {
+          listener.onError( exception );
+        }
+      }
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+      byte[] buffer = new byte[ 1 ];
+      return read( buffer, 0, 1 ) == -1 ? -1 : buffer[ 0 ] & 0xFF;
+    }
+
+    @Override
+    public synchronized int read( byte[] buffer, int offset, int length ) throws IOException {
+      int result = -1;
+      byte[] data = arrived.toByteArray();
+      if( position < data.length ) {
+        result = Math.min( length, data.length - position );
+        System.arraycopy( data, position, buffer, offset, result );
+        position += result;
+      } else if( !ended ) {
+        throw new IllegalStateException( "No data available" );
+      }
+      return result;
+    }
+  }
+
+}
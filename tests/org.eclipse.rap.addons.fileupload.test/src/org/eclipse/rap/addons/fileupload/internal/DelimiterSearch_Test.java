@@ -0,0 +1,116 @@
+/*******************************************************************************
+ * Copyright (c) 2014 EclipseSource and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    EclipseSource - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.rap.addons.fileupload.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+
+public class DelimiterSearch_Test {
+
+  @Test
+  public void testCreate_withEmptyPattern() {
+    try {
+      new DelimiterSearch( new byte[ 0 ] );
+      fail();
+    } catch( IllegalArgumentException expected ) {
+    }
+  }
+
+  @Test
+  public void testIndexOf() {
+    DelimiterSearch search = new DelimiterSearch( bytes( "--abc" ) );
+
+    assertEquals( 4, search.indexOf( bytes( "xyz --abc--abc" ), 0, 14 ) );
+  }
+
+  @Test
+  public void testIndexOf_atStart() {
+    DelimiterSearch search = new DelimiterSearch( bytes( "--abc" ) );
+
+    assertEquals( 0, search.indexOf( bytes( "--abc" ), 0, 5 ) );
+  }
+
+  @Test
+  public void testIndexOf_notFound() {
+    DelimiterSearch search = new DelimiterSearch( bytes( "--abc" ) );
+
+    assertEquals( -1, search.indexOf( bytes( "--ab --bc -abc" ), 0, 14 ) );
+  }
+
+  @Test
+  public void testIndexOf_respectsRange() {
+    DelimiterSearch search = new DelimiterSearch( bytes( "--abc" ) );
+    byte[] buffer = bytes( "--abc --abc" );
+
+    assertEquals( 6, search.indexOf( buffer, 1, 11 ) );
+    assertEquals( -1, search.indexOf( buffer, 1, 10 ) );
+  }
+
+  @Test
+  public void testIndexOf_withRepeatedBytes() {
+    DelimiterSearch search = new DelimiterSearch( bytes( "aab" ) );
+
+    assertEquals( 4, search.indexOf( bytes( "aaaaaab" ), 0, 7 ) );
+  }
+
+  @Test
+  public void testIndexOf_withNonAsciiBytes() {
+    DelimiterSearch search = new DelimiterSearch( new byte[] { ( byte )0xFF, 1 } );
+
+    assertEquals( 2, search.indexOf( new byte[] { 1, ( byte )0xFE, ( byte )0xFF, 1 }, 0, 4 ) );
+  }
+
+  @Test
+  public void testIndexOf_matchesNaiveSearch() {
+    Random random = new Random( 4711 );
+    byte[] pattern = new byte[] { 'a', 'b', 'a', 'c' };
+    DelimiterSearch search = new DelimiterSearch( pattern );
+    for( int i = 0; i < 1000; i++ ) {
+      byte[] buffer = new byte[ random.nextInt( 40 ) ];
+      for( int j = 0; j < buffer.length; j++ ) {
+        buffer[ j ] = ( byte )( 'a' + random.nextInt( 3 ) );
+      }
+
+      assertEquals( naiveIndexOf( buffer, pattern ), search.indexOf( buffer, 0, buffer.length ) );
+    }
+  }
+
+  @Test
+  public void testGetSafeEnd() {
+    DelimiterSearch search = new DelimiterSearch( bytes( "--abc" ) );
+
+    assertEquals( 6, search.getSafeEnd( 0, 10 ) );
+    assertEquals( 8, search.getSafeEnd( 8, 10 ) );
+  }
+
+  private static int naiveIndexOf( byte[] buffer, byte[] pattern ) {
+    for( int i = 0; i + pattern.length <= buffer.length; i++ ) {
+      int j = 0;
+      while( j < pattern.length && buffer[ i + j ] == pattern[ j ] ) {
+        j++;
+      }
+      if( j == pattern.length ) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static byte[] bytes( String string ) {
+    return MultipartParser.toAscii( string );
+  }
+
+}
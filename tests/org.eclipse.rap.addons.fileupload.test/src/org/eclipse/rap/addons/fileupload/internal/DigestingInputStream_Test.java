@@ -0,0 +1,151 @@
+/*******************************************************************************
+ * Copyright (c) 2014 EclipseSource and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    EclipseSource - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.rap.addons.fileupload.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import org.eclipse.rap.addons.fileupload.FileDigests;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class DigestingInputStream_Test {
+
+  private static final byte[] CONTENT = "Lorem ipsum dolor sit amet.".getBytes();
+
+  private FileDetailsImpl details;
+
+  @Before
+  public void setUp() {
+    details = new FileDetailsImpl( "foo.txt", "text/plain", -1 );
+  }
+
+  @Test
+  public void testIsSupported() {
+    assertTrue( DigestingInputStream.isSupported( "SHA-256" ) );
+    assertTrue( DigestingInputStream.isSupported( FileDigests.CRC32 ) );
+    assertFalse( DigestingInputStream.isSupported( "foo" ) );
+  }
+
+  @Test
+  public void testRead_computesAllDigests() throws Exception {
+    DigestingInputStream stream = createStream( "SHA-256", "SHA-1", FileDigests.CRC32 );
+
+    readFully( stream );
+
+    assertDigest( "SHA-256" );
+    assertDigest( "SHA-1" );
+    assertTrue( Arrays.equals( getCrc32(), details.getDigest( FileDigests.CRC32 ) ) );
+  }
+
+  @Test
+  public void testRead_singleBytes() throws Exception {
+    DigestingInputStream stream = createStream( "SHA-256", FileDigests.CRC32 );
+
+    while( stream.read() != -1 ) {
+    }
+
+    assertDigest( "SHA-256" );
+    assertTrue( Arrays.equals( getCrc32(), details.getDigest( FileDigests.CRC32 ) ) );
+  }
+
+  @Test
+  public void testRead_passesDataThrough() throws IOException {
+    DigestingInputStream stream = createStream( "SHA-256" );
+
+    byte[] buffer = new byte[ 100 ];
+    int length = stream.read( buffer );
+
+    assertEquals( CONTENT.length, length );
+    assertEquals( new String( CONTENT ), new String( buffer, 0, length ) );
+  }
+
+  @Test
+  public void testGetDigest_beforeEndOfStream() throws IOException {
+    DigestingInputStream stream = createStream( "SHA-256" );
+
+    stream.read( new byte[ 5 ] );
+
+    assertNull( details.getDigest( "SHA-256" ) );
+    assertEquals( 0, details.getDigestAlgorithms().length );
+  }
+
+  @Test
+  public void testGetDigestAlgorithms() throws IOException {
+    DigestingInputStream stream = createStream( "SHA-256", FileDigests.CRC32 );
+
+    readFully( stream );
+
+    String[] algorithms = details.getDigestAlgorithms();
+    assertEquals( 2, algorithms.length );
+    assertEquals( "SHA-256", algorithms[ 0 ] );
+    assertEquals( FileDigests.CRC32, algorithms[ 1 ] );
+  }
+
+  @Test
+  public void testSkip_digestsSkippedBytes() throws Exception {
+    DigestingInputStream stream = createStream( "SHA-256" );
+
+    stream.skip( 10 );
+    readFully( stream );
+
+    assertDigest( "SHA-256" );
+  }
+
+  @Test
+  public void testDrain() throws Exception {
+    DigestingInputStream stream = createStream( "SHA-256" );
+    stream.read( new byte[ 5 ] );
+
+    stream.drain();
+
+    assertDigest( "SHA-256" );
+  }
+
+  @Test
+  public void testMarkSupported() {
+    assertFalse( createStream( "SHA-256" ).markSupported() );
+  }
+
+  private DigestingInputStream createStream( String... algorithms ) {
+    return new DigestingInputStream( new ByteArrayInputStream( CONTENT ), algorithms, details );
+  }
+
+  private void assertDigest( String algorithm ) throws Exception {
+    byte[] expected = MessageDigest.getInstance( algorithm ).digest( CONTENT );
+    assertTrue( Arrays.equals( expected, details.getDigest( algorithm ) ) );
+  }
+
+  private static byte[] getCrc32() {
+    CRC32 crc32 = new CRC32();
+    crc32.update( CONTENT );
+    long value = crc32.getValue();
+    return new byte[] {
+      ( byte )( value >>> 24 ), ( byte )( value >>> 16 ), ( byte )( value >>> 8 ), ( byte )value
+    };
+  }
+
+  private static void readFully( DigestingInputStream stream ) throws IOException {
+    byte[] buffer = new byte[ 8 ];
+    while( stream.read( buffer ) != -1 ) {
+    }
+  }
+
+}
@@ -0,0 +1,173 @@
+/*******************************************************************************
+ * Copyright (c) 2014 EclipseSource and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    EclipseSource - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.rap.addons.fileupload.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+import org.eclipse.rap.addons.fileupload.FileMetadata;
+import org.eclipse.rap.addons.fileupload.test.FileUploadTestUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class FileMetadataCache_Test {
+
+  private File tempDirectory;
+  private FileMetadataCache cache;
+
+  @Before
+  public void setUp() {
+    tempDirectory = FileUploadTestUtil.createTempDirectory();
+    cache = new FileMetadataCache( 2 );
+  }
+
+  @After
+  public void tearDown() {
+    FileUploadTestUtil.deleteRecursively( tempDirectory );
+  }
+
+  @Test
+  public void testGet_unknownFile() {
+    assertNull( cache.get( new File( tempDirectory, "foo" ) ) );
+  }
+
+  @Test
+  public void testPutAndGet() {
+    FileMetadata metadata = createMetadata();
+
+    cache.put( new File( tempDirectory, "foo" ), metadata );
+
+    assertSame( metadata, cache.get( new File( tempDirectory, "foo" ) ) );
+  }
+
+  @Test
+  public void testRemove() {
+    cache.put( new File( tempDirectory, "foo" ), createMetadata() );
+
+    cache.remove( new File( tempDirectory, "foo" ) );
+
+    assertNull( cache.get( new File( tempDirectory, "foo" ) ) );
+  }
+
+  @Test
+  public void testPut_evictsEldestEntry() {
+    FileMetadata metadata = createMetadata();
+    cache.put( new File( tempDirectory, "foo" ), metadata );
+    cache.put( new File( tempDirectory, "bar" ), createMetadata() );
+    cache.get( new File( tempDirectory, "foo" ) );
+    cache.put( new File( tempDirectory, "baz" ), createMetadata() );
+
+    assertSame( metadata, cache.get( new File( tempDirectory, "foo" ) ) );
+    assertNull( cache.get( new File( tempDirectory, "bar" ) ) );
+  }
+
+  @Test
+  public void testReadPersisted() throws IOException {
+    cache.persist( new File( tempDirectory, "foo" ), "text/plain" );
+    cache.persist( new File( tempDirectory, "foo_1" ), "text/html" );
+
+    assertEquals( "text/plain", cache.readPersisted( new File( tempDirectory, "foo" ) ) );
+    assertEquals( "text/html", cache.readPersisted( new File( tempDirectory, "foo_1" ) ) );
+    assertNull( cache.readPersisted( new File( tempDirectory, "bar" ) ) );
+  }
+
+  @Test
+  public void testRemove_removesPersistedContentType() throws IOException {
+    File file = createFile( "foo" );
+    cache.persist( file, "text/plain" );
+
+    cache.remove( file );
+
+    assertNull( cache.readPersisted( file ) );
+  }
+
+  @Test
+  public void testRemove_withoutIndexFile() {
+    cache.remove( new File( tempDirectory, "foo" ) );
+
+    assertFalse( new File( tempDirectory, FileMetadataCache.INDEX_FILE_NAME ).exists() );
+  }
+
+  @Test
+  public void testPersist_afterRemove() throws IOException {
+    File file = createFile( "foo" );
+    cache.persist( file, "text/plain" );
+    cache.remove( file );
+
+    cache.persist( file, "text/html" );
+
+    assertEquals( "text/html", cache.readPersisted( file ) );
+  }
+
+  @Test
+  public void testPersist_compactsIndex() throws IOException {
+    File file = createFile( "foo" );
+    cache.persist( new File( tempDirectory, "deleted" ), "text/plain" );
+
+    for( int i = 0; i < FileMetadataCache.COMPACTION_THRESHOLD; i++ ) {
+      cache.persist( file, "text/plain" );
+    }
+
+    assertEquals( 2, countLines( new File( tempDirectory, FileMetadataCache.INDEX_FILE_NAME ) ) );
+    assertEquals( "text/plain", cache.readPersisted( file ) );
+    assertNull( cache.readPersisted( new File( tempDirectory, "deleted" ) ) );
+  }
+
+  @Test
+  public void testPersist_compactsExistingIndex() throws IOException {
+    File file = createFile( "foo" );
+    cache.persist( file, "text/plain" );
+    cache.persist( file, "text/plain" );
+
+    new FileMetadataCache( 2 ).persist( file, "text/html" );
+
+    assertEquals( 2, countLines( new File( tempDirectory, FileMetadataCache.INDEX_FILE_NAME ) ) );
+    assertEquals( "text/html", cache.readPersisted( file ) );
+  }
+
+  @Test
+  public void testReadPersisted_withoutIndexFile() {
+    assertNull( cache.readPersisted( new File( tempDirectory, "foo" ) ) );
+  }
+
+  private File createFile( String name ) throws IOException {
+    File result = new File( tempDirectory, name );
+    result.createNewFile();
+    return result;
+  }
+
+  private static int countLines( File file ) throws IOException {
+    BufferedReader reader = new BufferedReader( new FileReader( file ) );
+    try {
+      int result = 0;
+      while( reader.readLine() != null ) {
+        result++;
+      }
+      return result;
+    } finally {
+      reader.close();
+    }
+  }
+
+  private static FileMetadata createMetadata() {
+    return new FileMetadataImpl( "text/plain", 3, 23, 42 );
+  }
+
+}
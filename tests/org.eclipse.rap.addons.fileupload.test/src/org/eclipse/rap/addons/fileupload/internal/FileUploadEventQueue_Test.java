@@ -0,0 +1,195 @@
+/*******************************************************************************
+ * Copyright (c) 2014 EclipseSource and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    EclipseSource - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.rap.addons.fileupload.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.eclipse.rap.addons.fileupload.FileUploadEvent;
+import org.eclipse.rap.addons.fileupload.FileUploadHandler;
+import org.eclipse.rap.addons.fileupload.test.TestFileUploadEvent;
+import org.eclipse.rap.addons.fileupload.test.TestFileUploadListener;
+import org.eclipse.rap.addons.fileupload.test.TestFileUploadReceiver;
+import org.eclipse.rap.rwt.testfixture.internal.Fixture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+@SuppressWarnings( "restriction" )
+public class FileUploadEventQueue_Test {
+
+  private Executor originalExecutor;
+  private ManualExecutor executor;
+  private FileUploadListenerList listeners;
+  private TestFileUploadListener listener;
+  private FileUploadEvent event;
+
+  @Before
+  public void setUp() {
+    Fixture.setUp();
+    originalExecutor = FileUploadEventQueue.getExecutor();
+    executor = new ManualExecutor();
+    FileUploadEventQueue.setExecutor( executor );
+    listeners = new FileUploadListenerList();
+    listener = new TestFileUploadListener();
+    listeners.addUploadListener( listener );
+    event = new TestFileUploadEvent( new FileUploadHandler( new TestFileUploadReceiver() ) );
+  }
+
+  @After
+  public void tearDown() {
+    FileUploadEventQueue.setExecutor( originalExecutor );
+    Fixture.tearDown();
+  }
+
+  @Test
+  public void testCreate_withInvalidCapacity() {
+    try {
+      new FileUploadEventQueue( listeners, 0 );
+      fail();
+    } catch( IllegalArgumentException expected ) {
+    }
+  }
+
+  @Test
+  public void testAdd_doesNotNotifyImmediately() {
+    FileUploadEventQueue queue = new FileUploadEventQueue( listeners, 10 );
+
+    queue.addProgress( event );
+
+    assertEquals( "", listener.getLog() );
+    assertEquals( 1, queue.getSize() );
+  }
+
+  @Test
+  public void testAdd_schedulesOnce() {
+    FileUploadEventQueue queue = new FileUploadEventQueue( listeners, 10 );
+
+    queue.addProgress( event );
+    queue.addProgress( event );
+    queue.addFinished( event );
+
+    assertEquals( 1, executor.runnables.size() );
+  }
+
+  @Test
+  public void testDrain_keepsOrder() {
+    FileUploadEventQueue queue = new FileUploadEventQueue( listeners, 10 );
+    queue.addProgress( event );
+    queue.addProgress( event );
+    queue.addFailed( event );
+    queue.addFinished( event );
+
+    executor.runAll();
+
+    assertEquals( "progress.progress.failed.finished.", listener.getLog() );
+    assertEquals( 0, queue.getSize() );
+  }
+
+  @Test
+  public void testDrain_deliversSnapshot() {
+    FileUploadEventQueue queue = new FileUploadEventQueue( listeners, 10 );
+    queue.addFinished( event );
+
+    executor.runAll();
+
+    FileUploadEvent delivered = listener.getLastEvent();
+    assertNotSame( event, delivered );
+    assertSame( event.getSource(), delivered.getSource() );
+    assertEquals( event.getCurrentItemIndex(), delivered.getCurrentItemIndex() );
+  }
+
+  @Test
+  public void testAdd_schedulesAgainAfterDrain() {
+    FileUploadEventQueue queue = new FileUploadEventQueue( listeners, 10 );
+    queue.addProgress( event );
+    executor.runAll();
+
+    queue.addFinished( event );
+
+    assertEquals( 1, executor.runnables.size() );
+  }
+
+  @Test
+  public void testAdd_whenFull_dropsOldestProgress() {
+    FileUploadEventQueue queue = new FileUploadEventQueue( listeners, 2 );
+    queue.addFinished( event );
+    queue.addProgress( event );
+
+    queue.addProgress( event );
+
+    assertEquals( 2, queue.getSize() );
+    assertEquals( 1, queue.getDroppedCount() );
+    executor.runAll();
+    assertEquals( "finished.progress.", listener.getLog() );
+  }
+
+  @Test
+  public void testAdd_whenFull_doesNotDropTerminalEvents() {
+    FileUploadEventQueue queue = new FileUploadEventQueue( listeners, 1 );
+    queue.addProgress( event );
+
+    queue.addFinished( event );
+    queue.addFailed( event );
+
+    assertEquals( 3, queue.getSize() );
+    assertEquals( 0, queue.getDroppedCount() );
+  }
+
+  @Test
+  public void testDrain_withFailingListener_deliversRemainingEvents() {
+    listeners.addUploadListener( new TestFileUploadListener() {
+      @Override
+      public void uploadProgress( FileUploadEvent event ) {
+        throw new RuntimeException();
+      }
+    } );
+    FileUploadEventQueue queue = new FileUploadEventQueue( listeners, 10 );
+    queue.addProgress( event );
+    queue.addFinished( event );
+
+    try {
+      executor.runNext();
+      fail();
+    } catch( RuntimeException expected ) {
+    }
+    executor.runAll();
+
+    assertEquals( "finished.", listener.getLog().replace( "progress.", "" ) );
+  }
+
+  private static class ManualExecutor implements Executor {
+
+    final List<Runnable> runnables = new ArrayList<Runnable>();
+
+    public void execute( Runnable runnable ) {
+      runnables.add( runnable );
+    }
+
+    void runNext() {
+      runnables.remove( 0 ).run();
+    }
+
+    void runAll() {
+      while( !runnables.isEmpty() ) {
+        runNext();
+      }
+    }
+  }
+
+}
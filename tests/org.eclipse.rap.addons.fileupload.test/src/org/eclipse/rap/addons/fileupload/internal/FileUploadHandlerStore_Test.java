@@ -10,6 +10,7 @@
  ******************************************************************************/
 package org.eclipse.rap.addons.fileupload.internal;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNotSame;
@@ -17,7 +18,14 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.eclipse.rap.addons.fileupload.FileUploadHandler;
+import org.eclipse.rap.addons.fileupload.FileUploadReaper;
+import org.eclipse.rap.addons.fileupload.TestAdapter;
 import org.eclipse.rap.addons.fileupload.test.TestFileUploadReceiver;
 import org.eclipse.rap.rwt.testfixture.internal.Fixture;
 import org.junit.After;
@@ -73,6 +81,20 @@ public class FileUploadHandlerStore_Test {
     assertNotSame( handlerStore, instance );
   }
 
+  @Test
+  public void testApplicationContextDestroyed_stopsReaper() throws IOException {
+    File file = File.createTempFile( "upload-", ".tmp" );
+    FileUploadReaper.getInstance().track( file, null, 0 );
+
+    Fixture.disposeOfServiceContext();
+    Fixture.disposeOfApplicationContext();
+    Fixture.createApplicationContext();
+    Fixture.createServiceContext();
+
+    assertFalse( file.exists() );
+    assertFalse( TestAdapter.isReaperStarted() );
+  }
+
   @Test
   public void testGetNotExistingHandler() {
     FileUploadHandler result = handlerStore.getHandler( "testId" );
@@ -108,6 +130,166 @@ public class FileUploadHandlerStore_Test {
     assertNull( result );
   }
 
+  @Test
+  public void testGetHandlerWithNullToken() {
+    FileUploadHandler result = handlerStore.getHandler( null );
+
+    assertNull( result );
+  }
+
+  @Test
+  public void testConcurrentRegisterAndDeregister() throws InterruptedException {
+    final int threadCount = 8;
+    final int tokenCount = 500;
+    final CountDownLatch startSignal = new CountDownLatch( 1 );
+    final AtomicInteger failures = new AtomicInteger();
+    Thread[] threads = new Thread[ threadCount ];
+    for( int i = 0; i < threadCount; i++ ) {
+      final String prefix = "thread" + i + "_";
+      threads[ i ] = new Thread( new Runnable() {
+        public void run() {
+          try {
+            startSignal.await();
+            for( int j = 0; j < tokenCount; j++ ) {
+              String token = prefix + j;
+              handlerStore.registerHandler( token, testHandler );
+              if( handlerStore.getHandler( token ) != testHandler ) {
+                failures.incrementAndGet();
+              }
+              handlerStore.deregisterHandler( token );
+              if( handlerStore.getHandler( token ) != null ) {
+                failures.incrementAndGet();
+              }
+            }
+          } catch( InterruptedException exception ) {
+            failures.incrementAndGet();
+          }
+        }
+      } );
+      threads[ i ].start();
+    }
+    startSignal.countDown();
+    for( int i = 0; i < threadCount; i++ ) {
+      threads[ i ].join();
+    }
+
+    assertEquals( 0, failures.get() );
+  }
+
+  @Test
+  public void testGetHandlerCount() {
+    int count = handlerStore.getHandlerCount();
+
+    FileUploadHandler handler = new FileUploadHandler( new TestFileUploadReceiver() );
+
+    assertEquals( count + 1, handlerStore.getHandlerCount() );
+    handler.dispose();
+    assertEquals( count, handlerStore.getHandlerCount() );
+  }
+
+  @Test
+  public void testSweep_expiresIdleHandler() {
+    FileUploadHandler handler = new FileUploadHandler( new TestFileUploadReceiver() );
+    handler.setIdleTimeout( 1000 );
+    String token = TestAdapter.getTokenFor( handler );
+
+    handlerStore.sweep( System.currentTimeMillis() + 2000 );
+
+    assertNull( handlerStore.getHandler( token ) );
+    assertEquals( 1, handlerStore.getExpiredHandlerCount() );
+  }
+
+  @Test
+  public void testSweep_expiresIdleHandlerWithoutFurtherCalls() throws InterruptedException {
+    FileUploadHandlerStore.setSweepInterval( 50 );
+    try {
+      Fixture.disposeOfServiceContext();
+      Fixture.disposeOfApplicationContext();
+      Fixture.createApplicationContext();
+      Fixture.createServiceContext();
+      handlerStore = FileUploadHandlerStore.getInstance();
+    } finally {
+      FileUploadHandlerStore.setSweepInterval( FileUploadHandlerStore.SWEEP_INTERVAL );
+    }
+    FileUploadHandler handler = new FileUploadHandler( new TestFileUploadReceiver() );
+    handler.setIdleTimeout( 100 );
+
+    long deadline = System.currentTimeMillis() + 5000;
+    while( handlerStore.getHandlerCount() > 0 && System.currentTimeMillis() < deadline ) {
+      Thread.sleep( 10 );
+    }
+
+    assertEquals( 0, handlerStore.getHandlerCount() );
+    assertEquals( 1, handlerStore.getExpiredHandlerCount() );
+  }
+
+  @Test
+  public void testSweep_keepsHandlerWithinIdleTimeout() {
+    FileUploadHandler handler = new FileUploadHandler( new TestFileUploadReceiver() );
+    handler.setIdleTimeout( 10000 );
+    String token = TestAdapter.getTokenFor( handler );
+
+    handlerStore.sweep( System.currentTimeMillis() + 2000 );
+
+    assertSame( handler, handlerStore.getHandler( token ) );
+    assertEquals( 0, handlerStore.getExpiredHandlerCount() );
+  }
+
+  @Test
+  public void testSweep_keepsHandlerWithoutIdleTimeout() {
+    String token = TestAdapter.getTokenFor( testHandler );
+
+    handlerStore.sweep( Long.MAX_VALUE );
+
+    assertSame( testHandler, handlerStore.getHandler( token ) );
+  }
+
+  @Test
+  public void testSweep_keepsBusyHandler() {
+    FileUploadHandler handler = new FileUploadHandler( new TestFileUploadReceiver() );
+    handler.setIdleTimeout( 1000 );
+    String token = TestAdapter.getTokenFor( handler );
+
+    handlerStore.uploadStarted( token );
+    handlerStore.sweep( System.currentTimeMillis() + 2000 );
+
+    assertSame( handler, handlerStore.getHandler( token ) );
+  }
+
+  @Test
+  public void testSweep_expiresHandlerAfterUploadFinished() {
+    FileUploadHandler handler = new FileUploadHandler( new TestFileUploadReceiver() );
+    handler.setIdleTimeout( 1000 );
+    String token = TestAdapter.getTokenFor( handler );
+    handlerStore.uploadStarted( token );
+    handlerStore.uploadFinished( token );
+
+    handlerStore.sweep( System.currentTimeMillis() + 2000 );
+
+    assertNull( handlerStore.getHandler( token ) );
+  }
+
+  @Test
+  public void testExpireHandler() {
+    String token = TestAdapter.getTokenFor( testHandler );
+
+    handlerStore.expireHandler( token, testHandler );
+
+    assertNull( handlerStore.getHandler( token ) );
+    assertEquals( 1, handlerStore.getExpiredHandlerCount() );
+  }
+
+  @Test
+  public void testExpireHandler_withDifferentHandler() {
+    String token = TestAdapter.getTokenFor( testHandler );
+    FileUploadHandler otherHandler = new FileUploadHandler( new TestFileUploadReceiver() );
+
+    handlerStore.expireHandler( token, otherHandler );
+
+    assertSame( testHandler, handlerStore.getHandler( token ) );
+    assertEquals( 0, handlerStore.getExpiredHandlerCount() );
+  }
+
   @Test
   public void testCreateToken() {
     String token = FileUploadHandlerStore.createToken();
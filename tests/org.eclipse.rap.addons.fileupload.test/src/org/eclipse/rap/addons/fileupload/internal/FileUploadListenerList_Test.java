@@ -0,0 +1,118 @@
+/*******************************************************************************
+ * Copyright (c) 2014 EclipseSource and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    EclipseSource - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.rap.addons.fileupload.internal;
+
+import static org.junit.Assert.assertEquals;
+
+import org.eclipse.rap.addons.fileupload.FileUploadEvent;
+import org.eclipse.rap.addons.fileupload.FileUploadListener;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class FileUploadListenerList_Test {
+
+  private FileUploadListenerList listenerList;
+  private StringBuilder log;
+
+  @Before
+  public void setUp() {
+    listenerList = new FileUploadListenerList();
+    log = new StringBuilder();
+  }
+
+  @Test
+  public void testNotify_keepsInsertionOrder() {
+    listenerList.addUploadListener( new LoggingListener( "c" ) );
+    listenerList.addUploadListener( new LoggingListener( "a" ) );
+    listenerList.addUploadListener( new LoggingListener( "b" ) );
+
+    listenerList.notifyUploadProgress( null );
+
+    assertEquals( "c.progress a.progress b.progress ", log.toString() );
+  }
+
+  @Test
+  public void testAddTwice_notifiesOnce() {
+    LoggingListener listener = new LoggingListener( "a" );
+    listenerList.addUploadListener( listener );
+
+    listenerList.addUploadListener( listener );
+    listenerList.notifyUploadFinished( null );
+
+    assertEquals( "a.finished ", log.toString() );
+  }
+
+  @Test
+  public void testRemove_keepsOrderOfOthers() {
+    LoggingListener listener = new LoggingListener( "b" );
+    listenerList.addUploadListener( new LoggingListener( "a" ) );
+    listenerList.addUploadListener( listener );
+    listenerList.addUploadListener( new LoggingListener( "c" ) );
+
+    listenerList.removeUploadListener( listener );
+    listenerList.notifyUploadFailed( null );
+
+    assertEquals( "a.failed c.failed ", log.toString() );
+  }
+
+  @Test
+  public void testRemove_lastListener() {
+    LoggingListener listener = new LoggingListener( "a" );
+    listenerList.addUploadListener( listener );
+
+    listenerList.removeUploadListener( listener );
+    listenerList.removeUploadListener( listener );
+    listenerList.notifyUploadProgress( null );
+
+    assertEquals( "", log.toString() );
+  }
+
+  @Test
+  public void testRemoveDuringNotify_notifiesCurrentListeners() {
+    final LoggingListener second = new LoggingListener( "b" );
+    listenerList.addUploadListener( new LoggingListener( "a" ) {
+      @Override
+      public void uploadProgress( FileUploadEvent event ) {
+        super.uploadProgress( event );
+        listenerList.removeUploadListener( second );
+        listenerList.addUploadListener( new LoggingListener( "c" ) );
+      }
+    } );
+    listenerList.addUploadListener( second );
+
+    listenerList.notifyUploadProgress( null );
+
+    assertEquals( "a.progress b.progress ", log.toString() );
+  }
+
+  private class LoggingListener implements FileUploadListener {
+
+    private final String name;
+
+    LoggingListener( String name ) {
+      this.name = name;
+    }
+
+    public void uploadProgress( FileUploadEvent event ) {
+      log.append( name + ".progress " );
+    }
+
+    public void uploadFinished( FileUploadEvent event ) {
+      log.append( name + ".finished " );
+    }
+
+    public void uploadFailed( FileUploadEvent event ) {
+      log.append( name + ".failed " );
+    }
+  }
+
+}
@@ -12,19 +12,26 @@ package org.eclipse.rap.addons.fileupload.internal;
 
 import static org.eclipse.rap.addons.fileupload.test.FileUploadTestUtil.fakeUploadRequest;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.List;
 
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.commons.fileupload.FileUploadBase.FileUploadIOException;
+import org.apache.commons.fileupload.FileUploadBase.SizeLimitExceededException;
+
 import org.eclipse.rap.addons.fileupload.FileDetails;
 import org.eclipse.rap.addons.fileupload.FileUploadEvent;
 import org.eclipse.rap.addons.fileupload.FileUploadHandler;
@@ -34,6 +41,7 @@ import org.eclipse.rap.addons.fileupload.test.TestFileUploadListener;
 import org.eclipse.rap.addons.fileupload.test.TestFileUploadReceiver;
 import org.eclipse.rap.rwt.RWT;
 import org.eclipse.rap.rwt.testfixture.internal.Fixture;
+import org.eclipse.rap.rwt.testfixture.internal.TestRequest;
 import org.eclipse.rap.rwt.testfixture.internal.TestResponse;
 import org.junit.After;
 import org.junit.Before;
@@ -180,6 +188,47 @@ public class FileUploadProcessor_Test {
     assertEquals( HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, getResponseErrorStatus() );
   }
 
+  @Test
+  public void testHandleFileUpload_declaredLengthExceedsMaxSize() throws IOException {
+    uploadHandler.setMaxFileSize( 5 );
+    uploadHandler.addUploadListener( testListener );
+
+    fakeUploadRequestWithDeclaredLength( 1024L * 1024 * 1024 * 1024 );
+    uploadProcessor.handleFileUpload( RWT.getRequest(), RWT.getResponse() );
+
+    verify( receiver, never() ).receive( any( InputStream.class ), any( FileDetails.class ) );
+    assertEquals( "progress.failed.", testListener.getLog() );
+    assertEquals( HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, getResponseErrorStatus() );
+  }
+
+  @Test
+  public void testHandleFileUpload_declaredLengthExceedsMaxSize_withBuiltInMultipartParser()
+    throws IOException
+  {
+    uploadHandler.setBuiltInMultipartParser( true );
+    uploadHandler.setMaxFileSize( 5 );
+
+    fakeUploadRequestWithDeclaredLength( 1024L * 1024 * 1024 * 1024 );
+    uploadProcessor.handleFileUpload( RWT.getRequest(), RWT.getResponse() );
+
+    verify( receiver, never() ).receive( any( InputStream.class ), any( FileDetails.class ) );
+    assertEquals( HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, getResponseErrorStatus() );
+  }
+
+  @Test
+  public void testRequestInputStream_skippedBytesCountTowardMaxRequestSize() throws IOException {
+    uploadHandler.setMaxRequestSize( 5 );
+    InputStream data = new ByteArrayInputStream( "foo bar".getBytes() );
+    InputStream input = uploadProcessor.new RequestInputStream( data, -1 );
+
+    try {
+      input.skip( 7 );
+      fail();
+    } catch( FileUploadIOException expected ) {
+      assertTrue( expected.getCause() instanceof SizeLimitExceededException );
+    }
+  }
+
   @Test
   public void testHandleFileUpload_withExceptionInReciever() throws IOException {
     doThrow( new IOException() ).when( receiver ).receive( any( InputStream.class ),
@@ -203,6 +252,18 @@ public class FileUploadProcessor_Test {
     doAnswer( answer ).when( receiver ).receive( any( InputStream.class ), any( FileDetails.class ) );
   }
 
+  private void fakeUploadRequestWithDeclaredLength( long contentLength ) {
+    fakeUploadRequest( uploadHandler, "foo", "text/plain", "foo.txt" );
+    String body = "-------4711-----\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"foo.txt\"\r\n"
+                + "Content-Type: text/plain\r\n"
+                + "Content-Length: " + contentLength + "\r\n"
+                + "\r\n"
+                + "foo\r\n"
+                + "-------4711-------\r\n";
+    ( ( TestRequest )RWT.getRequest() ).setBody( body );
+  }
+
   private static int getResponseErrorStatus() {
     TestResponse response = ( TestResponse )RWT.getResponse();
     return response.getErrorStatus();
@@ -15,19 +15,25 @@ import static org.hamcrest.CoreMatchers.containsString;
 import static org.hamcrest.CoreMatchers.hasItem;
 import static org.hamcrest.CoreMatchers.startsWith;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 
+import org.eclipse.rap.addons.fileupload.FileUploadAdmissionControl;
 import org.eclipse.rap.addons.fileupload.FileUploadEvent;
 import org.eclipse.rap.addons.fileupload.FileUploadHandler;
 import org.eclipse.rap.addons.fileupload.TestAdapter;
 import org.eclipse.rap.addons.fileupload.test.FileUploadTestUtil;
+import org.eclipse.rap.addons.fileupload.test.FileUploadTestUtil.FileData;
 import org.eclipse.rap.addons.fileupload.test.TestFileUploadListener;
 import org.eclipse.rap.addons.fileupload.test.TestFileUploadReceiver;
 import org.eclipse.rap.rwt.RWT;
@@ -101,6 +107,242 @@ public class FileUploadServiceHandler_Test {
     assertEquals( "text/plain", uploadedItem.getFileDetails()[ 0 ].getContentType() );
   }
 
+  @Test
+  public void testUploadShortFile_withBuiltInMultipartParser()
+    throws IOException, ServletException
+  {
+    uploadHandler.setBuiltInMultipartParser( true );
+    uploadHandler.addUploadListener( testListener );
+    String content = "Lorem ipsum dolor sit amet.";
+
+    fakeUploadRequest( content, "text/plain", "short.txt"  );
+    serviceHandler.service( RWT.getRequest(), RWT.getResponse() );
+
+    assertEquals( 0, getResponseErrorStatus() );
+    assertEquals( "progress.finished.", testListener.getLog() );
+    FileUploadEvent event = testListener.getLastEvent();
+    assertEquals( "short.txt", event.getFileDetails()[ 0 ].getFileName() );
+    assertEquals( "text/plain", event.getFileDetails()[ 0 ].getContentType() );
+    assertEquals( event.getContentLength(), event.getBytesRead() );
+    assertEquals( content, new String( testReceiver.getContent() ) );
+  }
+
+  @Test
+  public void testUploadBigFile_withBuiltInMultipartParser() throws IOException, ServletException {
+    TestFileUploadListener testListener = createProgressLoggingListener();
+    uploadHandler.setBuiltInMultipartParser( true );
+    uploadHandler.addUploadListener( testListener );
+    String content = createExampleContent( 200000 );
+
+    fakeUploadRequest( content, "text/plain", "test.txt"  );
+    serviceHandler.service( RWT.getRequest(), RWT.getResponse() );
+
+    assertEquals( 0, getResponseErrorStatus() );
+    assertTrue( testListener.getLog().endsWith( "progress(200134/200134).finished." ) );
+    assertEquals( content, new String( testReceiver.getContent() ) );
+  }
+
+  @Test
+  public void testUploadBigFile_withMinProgressInterval() throws IOException, ServletException {
+    TestFileUploadListener testListener = createProgressLoggingListener();
+    uploadHandler.addUploadListener( testListener );
+    uploadHandler.setMinProgressInterval( 60 * 60 * 1000 );
+
+    fakeUploadRequest( createExampleContent( 12000 ), "text/plain", "test.txt"  );
+    serviceHandler.service( RWT.getRequest(), RWT.getResponse() );
+
+    String expected = "progress(4096/12134).progress(12134/12134).finished.";
+    assertEquals( expected, testListener.getLog() );
+  }
+
+  @Test
+  public void testUploadBigFile_withMinProgressBytes() throws IOException, ServletException {
+    TestFileUploadListener testListener = createProgressLoggingListener();
+    uploadHandler.addUploadListener( testListener );
+    uploadHandler.setMinProgressBytes( 5000 );
+
+    fakeUploadRequest( createExampleContent( 12000 ), "text/plain", "test.txt"  );
+    serviceHandler.service( RWT.getRequest(), RWT.getResponse() );
+
+    String expected = "progress(4096/12134).progress(12134/12134).finished.";
+    assertEquals( expected, testListener.getLog() );
+  }
+
+  @Test
+  public void testUploadBigFile_withMinProgressPercent() throws IOException, ServletException {
+    TestFileUploadListener testListener = createProgressLoggingListener();
+    uploadHandler.addUploadListener( testListener );
+    uploadHandler.setMinProgressPercent( 30 );
+
+    fakeUploadRequest( createExampleContent( 12000 ), "text/plain", "test.txt"  );
+    serviceHandler.service( RWT.getRequest(), RWT.getResponse() );
+
+    String expected = "progress(4096/12134).progress(8174/12134).progress(12134/12134).finished.";
+    assertEquals( expected, testListener.getLog() );
+  }
+
+  @Test
+  public void testUploadWithException_reportsPendingProgress()
+    throws IOException, ServletException
+  {
+    TestFileUploadListener testListener = createProgressLoggingListener();
+    uploadHandler.addUploadListener( testListener );
+    uploadHandler.setMinProgressInterval( 60 * 60 * 1000 );
+    uploadHandler.setMaxFileSize( 6000 );
+
+    fakeUploadRequest( createExampleContent( 12000 ), "text/plain", "test.txt"  );
+    serviceHandler.service( RWT.getRequest(), RWT.getResponse() );
+
+    String expected = "progress(4096/12134).progress(8174/12134).failed.";
+    assertEquals( expected, testListener.getLog() );
+  }
+
+  @Test
+  public void testUploadMultipleFiles_reportsItemProgress() throws IOException, ServletException {
+    TestFileUploadListener testListener = new TestFileUploadListener() {
+      @Override
+      public void uploadProgress( FileUploadEvent info ) {
+        log.append( "progress(" + info.getCurrentItemIndex() + "/" + info.getCompletedItemCount()
+                    + ")." );
+      }
+    };
+    uploadHandler.addUploadListener( testListener );
+    String content = createExampleContent( 5000 );
+
+    FileUploadTestUtil.fakeUploadRequest( uploadHandler,
+                                          new FileData( content, "text/plain", "foo.txt" ),
+                                          new FileData( "bar", "text/plain", "bar.txt" ) );
+    serviceHandler.service( RWT.getRequest(), RWT.getResponse() );
+
+    assertEquals( 0, getResponseErrorStatus() );
+    String expected = "progress(-1/0).progress(0/0).finished.";
+    assertEquals( expected, testListener.getLog() );
+    FileUploadEvent event = testListener.getLastEvent();
+    assertEquals( 1, event.getCurrentItemIndex() );
+    assertEquals( 3, event.getCurrentItemBytesRead() );
+    assertEquals( 2, event.getCompletedItemCount() );
+  }
+
+  @Test
+  public void testUploadMultipleFiles_withBuiltInMultipartParser()
+    throws IOException, ServletException
+  {
+    uploadHandler.setBuiltInMultipartParser( true );
+    uploadHandler.addUploadListener( testListener );
+
+    FileUploadTestUtil.fakeUploadRequest( uploadHandler,
+                                          new FileData( "foo", "text/plain", "foo.txt" ),
+                                          new FileData( "bar", null, "bar.txt" ) );
+    serviceHandler.service( RWT.getRequest(), RWT.getResponse() );
+
+    assertEquals( 0, getResponseErrorStatus() );
+    FileUploadEvent event = testListener.getLastEvent();
+    assertEquals( 2, event.getFileDetails().length );
+    assertEquals( "bar.txt", event.getFileDetails()[ 1 ].getFileName() );
+    assertNull( event.getFileDetails()[ 1 ].getContentType() );
+    assertEquals( 3, event.getCurrentItemBytesRead() );
+    assertEquals( "bar", new String( testReceiver.getContent() ) );
+  }
+
+  @Test
+  public void testUploadMultipleFiles_eventsAreSnapshots() throws IOException, ServletException {
+    final List<FileUploadEvent> events = new ArrayList<FileUploadEvent>();
+    uploadHandler.addUploadListener( new TestFileUploadListener() {
+      @Override
+      public void uploadProgress( FileUploadEvent event ) {
+        events.add( event );
+      }
+      @Override
+      public void uploadFinished( FileUploadEvent event ) {
+        events.add( event );
+      }
+    } );
+
+    FileUploadTestUtil.fakeUploadRequest( uploadHandler,
+                                          new FileData( createExampleContent( 5000 ), null, "foo" ),
+                                          new FileData( "bar", "text/plain", "bar.txt" ) );
+    serviceHandler.service( RWT.getRequest(), RWT.getResponse() );
+
+    FileUploadEvent firstEvent = events.get( 0 );
+    FileUploadEvent lastEvent = events.get( events.size() - 1 );
+    assertEquals( -1, firstEvent.getCurrentItemIndex() );
+    assertEquals( 0, firstEvent.getFileDetails().length );
+    assertTrue( firstEvent.getBytesRead() < lastEvent.getBytesRead() );
+    assertEquals( 2, lastEvent.getFileDetails().length );
+    assertSame( lastEvent.getFileDetails(), lastEvent.getFileDetails() );
+  }
+
+  @Test
+  public void testUploadRejectedByAdmissionControl() throws Exception {
+    FileUploadAdmissionControl admissionControl = new FileUploadAdmissionControl();
+    admissionControl.setMaxActiveUploads( 1 );
+    admissionControl.setRetryAfter( 7 );
+    admissionControl.admit( "other" );
+    serviceHandler = new FileUploadServiceHandler( admissionControl );
+    uploadHandler.addUploadListener( testListener );
+
+    fakeUploadRequest( "The content", "text/plain", "test.txt"  );
+    serviceHandler.service( RWT.getRequest(), RWT.getResponse() );
+
+    assertEquals( HttpServletResponse.SC_SERVICE_UNAVAILABLE, getResponseErrorStatus() );
+    assertEquals( "7", ( ( TestResponse )RWT.getResponse() ).getHeader( "Retry-After" ) );
+    assertEquals( "", testListener.getLog() );
+    assertEquals( 1, admissionControl.getRejectedUploadCount() );
+  }
+
+  @Test
+  public void testUploadReleasesAdmission() throws Exception {
+    FileUploadAdmissionControl admissionControl = new FileUploadAdmissionControl();
+    admissionControl.setMaxActiveUploads( 1 );
+    serviceHandler = new FileUploadServiceHandler( admissionControl );
+
+    fakeUploadRequest( "The content", "text/plain", "test.txt"  );
+    serviceHandler.service( RWT.getRequest(), RWT.getResponse() );
+
+    assertEquals( 0, getResponseErrorStatus() );
+    assertEquals( 0, admissionControl.getActiveUploadCount() );
+  }
+
+  @Test
+  public void testOffsetQueryIsAnsweredWhileUploadsAreSaturated() throws Exception {
+    FileUploadAdmissionControl admissionControl = new FileUploadAdmissionControl();
+    admissionControl.setMaxActiveUploads( 1 );
+    admissionControl.admit( "other" );
+    serviceHandler = new FileUploadServiceHandler( admissionControl );
+    File directory = FileUploadTestUtil.createTempDirectory();
+    uploadHandler.setResumableUploadDirectory( directory );
+    uploadHandler.addUploadListener( testListener );
+
+    try {
+      fakeUploadRequest( "The content", "text/plain", "test.txt"  );
+      TestRequest request = ( TestRequest )RWT.getRequest();
+      request.setMethod( "HEAD" );
+      request.setParameter( "upload", "unknown" );
+      serviceHandler.service( RWT.getRequest(), RWT.getResponse() );
+    } finally {
+      FileUploadTestUtil.deleteRecursively( directory );
+    }
+
+    assertEquals( HttpServletResponse.SC_NOT_FOUND, getResponseErrorStatus() );
+    assertEquals( 0, admissionControl.getRejectedUploadCount() );
+    assertEquals( 1, admissionControl.getActiveUploadCount() );
+  }
+
+  @Test
+  public void testUploadWithNonBlockingIO_fallsBackWithoutAsyncSupport()
+    throws IOException, ServletException
+  {
+    uploadHandler.setNonBlockingIO( true );
+    uploadHandler.addUploadListener( testListener );
+
+    fakeUploadRequest( "The content", "text/plain", "test.txt"  );
+    serviceHandler.service( RWT.getRequest(), RWT.getResponse() );
+
+    assertEquals( 0, getResponseErrorStatus() );
+    assertEquals( "progress.finished.", testListener.getLog() );
+    assertEquals( "The content", new String( testReceiver.getContent() ) );
+  }
+
   @Test
   public void testCanUploadEmptyFile() throws IOException, ServletException {
     uploadHandler.addUploadListener( testListener );
@@ -187,6 +429,22 @@ public class FileUploadServiceHandler_Test {
     assertEquals( "progress.failed.", testListener.getLog() );
   }
 
+  @Test
+  public void testUploadRequestWithoutBoundary_withBuiltInMultipartParser()
+    throws IOException, ServletException
+  {
+    uploadHandler.setBuiltInMultipartParser( true );
+    uploadHandler.addUploadListener( testListener );
+
+    fakeUploadRequest( "Some content", "text/plain", "test.txt"  );
+    TestRequest request = ( TestRequest )RWT.getRequest();
+    request.setBody( "some bogus body content" );
+    serviceHandler.service( RWT.getRequest(), RWT.getResponse() );
+
+    assertEquals( HttpServletResponse.SC_INTERNAL_SERVER_ERROR, getResponseErrorStatus() );
+    assertEquals( "progress.failed.", testListener.getLog() );
+  }
+
   // Some browsers, such as IE and Opera, include path information, we cut them off for consistency
   @Test
   public void testOriginalFileNameWithPathSegment() throws IOException, ServletException {
@@ -247,6 +505,15 @@ public class FileUploadServiceHandler_Test {
     return asList( queryString.split( "\\&" ) );
   }
 
+  private static TestFileUploadListener createProgressLoggingListener() {
+    return new TestFileUploadListener() {
+      @Override
+      public void uploadProgress( FileUploadEvent info ) {
+        log.append( "progress(" + info.getBytesRead() + "/" + info.getContentLength() + ")." );
+      }
+    };
+  }
+
   private static int getResponseErrorStatus() {
     TestResponse response = ( TestResponse )RWT.getResponse();
     return response.getErrorStatus();
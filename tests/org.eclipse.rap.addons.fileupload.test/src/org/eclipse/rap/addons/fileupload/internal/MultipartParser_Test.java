@@ -0,0 +1,260 @@
+/*******************************************************************************
+ * Copyright (c) 2014 EclipseSource and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    EclipseSource - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.rap.addons.fileupload.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+import org.eclipse.rap.addons.fileupload.test.FileUploadTestUtil;
+import org.eclipse.rap.addons.fileupload.test.FileUploadTestUtil.FileData;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class MultipartParser_Test {
+
+  private static final String BOUNDARY = "-----4711-----";
+
+  private LoggingPartHandler handler;
+  private MultipartParser parser;
+
+  @Before
+  public void setUp() {
+    handler = new LoggingPartHandler();
+    parser = new MultipartParser( BOUNDARY, "UTF-8", handler );
+  }
+
+  @Test
+  public void testParse_singlePart() throws IOException {
+    String body = createBody( new FileData( "Lorem ipsum", "text/plain", "test.txt" ) );
+
+    parse( body, body.length() );
+
+    assertEquals( "start(file,test.txt,text/plain)[Lorem ipsum]end.", handler.getLog() );
+    assertTrue( parser.isComplete() );
+  }
+
+  @Test
+  public void testParse_byteByByte() throws IOException {
+    String body = createBody( new FileData( "Lorem ipsum", "text/plain", "test.txt" ) );
+
+    parse( body, 1 );
+
+    assertEquals( "start(file,test.txt,text/plain)[Lorem ipsum]end.", handler.getLog() );
+    assertTrue( parser.isComplete() );
+  }
+
+  @Test
+  public void testParse_multipleParts() throws IOException {
+    String body = createBody( new FileData( "first", "text/plain", "a.txt" ),
+                              new FileData( "second", null, "b.txt" ) );
+
+    parse( body, 7 );
+
+    String expected = "start(file,a.txt,text/plain)[first]end.start(file,b.txt,null)[second]end.";
+    assertEquals( expected, handler.getLog() );
+  }
+
+  @Test
+  public void testParse_emptyPart() throws IOException {
+    String body = createBody( new FileData( "", "text/plain", "empty.txt" ) );
+
+    parse( body, body.length() );
+
+    assertEquals( "start(file,empty.txt,text/plain)[]end.", handler.getLog() );
+  }
+
+  @Test
+  public void testParse_ignoresPreambleAndEpilogue() throws IOException {
+    String body = "preamble\r\n"
+                  + createBody( new FileData( "content", "text/plain", "test.txt" ) )
+                  + "epilogue";
+
+    parse( body, 3 );
+
+    assertEquals( "start(file,test.txt,text/plain)[content]end.", handler.getLog() );
+  }
+
+  @Test
+  public void testParse_contentWithPartialDelimiter() throws IOException {
+    String content = "line\r\n--" + BOUNDARY.substring( 0, 5 ) + "\r\n--";
+    String body = createBody( new FileData( content, "text/plain", "test.txt" ) );
+
+    parse( body, 4 );
+
+    assertEquals( "start(file,test.txt,text/plain)[" + content + "]end.", handler.getLog() );
+  }
+
+  @Test
+  public void testParse_formField() throws IOException {
+    String body = "--" + BOUNDARY + "\r\n"
+                  + "Content-Disposition: form-data; name=\"field\"\r\n"
+                  + "\r\n"
+                  + "value\r\n"
+                  + "--" + BOUNDARY + "--\r\n";
+
+    parse( body, body.length() );
+
+    assertEquals( "start(field,null,null)[value]end.", handler.getLog() );
+  }
+
+  @Test
+  public void testParse_partWithoutHeaders() throws IOException {
+    String body = "--" + BOUNDARY + "\r\n\r\nvalue\r\n--" + BOUNDARY + "--";
+
+    parse( body, body.length() );
+
+    assertEquals( "start(null,null,null)[value]end.", handler.getLog() );
+  }
+
+  @Test
+  public void testParse_headerNamesAreCaseInsensitive() throws IOException {
+    String body = "--" + BOUNDARY + "\r\n"
+                  + "content-disposition: form-data; NAME=\"file\"; FileName=\"a.txt\"\r\n"
+                  + "CONTENT-TYPE: text/plain\r\n"
+                  + "\r\n"
+                  + "x\r\n"
+                  + "--" + BOUNDARY + "--";
+
+    parse( body, body.length() );
+
+    assertEquals( "start(file,a.txt,text/plain)[x]end.", handler.getLog() );
+  }
+
+  @Test
+  public void testParse_decodesHeadersWithEncoding() throws IOException {
+    String body = createBody( new FileData( "x", "text/plain", "\u00e4.txt" ) );
+    byte[] bytes = toBytes( body, "UTF-8" );
+
+    parser.write( bytes, 0, bytes.length );
+
+    assertEquals( "start(file,\u00e4.txt,text/plain)[x]end.", handler.getLog() );
+  }
+
+  @Test
+  public void testParse_withInvalidDelimiterSuffix() throws IOException {
+    String body = "--" + BOUNDARY + "xx\r\n";
+
+    try {
+      parse( body, body.length() );
+      fail();
+    } catch( IOException expected ) {
+    }
+  }
+
+  @Test
+  public void testParse_withHeaderSectionTooLarge() throws IOException {
+    StringBuilder body = new StringBuilder( "--" + BOUNDARY + "\r\nX-Large: " );
+    for( int i = 0; i < MultipartParser.MAX_HEADER_SIZE; i++ ) {
+      body.append( 'x' );
+    }
+
+    try {
+      parse( body.toString(), 1024 );
+      fail();
+    } catch( IOException expected ) {
+    }
+  }
+
+  @Test
+  public void testClose_beforeFinalDelimiter() throws IOException {
+    String body = createBody( new FileData( "content", "text/plain", "test.txt" ) );
+    parse( body.substring( 0, body.length() - 10 ), 100 );
+
+    assertFalse( parser.isComplete() );
+    try {
+      parser.close();
+      fail();
+    } catch( IOException expected ) {
+    }
+  }
+
+  @Test
+  public void testClose_afterFinalDelimiter() throws IOException {
+    String body = createBody( new FileData( "content", "text/plain", "test.txt" ) );
+    parse( body, body.length() );
+
+    parser.close();
+  }
+
+  @Test
+  public void testGetBoundary() {
+    assertEquals( "abc", MultipartParser.getBoundary( "multipart/form-data; boundary=abc" ) );
+    assertEquals( "a b", MultipartParser.getBoundary( "multipart/form-data; boundary=\"a b\"" ) );
+    assertEquals( "abc", MultipartParser.getBoundary( "multipart/form-data;Boundary=abc;x=y" ) );
+  }
+
+  @Test
+  public void testGetBoundary_withoutBoundary() {
+    assertNull( MultipartParser.getBoundary( "multipart/form-data" ) );
+    assertNull( MultipartParser.getBoundary( "multipart/form-data; boundary=" ) );
+    assertNull( MultipartParser.getBoundary( null ) );
+  }
+
+  @Test
+  public void testParseParameters_withSemicolonInQuotedValue() {
+    String header = "form-data; name=\"file\"; filename=\"a;b.txt\"";
+
+    assertEquals( "a;b.txt", MultipartParser.parseParameters( header ).get( "filename" ) );
+    assertEquals( "file", MultipartParser.parseParameters( header ).get( "name" ) );
+  }
+
+  private void parse( String body, int portionSize ) throws IOException {
+    byte[] bytes = toBytes( body, "ISO-8859-1" );
+    for( int offset = 0; offset < bytes.length; offset += portionSize ) {
+      parser.write( bytes, offset, Math.min( portionSize, bytes.length - offset ) );
+    }
+  }
+
+  private static String createBody( FileData... fileData ) {
+    return FileUploadTestUtil.createMultipartBody( BOUNDARY, fileData );
+  }
+
+  private static byte[] toBytes( String string, String encoding ) {
+    try {
+      return string.getBytes( encoding );
+    } catch( UnsupportedEncodingException exception ) {
+      throw new RuntimeException( exception );
+    }
+  }
+
+  private static final class LoggingPartHandler implements MultipartParser.PartHandler {
+
+    private final StringBuilder log = new StringBuilder();
+
+    public void partStarted( String fieldName, String fileName, String contentType ) {
+      log.append( "start(" + fieldName + "," + fileName + "," + contentType + ")[" );
+    }
+
+    public void partData( byte[] buffer, int offset, int length ) {
+      try {
+        log.append( new String( buffer, offset, length, "ISO-8859-1" ) );
+      } catch( UnsupportedEncodingException exception ) {
+        throw new RuntimeException( exception );
+      }
+    }
+
+    public void partFinished() {
+      log.append( "]end." );
+    }
+
+    String getLog() {
+      return log.toString();
+    }
+  }
+
+}
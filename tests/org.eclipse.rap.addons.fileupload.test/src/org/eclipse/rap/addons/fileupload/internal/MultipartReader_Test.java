@@ -0,0 +1,339 @@
+/*******************************************************************************
+ * Copyright (c) 2014 EclipseSource and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    EclipseSource - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.rap.addons.fileupload.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+
+import org.apache.commons.fileupload.FileUploadBase.FileSizeLimitExceededException;
+import org.apache.commons.fileupload.FileUploadBase.FileUploadIOException;
+import org.eclipse.rap.addons.fileupload.test.FileUploadTestUtil;
+import org.eclipse.rap.addons.fileupload.test.FileUploadTestUtil.FileData;
+import org.junit.Test;
+
+
+public class MultipartReader_Test {
+
+  private static final String BOUNDARY = "-----4711-----";
+  private static final int BUFFER_SIZE = 16 * 1024;
+
+  @Test
+  public void testCreate_withTooSmallBuffer() {
+    try {
+      new MultipartReader( createInput( "", 1 ), BOUNDARY, "UTF-8", new byte[ 1024 ], -1 );
+      fail();
+    } catch( IllegalArgumentException expected ) {
+    }
+  }
+
+  @Test
+  public void testRead_singlePart() throws IOException {
+    String body = createBody( new FileData( "Lorem ipsum", "text/plain", "test.txt" ) );
+    MultipartReader reader = createReader( body, body.length() );
+
+    assertTrue( reader.nextPart() );
+    assertEquals( "file", reader.getFieldName() );
+    assertEquals( "test.txt", reader.getFileName() );
+    assertEquals( "text/plain", reader.getContentType() );
+    assertEquals( "Lorem ipsum", readPart( reader ) );
+    assertFalse( reader.nextPart() );
+  }
+
+  @Test
+  public void testRead_byteByByte() throws IOException {
+    String body = createBody( new FileData( "Lorem ipsum", "text/plain", "test.txt" ) );
+    MultipartReader reader = createReader( body, 1 );
+
+    assertTrue( reader.nextPart() );
+    assertEquals( "Lorem ipsum", readPart( reader ) );
+    assertFalse( reader.nextPart() );
+  }
+
+  @Test
+  public void testRead_singleBytes() throws IOException {
+    String body = createBody( new FileData( "Lorem", "text/plain", "test.txt" ) );
+    MultipartReader reader = createReader( body, 3 );
+
+    reader.nextPart();
+    InputStream stream = reader.getPartStream();
+
+    assertEquals( 'L', stream.read() );
+    assertEquals( 'o', stream.read() );
+    assertEquals( 1, stream.skip( 1 ) );
+    assertEquals( 'e', stream.read() );
+    assertEquals( 'm', stream.read() );
+    assertEquals( -1, stream.read() );
+    assertEquals( -1, stream.read() );
+  }
+
+  @Test
+  public void testRead_multipleParts() throws IOException {
+    String body = createBody( new FileData( "first", "text/plain", "a.txt" ),
+                              new FileData( "second", null, "b.txt" ) );
+    MultipartReader reader = createReader( body, 7 );
+
+    assertTrue( reader.nextPart() );
+    assertEquals( "first", readPart( reader ) );
+    assertTrue( reader.nextPart() );
+    assertEquals( "b.txt", reader.getFileName() );
+    assertNull( reader.getContentType() );
+    assertEquals( "second", readPart( reader ) );
+    assertFalse( reader.nextPart() );
+  }
+
+  @Test
+  public void testRead_skipsUnreadParts() throws IOException {
+    String body = createBody( new FileData( "first", "text/plain", "a.txt" ),
+                              new FileData( "second", "text/plain", "b.txt" ) );
+    MultipartReader reader = createReader( body, 5 );
+
+    reader.nextPart();
+    reader.getPartStream().read();
+    reader.nextPart();
+
+    assertEquals( "b.txt", reader.getFileName() );
+    assertEquals( "second", readPart( reader ) );
+  }
+
+  @Test
+  public void testRead_emptyPart() throws IOException {
+    String body = createBody( new FileData( "", "text/plain", "empty.txt" ) );
+    MultipartReader reader = createReader( body, body.length() );
+
+    assertTrue( reader.nextPart() );
+    assertEquals( "", readPart( reader ) );
+    assertFalse( reader.nextPart() );
+  }
+
+  @Test
+  public void testRead_largePart() throws IOException {
+    String content = createContent( BUFFER_SIZE * 5 + 17 );
+    String body = createBody( new FileData( content, "text/plain", "big.txt" ) );
+    MultipartReader reader = createReader( body, 1000 );
+
+    assertTrue( reader.nextPart() );
+    assertEquals( content, readPart( reader ) );
+    assertFalse( reader.nextPart() );
+  }
+
+  @Test
+  public void testRead_partialDelimiterInContent() throws IOException {
+    String content = "a\r\n--" + BOUNDARY.substring( 0, 5 ) + "b\r\n-";
+    String body = createBody( new FileData( content, "text/plain", "test.txt" ) );
+    MultipartReader reader = createReader( body, 2 );
+
+    assertTrue( reader.nextPart() );
+    assertEquals( content, readPart( reader ) );
+  }
+
+  @Test
+  public void testRead_withPreambleAndEpilogue() throws IOException {
+    String body = "preamble\r\n"
+                  + createBody( new FileData( "content", "text/plain", "test.txt" ) )
+                  + "epilogue";
+    MultipartReader reader = createReader( body, 4 );
+
+    assertTrue( reader.nextPart() );
+    assertEquals( "content", readPart( reader ) );
+    assertFalse( reader.nextPart() );
+  }
+
+  @Test
+  public void testRead_formField() throws IOException {
+    String body = "--" + BOUNDARY + "\r\n"
+                  + "Content-Disposition: form-data; name=\"field\"\r\n\r\n"
+                  + "value\r\n"
+                  + "--" + BOUNDARY + "--\r\n";
+    MultipartReader reader = createReader( body, body.length() );
+
+    assertTrue( reader.nextPart() );
+    assertEquals( "field", reader.getFieldName() );
+    assertNull( reader.getFileName() );
+    assertEquals( "value", readPart( reader ) );
+  }
+
+  @Test
+  public void testRead_partWithoutHeaders() throws IOException {
+    String body = "--" + BOUNDARY + "\r\n\r\nvalue\r\n--" + BOUNDARY + "--";
+    MultipartReader reader = createReader( body, 3 );
+
+    assertTrue( reader.nextPart() );
+    assertNull( reader.getFieldName() );
+    assertEquals( "value", readPart( reader ) );
+    assertFalse( reader.nextPart() );
+  }
+
+  @Test
+  public void testRead_headerWithContentLength() throws IOException {
+    String body = "--" + BOUNDARY + "\r\n"
+                  + "Content-Disposition: form-data; name=\"file\"; filename=\"a.txt\"\r\n"
+                  + "Content-Length: 5\r\n\r\n"
+                  + "value\r\n"
+                  + "--" + BOUNDARY + "--\r\n";
+    MultipartReader reader = createReader( body, body.length() );
+
+    reader.nextPart();
+
+    assertEquals( "5", reader.getHeader( "content-length" ) );
+  }
+
+  @Test
+  public void testRead_decodesHeadersWithEncoding() throws IOException {
+    String body = createBody( new FileData( "content", "text/plain", "ä.txt" ) );
+    InputStream input = new ByteArrayInputStream( body.getBytes( "UTF-8" ) );
+    MultipartReader reader = new MultipartReader( input, BOUNDARY, "UTF-8", createBuffer(), -1 );
+
+    reader.nextPart();
+
+    assertEquals( "ä.txt", reader.getFileName() );
+  }
+
+  @Test
+  public void testRead_streamEndsInPart() throws IOException {
+    String body = createBody( new FileData( "Lorem ipsum", "text/plain", "test.txt" ) );
+    MultipartReader reader = createReader( body.substring( 0, body.indexOf( "ipsum" ) ), 4 );
+    reader.nextPart();
+
+    try {
+      readPart( reader );
+      fail();
+    } catch( IOException expected ) {
+      assertEquals( "Stream ended unexpectedly", expected.getMessage() );
+    }
+  }
+
+  @Test
+  public void testRead_streamEndsBeforeFinalDelimiter() throws IOException {
+    String body = "--" + BOUNDARY + "\r\n\r\nvalue\r\n--" + BOUNDARY;
+    MultipartReader reader = createReader( body, body.length() );
+    reader.nextPart();
+    readPart( reader );
+
+    try {
+      reader.nextPart();
+      fail();
+    } catch( IOException expected ) {
+    }
+  }
+
+  @Test
+  public void testRead_withoutDelimiter() {
+    MultipartReader reader = createReader( "no multipart body", 5 );
+
+    try {
+      reader.nextPart();
+      fail();
+    } catch( IOException expected ) {
+    }
+  }
+
+  @Test
+  public void testRead_invalidDelimiterSuffix() {
+    String body = "--" + BOUNDARY + "xx\r\n\r\nvalue\r\n--" + BOUNDARY + "--";
+    MultipartReader reader = createReader( body, body.length() );
+
+    try {
+      reader.nextPart();
+      fail();
+    } catch( IOException expected ) {
+    }
+  }
+
+  @Test
+  public void testRead_headerSectionTooLarge() {
+    String body = "--" + BOUNDARY + "\r\nX-Large: " + createContent( 11 * 1024 ) + "\r\n\r\n";
+    MultipartReader reader = createReader( body, body.length() );
+
+    try {
+      reader.nextPart();
+      fail();
+    } catch( IOException expected ) {
+      assertTrue( expected.getMessage().startsWith( "Header section exceeds" ) );
+    }
+  }
+
+  @Test
+  public void testRead_exceedsMaxPartSize() throws IOException {
+    String body = createBody( new FileData( "Lorem ipsum", "text/plain", "test.txt" ) );
+    InputStream input = createInput( body, body.length() );
+    MultipartReader reader = new MultipartReader( input, BOUNDARY, "UTF-8", createBuffer(), 5 );
+    reader.nextPart();
+
+    try {
+      readPart( reader );
+      fail();
+    } catch( FileUploadIOException expected ) {
+      assertTrue( expected.getCause() instanceof FileSizeLimitExceededException );
+    }
+  }
+
+  private static MultipartReader createReader( String body, int portionSize ) {
+    InputStream input = createInput( body, portionSize );
+    return new MultipartReader( input, BOUNDARY, "UTF-8", createBuffer(), -1 );
+  }
+
+  private static byte[] createBuffer() {
+    return new byte[ BUFFER_SIZE ];
+  }
+
+  private static String readPart( MultipartReader reader ) throws IOException {
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    InputStream stream = reader.getPartStream();
+    byte[] buffer = new byte[ 1000 ];
+    int count = stream.read( buffer );
+    while( count != -1 ) {
+      result.write( buffer, 0, count );
+      count = stream.read( buffer );
+    }
+    return result.toString( "ISO-8859-1" );
+  }
+
+  private static String createBody( FileData... fileData ) {
+    return FileUploadTestUtil.createMultipartBody( BOUNDARY, fileData );
+  }
+
+  private static String createContent( int length ) {
+    StringBuilder result = new StringBuilder();
+    for( int i = 0; i < length; i++ ) {
+      result.append( ( char )( 'a' + i % 26 ) );
+    }
+    return result.toString();
+  }
+
+  /**
+   * Returns a stream that returns at most the given number of bytes per read, like a network
+   * stream would.
+   */
+  private static InputStream createInput( String body, final int portionSize ) {
+    byte[] bytes;
+    try {
+      bytes = body.getBytes( "ISO-8859-1" );
+    } catch( UnsupportedEncodingException exception ) {
+      throw new RuntimeException( exception );
+    }
+    return new ByteArrayInputStream( bytes ) {
+      @Override
+      public synchronized int read( byte[] buffer, int offset, int length ) {
+        return super.read( buffer, offset, Math.min( length, portionSize ) );
+      }
+    };
+  }
+
+}
@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * Copyright (c) 2014 EclipseSource and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    EclipseSource - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.rap.addons.fileupload.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.eclipse.rap.addons.fileupload.FileUploadReaper;
+import org.eclipse.rap.addons.fileupload.test.FileUploadTestUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class PartSpool_Test {
+
+  private File tempDirectory;
+  private Object owner;
+
+  @Before
+  public void setUp() {
+    tempDirectory = FileUploadTestUtil.createTempDirectory();
+    owner = new Object();
+  }
+
+  @After
+  public void tearDown() {
+    FileUploadReaper.getInstance().release( owner );
+    FileUploadTestUtil.deleteRecursively( tempDirectory );
+  }
+
+  @Test
+  public void testWrite_belowThreshold() throws IOException {
+    PartSpool spool = new PartSpool( 10, tempDirectory, owner );
+
+    spool.write( "foo".getBytes() );
+
+    assertTrue( spool.isInMemory() );
+    assertNull( spool.getFile() );
+    assertEquals( "foo", read( spool ) );
+  }
+
+  @Test
+  public void testWrite_aboveThreshold() throws IOException {
+    PartSpool spool = new PartSpool( 4, tempDirectory, owner );
+
+    spool.write( "foo".getBytes() );
+    spool.write( "bar".getBytes() );
+
+    assertFalse( spool.isInMemory() );
+    assertEquals( tempDirectory, spool.getFile().getParentFile() );
+    assertEquals( "foobar", read( spool ) );
+  }
+
+  @Test
+  public void testDispose_deletesFile() throws IOException {
+    PartSpool spool = new PartSpool( 0, tempDirectory, owner );
+    spool.write( "foo".getBytes() );
+
+    spool.dispose();
+
+    assertEquals( 0, tempDirectory.list().length );
+  }
+
+  @Test
+  public void testFileIsTrackedByReaper() throws IOException {
+    PartSpool spool = new PartSpool( 0, tempDirectory, owner );
+    spool.write( "foo".getBytes() );
+    spool.close();
+
+    FileUploadReaper.getInstance().release( owner );
+
+    assertFalse( spool.getFile().exists() );
+  }
+
+  private static String read( PartSpool spool ) throws IOException {
+    InputStream stream = spool.openInputStream();
+    try {
+      StringBuilder result = new StringBuilder();
+      int value = stream.read();
+      while( value != -1 ) {
+        result.append( ( char )value );
+        value = stream.read();
+      }
+      return result.toString();
+    } finally {
+      stream.close();
+    }
+  }
+
+}
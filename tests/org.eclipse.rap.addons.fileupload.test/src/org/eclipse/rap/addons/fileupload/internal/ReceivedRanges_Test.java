@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * Copyright (c) 2014 EclipseSource and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    EclipseSource - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.rap.addons.fileupload.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class ReceivedRanges_Test {
+
+  private ReceivedRanges ranges;
+
+  @Before
+  public void setUp() {
+    ranges = new ReceivedRanges();
+  }
+
+  @Test
+  public void testEmpty() {
+    assertEquals( "", ranges.toString() );
+    assertEquals( 0, ranges.getCoveredBytes() );
+    assertEquals( 0, ranges.getContiguousLength() );
+  }
+
+  @Test
+  public void testAdd() {
+    ranges.add( 10, 20 );
+
+    assertEquals( "10-19", ranges.toString() );
+    assertEquals( 10, ranges.getCoveredBytes() );
+    assertEquals( 0, ranges.getContiguousLength() );
+  }
+
+  @Test
+  public void testAdd_emptyRange() {
+    ranges.add( 10, 10 );
+
+    assertEquals( "", ranges.toString() );
+  }
+
+  @Test
+  public void testAdd_keepsRangesSorted() {
+    ranges.add( 20, 30 );
+    ranges.add( 0, 10 );
+
+    assertEquals( "0-9,20-29", ranges.toString() );
+    assertEquals( 10, ranges.getContiguousLength() );
+  }
+
+  @Test
+  public void testAdd_mergesAdjacentRanges() {
+    ranges.add( 0, 10 );
+    ranges.add( 10, 20 );
+
+    assertEquals( "0-19", ranges.toString() );
+  }
+
+  @Test
+  public void testAdd_mergesOverlappingRanges() {
+    ranges.add( 0, 10 );
+    ranges.add( 20, 30 );
+    ranges.add( 5, 25 );
+
+    assertEquals( "0-29", ranges.toString() );
+    assertEquals( 30, ranges.getCoveredBytes() );
+  }
+
+  @Test
+  public void testAdd_containedRange() {
+    ranges.add( 0, 30 );
+    ranges.add( 5, 25 );
+
+    assertEquals( "0-29", ranges.toString() );
+  }
+
+  @Test
+  public void testGetCoveredBytes_inRange() {
+    ranges.add( 0, 10 );
+    ranges.add( 20, 30 );
+
+    assertEquals( 0, ranges.getCoveredBytes( 10, 20 ) );
+    assertEquals( 5, ranges.getCoveredBytes( 5, 15 ) );
+    assertEquals( 10, ranges.getCoveredBytes( 5, 25 ) );
+  }
+
+  @Test
+  public void testAdd_withInvalidRange() {
+    try {
+      ranges.add( 10, 5 );
+      fail();
+    } catch( IllegalArgumentException expected ) {
+    }
+  }
+
+  @Test
+  public void testParse() {
+    ReceivedRanges parsed = ReceivedRanges.parse( "0-9, 20-29" );
+
+    assertEquals( "0-9,20-29", parsed.toString() );
+  }
+
+  @Test
+  public void testParse_emptyString() {
+    assertEquals( "", ReceivedRanges.parse( "" ).toString() );
+  }
+
+  @Test
+  public void testParse_withInvalidString() {
+    try {
+      ReceivedRanges.parse( "foo" );
+      fail();
+    } catch( IllegalArgumentException expected ) {
+    }
+  }
+
+}
@@ -0,0 +1,627 @@
+/*******************************************************************************
+ * Copyright (c) 2014 EclipseSource and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    EclipseSource - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.rap.addons.fileupload.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.rap.addons.fileupload.FileDetails;
+import org.eclipse.rap.addons.fileupload.FileUploadEvent;
+import org.eclipse.rap.addons.fileupload.FileUploadHandler;
+import org.eclipse.rap.addons.fileupload.FileUploadReaper;
+import org.eclipse.rap.addons.fileupload.TestAdapter;
+import org.eclipse.rap.addons.fileupload.test.FileUploadTestUtil;
+import org.eclipse.rap.addons.fileupload.test.TestFileUploadListener;
+import org.eclipse.rap.addons.fileupload.test.TestFileUploadReceiver;
+import org.eclipse.rap.rwt.RWT;
+import org.eclipse.rap.rwt.testfixture.internal.Fixture;
+import org.eclipse.rap.rwt.testfixture.internal.TestRequest;
+import org.eclipse.rap.rwt.testfixture.internal.TestResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+@SuppressWarnings( "restriction" )
+public class ResumableUploadProcessor_Test {
+
+  private File directory;
+  private FileUploadServiceHandler serviceHandler;
+  private TestFileUploadListener testListener;
+  private TestFileUploadReceiver testReceiver;
+  private FileUploadHandler uploadHandler;
+
+  @Before
+  public void setUp() {
+    Fixture.setUp();
+    directory = FileUploadTestUtil.createTempDirectory();
+    serviceHandler = new FileUploadServiceHandler();
+    testReceiver = new TestFileUploadReceiver();
+    uploadHandler = new FileUploadHandler( testReceiver );
+    uploadHandler.setResumableUploadDirectory( directory );
+    testListener = new TestFileUploadListener();
+    uploadHandler.addUploadListener( testListener );
+  }
+
+  @After
+  public void tearDown() {
+    FileUploadTestUtil.deleteRecursively( directory );
+    Fixture.tearDown();
+  }
+
+  @Test
+  public void testCreate() throws IOException, ServletException {
+    String id = createUpload( 10 );
+
+    assertNotNull( id );
+    assertEquals( HttpServletResponse.SC_CREATED, getResponse().getStatus() );
+    assertEquals( "0", getResponse().getHeader( "Upload-Offset" ) );
+    assertEquals( "10", getResponse().getHeader( "Upload-Length" ) );
+    assertNotNull( ResumableUpload.load( directory, id ) );
+  }
+
+  @Test
+  public void testCreate_withoutLength() throws IOException, ServletException {
+    fakeRequest( "POST", "new", null ).setParameter( "fileName", "test.txt" );
+
+    serviceHandler.service( RWT.getRequest(), RWT.getResponse() );
+
+    assertEquals( HttpServletResponse.SC_BAD_REQUEST, getResponse().getErrorStatus() );
+  }
+
+  @Test
+  public void testCreate_exceedsMaxFileSize() throws IOException, ServletException {
+    uploadHandler.setMaxFileSize( 5 );
+
+    createUpload( 10 );
+
+    assertEquals( HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+                  getResponse().getErrorStatus() );
+    assertEquals( 0, directory.list().length );
+  }
+
+  @Test
+  public void testCreate_whenDisabled() throws IOException, ServletException {
+    uploadHandler.setResumableUploadDirectory( null );
+
+    createUpload( 10 );
+
+    assertEquals( HttpServletResponse.SC_BAD_REQUEST, getResponse().getErrorStatus() );
+  }
+
+  @Test
+  public void testCreate_withEmptyFile() throws IOException, ServletException {
+    String id = createUpload( 0 );
+
+    assertEquals( "finished.", testListener.getLog() );
+    assertEquals( 0, testReceiver.getTotal() );
+    assertNull( ResumableUpload.load( directory, id ) );
+  }
+
+  @Test
+  public void testQueryOffset() throws IOException, ServletException {
+    String id = createUpload( 10 );
+    appendChunk( id, 0, "01234" );
+
+    fakeRequest( "HEAD", id, null );
+    serviceHandler.service( RWT.getRequest(), RWT.getResponse() );
+
+    assertEquals( 0, getResponse().getErrorStatus() );
+    assertEquals( "5", getResponse().getHeader( "Upload-Offset" ) );
+    assertEquals( "10", getResponse().getHeader( "Upload-Length" ) );
+  }
+
+  @Test
+  public void testQueryOffset_withUnknownId() throws IOException, ServletException {
+    fakeRequest( "GET", "unknown", null );
+    serviceHandler.service( RWT.getRequest(), RWT.getResponse() );
+
+    assertEquals( HttpServletResponse.SC_NOT_FOUND, getResponse().getErrorStatus() );
+  }
+
+  @Test
+  public void testAppendChunk() throws IOException, ServletException {
+    String id = createUpload( 10 );
+
+    appendChunk( id, 0, "01234" );
+
+    assertEquals( 0, getResponse().getErrorStatus() );
+    assertEquals( "5", getResponse().getHeader( "Upload-Offset" ) );
+    assertEquals( "progress.", testListener.getLog() );
+    assertEquals( 0, testReceiver.getTotal() );
+  }
+
+  @Test
+  public void testAppendChunk_withoutOffset() throws IOException, ServletException {
+    String id = createUpload( 10 );
+
+    fakeRequest( "POST", id, null ).setBody( "01234" );
+    serviceHandler.service( RWT.getRequest(), RWT.getResponse() );
+
+    assertEquals( HttpServletResponse.SC_BAD_REQUEST, getResponse().getErrorStatus() );
+  }
+
+  @Test
+  public void testAppendChunk_withWrongOffset() throws IOException, ServletException {
+    String id = createUpload( 10 );
+    appendChunk( id, 0, "01234" );
+
+    appendChunk( id, 3, "34567" );
+
+    assertEquals( HttpServletResponse.SC_CONFLICT, getResponse().getErrorStatus() );
+    assertEquals( "5", getResponse().getHeader( "Upload-Offset" ) );
+    assertEquals( 5, ResumableUpload.load( directory, id ).getOffset() );
+  }
+
+  @Test
+  public void testAppendChunk_withUnknownId() throws IOException, ServletException {
+    appendChunk( "unknown", 0, "01234" );
+
+    assertEquals( HttpServletResponse.SC_NOT_FOUND, getResponse().getErrorStatus() );
+  }
+
+  @Test
+  public void testAppendChunk_exceedsLength() throws IOException, ServletException {
+    String id = createUpload( 4 );
+
+    appendChunk( id, 0, "01234" );
+
+    assertEquals( HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+                  getResponse().getErrorStatus() );
+    assertEquals( 4, ResumableUpload.load( directory, id ).getOffset() );
+    assertEquals( 0, testReceiver.getTotal() );
+  }
+
+  @Test
+  public void testAppendChunk_completesUpload() throws IOException, ServletException {
+    String id = createUpload( 10 );
+    appendChunk( id, 0, "01234" );
+
+    appendChunk( id, 5, "56789" );
+
+    assertEquals( 0, getResponse().getErrorStatus() );
+    assertEquals( "0123456789", new String( testReceiver.getContent() ) );
+    assertEquals( "progress.progress.finished.", testListener.getLog() );
+    FileDetails details = testListener.getLastEvent().getFileDetails()[ 0 ];
+    assertEquals( "test.txt", details.getFileName() );
+    assertEquals( "text/plain", details.getContentType() );
+    assertEquals( 10, details.getContentLength() );
+    assertNull( ResumableUpload.load( directory, id ) );
+  }
+
+  @Test
+  public void testAppendChunk_reportsProgressOfWholeFile() throws IOException, ServletException {
+    String id = createUpload( 10 );
+    appendChunk( id, 0, "01234" );
+
+    appendChunk( id, 5, "567" );
+
+    FileUploadEvent event = testListener.getLastEvent();
+    assertEquals( 10, event.getContentLength() );
+    assertEquals( 8, event.getBytesRead() );
+  }
+
+  @Test
+  public void testAppendChunk_withFailingReceiver() throws IOException, ServletException {
+    uploadHandler = new FileUploadHandler( new TestFileUploadReceiver() {
+      @Override
+      public void receive( java.io.InputStream dataStream, FileDetails details )
+        throws IOException
+      {
+        throw new IOException( "failed" );
+      }
+    } );
+    uploadHandler.setResumableUploadDirectory( directory );
+    uploadHandler.addUploadListener( testListener );
+    String id = createUpload( 5 );
+
+    appendChunk( id, 0, "01234" );
+
+    assertEquals( HttpServletResponse.SC_INTERNAL_SERVER_ERROR, getResponse().getErrorStatus() );
+    assertEquals( "progress.failed.", testListener.getLog() );
+    assertEquals( 5, ResumableUpload.load( directory, id ).getOffset() );
+  }
+
+  @Test
+  public void testCreateParallel() throws IOException, ServletException {
+    String id = createParallelUpload( 10 );
+
+    assertEquals( HttpServletResponse.SC_CREATED, getResponse().getStatus() );
+    assertEquals( "parallel", getResponse().getHeader( "Upload-Mode" ) );
+    assertEquals( "", getResponse().getHeader( "Upload-Ranges" ) );
+    assertEquals( 0, ResumableUpload.load( directory, id ).getDataFile().length() );
+  }
+
+  @Test
+  public void testCreateParallel_withMaxFileSizePreallocatesDataFile()
+    throws IOException, ServletException
+  {
+    uploadHandler.setMaxFileSize( 100 );
+
+    String id = createParallelUpload( 10 );
+
+    assertEquals( 10, ResumableUpload.load( directory, id ).getDataFile().length() );
+  }
+
+  @Test
+  public void testCreate_exceedsMaxResumableUploads() throws IOException, ServletException {
+    uploadHandler.setMaxResumableUploads( 1 );
+    createUpload( 10 );
+
+    String id = createUpload( 10 );
+
+    assertNull( id );
+    assertEquals( HttpServletResponse.SC_SERVICE_UNAVAILABLE, getResponse().getErrorStatus() );
+    assertEquals( 2, directory.list().length );
+  }
+
+  @Test
+  public void testCreate_completedUploadsDoNotCountTowardsMaxResumableUploads()
+    throws IOException, ServletException
+  {
+    uploadHandler.setMaxResumableUploads( 1 );
+    String id = createUpload( 3 );
+    appendChunk( id, 0, "foo" );
+
+    String secondId = createUpload( 10 );
+
+    assertNotNull( secondId );
+  }
+
+  @Test
+  public void testCreate_registersFilesWithReaper() throws IOException, ServletException {
+    createParallelUpload( 10 );
+
+    FileUploadReaper.getInstance().release( testReceiver );
+
+    assertEquals( 0, directory.list().length );
+  }
+
+  @Test
+  public void testAppendParallelChunk_outOfOrder() throws IOException, ServletException {
+    String id = createParallelUpload( 10 );
+
+    appendChunk( id, 5, "56789" );
+
+    assertEquals( 0, getResponse().getErrorStatus() );
+    assertEquals( "0", getResponse().getHeader( "Upload-Offset" ) );
+    assertEquals( "5-9", getResponse().getHeader( "Upload-Ranges" ) );
+    assertEquals( 0, testReceiver.getTotal() );
+  }
+
+  @Test
+  public void testAppendParallelChunk_completesUpload() throws IOException, ServletException {
+    String id = createParallelUpload( 10 );
+    appendChunk( id, 5, "56789" );
+
+    appendChunk( id, 0, "01234" );
+
+    assertEquals( "10", getResponse().getHeader( "Upload-Offset" ) );
+    assertEquals( "0123456789", new String( testReceiver.getContent() ) );
+    assertEquals( "progress.progress.finished.", testListener.getLog() );
+    assertNull( ResumableUpload.load( directory, id ) );
+    assertEquals( 0, ParallelUpload.getActiveCount() );
+  }
+
+  @Test
+  public void testAppendParallelChunk_reportsAggregatedProgress()
+    throws IOException, ServletException
+  {
+    String id = createParallelUpload( 10 );
+    appendChunk( id, 6, "6789" );
+
+    appendChunk( id, 0, "012" );
+
+    FileUploadEvent event = testListener.getLastEvent();
+    assertEquals( 10, event.getContentLength() );
+    assertEquals( 7, event.getBytesRead() );
+  }
+
+  @Test
+  public void testAppendParallelChunk_resentChunkIsCountedOnce()
+    throws IOException, ServletException
+  {
+    String id = createParallelUpload( 10 );
+    appendChunk( id, 0, "012" );
+
+    appendChunk( id, 0, "012" );
+
+    assertEquals( 3, testListener.getLastEvent().getBytesRead() );
+    assertEquals( "0-2", getResponse().getHeader( "Upload-Ranges" ) );
+  }
+
+  @Test
+  public void testAppendParallelChunk_exceedsLength() throws IOException, ServletException {
+    String id = createParallelUpload( 10 );
+
+    appendChunk( id, 8, "890" );
+
+    assertEquals( HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+                  getResponse().getErrorStatus() );
+    assertEquals( "8-9", getResponse().getHeader( "Upload-Ranges" ) );
+  }
+
+  @Test
+  public void testAppendParallelChunk_withOffsetBeyondLength()
+    throws IOException, ServletException
+  {
+    String id = createParallelUpload( 10 );
+
+    appendChunk( id, 11, "1" );
+
+    assertEquals( HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+                  getResponse().getErrorStatus() );
+  }
+
+  @Test
+  public void testAppendParallelChunk_concurrently() throws Exception {
+    final int chunkCount = 8;
+    final int chunkSize = 64 * 1024;
+    final String id = createParallelUpload( chunkCount * chunkSize );
+    final byte[] content = new byte[ chunkCount * chunkSize ];
+    for( int i = 0; i < content.length; i++ ) {
+      content[ i ] = ( byte )( i * 31 );
+    }
+    final CountDownLatch start = new CountDownLatch( 1 );
+    final List<Throwable> errors = Collections.synchronizedList( new ArrayList<Throwable>() );
+    Thread[] threads = new Thread[ chunkCount ];
+    for( int i = 0; i < chunkCount; i++ ) {
+      final int offset = i * chunkSize;
+      threads[ i ] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            TestRequest request = new TestRequest();
+            request.setMethod( "POST" );
+            request.setParameter( "upload", id );
+            request.setHeader( "Upload-Offset", String.valueOf( offset ) );
+            request.setBody( new String( content, offset, chunkSize, "ISO-8859-1" ) );
+            start.await();
+            new ResumableUploadProcessor( uploadHandler ).handleRequest( request,
+                                                                         new TestResponse() );
+          } catch( Throwable throwable ) {
+            errors.add( throwable );
+          }
+        }
+      };
+      threads[ i ].start();
+    }
+
+    start.countDown();
+    for( int i = 0; i < chunkCount; i++ ) {
+      threads[ i ].join( 10000 );
+    }
+
+    assertEquals( Collections.emptyList(), errors );
+    assertTrue( Arrays.equals( content, testReceiver.getContent() ) );
+    String log = testListener.getLog();
+    assertTrue( log.endsWith( "progress.finished." ) );
+    assertEquals( log.indexOf( "finished" ), log.lastIndexOf( "finished" ) );
+  }
+
+  @Test
+  public void testAppendParallelChunk_overlappingChunkFinishesAfterCommit() throws Exception {
+    final String id = createParallelUpload( 6 );
+    final CountDownLatch blocked = new CountDownLatch( 1 );
+    final CountDownLatch resume = new CountDownLatch( 1 );
+    final List<Throwable> errors = Collections.synchronizedList( new ArrayList<Throwable>() );
+    final TestResponse response = new TestResponse();
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          HttpServletRequest request
+            = createBlockingRequest( id, "012", "345", blocked, resume );
+          new ResumableUploadProcessor( uploadHandler ).handleRequest( request, response );
+        } catch( Throwable throwable ) {
+          errors.add( throwable );
+        }
+      }
+    };
+    thread.start();
+    blocked.await();
+
+    appendChunk( id, 0, "012345" );
+    resume.countDown();
+    thread.join( 10000 );
+
+    assertEquals( Collections.emptyList(), errors );
+    assertEquals( 0, response.getErrorStatus() );
+    assertEquals( "012345", new String( testReceiver.getContent() ) );
+    String log = testListener.getLog();
+    assertEquals( log.indexOf( "finished" ), log.lastIndexOf( "finished" ) );
+    assertEquals( 0, directory.list().length );
+  }
+
+  @Test
+  public void testAppendParallelChunk_overlappingChunksInProgressAreCountedOnce()
+    throws Exception
+  {
+    final String id = createParallelUpload( 10 );
+    final CountDownLatch blocked = new CountDownLatch( 1 );
+    final CountDownLatch resume = new CountDownLatch( 1 );
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          HttpServletRequest request = createBlockingRequest( id, "012", "", blocked, resume );
+          new ResumableUploadProcessor( uploadHandler ).handleRequest( request,
+                                                                       new TestResponse() );
+        } catch( IOException exception ) {
+          throw new RuntimeException( exception );
+        }
+      }
+    };
+    thread.start();
+    blocked.await();
+
+    try {
+      appendChunk( id, 0, "0123" );
+    } finally {
+      resume.countDown();
+      thread.join( 10000 );
+    }
+
+    assertEquals( 4, testListener.getLastEvent().getBytesRead() );
+    assertEquals( "0-3", getResponse().getHeader( "Upload-Ranges" ) );
+  }
+
+  @Test
+  public void testAppendParallelChunk_afterCommit() throws IOException, ServletException {
+    String id = createParallelUpload( 3 );
+    ResumableUpload upload = ResumableUpload.load( directory, id );
+    appendChunk( id, 0, "012" );
+
+    ParallelUpload parallelUpload = ParallelUpload.startChunk( upload );
+    try {
+      assertNull( parallelUpload.openDataFile() );
+    } finally {
+      parallelUpload.releaseChunk();
+    }
+    assertEquals( 0, directory.list().length );
+  }
+
+  @Test
+  public void testUnsupportedMethod() throws IOException, ServletException {
+    String id = createUpload( 10 );
+
+    fakeRequest( "PUT", id, null );
+    serviceHandler.service( RWT.getRequest(), RWT.getResponse() );
+
+    assertEquals( HttpServletResponse.SC_METHOD_NOT_ALLOWED, getResponse().getErrorStatus() );
+  }
+
+  private String createUpload( long length ) throws IOException, ServletException {
+    TestRequest request = fakeRequest( "POST", "new", null );
+    request.setHeader( "Upload-Length", String.valueOf( length ) );
+    request.setParameter( "fileName", "C:\\temp\\test.txt" );
+    request.setParameter( "contentType", "text/plain" );
+    serviceHandler.service( RWT.getRequest(), RWT.getResponse() );
+    return getResponse().getHeader( "Upload-Id" );
+  }
+
+  private String createParallelUpload( long length ) throws IOException, ServletException {
+    TestRequest request = fakeRequest( "POST", "new", null );
+    request.setHeader( "Upload-Length", String.valueOf( length ) );
+    request.setHeader( "Upload-Mode", "parallel" );
+    serviceHandler.service( RWT.getRequest(), RWT.getResponse() );
+    return getResponse().getHeader( "Upload-Id" );
+  }
+
+  private void appendChunk( String id, long offset, String content )
+    throws IOException, ServletException
+  {
+    TestRequest request = fakeRequest( "POST", id, String.valueOf( offset ) );
+    request.setBody( content );
+    serviceHandler.service( RWT.getRequest(), RWT.getResponse() );
+  }
+
+  private TestRequest fakeRequest( String method, String id, String offset ) {
+    TestRequest request = Fixture.fakeNewRequest();
+    request.setMethod( method );
+    request.setParameter( "servicehandler", "org.eclipse.rap.fileupload" );
+    request.setParameter( "token", TestAdapter.getTokenFor( uploadHandler ) );
+    request.setParameter( "upload", id );
+    if( offset != null ) {
+      request.setHeader( "Upload-Offset", offset );
+    }
+    return request;
+  }
+
+  /**
+   * Creates a request for a chunk at offset 0, whose body blocks after the first part until it is
+   * resumed.
+   */
+  private static HttpServletRequest createBlockingRequest( String id,
+                                                           String firstPart,
+                                                           final String secondPart,
+                                                           final CountDownLatch blocked,
+                                                           final CountDownLatch resume )
+    throws IOException
+  {
+    InputStream first = new ByteArrayInputStream( firstPart.getBytes() );
+    final InputStream body = new SequenceInputStream( first, new InputStream() {
+      private InputStream delegate;
+      @Override
+      public int read() throws IOException {
+        byte[] buffer = new byte[ 1 ];
+        return read( buffer, 0, 1 ) == -1 ? -1 : buffer[ 0 ] & 0xFF;
+      }
+      @Override
+      public int read( byte[] buffer, int offset, int length ) throws IOException {
+        if( delegate == null ) {
+          blocked.countDown();
+          try {
+            resume.await();
+          } catch( InterruptedException exception ) {
+            throw new IOException( "interrupted" );
+          }
+          delegate = new ByteArrayInputStream( secondPart.getBytes() );
+        }
+        return delegate.read( buffer, offset, length );
+      }
+    } );
+    ServletInputStream input = new ServletInputStream() {
+      @Override
+      public int read() throws IOException {
+        return body.read();
+      }
+      @Override
+      public int read( byte[] buffer, int offset, int length ) throws IOException {
+        return body.read( buffer, offset, length );
+      }
+      @Override
+      public boolean isFinished() {
+        return false;
+      }
+      @Override
+      public boolean isReady() {
+        return true;
+      }
+      @Override
+      public void setReadListener( ReadListener listener ) {
+        throw new UnsupportedOperationException();
+      }
+    };
+    HttpServletRequest result = mock( HttpServletRequest.class );
+    when( result.getMethod() ).thenReturn( "POST" );
+    when( result.getParameter( "upload" ) ).thenReturn( id );
+    when( result.getHeader( "Upload-Offset" ) ).thenReturn( "0" );
+    when( result.getInputStream() ).thenReturn( input );
+    return result;
+  }
+
+  private static TestResponse getResponse() {
+    return ( TestResponse )RWT.getResponse();
+  }
+
+}
@@ -0,0 +1,232 @@
+/*******************************************************************************
+ * Copyright (c) 2014 EclipseSource and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    EclipseSource - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.rap.addons.fileupload.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.eclipse.rap.addons.fileupload.FileUploadReaper;
+import org.eclipse.rap.addons.fileupload.test.FileUploadTestUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class ResumableUpload_Test {
+
+  private File directory;
+
+  @Before
+  public void setUp() {
+    directory = FileUploadTestUtil.createTempDirectory();
+  }
+
+  @After
+  public void tearDown() {
+    FileUploadTestUtil.deleteRecursively( directory );
+  }
+
+  @Test
+  public void testCreate() throws IOException {
+    ResumableUpload upload
+      = ResumableUpload.create( directory, "abc", 10, "foo.txt", "text/plain", false );
+
+    assertEquals( "abc", upload.getId() );
+    assertEquals( 10, upload.getLength() );
+    assertEquals( 0, upload.getOffset() );
+    assertTrue( upload.getDataFile().isFile() );
+  }
+
+  @Test
+  public void testCreate_createsDirectory() throws IOException {
+    File subDirectory = new File( directory, "sub" );
+
+    ResumableUpload.create( subDirectory, "abc", 10, null, null, false );
+
+    assertTrue( subDirectory.isDirectory() );
+  }
+
+  @Test
+  public void testCreate_withInvalidId() throws IOException {
+    try {
+      ResumableUpload.create( directory, "../abc", 10, null, null, false );
+      fail();
+    } catch( IllegalArgumentException expected ) {
+    }
+  }
+
+  @Test
+  public void testLoad() throws IOException {
+    ResumableUpload.create( directory, "abc", 10, "foo.txt", "text/plain", false );
+
+    ResumableUpload upload = ResumableUpload.load( directory, "abc" );
+
+    assertEquals( 10, upload.getLength() );
+    assertEquals( "foo.txt", upload.getFileName() );
+    assertEquals( "text/plain", upload.getContentType() );
+  }
+
+  @Test
+  public void testLoad_withoutFileNameAndContentType() throws IOException {
+    ResumableUpload.create( directory, "abc", 10, null, null, false );
+
+    ResumableUpload upload = ResumableUpload.load( directory, "abc" );
+
+    assertNull( upload.getFileName() );
+    assertNull( upload.getContentType() );
+  }
+
+  @Test
+  public void testLoad_withUnknownId() throws IOException {
+    assertNull( ResumableUpload.load( directory, "abc" ) );
+  }
+
+  @Test
+  public void testLoad_withInvalidId() throws IOException {
+    assertNull( ResumableUpload.load( directory, "../abc" ) );
+  }
+
+  @Test
+  public void testGetOffset_isLengthOfDataFile() throws IOException {
+    ResumableUpload upload = ResumableUpload.create( directory, "abc", 10, null, null, false );
+
+    FileOutputStream stream = new FileOutputStream( upload.getDataFile(), true );
+    stream.write( new byte[ 4 ] );
+    stream.close();
+
+    assertEquals( 4, ResumableUpload.load( directory, "abc" ).getOffset() );
+  }
+
+  @Test
+  public void testDelete() throws IOException {
+    ResumableUpload upload = ResumableUpload.create( directory, "abc", 10, null, null, false );
+
+    upload.delete();
+
+    assertFalse( upload.getDataFile().exists() );
+    assertNull( ResumableUpload.load( directory, "abc" ) );
+  }
+
+  @Test
+  public void testCreate_parallel() throws IOException {
+    ResumableUpload upload = ResumableUpload.create( directory, "abc", 10, null, null, true );
+
+    assertTrue( upload.isParallel() );
+    assertEquals( 0, upload.getDataFile().length() );
+    assertEquals( 0, upload.getOffset() );
+  }
+
+  @Test
+  public void testPreallocate() throws IOException {
+    ResumableUpload upload = ResumableUpload.create( directory, "abc", 10, null, null, true );
+
+    upload.preallocate();
+
+    assertEquals( 10, upload.getDataFile().length() );
+    assertEquals( 0, upload.getOffset() );
+  }
+
+  @Test
+  public void testTrack() throws IOException {
+    Object owner = new Object();
+    ResumableUpload upload = ResumableUpload.create( directory, "abc", 10, null, null, true );
+
+    upload.track( owner, 60000 );
+    FileUploadReaper.getInstance().release( owner );
+
+    assertEquals( 0, directory.list().length );
+  }
+
+  @Test
+  public void testLoad_parallel() throws IOException {
+    ResumableUpload.create( directory, "abc", 10, null, null, true );
+
+    assertTrue( ResumableUpload.load( directory, "abc" ).isParallel() );
+  }
+
+  @Test
+  public void testGetOffset_parallelIsContiguousLength() throws IOException {
+    ResumableUpload upload = ResumableUpload.create( directory, "abc", 10, null, null, true );
+    ReceivedRanges ranges = new ReceivedRanges();
+    ranges.add( 0, 3 );
+    ranges.add( 5, 8 );
+
+    upload.writeReceivedRanges( ranges );
+
+    ResumableUpload loaded = ResumableUpload.load( directory, "abc" );
+    assertEquals( 3, loaded.getOffset() );
+    assertEquals( "0-2,5-7", loaded.readReceivedRanges().toString() );
+  }
+
+  @Test
+  public void testClaimCommit() throws IOException {
+    ResumableUpload upload = ResumableUpload.create( directory, "abc", 10, null, null, false );
+
+    assertTrue( upload.claimCommit() );
+    assertFalse( ResumableUpload.load( directory, "abc" ).claimCommit() );
+  }
+
+  @Test
+  public void testReleaseCommit() throws IOException {
+    ResumableUpload upload = ResumableUpload.create( directory, "abc", 10, null, null, false );
+    upload.claimCommit();
+
+    upload.releaseCommit();
+
+    assertTrue( upload.claimCommit() );
+  }
+
+  @Test
+  public void testClaimCommit_ignoresCommitFileOfPreviousRun() throws IOException {
+    ResumableUpload upload = ResumableUpload.create( directory, "abc", 10, null, null, false );
+    new FileOutputStream( new File( directory, "abc.commit" ) ).close();
+
+    assertTrue( upload.claimCommit() );
+  }
+
+  @Test
+  public void testDelete_releasesCommit() throws IOException {
+    ResumableUpload upload = ResumableUpload.create( directory, "abc", 10, null, null, false );
+    upload.claimCommit();
+
+    upload.delete();
+
+    assertTrue( upload.claimCommit() );
+    upload.releaseCommit();
+  }
+
+  @Test
+  public void testDelete_parallel() throws IOException {
+    ResumableUpload upload = ResumableUpload.create( directory, "abc", 10, null, null, true );
+    upload.claimCommit();
+
+    upload.delete();
+
+    assertEquals( 0, directory.list().length );
+  }
+
+  @Test
+  public void testIsValidId() {
+    assertTrue( ResumableUpload.isValidId( "aZ09-_" ) );
+    assertFalse( ResumableUpload.isValidId( null ) );
+    assertFalse( ResumableUpload.isValidId( "" ) );
+    assertFalse( ResumableUpload.isValidId( "a.b" ) );
+    assertFalse( ResumableUpload.isValidId( "a/b" ) );
+  }
+
+}
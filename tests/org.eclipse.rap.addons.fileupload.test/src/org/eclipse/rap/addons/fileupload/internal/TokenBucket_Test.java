@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * Copyright (c) 2014 EclipseSource and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    EclipseSource - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.rap.addons.fileupload.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class TokenBucket_Test {
+
+  private static final long SECOND = TimeUnit.SECONDS.toNanos( 1 );
+
+  private TokenBucket bucket;
+  private long start;
+
+  @Before
+  public void setUp() {
+    bucket = new TokenBucket( 1000 );
+    start = System.nanoTime();
+  }
+
+  @Test
+  public void testCreate_withInvalidRate() {
+    try {
+      new TokenBucket( 0 );
+      fail();
+    } catch( IllegalArgumentException expected ) {
+    }
+  }
+
+  @Test
+  public void testReserve_allowsBurst() {
+    assertEquals( 0, bucket.reserve( 1000, start ) );
+  }
+
+  @Test
+  public void testReserve_waitsForDebt() {
+    bucket.reserve( 1000, start );
+
+    long waitNanos = bucket.reserve( 500, start );
+
+    assertEquals( SECOND / 2, waitNanos );
+  }
+
+  @Test
+  public void testReserve_sharesRateBetweenCallers() {
+    bucket.reserve( 1000, start );
+    bucket.reserve( 500, start );
+
+    long waitNanos = bucket.reserve( 500, start );
+
+    assertEquals( SECOND, waitNanos );
+  }
+
+  @Test
+  public void testReserve_refillsOverTime() {
+    bucket.reserve( 1000, start );
+
+    long waitNanos = bucket.reserve( 500, start + SECOND / 2 );
+
+    assertEquals( 0, waitNanos );
+  }
+
+  @Test
+  public void testReserve_refillsUpToOneSecond() {
+    bucket.reserve( 1000, start );
+
+    long waitNanos = bucket.reserve( 2000, start + 10 * SECOND );
+
+    assertEquals( SECOND, waitNanos );
+  }
+
+  @Test
+  public void testSetRate() {
+    bucket.reserve( 1000, start );
+    bucket.setRate( 2000 );
+
+    long waitNanos = bucket.reserve( 1000, start );
+
+    assertEquals( SECOND / 2, waitNanos );
+  }
+
+}
@@ -38,6 +38,21 @@ public class TestFileUploadEvent extends FileUploadEvent {
     return 0;
   }
 
+  @Override
+  public int getCurrentItemIndex() {
+    return -1;
+  }
+
+  @Override
+  public long getCurrentItemBytesRead() {
+    return 0;
+  }
+
+  @Override
+  public int getCompletedItemCount() {
+    return 0;
+  }
+
   @Override
   public Exception getException() {
     return null;